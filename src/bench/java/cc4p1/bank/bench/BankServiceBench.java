@@ -0,0 +1,100 @@
+package cc4p1.bank.bench;
+
+import cc4p1.bank.service.BankService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BankService#handle} de extremo a extremo (JSON → SQLite → JSON) por tipo de operación.
+ * Las escrituras usan un messageId nuevo en cada invocación para no caer en la rama de duplicados.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BankServiceBench {
+
+  @Param({"GetBalance", "GetClientInfo", "ListTransactions", "ListClientLoans", "Login",
+      "Deposit", "Withdraw", "Transfer", "PayLoan", "CreateLoan"})
+  public String op;
+
+  @Param({"100", "10000"})
+  public int accounts;
+
+  @Param({"50"})
+  public int historyPerAccount;
+
+  private BenchDb db;
+  private BankService bank;
+  private final ObjectMapper om = new ObjectMapper();
+  private long seq;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    db = new BenchDb(accounts, historyPerAccount);
+    bank = db.newService();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    db.close();
+  }
+
+  @Benchmark
+  public void handle(Blackhole bh) throws Exception {
+    bh.consume(bank.handle(request(), "bench"));
+  }
+
+  private String request() throws Exception {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    int i = rnd.nextInt(accounts);
+    Map<String, Object> r = new LinkedHashMap<>();
+    r.put("type", op);
+    switch (op) {
+      case "GetBalance" -> r.put("accountId", BenchDb.accountId(i));
+      case "GetClientInfo", "ListClientLoans" -> r.put("clientId", BenchDb.clientId(i));
+      case "ListTransactions" -> {
+        r.put("accountId", BenchDb.accountId(i));
+        r.put("limit", 20);
+      }
+      case "Login" -> {
+        r.put("dni", BenchDb.dni(i));
+        r.put("password", "bench");
+      }
+      case "Deposit", "Withdraw" -> {
+        r.put("messageId", "bench-" + (++seq));
+        r.put("accountId", BenchDb.accountId(i));
+        r.put("amount", "1.00");
+      }
+      case "Transfer" -> {
+        int j = (i + 1 + rnd.nextInt(accounts - 1)) % accounts;
+        r.put("messageId", "bench-" + (++seq));
+        r.put("fromAccountId", BenchDb.accountId(i));
+        r.put("toAccountId", BenchDb.accountId(j));
+        r.put("amount", "1.00");
+      }
+      case "PayLoan" -> {
+        r.put("messageId", "bench-" + (++seq));
+        r.put("loanId", BenchDb.loanId(i));
+        r.put("accountId", BenchDb.accountId(i));
+        r.put("amount", "0.01");
+      }
+      case "CreateLoan" -> {
+        r.put("messageId", "bench-" + (++seq));
+        r.put("clientId", BenchDb.clientId(i));
+        r.put("accountId", BenchDb.accountId(i));
+        r.put("principal", "100.00");
+      }
+      default -> throw new IllegalStateException("op sin request: " + op);
+    }
+    return om.writeValueAsString(r);
+  }
+}
@@ -0,0 +1,121 @@
+package cc4p1.bank.bench;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.Cliente;
+import cc4p1.bank.domain.Cuenta;
+import cc4p1.bank.repo.*;
+import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.MockReniecClient;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Base de datos SQLite temporal (archivo real, no :memory:) sembrada con
+ * {@code accounts} cuentas y {@code historyPerAccount} transacciones por cuenta.
+ * Compartida por todos los benchmarks.
+ */
+final class BenchDb implements AutoCloseable {
+
+  static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000.00");
+
+  final Path file;
+  final SQLite sqlite;
+  final ClientRepo clientRepo = new ClientRepo();
+  final AccountRepo accountRepo = new AccountRepo();
+  final LoanRepo loanRepo = new LoanRepo();
+  final TxRepo txRepo = new TxRepo();
+  final MessageRepo messageRepo = new MessageRepo();
+  final int accounts;
+
+  BenchDb(int accounts, int historyPerAccount) throws Exception {
+    this.accounts = accounts;
+    this.file = Files.createTempFile("bank-bench-", ".db");
+    Files.delete(file); // initializeIfNeeded crea el esquema solo si el archivo no existe
+    this.sqlite = new SQLite(file.toString());
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    seed(historyPerAccount);
+  }
+
+  static String clientId(int i) {
+    return String.format("CL-B%06d", i);
+  }
+
+  static String accountId(int i) {
+    return String.format("CU-B%06d", i);
+  }
+
+  static String loanId(int i) {
+    return String.format("PR-B%06d", i);
+  }
+
+  static String dni(int i) {
+    return String.format("9%07d", i);
+  }
+
+  BankService newService() {
+    return new BankService(sqlite, clientRepo, accountRepo, loanRepo, txRepo, messageRepo,
+        new MockReniecClient(true, 0));
+  }
+
+  private void seed(int historyPerAccount) throws Exception {
+    try (Connection c = sqlite.get()) {
+      for (int i = 0; i < accounts; i++) {
+        clientRepo.insert(c, new Cliente(clientId(i), dni(i), "BENCH", "PAT", "MAT", null, null, null,
+            LocalDateTime.now()), "bench");
+        accountRepo.insert(c, new Cuenta(accountId(i), clientId(i), INITIAL_BALANCE, LocalDate.now()));
+      }
+      try (PreparedStatement ps = c.prepareStatement("""
+          INSERT INTO PRESTAMOS(id_prestamo,id_cliente,id_cuenta,monto_inicial,monto_pendiente,estado)
+          VALUES(?,?,?,?,?,'activo')
+          """)) {
+        for (int i = 0; i < accounts; i++) {
+          ps.setString(1, loanId(i));
+          ps.setString(2, clientId(i));
+          ps.setString(3, accountId(i));
+          ps.setBigDecimal(4, INITIAL_BALANCE);
+          ps.setBigDecimal(5, INITIAL_BALANCE);
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+      // Historial sintético repartido en el último año para que los filtros por fecha trabajen
+      try (PreparedStatement ps = c.prepareStatement("""
+          INSERT INTO TRANSACCIONES(id_transaccion,id_cuenta,tipo,monto,fecha)
+          VALUES(?,?,?,?, datetime('now', ?))
+          """)) {
+        int pending = 0;
+        for (int i = 0; i < accounts; i++) {
+          for (int h = 0; h < historyPerAccount; h++) {
+            ps.setString(1, "TX-B" + i + "-" + h);
+            ps.setString(2, accountId(i));
+            ps.setString(3, (h & 1) == 0 ? "deposito" : "retiro");
+            ps.setBigDecimal(4, BigDecimal.TEN);
+            ps.setString(5, "-" + (h % 365) + " days");
+            ps.addBatch();
+            if (++pending == 5_000) {
+              ps.executeBatch();
+              pending = 0;
+            }
+          }
+        }
+        if (pending > 0) ps.executeBatch();
+      }
+      c.commit();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(Path.of(file + "-journal"));
+    Files.deleteIfExists(Path.of(file + "-wal"));
+    Files.deleteIfExists(Path.of(file + "-shm"));
+  }
+}
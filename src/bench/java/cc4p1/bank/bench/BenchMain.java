@@ -0,0 +1,24 @@
+package cc4p1.bank.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lanzador de JMH con el perfilador de GC/asignaciones activado por defecto
+ * (desactivar con -Dbench.gc=false). Acepta los mismos argumentos que
+ * org.openjdk.jmh.Main, p. ej. {@code RepoBench -p historyPerAccount=10000}.
+ */
+public class BenchMain {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    ChainedOptionsBuilder opts = new OptionsBuilder().parent(cli);
+    if (Boolean.parseBoolean(System.getProperty("bench.gc", "true"))) {
+      opts.addProfiler(GCProfiler.class);
+    }
+    new Runner(opts.build()).run();
+  }
+}
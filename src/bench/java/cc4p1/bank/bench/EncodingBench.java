@@ -0,0 +1,82 @@
+package cc4p1.bank.bench;
+
+import cc4p1.bank.util.Ids;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Generación de ids y codificación/decodificación del sobre JSON ({ok,status,data,error,correlationId}). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBench {
+
+  /** Ítems en el data del sobre (0 = respuesta tipo Deposit, >0 = página de ListTransactions). */
+  @Param({"0", "100", "1000"})
+  public int items;
+
+  private final ObjectMapper om = new ObjectMapper();
+  private Map<String, Object> data;
+  private String requestBody;
+
+  @Setup
+  public void setUp() throws Exception {
+    data = new LinkedHashMap<>();
+    data.put("accountId", "CU001");
+    data.put("currentBalance", new BigDecimal("2750.00"));
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (int i = 0; i < items; i++) {
+      Map<String, Object> it = new LinkedHashMap<>();
+      it.put("txId", "TX-" + i);
+      it.put("idTransferencia", null);
+      it.put("receivingAccountId", null);
+      it.put("tipo", "deposito");
+      it.put("monto", new BigDecimal("150.00"));
+      it.put("fecha", "2025-10-28 12:30:10");
+      list.add(it);
+    }
+    data.put("items", list);
+    data.put("count", list.size());
+    data.put("hasMore", false);
+    requestBody = om.writeValueAsString(Map.of(
+        "type", "Transfer", "messageId", "f9b8c3b1-0000", "fromAccountId", "CU001",
+        "toAccountId", "CU002", "amount", "150.00", "metadata", Map.of("note", "Pago de alquiler")));
+  }
+
+  @Benchmark
+  public String idTx() {
+    return Ids.tx();
+  }
+
+  @Benchmark
+  public String idTransfer() {
+    return Ids.transfer();
+  }
+
+  /** Mismo armado que BankService.ok(). */
+  @Benchmark
+  public String encodeOkEnvelope() throws Exception {
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("ok", true);
+    res.put("status", "ok");
+    res.put("data", data);
+    res.put("error", null);
+    res.put("correlationId", "corr-bench");
+    return om.writeValueAsString(res);
+  }
+
+  @Benchmark
+  public JsonNode decodeRequest() throws Exception {
+    return om.readTree(requestBody);
+  }
+}
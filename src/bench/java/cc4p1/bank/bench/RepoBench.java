@@ -0,0 +1,110 @@
+package cc4p1.bank.bench;
+
+import cc4p1.bank.domain.Transaccion;
+import cc4p1.bank.util.Ids;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rutas calientes de los repositorios aisladas del parseo JSON. Cada escritura
+ * se confirma (commit) para medir el coste real de durabilidad de SQLite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepoBench {
+
+  private static final BigDecimal ONE = BigDecimal.ONE;
+  private static final int PAGE_SIZE = 100;
+
+  @Param({"1000"})
+  public int accounts;
+
+  /** Transacciones previas por cuenta; afecta sobre todo a listByAccountAndDate. */
+  @Param({"10", "1000", "10000"})
+  public int historyPerAccount;
+
+  private BenchDb db;
+  private Connection c;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    // Las cuentas "frías" solo llevan historial en las primeras 10 para que la siembra sea acotada
+    db = new BenchDb(accounts, 0);
+    seedHotHistory(Math.min(accounts, 10));
+    c = db.sqlite.get();
+  }
+
+  private void seedHotHistory(int hot) throws Exception {
+    try (Connection s = db.sqlite.get();
+         var ps = s.prepareStatement("""
+             INSERT INTO TRANSACCIONES(id_transaccion,id_cuenta,tipo,monto,fecha)
+             VALUES(?,?,'deposito',1, datetime('now', ?))
+             """)) {
+      for (int i = 0; i < hot; i++) {
+        for (int h = 0; h < historyPerAccount; h++) {
+          ps.setString(1, "TX-H" + i + "-" + h);
+          ps.setString(2, BenchDb.accountId(i));
+          ps.setString(3, "-" + (h % 365) + " days");
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+      s.commit();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    c.close();
+    db.close();
+  }
+
+  private String randomAccount() {
+    return BenchDb.accountId(ThreadLocalRandom.current().nextInt(accounts));
+  }
+
+  @Benchmark
+  public void changeBalance() throws Exception {
+    db.accountRepo.changeBalance(c, randomAccount(), ONE);
+    c.commit();
+  }
+
+  @Benchmark
+  public void transfer() throws Exception {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    int i = rnd.nextInt(accounts);
+    int j = (i + 1 + rnd.nextInt(accounts - 1)) % accounts;
+    db.txRepo.transfer(c, Ids.transfer(), Ids.tx(), BenchDb.accountId(i), BenchDb.accountId(j), ONE,
+        db.accountRepo, null);
+    c.commit();
+  }
+
+  /** Página más reciente de una cuenta con historial de tamaño {@code historyPerAccount}. */
+  @Benchmark
+  public List<Transaccion> listByAccountAndDate() throws Exception {
+    String acc = BenchDb.accountId(ThreadLocalRandom.current().nextInt(Math.min(accounts, 10)));
+    List<Transaccion> out = db.txRepo.listByAccountAndDate(c, acc, "0001-01-01", "9999-12-31", PAGE_SIZE, 0);
+    c.commit();
+    return out;
+  }
+
+  /** Rango de un mes dentro del historial: ejercita el filtro por fecha del índice. */
+  @Benchmark
+  public List<Transaccion> listByAccountAndDateLastMonth() throws Exception {
+    String acc = BenchDb.accountId(ThreadLocalRandom.current().nextInt(Math.min(accounts, 10)));
+    String to = java.time.LocalDate.now().toString();
+    String from = java.time.LocalDate.now().minusDays(30).toString();
+    List<Transaccion> out = db.txRepo.listByAccountAndDate(c, acc, from, to, PAGE_SIZE, 0);
+    c.commit();
+    return out;
+  }
+}
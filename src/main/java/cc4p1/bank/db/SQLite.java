@@ -5,6 +5,8 @@
 // db/SQLite.java
 package cc4p1.bank.db;
 
+import org.sqlite.SQLiteConfig;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,11 +14,40 @@ import java.io.InputStreamReader;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SQLite {
   private final String url;
   private final String dbFile; // usado para verificar existencia
+  private final Properties immediate;
+  private final WriteStats writeStats = new WriteStats();
+  private volatile BusyPolicy busyPolicy = BusyPolicy.fromEnv(Map.of());
+
+  /** Unidad de trabajo de {@link #write}: usa la conexión, no hace commit ni rollback. */
+  @FunctionalInterface
+  public interface Work<T> {
+    T run(Connection c) throws Exception;
+  }
+
+  /**
+   * Reintentos de {@link #write} cuando otro escritor tiene la base: espera al azar entre 0 y
+   * {@code backoffMillis · 2^intento} (tope {@code maxBackoffMillis}) hasta {@code deadlineMillis}.
+   */
+  public record BusyPolicy(long deadlineMillis, long backoffMillis, long maxBackoffMillis) {
+    /** BANK_BUSY_DEADLINE_MS (2000), BANK_BUSY_BACKOFF_MS (1), BANK_BUSY_MAX_BACKOFF_MS (50). */
+    public static BusyPolicy fromEnv(Map<String, String> env) {
+      return new BusyPolicy(
+          Long.parseLong(env.getOrDefault("BANK_BUSY_DEADLINE_MS", "2000")),
+          Long.parseLong(env.getOrDefault("BANK_BUSY_BACKOFF_MS", "1")),
+          Long.parseLong(env.getOrDefault("BANK_BUSY_MAX_BACKOFF_MS", "50")));
+    }
+  }
 
   public SQLite(String filePath) throws IOException {
     this.dbFile = filePath;
@@ -27,21 +58,141 @@ public class SQLite {
     if (dir != null && !Files.exists(dir)) {
       Files.createDirectories(dir);
     }
+    SQLiteConfig cfg = new SQLiteConfig();
+    cfg.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+    // Sin espera interna del driver (3 s por defecto): la espera la decide BusyPolicy
+    cfg.setBusyTimeout(0);
+    this.immediate = cfg.toProperties();
+  }
+
+  public void setBusyPolicy(BusyPolicy busyPolicy) {
+    this.busyPolicy = busyPolicy;
+  }
 
+  public BusyPolicy busyPolicy() {
+    return busyPolicy;
+  }
+
+  public String file() {
+    return dbFile;
   }
 
   public Connection get() throws SQLException {
+    return open(DriverManager.getConnection(url));
+  }
+
+  /**
+   * Conexión de solo lectura para consultas: autocommit (sin BEGIN/COMMIT; cada SELECT lee
+   * su propia instantánea del WAL) y {@code query_only}, así que no puede pedir el candado de
+   * escritor ni bloquear ni esperar a {@link #write}. Una escritura por error falla con
+   * SQLITE_READONLY en vez de abrir una transacción. No se llama commit ni rollback.
+   */
+  public Connection read() throws SQLException {
     Connection c = DriverManager.getConnection(url);
-    c.setAutoCommit(false);
     try (Statement s = c.createStatement()) {
-      s.execute("PRAGMA foreign_keys = ON");
+      s.execute("PRAGMA query_only = ON");
+      return c;
+    } catch (SQLException e) {
+      c.close();
+      throw e;
+    }
+  }
+
+  private Connection open(Connection c) throws SQLException {
+    try {
+      c.setAutoCommit(false);
+      try (Statement s = c.createStatement()) {
+        s.execute("PRAGMA foreign_keys = ON");
+      }
+      return c;
+    } catch (SQLException e) {
+      c.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Transacción de escritura: BEGIN IMMEDIATE (el candado de escritor se pide al empezar, no
+   * a mitad de camino), {@code work}, COMMIT. Si la base está ocupada por otro escritor
+   * (SQLITE_BUSY / SQLITE_LOCKED) se deshace todo y se repite con espera creciente hasta el
+   * plazo de {@link BusyPolicy}; agotado, lanza DB_BUSY. Cualquier otro error (incluidos los
+   * de negocio, p. ej. INSUFFICIENT_FUNDS u OVERPAYMENT) deshace la transacción y sale tal
+   * cual, sin reintentar. {@code work} puede correr más de una vez: no debe tener efectos
+   * fuera de la conexión que no toleren repetirse.
+   */
+  public <T> T write(Work<T> work) throws Exception {
+    BusyPolicy policy = busyPolicy;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.deadlineMillis());
+    for (int attempt = 0; ; attempt++) {
+      try (Connection c = open(DriverManager.getConnection(url, immediate))) {
+        T out = work.run(c);
+        c.setAutoCommit(true); // COMMIT; c.commit() abriría otra transacción inmediata
+        writeStats.record(attempt);
+        return out;
+      } catch (SQLException e) {
+        if (!isBusy(e)) {
+          writeStats.record(attempt);
+          throw e;
+        }
+        long cap = Math.min(policy.maxBackoffMillis(), policy.backoffMillis() << Math.min(attempt, 20));
+        long wait = ThreadLocalRandom.current().nextLong(cap + 1);
+        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) - deadline > 0) {
+          writeStats.exhausted.increment();
+          throw new SQLException("DB_BUSY", e);
+        }
+        writeStats.busy.increment();
+        if (wait > 0) Thread.sleep(wait);
+      }
+    }
+  }
+
+  /** SQLITE_BUSY (5) o SQLITE_LOCKED (6), incluidos sus códigos extendidos. */
+  static boolean isBusy(SQLException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLException se) {
+        int primary = se.getErrorCode() & 0xff;
+        if (primary == 5 || primary == 6) return true;
+      }
+    }
+    return false;
+  }
+
+  /** Histograma de reintentos por transacción de escritura de esta base. */
+  public Map<String, Object> writeStats() {
+    return writeStats.toMap();
+  }
+
+  private static final class WriteStats {
+    /** Transacciones terminadas tras 0, 1, 2, 3-4, 5-8 y 9+ reintentos. */
+    private static final String[] BUCKETS = {"0", "1", "2", "3-4", "5-8", "9+"};
+    private final LongAdder[] histogram = new LongAdder[BUCKETS.length];
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    WriteStats() {
+      for (int i = 0; i < histogram.length; i++) histogram[i] = new LongAdder();
+    }
+
+    void record(int retries) {
+      int b = retries <= 2 ? retries : retries <= 4 ? 3 : retries <= 8 ? 4 : 5;
+      histogram[b].increment();
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> h = new LinkedHashMap<>();
+      for (int i = 0; i < BUCKETS.length; i++) h.put(BUCKETS[i], histogram[i].sum());
+      Map<String, Object> m = new LinkedHashMap<>();
+      m.put("retriesHistogram", h);
+      m.put("busy", busy.sum());
+      m.put("exhausted", exhausted.sum());
+      return m;
     }
-    return c;
   }
 
   /** Llamado una vez al iniciar */
   public void initializeIfNeeded(String resourcePathInClasspath) throws Exception {
     boolean needInit = !Files.exists(Paths.get(dbFile));
+    enableWal();
     try (Connection c = get()) {
       if (!needInit) {
         // Si existe, verificar al menos una tabla existente
@@ -59,6 +210,16 @@ public class SQLite {
     }
   }
 
+  /**
+   * WAL: los lectores (consultas, backfills) no bloquean al escritor ni al revés.
+   * Es persistente en el archivo; debe fijarse fuera de una transacción.
+   */
+  private void enableWal() throws SQLException {
+    try (Connection c = DriverManager.getConnection(url); Statement s = c.createStatement()) {
+      s.execute("PRAGMA journal_mode = WAL");
+    }
+  }
+
   private void migrateIfNeeded(Connection c) throws SQLException {
     // TRANSACCIONES.id_cuenta_destino (nullable)
     if (!columnExists(c, "TRANSACCIONES", "id_cuenta_destino")) {
@@ -87,6 +248,19 @@ public class SQLite {
       }
     }
 
+    // CUENTA_SUBSALDOS (sub-saldos de cuentas calientes)
+    if (!tableExists(c, "CUENTA_SUBSALDOS")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE TABLE CUENTA_SUBSALDOS (\n" +
+            "    id_cuenta TEXT NOT NULL,\n" +
+            "    slot      INTEGER NOT NULL,\n" +
+            "    saldo     REAL NOT NULL DEFAULT 0 CHECK (saldo >= 0),\n" +
+            "    PRIMARY KEY (id_cuenta, slot),\n" +
+            "    FOREIGN KEY (id_cuenta) REFERENCES CUENTAS(id_cuenta)\n" +
+            ")");
+      }
+    }
+
     // Ensure TRANSACCIONES allows tipo 'deuda' in CHECK constraint.
     // If not, recreate table with updated CHECK and copy data.
     if (!transaccionesAllowsDeuda(c)) {
@@ -111,8 +285,166 @@ public class SQLite {
         s.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transacciones_cuenta_fecha ON TRANSACCIONES(id_cuenta, fecha DESC)");
       }
     }
+
+    // TRANSACCIONES.saldo_posterior / secuencia: las filas nuevas los traen desde TxRepo;
+    // las anteriores quedan en NULL hasta que corre RunningBalanceBackfill
+    if (!columnExists(c, "TRANSACCIONES", "saldo_posterior")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("ALTER TABLE TRANSACCIONES ADD COLUMN saldo_posterior REAL");
+        s.executeUpdate("ALTER TABLE TRANSACCIONES ADD COLUMN secuencia INTEGER");
+        s.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS idx_transacciones_cuenta_secuencia ON TRANSACCIONES(id_cuenta, secuencia)");
+      }
+    }
+
+    // Cadena de hash por cuenta: las filas anteriores quedan sin hash y la cadena de cada
+    // cuenta empieza en su primera fila nueva
+    if (!columnExists(c, "TRANSACCIONES", "hash")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("ALTER TABLE TRANSACCIONES ADD COLUMN hash TEXT");
+        s.executeUpdate("ALTER TABLE TRANSACCIONES ADD COLUMN hash_anterior TEXT");
+        s.executeUpdate("CREATE TABLE IF NOT EXISTS AUDITORIA_CHECKPOINTS (\n" +
+            "    id             INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+            "    fecha          TEXT NOT NULL DEFAULT (datetime('now')),\n" +
+            "    ultimo_rowid   INTEGER NOT NULL,\n" +
+            "    cuentas        INTEGER NOT NULL,\n" +
+            "    raiz           TEXT NOT NULL,\n" +
+            "    firma          TEXT NOT NULL,\n" +
+            "    firma_anterior TEXT NOT NULL\n" +
+            ")");
+      }
+    }
+
+    // Formato de hash por fila (ver TxHash): las filas ya encadenadas quedan en NULL (formato 1,
+    // sin saldo_posterior); las nuevas se escriben con el actual
+    if (!columnExists(c, "TRANSACCIONES", "version_hash")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("ALTER TABLE TRANSACCIONES ADD COLUMN version_hash INTEGER");
+      }
+    }
+
+    // Outbox de eventos: empieza vacío, no se generan eventos del historial anterior
+    if (!tableExists(c, "EVENTOS_SALIDA")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE TABLE EVENTOS_SALIDA (\n" +
+            "    id        INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+            "    tipo      TEXT NOT NULL,\n" +
+            "    agregado  TEXT NOT NULL,\n" +
+            "    payload   TEXT NOT NULL,\n" +
+            "    fecha     TEXT NOT NULL DEFAULT (datetime('now'))\n" +
+            ")");
+        s.executeUpdate("CREATE TABLE IF NOT EXISTS EVENTOS_CURSOR (\n" +
+            "    id          INTEGER PRIMARY KEY CHECK (id = 1),\n" +
+            "    ultimo_id   INTEGER NOT NULL,\n" +
+            "    fecha       TEXT NOT NULL DEFAULT (datetime('now'))\n" +
+            ")");
+      }
+    }
+
+    // Conciliación: índice de pagos por préstamo y checkpoint del modo incremental
+    if (!tableExists(c, "RECONCILIACION_CHECKPOINT")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transacciones_prestamo ON TRANSACCIONES(json_extract(metadata, '$.loanId')) WHERE tipo = 'deuda'");
+        s.executeUpdate("CREATE TABLE RECONCILIACION_CHECKPOINT (\n" +
+            "    id           INTEGER PRIMARY KEY CHECK (id = 1),\n" +
+            "    ultimo_rowid INTEGER NOT NULL,\n" +
+            "    fecha        TEXT NOT NULL DEFAULT (datetime('now')),\n" +
+            "    discrepancias INTEGER NOT NULL DEFAULT 0\n" +
+            ")");
+      }
+    }
+
+    // CUENTA_RESUMEN_DIARIO: desde aquí lo mantiene TxRepo; las filas ya existentes
+    // (rowid <= máximo actual) quedan como tramos pendientes para DailySummaryBackfill.
+    if (!tableExists(c, "CUENTA_RESUMEN_DIARIO")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE TABLE CUENTA_RESUMEN_DIARIO (\n" +
+            "    id_cuenta TEXT NOT NULL,\n" +
+            "    dia       TEXT NOT NULL,\n" +
+            "    tipo      TEXT NOT NULL CHECK (tipo IN ('deposito','retiro','deuda')),\n" +
+            "    cantidad  INTEGER NOT NULL,\n" +
+            "    total     REAL NOT NULL,\n" +
+            "    minimo    REAL NOT NULL,\n" +
+            "    maximo    REAL NOT NULL,\n" +
+            "    PRIMARY KEY (id_cuenta, dia, tipo)\n" +
+            ") WITHOUT ROWID");
+        s.executeUpdate("CREATE TABLE IF NOT EXISTS CUENTA_RESUMEN_BACKFILL (\n" +
+            "    desde_rowid INTEGER PRIMARY KEY,\n" +
+            "    hasta_rowid INTEGER NOT NULL,\n" +
+            "    estado      TEXT NOT NULL DEFAULT ('pendiente') CHECK (estado IN ('pendiente','hecho'))\n" +
+            ")");
+      }
+      long maxRowid;
+      try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM TRANSACCIONES")) {
+        maxRowid = rs.next() ? rs.getLong(1) : 0;
+      }
+      try (PreparedStatement ps = c.prepareStatement(
+          "INSERT INTO CUENTA_RESUMEN_BACKFILL(desde_rowid, hasta_rowid) VALUES(?,?)")) {
+        for (long from = 1; from <= maxRowid; from += BACKFILL_CHUNK_ROWS) {
+          ps.setLong(1, from);
+          ps.setLong(2, Math.min(maxRowid, from + BACKFILL_CHUNK_ROWS - 1));
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+    }
+
+    // Transferencias entre shards: registro del coordinador (ver Shards)
+    if (!tableExists(c, "TRANSFERENCIAS_2PC")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE TABLE TRANSFERENCIAS_2PC (\n" +
+            "    id_transferencia  TEXT PRIMARY KEY,\n" +
+            "    id_cuenta_origen  TEXT NOT NULL,\n" +
+            "    id_cuenta_destino TEXT NOT NULL,\n" +
+            "    monto             REAL NOT NULL CHECK (monto > 0),\n" +
+            "    metadata          TEXT,\n" +
+            "    estado            TEXT NOT NULL DEFAULT 'preparada' CHECK (estado IN ('preparada','confirmada','revertida')),\n" +
+            "    fecha             TEXT NOT NULL DEFAULT (datetime('now')),\n" +
+            "    fecha_fin         TEXT\n" +
+            ")");
+        s.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transferencias_2pc_preparadas ON TRANSFERENCIAS_2PC(fecha) WHERE estado = 'preparada'");
+      }
+    }
+
+    // Transferencias programadas y órdenes permanentes (ver ScheduledTransfers)
+    if (!tableExists(c, "ORDENES_PROGRAMADAS")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("CREATE TABLE ORDENES_PROGRAMADAS (\n" +
+            "    id_orden          TEXT PRIMARY KEY,\n" +
+            "    id_cuenta_origen  TEXT NOT NULL,\n" +
+            "    id_cuenta_destino TEXT NOT NULL,\n" +
+            "    monto             REAL NOT NULL CHECK (monto > 0),\n" +
+            "    metadata          TEXT,\n" +
+            "    proxima           INTEGER NOT NULL,\n" +
+            "    intervalo_seg     INTEGER,\n" +
+            "    restantes         INTEGER,\n" +
+            "    ocurrencia        INTEGER NOT NULL DEFAULT 0,\n" +
+            "    estado            TEXT NOT NULL DEFAULT 'activa' CHECK (estado IN ('activa','terminada','cancelada')),\n" +
+            "    fallos            INTEGER NOT NULL DEFAULT 0,\n" +
+            "    ultimo_error      TEXT,\n" +
+            "    fecha             TEXT NOT NULL DEFAULT (datetime('now')),\n" +
+            "    FOREIGN KEY (id_cuenta_origen) REFERENCES CUENTAS(id_cuenta)\n" +
+            ")");
+        s.executeUpdate("CREATE INDEX IF NOT EXISTS idx_ordenes_programadas_proxima ON ORDENES_PROGRAMADAS(proxima, id_orden) WHERE estado = 'activa'");
+        s.executeUpdate("CREATE INDEX IF NOT EXISTS idx_ordenes_programadas_cuenta ON ORDENES_PROGRAMADAS(id_cuenta_origen)");
+      }
+    }
+
+    // Versiones para escrituras optimistas (compare-and-set): las filas existentes empiezan en 0
+    if (!columnExists(c, "CUENTAS", "version")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("ALTER TABLE CUENTAS ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+      }
+    }
+    if (!columnExists(c, "PRESTAMOS", "version")) {
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("ALTER TABLE PRESTAMOS ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+      }
+    }
   }
 
+  /** Tamaño de cada tramo de backfill (filas de TRANSACCIONES por rowid). */
+  private static final int BACKFILL_CHUNK_ROWS = 50_000;
+
   private boolean columnExists(Connection c, String tableName, String columnName) throws SQLException {
     String q = "PRAGMA table_info('" + tableName + "')";
     try (PreparedStatement ps = c.prepareStatement(q); ResultSet rs = ps.executeQuery()) {
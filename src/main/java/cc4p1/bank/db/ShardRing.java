@@ -0,0 +1,69 @@
+package cc4p1.bank.db;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Anillo de hash consistente: cada shard ocupa {@value #VNODES} puntos del anillo y una
+ * clave va al primer punto igual o mayor que su hash. Al pasar de N a N+1 shards solo se
+ * mueve ~1/(N+1) de las claves, así un re-split copia poco.
+ *
+ * <p>El hash (FNV-1a de 64 bits con mezcla final) es estable entre procesos y versiones de
+ * Java: la ubicación de una cuenta no puede depender de {@code String.hashCode}.
+ */
+public final class ShardRing {
+
+  private static final int VNODES = 128;
+
+  private final int shards;
+  private final long[] points;
+  private final int[] owners;
+
+  public ShardRing(int shards) {
+    if (shards < 1) throw new IllegalArgumentException("shards must be >= 1");
+    this.shards = shards;
+    long[][] entries = new long[shards * VNODES][];
+    for (int s = 0; s < shards; s++) {
+      for (int v = 0; v < VNODES; v++) entries[s * VNODES + v] = new long[] {hash("shard-" + s + "#" + v), s};
+    }
+    Arrays.sort(entries, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+    points = new long[entries.length];
+    owners = new int[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      points[i] = entries[i][0];
+      owners[i] = (int) entries[i][1];
+    }
+  }
+
+  public int size() {
+    return shards;
+  }
+
+  /** Shard dueño de la clave (id de cuenta, de cliente o DNI). */
+  public int shardOf(String key) {
+    if (shards == 1) return 0;
+    long h = hash(key);
+    int lo = 0;
+    int hi = points.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (Long.compareUnsigned(points[mid], h) < 0) lo = mid + 1;
+      else hi = mid;
+    }
+    return owners[lo == points.length ? 0 : lo];
+  }
+
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    // Mezcla final (splitmix64): FNV solo reparte mal claves con prefijo común
+    h ^= h >>> 30;
+    h *= 0xbf58476d1ce4e5b9L;
+    h ^= h >>> 27;
+    h *= 0x94d049bb133111ebL;
+    return h ^ (h >>> 31);
+  }
+}
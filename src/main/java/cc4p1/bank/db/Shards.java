@@ -0,0 +1,214 @@
+package cc4p1.bank.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Capa de ruteo entre varios archivos SQLite (shards). Cada cuenta vive en
+ * {@code shardOf(id_cuenta)} junto con sus TRANSACCIONES, sub-saldos, resúmenes y PRESTAMOS;
+ * cada shard tiene su propio escritor, así que las escrituras de cuentas distintas no se
+ * esperan entre sí.
+ *
+ * <p>Con un solo shard el archivo es el de siempre ({@code data/bank.db}) y todo se comporta
+ * como antes. Con N > 1 los archivos son {@code bank.s0.db} … {@code bank.s{N-1}.db}. Los
+ * clientes nuevos se crean con ids que caen en el mismo shard que su cuenta (ver
+ * BankService.handleRegister); los de una base partida con ShardSplitter quedan copiados en
+ * cada shard donde tienen cuentas o préstamos.
+ *
+ * <p>En cluster (ver cc4p1.bank.mq.Cluster) cada nodo abre solo sus shards locales; el anillo
+ * sigue teniendo los N, y lo que cae en un shard remoto lo atiende otro nodo.
+ */
+public final class Shards {
+
+  /** Por índice de shard; null si el shard es de otro nodo. */
+  private final List<SQLite> dbs;
+  private final List<SQLite> local;
+  private final ShardRing ring;
+  private final ReentrantLock[] writeLocks;
+
+  private Shards(List<SQLite> dbs) {
+    this.dbs = Collections.unmodifiableList(new ArrayList<>(dbs));
+    List<SQLite> l = new ArrayList<>();
+    for (SQLite db : dbs) if (db != null) l.add(db);
+    this.local = List.copyOf(l);
+    this.ring = new ShardRing(dbs.size());
+    this.writeLocks = new ReentrantLock[dbs.size()];
+    for (int i = 0; i < writeLocks.length; i++) writeLocks[i] = new ReentrantLock();
+  }
+
+  /** Un solo archivo: el comportamiento de siempre. */
+  public static Shards single(SQLite db) {
+    return new Shards(List.of(db));
+  }
+
+  /** N shards a partir de la ruta base (con N = 1, la ruta base misma). */
+  public static Shards open(String basePath, int n) throws IOException {
+    return open(basePath, n, null);
+  }
+
+  /** Solo abre los shards de {@code localShards} (null = todos); el resto queda remoto. */
+  public static Shards open(String basePath, int n, Set<Integer> localShards) throws IOException {
+    List<SQLite> dbs = new ArrayList<>(n);
+    for (int k = 0; k < n; k++) {
+      dbs.add(localShards == null || localShards.contains(k) ? new SQLite(path(basePath, k, n)) : null);
+    }
+    if (dbs.stream().allMatch(db -> db == null)) throw new IllegalArgumentException("no local shards");
+    return new Shards(dbs);
+  }
+
+  /** Archivo del shard {@code k} de {@code n}: data/bank.db → data/bank.s{k}.db. */
+  public static String path(String basePath, int k, int n) {
+    if (n == 1) return basePath;
+    String stem = basePath.endsWith(".db") ? basePath.substring(0, basePath.length() - 3) : basePath;
+    return stem + ".s" + k + ".db";
+  }
+
+  /**
+   * Inicializa o migra cada shard. Un shard nuevo con N > 1 se poda después del script,
+   * para que los datos de ejemplo queden solo en el shard dueño.
+   */
+  public void initializeIfNeeded(String resourcePathInClasspath) throws Exception {
+    for (int k = 0; k < dbs.size(); k++) {
+      if (dbs.get(k) == null) continue;
+      boolean fresh = !Files.exists(Paths.get(dbs.get(k).file()));
+      dbs.get(k).initializeIfNeeded(resourcePathInClasspath);
+      if (fresh && dbs.size() > 1) prune(k);
+    }
+  }
+
+  public int size() {
+    return dbs.size();
+  }
+
+  public SQLite get(int k) {
+    SQLite db = dbs.get(k);
+    if (db == null) throw new IllegalStateException("SHARD_NOT_LOCAL: " + k);
+    return db;
+  }
+
+  public boolean isLocal(int k) {
+    return dbs.get(k) != null;
+  }
+
+  /** true si algún shard es de otro nodo. */
+  public boolean clustered() {
+    return local.size() < dbs.size();
+  }
+
+  /** Shards locales, en orden de índice. */
+  public List<SQLite> all() {
+    return local;
+  }
+
+  public int indexOf(String key) {
+    return ring.shardOf(key);
+  }
+
+  public SQLite forKey(String key) {
+    return get(ring.shardOf(key));
+  }
+
+  /** Cerrojo de escritura de un shard; libre (no-op) si hay un solo shard. */
+  public interface WriteLock extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final WriteLock NO_LOCK = () -> { };
+
+  /**
+   * Serializa las escrituras de un mismo shard dentro del proceso (SQLite admite un solo
+   * escritor y sin esto el segundo recibe SQLITE_BUSY). Con un shard no bloquea: ahí el
+   * orden ya lo da LaneScheduler, como antes. La espera está acotada por el plazo de
+   * {@link SQLite.BusyPolicy} del shard: agotado (o si se interrumpe) lanza DB_BUSY, igual que
+   * {@link SQLite#write}.
+   */
+  public WriteLock lockWrite(int k) throws SQLException {
+    if (dbs.size() == 1) return NO_LOCK;
+    ReentrantLock l = writeLocks[k];
+    try {
+      if (!l.tryLock(get(k).busyPolicy().deadlineMillis(), TimeUnit.MILLISECONDS)) {
+        throw new SQLException("DB_BUSY");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("DB_BUSY", e);
+    }
+    return l::unlock;
+  }
+
+  /**
+   * Borra del shard {@code k} todo lo que pertenece a otros shards: cuentas ajenas con sus
+   * movimientos, sub-saldos, resúmenes, préstamos y eventos; clientes sin cuentas ni
+   * préstamos aquí que tampoco son de este shard; y los checkpoints (conciliación y
+   * auditoría), que resumían la base completa y se rehacen por shard. Las transferencias
+   * pendientes entre shards quedan en el shard de su cuenta origen.
+   */
+  public int prune(int k) throws SQLException {
+    int removed = 0;
+    try (Connection c = get(k).get()) {
+      List<String> accounts = foreign(c, "SELECT id_cuenta FROM CUENTAS", k);
+      List<String> loans = foreign(c,
+          "SELECT id_prestamo, COALESCE(id_cuenta, id_cliente) FROM PRESTAMOS", k);
+      removed += delete(c, "DELETE FROM TRANSFERENCIAS_2PC WHERE id_transferencia=?",
+          foreign(c, "SELECT id_transferencia, id_cuenta_origen FROM TRANSFERENCIAS_2PC", k));
+      removed += delete(c, "DELETE FROM ORDENES_PROGRAMADAS WHERE id_orden=?",
+          foreign(c, "SELECT id_orden, id_cuenta_origen FROM ORDENES_PROGRAMADAS", k));
+      removed += delete(c, "DELETE FROM EVENTOS_SALIDA WHERE agregado=?", loans);
+      removed += delete(c, "DELETE FROM PRESTAMOS WHERE id_prestamo=?", loans);
+      for (String table : List.of("EVENTOS_SALIDA WHERE agregado", "TRANSACCIONES WHERE id_cuenta",
+          "CUENTA_SUBSALDOS WHERE id_cuenta", "CUENTA_RESUMEN_DIARIO WHERE id_cuenta", "CUENTAS WHERE id_cuenta")) {
+        removed += delete(c, "DELETE FROM " + table + "=?", accounts);
+      }
+      List<String> clients = foreign(c, """
+          SELECT id_cliente FROM CLIENTES
+           WHERE id_cliente NOT IN (SELECT id_cliente FROM CUENTAS)
+             AND id_cliente NOT IN (SELECT id_cliente FROM PRESTAMOS)
+          """, k);
+      removed += delete(c, "DELETE FROM CLIENTES WHERE id_cliente=?", clients);
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("DELETE FROM RECONCILIACION_CHECKPOINT");
+        s.executeUpdate("DELETE FROM AUDITORIA_CHECKPOINTS");
+      }
+      c.commit();
+    }
+    return removed;
+  }
+
+  /** Ids de la primera columna cuya clave de ruteo (última columna) es de otro shard. */
+  private List<String> foreign(Connection c, String sql, int k) throws SQLException {
+    List<String> out = new ArrayList<>();
+    try (PreparedStatement ps = c.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+      int keyCol = rs.getMetaData().getColumnCount();
+      while (rs.next()) {
+        if (ring.shardOf(rs.getString(keyCol)) != k) out.add(rs.getString(1));
+      }
+    }
+    return out;
+  }
+
+  private static int delete(Connection c, String sql, List<String> ids) throws SQLException {
+    if (ids.isEmpty()) return 0;
+    int n = 0;
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      for (String id : ids) {
+        ps.setString(1, id);
+        ps.addBatch();
+      }
+      for (int r : ps.executeBatch()) n += Math.max(0, r);
+    }
+    return n;
+  }
+}
@@ -12,7 +12,8 @@ public record Prestamo(
         BigDecimal montoInicial,
         BigDecimal montoPendiente,
         EstadoPrestamo estado,
-        LocalDate fechaSolicitud
+        LocalDate fechaSolicitud,
+        long version                  // version: sube con cada escritura (ver LoanRepo.applyPayment)
 ) {
     public static Prestamo from(ResultSet rs) throws SQLException {
         return new Prestamo(
@@ -22,7 +23,8 @@ public record Prestamo(
             rs.getBigDecimal("monto_inicial"),
             rs.getBigDecimal("monto_pendiente"),
             EstadoPrestamo.from(rs.getString("estado")),
-            LocalDate.parse(rs.getString("fecha_solicitud"))
+            LocalDate.parse(rs.getString("fecha_solicitud")),
+            rs.getLong("version")
         );
     }
 }
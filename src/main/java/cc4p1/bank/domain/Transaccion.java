@@ -13,7 +13,9 @@ public record Transaccion(
     String metadata,          // JSON opcional para transferencias
         TipoTransaccion tipo,     // deposito o retiro
         BigDecimal monto,
-        LocalDateTime fecha
+        LocalDateTime fecha,
+        BigDecimal saldoPosterior, // saldo_posterior: saldo de la cuenta tras este movimiento (null si aún sin backfill)
+        Long secuencia            // secuencia: orden del movimiento dentro de la cuenta
 ) {
     public static Transaccion from(ResultSet rs) throws SQLException {
         String rawFecha = rs.getString("fecha");
@@ -30,7 +32,9 @@ public record Transaccion(
             rs.getString("metadata"),
             TipoTransaccion.from(rs.getString("tipo")),
             rs.getBigDecimal("monto"),
-            parsedFecha
+            parsedFecha,
+            rs.getBigDecimal("saldo_posterior"),
+            rs.getObject("secuencia") == null ? null : rs.getLong("secuencia")
         );
     }
 }
@@ -0,0 +1,156 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.util.TxHash;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+
+/**
+ * Checkpoints firmados de las cadenas de hash de TRANSACCIONES.
+ *
+ * <p>Cada checkpoint guarda hasta qué rowid cubre, una raíz (SHA-256 de la cabeza de cada
+ * cuenta, {@code id_cuenta|secuencia|hash} en orden de cuenta) y un HMAC-SHA256 que incluye
+ * la firma del checkpoint anterior. Así, reescribir una cadena entera y recalcular sus
+ * hashes no alcanza: la raíz firmada ya no coincide, y sin la clave no se puede volver a
+ * firmar. La clave viene de {@code BANK_AUDIT_KEY} y no se guarda en la base.
+ *
+ * <pre>
+ * BANK_AUDIT_KEY=... mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.AuditCheckpoints \
+ *     -Dexec.args="data/bank.db"
+ * </pre>
+ */
+public class AuditCheckpoints {
+
+  private static final DateTimeFormatter FECHA = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private final SQLite sqlite;
+  private final byte[] key;
+
+  public record Checkpoint(long id, String fecha, long ultimoRowid, long cuentas, String raiz, String firma,
+      String firmaAnterior) {
+  }
+
+  /** Raíz de las cabezas de cadena hasta un rowid. */
+  public record Root(long cuentas, String raiz) {
+  }
+
+  public AuditCheckpoints(SQLite sqlite, byte[] key) {
+    if (key == null || key.length == 0) throw new IllegalArgumentException("BANK_AUDIT_KEY vacía");
+    this.sqlite = sqlite;
+    this.key = key.clone();
+  }
+
+  /** Clave de {@code BANK_AUDIT_KEY}, o null si no está definida. */
+  public static byte[] keyFromEnv() {
+    String k = System.getenv("BANK_AUDIT_KEY");
+    return k == null || k.isBlank() ? null : k.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = args.length > 0 ? args[0] : "data/bank.db";
+    byte[] key = keyFromEnv();
+    if (key == null) {
+      System.err.println("[audit] falta BANK_AUDIT_KEY");
+      System.exit(1);
+    }
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    Checkpoint cp = new AuditCheckpoints(sqlite, key).create();
+    System.out.printf("[audit] checkpoint %d rowid<=%d cuentas=%d raiz=%s%n",
+        cp.id(), cp.ultimoRowid(), cp.cuentas(), cp.raiz());
+  }
+
+  /**
+   * Crea un checkpoint sobre lo confirmado hasta ahora. La raíz se calcula en una transacción
+   * de lectura (no frena a los escritores); solo el INSERT final toma el lock de escritura.
+   */
+  public Checkpoint create() throws SQLException {
+    long toRowid;
+    Root root;
+    try (Connection c = sqlite.get()) {
+      try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM TRANSACCIONES")) {
+        toRowid = rs.next() ? rs.getLong(1) : 0;
+      }
+      root = root(c, toRowid);
+      c.commit();
+    }
+
+    try (Connection c = sqlite.get()) {
+      Checkpoint last = latest(c);
+      String prev = last == null ? TxHash.GENESIS : last.firma();
+      String fecha = LocalDateTime.now(ZoneOffset.UTC).format(FECHA);
+      String firma = sign(key, prev, toRowid, root, fecha);
+      long id;
+      try (PreparedStatement ps = c.prepareStatement("""
+          INSERT INTO AUDITORIA_CHECKPOINTS(fecha, ultimo_rowid, cuentas, raiz, firma, firma_anterior)
+          VALUES(?,?,?,?,?,?)
+          """, Statement.RETURN_GENERATED_KEYS)) {
+        ps.setString(1, fecha);
+        ps.setLong(2, toRowid);
+        ps.setLong(3, root.cuentas());
+        ps.setString(4, root.raiz());
+        ps.setString(5, firma);
+        ps.setString(6, prev);
+        ps.executeUpdate();
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+          rs.next();
+          id = rs.getLong(1);
+        }
+      }
+      c.commit();
+      return new Checkpoint(id, fecha, toRowid, root.cuentas(), root.raiz(), firma, prev);
+    }
+  }
+
+  /** Cabeza (última fila con hash) de cada cuenta entre las filas con rowid <= toRowid. */
+  public static Root root(Connection c, long toRowid) throws SQLException {
+    StringBuilder sb = new StringBuilder();
+    long cuentas = 0;
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT id_cuenta, MAX(secuencia) AS secuencia, hash FROM TRANSACCIONES
+         WHERE hash IS NOT NULL AND rowid <= ?
+         GROUP BY id_cuenta
+         ORDER BY id_cuenta
+        """)) {
+      ps.setLong(1, toRowid);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          sb.append(rs.getString(1)).append('|').append(rs.getLong(2)).append('|').append(rs.getString(3)).append('\n');
+          cuentas++;
+        }
+      }
+    }
+    return new Root(cuentas, TxHash.sha256Hex(sb.toString()));
+  }
+
+  public static String sign(byte[] key, String firmaAnterior, long ultimoRowid, Root root, String fecha) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      String msg = firmaAnterior + '|' + ultimoRowid + '|' + root.cuentas() + '|' + root.raiz() + '|' + fecha;
+      return HexFormat.of().formatHex(mac.doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Checkpoint latest(Connection c) throws SQLException {
+    try (Statement s = c.createStatement();
+         ResultSet rs = s.executeQuery("SELECT * FROM AUDITORIA_CHECKPOINTS ORDER BY id DESC LIMIT 1")) {
+      return rs.next() ? map(rs) : null;
+    }
+  }
+
+  static Checkpoint map(ResultSet rs) throws SQLException {
+    return new Checkpoint(rs.getLong("id"), rs.getString("fecha"), rs.getLong("ultimo_rowid"), rs.getLong("cuentas"),
+        rs.getString("raiz"), rs.getString("firma"), rs.getString("firma_anterior"));
+  }
+}
@@ -0,0 +1,286 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.jobs.AuditCheckpoints.Checkpoint;
+import cc4p1.bank.util.TxHash;
+
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifica las cadenas de hash de TRANSACCIONES (ver {@link TxHash}) y los checkpoints de
+ * {@link AuditCheckpoints}.
+ *
+ * <p>Cada cuenta es una cadena independiente, así que las cuentas se reparten en tramos
+ * que se verifican en paralelo, cada uno con su propia conexión y transacción de lectura
+ * (en WAL no frena a los escritores). Por fila se recalcula el hash y se compara
+ * hash_anterior con el hash de la fila previa de la cuenta. Las filas anteriores a la
+ * migración no tienen hash; una fila sin hash <em>después</em> de una encadenada es un
+ * hallazgo. Cada fila se recalcula con su formato (version_hash); como las filas nuevas
+ * siempre se escriben con el actual, una fila de formato anterior después de una del
+ * actual también lo es (bajarla dejaría saldo_posterior fuera del hash).
+ *
+ * <ul>
+ *   <li>completa: todas las cuentas, la firma de cada checkpoint y la raíz del último
+ *       contra las cabezas actuales (detecta también filas borradas o reescritas al final);</li>
+ *   <li>incremental: firmas de los checkpoints y solo las filas con rowid posterior al
+ *       último, enlazadas con la fila previa de su cuenta.</li>
+ * </ul>
+ *
+ * <pre>
+ * BANK_AUDIT_KEY=... mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.ChainVerifier \
+ *     -Dexec.args="data/bank.db --threads 4 --incremental"
+ * </pre>
+ */
+public class ChainVerifier {
+
+  private static final int ACCOUNTS_PER_CHUNK = 200;
+
+  private final SQLite sqlite;
+  private final int threads;
+  /** Clave de los checkpoints; null = no se verifican firmas. */
+  private final byte[] key;
+
+  /** Un problema encontrado; accountId/txId pueden ser null (p. ej. en checkpoints). */
+  public record Finding(String kind, String accountId, String txId, String detail) {
+  }
+
+  /** Recibe hallazgos desde varios hilos a la vez. */
+  @FunctionalInterface
+  public interface Sink {
+    void accept(Finding f);
+  }
+
+  public record Report(boolean incremental, long fromRowid, long accounts, long rows, long checkpoints,
+      long findings, long millis) {
+  }
+
+  private static final class Counters {
+    final LongAdder accounts = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder findings = new LongAdder();
+  }
+
+  public ChainVerifier(SQLite sqlite, int threads, byte[] key) {
+    this.sqlite = sqlite;
+    this.threads = Math.max(1, threads);
+    this.key = key == null ? null : key.clone();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = "data/bank.db";
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean incremental = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--threads" -> threads = Integer.parseInt(args[++i]);
+        case "--incremental" -> incremental = true;
+        default -> dbPath = args[i];
+      }
+    }
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    byte[] key = AuditCheckpoints.keyFromEnv();
+    if (key == null) System.err.println("[verify] sin BANK_AUDIT_KEY: no se verifican firmas de checkpoints");
+    Report r = new ChainVerifier(sqlite, threads, key).run(incremental, jsonLines(System.out));
+    System.err.printf("[verify] %s desde rowid %d cuentas=%d filas=%d checkpoints=%d hallazgos=%d en %d ms%n",
+        r.incremental() ? "incremental" : "completa", r.fromRowid(), r.accounts(), r.rows(), r.checkpoints(),
+        r.findings(), r.millis());
+    if (r.findings() > 0) System.exit(2);
+  }
+
+  /** Sink que escribe una línea JSON por hallazgo. */
+  public static Sink jsonLines(PrintStream out) {
+    return f -> {
+      String line = String.format("{\"kind\":\"%s\",\"accountId\":%s,\"txId\":%s,\"detail\":\"%s\"}",
+          f.kind(), quoted(f.accountId()), quoted(f.txId()), f.detail() == null ? "" : f.detail());
+      synchronized (out) {
+        out.println(line);
+      }
+    };
+  }
+
+  private static String quoted(String s) {
+    return s == null ? "null" : "\"" + s + "\"";
+  }
+
+  public Report run(boolean incremental, Sink sink) throws Exception {
+    long t0 = System.nanoTime();
+    Counters counters = new Counters();
+    Sink counting = f -> {
+      counters.findings.increment();
+      sink.accept(f);
+    };
+
+    long fromRowid = 0;
+    long checkpoints;
+    List<String> accounts = new ArrayList<>();
+    try (Connection c = sqlite.get()) {
+      List<Checkpoint> cps = checkpoints(c);
+      checkpoints = cps.size();
+      verifySignatures(cps, counting);
+      Checkpoint last = cps.isEmpty() ? null : cps.get(cps.size() - 1);
+      if (incremental && last != null) {
+        fromRowid = last.ultimoRowid();
+        try (PreparedStatement ps = c.prepareStatement(
+            "SELECT DISTINCT id_cuenta FROM TRANSACCIONES WHERE rowid > ? ORDER BY 1")) {
+          ps.setLong(1, fromRowid);
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) accounts.add(rs.getString(1));
+          }
+        }
+      } else {
+        if (last != null) {
+          AuditCheckpoints.Root root = AuditCheckpoints.root(c, last.ultimoRowid());
+          if (root.cuentas() != last.cuentas() || !root.raiz().equals(last.raiz())) {
+            counting.accept(new Finding("CHECKPOINT_ROOT_MISMATCH", null, null,
+                "checkpoint " + last.id() + " cuentas " + last.cuentas() + " vs " + root.cuentas()));
+          }
+        }
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("SELECT id_cuenta FROM CUENTAS ORDER BY id_cuenta")) {
+          while (rs.next()) accounts.add(rs.getString(1));
+        }
+      }
+      c.commit();
+    }
+
+    if (!accounts.isEmpty()) {
+      final long from = fromRowid;
+      final boolean onlyNew = incremental && checkpoints > 0;
+      ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "chain-verifier");
+        t.setDaemon(true);
+        return t;
+      });
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < accounts.size(); i += ACCOUNTS_PER_CHUNK) {
+          List<String> chunk = accounts.subList(i, Math.min(accounts.size(), i + ACCOUNTS_PER_CHUNK));
+          futures.add(pool.submit(() -> {
+            try (Connection c = sqlite.get()) {
+              for (String acc : chunk) verifyAccount(c, acc, onlyNew ? firstNewSeq(c, acc, from) : null, counters, counting);
+              c.commit();
+            }
+            return null;
+          }));
+        }
+        for (Future<?> f : futures) {
+          try {
+            f.get();
+          } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+    return new Report(incremental, fromRowid, counters.accounts.sum(), counters.rows.sum(), checkpoints,
+        counters.findings.sum(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  private static List<Checkpoint> checkpoints(Connection c) throws SQLException {
+    try (Statement s = c.createStatement();
+         ResultSet rs = s.executeQuery("SELECT * FROM AUDITORIA_CHECKPOINTS ORDER BY id")) {
+      List<Checkpoint> out = new ArrayList<>();
+      while (rs.next()) out.add(AuditCheckpoints.map(rs));
+      return out;
+    }
+  }
+
+  private void verifySignatures(List<Checkpoint> cps, Sink sink) {
+    String prev = TxHash.GENESIS;
+    for (Checkpoint cp : cps) {
+      if (!cp.firmaAnterior().equals(prev)) {
+        sink.accept(new Finding("CHECKPOINT_CHAIN_BROKEN", null, null, "checkpoint " + cp.id()));
+      } else if (key != null) {
+        String expected = AuditCheckpoints.sign(key, cp.firmaAnterior(), cp.ultimoRowid(),
+            new AuditCheckpoints.Root(cp.cuentas(), cp.raiz()), cp.fecha());
+        if (!expected.equals(cp.firma())) {
+          sink.accept(new Finding("CHECKPOINT_SIGNATURE_INVALID", null, null, "checkpoint " + cp.id()));
+        }
+      }
+      prev = cp.firma();
+    }
+  }
+
+  /** Primera secuencia de la cuenta con rowid posterior al checkpoint. */
+  private static Long firstNewSeq(Connection c, String accountId, long fromRowid) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT MIN(secuencia) FROM TRANSACCIONES WHERE id_cuenta = ? AND rowid > ?")) {
+      ps.setString(1, accountId);
+      ps.setLong(2, fromRowid);
+      try (ResultSet rs = ps.executeQuery()) {
+        long v = rs.next() ? rs.getLong(1) : 0;
+        return rs.wasNull() ? null : v;
+      }
+    }
+  }
+
+  /**
+   * Recorre la cadena de la cuenta por (id_cuenta, secuencia). Con {@code fromSeq} solo se
+   * verifican las filas desde esa secuencia; la anterior se lee únicamente para el enlace.
+   */
+  private static void verifyAccount(Connection c, String accountId, Long fromSeq, Counters counters, Sink sink)
+      throws SQLException {
+    counters.accounts.increment();
+    String sql = """
+        SELECT id_transaccion, id_transferencia, id_cuenta_destino, metadata, tipo, monto, fecha,
+               saldo_posterior, secuencia, hash, hash_anterior, COALESCE(version_hash, 1) AS version_hash
+          FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND secuencia IS NOT NULL
+        """ + (fromSeq == null ? "" : " AND secuencia >= ?") + " ORDER BY secuencia";
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      ps.setString(1, accountId);
+      if (fromSeq != null) ps.setLong(2, fromSeq - 1);
+      String prevHash = null;
+      int prevVersion = 1;
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          long seq = rs.getLong("secuencia");
+          String txId = rs.getString("id_transaccion");
+          String hash = rs.getString("hash");
+          int version = rs.getInt("version_hash");
+          if (fromSeq != null && seq < fromSeq) {
+            prevHash = hash;
+            if (hash != null) prevVersion = version;
+            continue;
+          }
+          counters.rows.increment();
+          if (hash == null) {
+            if (prevHash != null) {
+              sink.accept(new Finding("UNHASHED_ROW_IN_CHAIN", accountId, txId, "secuencia " + seq));
+            }
+            continue;
+          }
+          String storedPrev = rs.getString("hash_anterior");
+          String expectedPrev = prevHash == null ? TxHash.GENESIS : prevHash;
+          if (!Objects.equals(storedPrev, expectedPrev)) {
+            sink.accept(new Finding("CHAIN_LINK_BROKEN", accountId, txId, "secuencia " + seq));
+          }
+          if (version != 1 && version != TxHash.VERSION) {
+            sink.accept(new Finding("HASH_VERSION_UNKNOWN", accountId, txId, "secuencia " + seq + " version " + version));
+            prevHash = hash;
+            continue;
+          }
+          if (version < prevVersion) {
+            sink.accept(new Finding("HASH_VERSION_DOWNGRADE", accountId, txId, "secuencia " + seq));
+          }
+          String recomputed = TxHash.compute(version, storedPrev, txId, rs.getString("id_transferencia"), accountId,
+              rs.getString("id_cuenta_destino"), rs.getString("metadata"), rs.getString("tipo"),
+              rs.getDouble("monto"), rs.getString("fecha"), seq, rs.getDouble("saldo_posterior"));
+          if (!recomputed.equals(hash)) {
+            sink.accept(new Finding("HASH_MISMATCH", accountId, txId, "secuencia " + seq));
+          }
+          prevHash = hash;
+          prevVersion = Math.max(prevVersion, version);
+        }
+      }
+    }
+  }
+}
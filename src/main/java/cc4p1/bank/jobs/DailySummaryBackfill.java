@@ -0,0 +1,150 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.TipoTransaccion;
+import cc4p1.bank.repo.SummaryRepo;
+import cc4p1.bank.repo.SummaryRepo.DailySummary;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Construye CUENTA_RESUMEN_DIARIO para las filas de TRANSACCIONES que ya existían antes
+ * de la migración (tramos pendientes en CUENTA_RESUMEN_BACKFILL).
+ *
+ * <p>Cada tramo se agrega en paralelo con su propia conexión de lectura (en WAL no frena
+ * al escritor). Luego, en una transacción corta, se marca el tramo como hecho y se
+ * <em>suman</em> sus agregados con el mismo upsert que usa TxRepo: como la suma es
+ * conmutativa, el resultado es correcto aunque haya tráfico en vivo sumando a las mismas
+ * filas, y marcar + sumar en la misma transacción hace que cada tramo se aplique una vez.
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.DailySummaryBackfill \
+ *     -Dexec.args="data/bank.db 4"
+ * </pre>
+ */
+public class DailySummaryBackfill {
+
+  private final SQLite sqlite;
+  private final int threads;
+  private final SummaryRepo summaries = new SummaryRepo();
+
+  /** Resultado de una ejecución: tramos aplicados y filas de resumen sumadas. */
+  public record Result(int chunks, long summaryRows) {
+  }
+
+  private record Chunk(long from, long to) {
+  }
+
+  public DailySummaryBackfill(SQLite sqlite, int threads) {
+    this.sqlite = sqlite;
+    this.threads = Math.max(1, threads);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = args.length > 0 ? args[0] : "data/bank.db";
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    long t0 = System.nanoTime();
+    Result r = new DailySummaryBackfill(sqlite, threads).run();
+    System.out.printf("[backfill] tramos=%d filas_resumen=%d en %d ms%n",
+        r.chunks(), r.summaryRows(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  /** Procesa todos los tramos pendientes. */
+  public Result run() throws Exception {
+    List<Chunk> pending = pendingChunks();
+    if (pending.isEmpty()) return new Result(0, 0);
+
+    AtomicLong rows = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, pending.size()), r -> {
+      Thread t = new Thread(r, "summary-backfill");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (Chunk ch : pending) {
+        futures.add(pool.submit(() -> {
+          List<DailySummary> agg = aggregate(ch);
+          if (!apply(ch, agg)) return false;
+          rows.addAndGet(agg.size());
+          return true;
+        }));
+      }
+      int applied = 0;
+      for (Future<Boolean> f : futures) {
+        try {
+          if (f.get()) applied++;
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+      }
+      return new Result(applied, rows.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /** Hay tramos por procesar (p. ej. para lanzar el job al iniciar el servidor). */
+  public boolean hasPending() throws SQLException {
+    return !pendingChunks().isEmpty();
+  }
+
+  private List<Chunk> pendingChunks() throws SQLException {
+    try (Connection c = sqlite.get();
+         PreparedStatement ps = c.prepareStatement(
+             "SELECT desde_rowid, hasta_rowid FROM CUENTA_RESUMEN_BACKFILL WHERE estado='pendiente' ORDER BY desde_rowid");
+         ResultSet rs = ps.executeQuery()) {
+      List<Chunk> out = new ArrayList<>();
+      while (rs.next()) out.add(new Chunk(rs.getLong(1), rs.getLong(2)));
+      return out;
+    }
+  }
+
+  /** Fase de lectura: agrega el tramo por rowid (recorrido en orden de la tabla). */
+  private List<DailySummary> aggregate(Chunk ch) throws SQLException {
+    String sql = """
+        SELECT id_cuenta, date(fecha) AS dia, tipo,
+               COUNT(*) AS cantidad, SUM(monto) AS total, MIN(monto) AS minimo, MAX(monto) AS maximo
+          FROM TRANSACCIONES
+         WHERE rowid BETWEEN ? AND ?
+         GROUP BY id_cuenta, date(fecha), tipo
+        """;
+    try (Connection c = sqlite.get(); PreparedStatement ps = c.prepareStatement(sql)) {
+      ps.setLong(1, ch.from());
+      ps.setLong(2, ch.to());
+      List<DailySummary> out = new ArrayList<>();
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          out.add(new DailySummary(rs.getString("id_cuenta"), rs.getString("dia"),
+              TipoTransaccion.from(rs.getString("tipo")), rs.getLong("cantidad"),
+              rs.getBigDecimal("total"), rs.getBigDecimal("minimo"), rs.getBigDecimal("maximo")));
+        }
+      }
+      c.commit();
+      return out;
+    }
+  }
+
+  /** Fase de escritura: marca el tramo y suma sus agregados; false si otro ya lo aplicó. */
+  private boolean apply(Chunk ch, List<DailySummary> agg) throws SQLException {
+    try (Connection c = sqlite.get()) {
+      try (PreparedStatement ps = c.prepareStatement(
+          "UPDATE CUENTA_RESUMEN_BACKFILL SET estado='hecho' WHERE desde_rowid=? AND estado='pendiente'")) {
+        ps.setLong(1, ch.from());
+        if (ps.executeUpdate() == 0) {
+          c.rollback();
+          return false;
+        }
+      }
+      summaries.addAll(c, agg);
+      c.commit();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.mq.Transport;
+import cc4p1.bank.repo.OutboxRepo;
+import cc4p1.bank.repo.OutboxRepo.Event;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publica los eventos de EVENTOS_SALIDA en el exchange {@value #EXCHANGE} (routing key =
+ * tipo de evento), en orden de id y por lotes, con publisher confirms.
+ *
+ * <p>La marca de agua (EVENTOS_CURSOR) solo avanza después de que el broker confirma el
+ * lote completo: tras una caída no se pierde nada, pero el último lote puede reenviarse.
+ * Cada mensaje lleva {@code eventId} (cabecera y cuerpo) para que los consumidores
+ * descarten repetidos. Debe correr una sola instancia por base de datos; con varios shards,
+ * una por shard con su {@code source} (los ids de evento se repiten entre shards, así que los
+ * consumidores deduplican por el par source/eventId).
+ *
+ * <p>Corre en su propio hilo; las peticiones solo escriben la fila del outbox en su
+ * transacción y nunca esperan al broker.
+ */
+public class OutboxRelay implements AutoCloseable {
+
+  public static final String EXCHANGE = "bank_events";
+  private static final long CONFIRM_TIMEOUT_MS = 10_000;
+  private static final long MAX_BACKOFF_MS = 5_000;
+
+  private final SQLite sqlite;
+  private final Transport transport;
+  private final int batchSize;
+  private final long pollMillis;
+  private final String source;
+  private final OutboxRepo outbox = new OutboxRepo();
+  private final ObjectMapper om = new ObjectMapper();
+  private volatile boolean running;
+  private Thread thread;
+
+  public OutboxRelay(SQLite sqlite, Transport transport, int batchSize, long pollMillis) {
+    this(sqlite, transport, batchSize, pollMillis, null);
+  }
+
+  /** {@code source}: etiqueta de la base (p. ej. "s1"); null con una sola base. */
+  public OutboxRelay(SQLite sqlite, Transport transport, int batchSize, long pollMillis, String source) {
+    this.sqlite = sqlite;
+    this.source = source;
+    this.transport = transport;
+    this.batchSize = Math.max(1, batchSize);
+    this.pollMillis = Math.max(1, pollMillis);
+  }
+
+  public synchronized void start() throws Exception {
+    if (running) return;
+    transport.declareExchange(EXCHANGE);
+    running = true;
+    thread = new Thread(this::loop, source == null ? "outbox-relay" : "outbox-relay-" + source);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void loop() {
+    long backoff = pollMillis;
+    while (running) {
+      try {
+        int n = publishOnce();
+        backoff = pollMillis;
+        // Lote lleno: seguramente hay más, no esperar
+        if (n < batchSize) Thread.sleep(pollMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        System.err.println("[WARN] OutboxRelay: " + e.getMessage() + " (reintento en " + backoff + " ms)");
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+      }
+    }
+  }
+
+  /**
+   * Publica el siguiente lote tras la marca de agua y la avanza; devuelve cuántos eventos
+   * se publicaron (0 si no había pendientes).
+   */
+  public int publishOnce() throws Exception {
+    List<Event> batch;
+    try (Connection c = sqlite.get()) {
+      batch = outbox.after(c, outbox.cursor(c), batchSize);
+      c.commit();
+    }
+    if (batch.isEmpty()) return 0;
+
+    List<Transport.Outgoing> out = new ArrayList<>(batch.size());
+    for (Event e : batch) {
+      ObjectNode body = om.createObjectNode()
+          .put("eventId", e.id())
+          .put("type", e.tipo())
+          .put("aggregateId", e.agregado())
+          .put("occurredAt", e.fecha());
+      body.set("data", om.readTree(e.payload()));
+      Map<String, Object> headers = Map.of("eventId", e.id(), "eventType", e.tipo());
+      String messageId = "EV" + e.id();
+      if (source != null) {
+        body.put("source", source);
+        headers = Map.of("eventId", e.id(), "eventType", e.tipo(), "source", source);
+        messageId = "EV" + source + "-" + e.id();
+      }
+      out.add(new Transport.Outgoing(e.tipo(), new Transport.Message(messageId, null, "application/json",
+          headers, om.writeValueAsBytes(body))));
+    }
+    transport.publishConfirmed(EXCHANGE, out, CONFIRM_TIMEOUT_MS);
+
+    try (Connection c = sqlite.get()) {
+      outbox.advance(c, batch.get(batch.size() - 1).id());
+      c.commit();
+    }
+    return batch.size();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    Thread t;
+    synchronized (this) {
+      running = false;
+      t = thread;
+    }
+    if (t != null) {
+      t.interrupt();
+      t.join(CONFIRM_TIMEOUT_MS);
+    }
+  }
+}
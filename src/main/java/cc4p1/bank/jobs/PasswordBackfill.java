@@ -0,0 +1,129 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.util.Passwords;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Convierte a PBKDF2 ({@link Passwords}) las contraseñas de CLIENTES que siguen en texto
+ * plano (de antes de la migración o cargadas a mano). Mientras tanto Login las sigue
+ * aceptando: Passwords.verify compara el texto plano en tiempo constante.
+ *
+ * <p>Recorre CLIENTES por id_cliente en tramos de {@value #CHUNK_ROWS} filas: lee el tramo,
+ * calcula los hashes (caros a propósito) repartidos en {@code threads} hilos, fuera de toda
+ * transacción, y los escribe en una transacción corta por tramo. El UPDATE solo toca la
+ * fila si la contraseña sigue siendo la leída, así no pisa un cambio hecho en el medio.
+ * Repetirlo no cambia nada.
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.PasswordBackfill \
+ *     -Dexec.args="data/bank.db 4"
+ * </pre>
+ */
+public class PasswordBackfill {
+
+  static final int CHUNK_ROWS = 64;
+
+  private final SQLite sqlite;
+  private final int threads;
+
+  /** Resultado de una ejecución: tramos escritos y contraseñas convertidas. */
+  public record Result(int chunks, long rows) {
+  }
+
+  private record Plain(String clientId, String password) {
+  }
+
+  public PasswordBackfill(SQLite sqlite, int threads) {
+    this.sqlite = sqlite;
+    this.threads = Math.max(1, threads);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = args.length > 0 ? args[0] : "data/bank.db";
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    long t0 = System.nanoTime();
+    Result r = new PasswordBackfill(sqlite, threads).run();
+    System.out.printf("[backfill] tramos=%d contraseñas=%d en %d ms%n",
+        r.chunks(), r.rows(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  /** Queda alguna contraseña en texto plano. */
+  public boolean hasPending() throws SQLException {
+    return !pending("", 1).isEmpty();
+  }
+
+  public Result run() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "password-backfill");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      int chunks = 0;
+      long rows = 0;
+      for (List<Plain> chunk = pending("", CHUNK_ROWS); !chunk.isEmpty();
+           chunk = pending(chunk.get(chunk.size() - 1).clientId(), CHUNK_ROWS)) {
+        List<Future<String>> futures = new ArrayList<>(chunk.size());
+        for (Plain p : chunk) futures.add(pool.submit(() -> Passwords.hash(p.password())));
+        List<String> hashes = new ArrayList<>(chunk.size());
+        for (Future<String> f : futures) {
+          try {
+            hashes.add(f.get());
+          } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+          }
+        }
+        rows += apply(chunk, hashes);
+        chunks++;
+      }
+      return new Result(chunks, rows);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /** Siguiente tramo en texto plano con id_cliente posterior a {@code afterId}. */
+  private List<Plain> pending(String afterId, int limit) throws SQLException {
+    try (Connection c = sqlite.get();
+         PreparedStatement ps = c.prepareStatement("""
+             SELECT id_cliente, password FROM CLIENTES
+              WHERE id_cliente > ? AND password IS NOT NULL AND password NOT LIKE ?
+              ORDER BY id_cliente
+              LIMIT ?
+             """)) {
+      ps.setString(1, afterId);
+      ps.setString(2, Passwords.PREFIX + "%");
+      ps.setInt(3, limit);
+      List<Plain> out = new ArrayList<>();
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) out.add(new Plain(rs.getString(1), rs.getString(2)));
+      }
+      c.commit();
+      return out;
+    }
+  }
+
+  private long apply(List<Plain> chunk, List<String> hashes) throws Exception {
+    return sqlite.write(c -> {
+      long written = 0;
+      try (PreparedStatement ps = c.prepareStatement(
+          "UPDATE CLIENTES SET password = ? WHERE id_cliente = ? AND password = ?")) {
+        for (int i = 0; i < chunk.size(); i++) {
+          ps.setString(1, hashes.get(i));
+          ps.setString(2, chunk.get(i).clientId());
+          ps.setString(3, chunk.get(i).password());
+          ps.addBatch();
+        }
+        for (int n : ps.executeBatch()) written += n;
+      }
+      return written;
+    });
+  }
+}
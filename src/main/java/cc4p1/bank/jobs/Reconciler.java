@@ -0,0 +1,396 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.TipoTransaccion;
+import cc4p1.bank.repo.TxRepo;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Conciliación de saldos contra el historial:
+ * <ul>
+ *   <li>cuentas: saldo actual (base + sub-saldos) = saldo_posterior del último movimiento,
+ *       cada saldo_posterior = anterior ± monto, secuencias sin huecos, saldo no negativo;</li>
+ *   <li>préstamos: monto_inicial − monto_pendiente = suma de pagos 'deuda' con ese loanId,
+ *       pendiente dentro de [0, inicial] y estado coherente con el pendiente.</li>
+ * </ul>
+ *
+ * <p>Las cuentas (y los préstamos) se reparten en rangos de id que un {@link ForkJoinPool}
+ * divide en mitades; cada hoja abre su propia conexión y lee su rango en <em>una</em>
+ * transacción de lectura, así saldo e historial salen del mismo snapshot. Con WAL esto no
+ * bloquea a los escritores. Las filas se recorren en streaming por el índice
+ * (id_cuenta, secuencia) y las discrepancias se entregan a un {@link Sink} a medida que aparecen.
+ *
+ * <p>Modo incremental: solo revisa las cuentas/préstamos con filas en TRANSACCIONES
+ * posteriores al checkpoint (rowid) de RECONCILIACION_CHECKPOINT.
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.Reconciler \
+ *     -Dexec.args="data/bank.db --threads 4 --incremental"
+ * </pre>
+ */
+public class Reconciler {
+
+  /** Tolerancia para comparar montos guardados como REAL. */
+  private static final BigDecimal TOLERANCE = new BigDecimal("0.005");
+  private static final int IDS_PER_PARTITION = 500;
+
+  private final SQLite sqlite;
+  private final int threads;
+
+  /** Una diferencia encontrada. {@code entity} es "cuenta" o "prestamo". */
+  public record Discrepancy(String kind, String entity, String id, BigDecimal expected, BigDecimal actual,
+      String detail) {
+  }
+
+  /** Recibe discrepancias desde varios hilos a la vez. */
+  @FunctionalInterface
+  public interface Sink {
+    void accept(Discrepancy d);
+  }
+
+  public record Report(boolean incremental, long fromRowid, long toRowid, long accounts, long rows, long loans,
+      long discrepancies, long pendingBackfillRows, long unverifiedLoans, long millis) {
+  }
+
+  private enum Kind { ACCOUNTS, LOANS }
+
+  /** Rango [from, to) de ids (to null = sin límite), o lista explícita de ids. */
+  private record Partition(Kind kind, String from, String to, List<String> ids) {
+  }
+
+  private static final class Counters {
+    final LongAdder accounts = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder loans = new LongAdder();
+    final LongAdder discrepancies = new LongAdder();
+    final LongAdder pendingBackfill = new LongAdder();
+    final LongAdder unverifiedLoans = new LongAdder();
+  }
+
+  public Reconciler(SQLite sqlite, int threads) {
+    this.sqlite = sqlite;
+    this.threads = Math.max(1, threads);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = "data/bank.db";
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean incremental = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--threads" -> threads = Integer.parseInt(args[++i]);
+        case "--incremental" -> incremental = true;
+        default -> dbPath = args[i];
+      }
+    }
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    Report r = new Reconciler(sqlite, threads).run(incremental, jsonLines(System.out));
+    System.err.printf("[reconcile] %s rowid %d..%d cuentas=%d filas=%d prestamos=%d discrepancias=%d "
+            + "sin_backfill=%d prestamos_sin_verificar=%d en %d ms%n",
+        r.incremental() ? "incremental" : "completa", r.fromRowid(), r.toRowid(), r.accounts(), r.rows(),
+        r.loans(), r.discrepancies(), r.pendingBackfillRows(), r.unverifiedLoans(), r.millis());
+    if (r.discrepancies() > 0) System.exit(2);
+  }
+
+  /** Sink que escribe una línea JSON por discrepancia. */
+  public static Sink jsonLines(PrintStream out) {
+    return d -> {
+      String line = String.format("{\"kind\":\"%s\",\"entity\":\"%s\",\"id\":\"%s\",\"expected\":%s,\"actual\":%s,\"detail\":\"%s\"}",
+          d.kind(), d.entity(), d.id(), d.expected(), d.actual(), d.detail() == null ? "" : d.detail());
+      synchronized (out) {
+        out.println(line);
+      }
+    };
+  }
+
+  /**
+   * Ejecuta la conciliación y, al terminar, avanza el checkpoint al máximo rowid visto al
+   * inicio (lo insertado durante la corrida se revisa en la siguiente incremental).
+   */
+  public Report run(boolean incremental, Sink sink) throws Exception {
+    long t0 = System.nanoTime();
+    long fromRowid = 0;
+    long toRowid;
+    List<Partition> parts = new ArrayList<>();
+    try (Connection c = sqlite.get()) {
+      toRowid = scalarLong(c, "SELECT COALESCE(MAX(rowid), 0) FROM TRANSACCIONES");
+      if (incremental) {
+        fromRowid = scalarLong(c, "SELECT COALESCE((SELECT ultimo_rowid FROM RECONCILIACION_CHECKPOINT WHERE id=1), 0)");
+        partitionIds(Kind.ACCOUNTS, touched(c, """
+            SELECT DISTINCT id_cuenta FROM TRANSACCIONES WHERE rowid > ? AND rowid <= ? ORDER BY 1
+            """, fromRowid, toRowid), parts);
+        partitionIds(Kind.LOANS, touched(c, """
+            SELECT id_prestamo FROM PRESTAMOS
+             WHERE id_cuenta IN (SELECT id_cuenta FROM TRANSACCIONES WHERE rowid > ?1 AND rowid <= ?2)
+            UNION
+            SELECT json_extract(metadata, '$.loanId') FROM TRANSACCIONES
+             WHERE rowid > ?1 AND rowid <= ?2 AND tipo = 'deuda' AND metadata IS NOT NULL
+            ORDER BY 1
+            """, fromRowid, toRowid), parts);
+      } else {
+        partitionRanges(c, Kind.ACCOUNTS, "SELECT id_cuenta FROM CUENTAS ORDER BY id_cuenta", parts);
+        partitionRanges(c, Kind.LOANS, "SELECT id_prestamo FROM PRESTAMOS ORDER BY id_prestamo", parts);
+      }
+      c.commit();
+    }
+
+    Counters counters = new Counters();
+    Sink counting = d -> {
+      counters.discrepancies.increment();
+      sink.accept(d);
+    };
+    if (!parts.isEmpty()) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new Task(parts, 0, parts.size(), counters, counting));
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    try (Connection c = sqlite.get(); PreparedStatement ps = c.prepareStatement("""
+        INSERT INTO RECONCILIACION_CHECKPOINT(id, ultimo_rowid, fecha, discrepancias) VALUES(1, ?, datetime('now'), ?)
+        ON CONFLICT(id) DO UPDATE SET ultimo_rowid=excluded.ultimo_rowid, fecha=excluded.fecha,
+                                      discrepancias=excluded.discrepancias
+        """)) {
+      ps.setLong(1, toRowid);
+      ps.setLong(2, counters.discrepancies.sum());
+      ps.executeUpdate();
+      c.commit();
+    }
+    return new Report(incremental, fromRowid, toRowid, counters.accounts.sum(), counters.rows.sum(),
+        counters.loans.sum(), counters.discrepancies.sum(), counters.pendingBackfill.sum(),
+        counters.unverifiedLoans.sum(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  /** Divide [lo, hi) de particiones hasta llegar a una sola, que se procesa en este hilo. */
+  private final class Task extends RecursiveAction {
+    private final List<Partition> parts;
+    private final int lo, hi;
+    private final Counters counters;
+    private final Sink sink;
+
+    Task(List<Partition> parts, int lo, int hi, Counters counters, Sink sink) {
+      this.parts = parts;
+      this.lo = lo;
+      this.hi = hi;
+      this.counters = counters;
+      this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new Task(parts, lo, mid, counters, sink), new Task(parts, mid, hi, counters, sink));
+        return;
+      }
+      Partition p = parts.get(lo);
+      try (Connection c = sqlite.get()) {
+        if (p.kind() == Kind.ACCOUNTS) reconcileAccounts(c, p, counters, sink);
+        else reconcileLoans(c, p, counters, sink);
+        c.commit();
+      } catch (SQLException e) {
+        throw new IllegalStateException("conciliación de " + p + " falló: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /* ===== Cuentas ===== */
+
+  private void reconcileAccounts(Connection c, Partition p, Counters counters, Sink sink) throws SQLException {
+    String accSql = """
+        SELECT c.id_cuenta,
+               c.saldo + COALESCE((SELECT SUM(s.saldo) FROM CUENTA_SUBSALDOS s WHERE s.id_cuenta = c.id_cuenta), 0) AS saldo
+          FROM CUENTAS c
+        """;
+    try (PreparedStatement rows = c.prepareStatement("""
+        SELECT tipo, monto, saldo_posterior, secuencia FROM TRANSACCIONES
+         WHERE id_cuenta = ? ORDER BY secuencia
+        """)) {
+      if (p.ids() != null) {
+        try (PreparedStatement ps = c.prepareStatement(accSql + " WHERE c.id_cuenta = ?")) {
+          for (String id : p.ids()) {
+            ps.setString(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+              if (rs.next()) checkAccount(rows, id, rs.getBigDecimal("saldo"), counters, sink);
+            }
+          }
+        }
+      } else {
+        try (PreparedStatement ps = c.prepareStatement(accSql
+            + " WHERE c.id_cuenta >= ? AND (? IS NULL OR c.id_cuenta < ?) ORDER BY c.id_cuenta")) {
+          ps.setString(1, p.from());
+          ps.setString(2, p.to());
+          ps.setString(3, p.to());
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) checkAccount(rows, rs.getString("id_cuenta"), rs.getBigDecimal("saldo"), counters, sink);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkAccount(PreparedStatement rows, String accountId, BigDecimal balance, Counters counters,
+      Sink sink) throws SQLException {
+    counters.accounts.increment();
+    if (balance.signum() < 0) {
+      sink.accept(new Discrepancy("NEGATIVE_BALANCE", "cuenta", accountId, BigDecimal.ZERO, balance, null));
+    }
+    BigDecimal prev = null;
+    long prevSeq = 0;
+    boolean chainReported = false;
+    rows.setString(1, accountId);
+    try (ResultSet rs = rows.executeQuery()) {
+      while (rs.next()) {
+        counters.rows.increment();
+        BigDecimal after = rs.getBigDecimal("saldo_posterior");
+        if (after == null) {
+          // Fila histórica que aún no pasó por RunningBalanceBackfill: no hay con qué comparar
+          counters.pendingBackfill.increment();
+          prev = null;
+          continue;
+        }
+        long seq = rs.getLong("secuencia");
+        if (prev != null && !chainReported) {
+          BigDecimal expected = prev.add(TxRepo.signed(TipoTransaccion.from(rs.getString("tipo")), rs.getBigDecimal("monto")));
+          if (seq != prevSeq + 1) {
+            sink.accept(new Discrepancy("SEQUENCE_GAP", "cuenta", accountId, BigDecimal.valueOf(prevSeq + 1),
+                BigDecimal.valueOf(seq), null));
+            chainReported = true;
+          } else if (differs(expected, after)) {
+            sink.accept(new Discrepancy("RUNNING_BALANCE_BROKEN", "cuenta", accountId, expected, after,
+                "secuencia " + seq));
+            chainReported = true;
+          }
+        }
+        prev = after;
+        prevSeq = seq;
+      }
+    }
+    if (prev != null && differs(prev, balance)) {
+      sink.accept(new Discrepancy("BALANCE_MISMATCH", "cuenta", accountId, prev, balance,
+          "saldo_posterior del último movimiento vs saldo actual"));
+    }
+  }
+
+  /* ===== Préstamos ===== */
+
+  private void reconcileLoans(Connection c, Partition p, Counters counters, Sink sink) throws SQLException {
+    String sql = "SELECT id_prestamo, monto_inicial, monto_pendiente, estado FROM PRESTAMOS";
+    // Consulta aparte con parámetro: así usa idx_transacciones_prestamo (misma expresión y
+    // filtro tipo='deuda'); como subconsulta correlacionada SQLite recorre el índice entero
+    try (PreparedStatement paid = c.prepareStatement("""
+        SELECT COALESCE(SUM(monto), 0) FROM TRANSACCIONES
+         WHERE json_extract(metadata, '$.loanId') = ? AND tipo = 'deuda'
+        """)) {
+      if (p.ids() != null) {
+        try (PreparedStatement ps = c.prepareStatement(sql + " WHERE id_prestamo = ?")) {
+          for (String id : p.ids()) {
+            ps.setString(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+              if (rs.next()) checkLoan(rs, paid, counters, sink);
+            }
+          }
+        }
+      } else {
+        try (PreparedStatement ps = c.prepareStatement(sql
+            + " WHERE id_prestamo >= ? AND (? IS NULL OR id_prestamo < ?) ORDER BY id_prestamo")) {
+          ps.setString(1, p.from());
+          ps.setString(2, p.to());
+          ps.setString(3, p.to());
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) checkLoan(rs, paid, counters, sink);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkLoan(ResultSet rs, PreparedStatement paidStmt, Counters counters, Sink sink)
+      throws SQLException {
+    counters.loans.increment();
+    String id = rs.getString("id_prestamo");
+    BigDecimal initial = rs.getBigDecimal("monto_inicial");
+    BigDecimal pending = rs.getBigDecimal("monto_pendiente");
+    String estado = rs.getString("estado");
+    BigDecimal tagged;
+    paidStmt.setString(1, id);
+    try (ResultSet prs = paidStmt.executeQuery()) {
+      prs.next();
+      tagged = prs.getBigDecimal(1);
+    }
+
+    if (pending.signum() < 0 || pending.compareTo(initial) > 0) {
+      sink.accept(new Discrepancy("LOAN_PENDING_OUT_OF_RANGE", "prestamo", id, initial, pending, null));
+    }
+    boolean settled = pending.abs().compareTo(TOLERANCE) < 0;
+    if (settled != "pagado".equals(estado)) {
+      sink.accept(new Discrepancy("LOAN_STATE_MISMATCH", "prestamo", id, pending, pending, "estado=" + estado));
+    }
+    BigDecimal paid = initial.subtract(pending);
+    if (tagged.signum() == 0 && paid.compareTo(TOLERANCE) > 0) {
+      // Pagos anteriores a que 'deuda' guardara el loanId: no se pueden atribuir
+      counters.unverifiedLoans.increment();
+    } else if (differs(paid, tagged)) {
+      sink.accept(new Discrepancy("LOAN_PAYMENTS_MISMATCH", "prestamo", id, paid, tagged,
+          "monto_inicial - monto_pendiente vs pagos 'deuda'"));
+    }
+  }
+
+  /* ===== Particiones ===== */
+
+  /** Recorre los ids ordenados y guarda uno de cada {@value #IDS_PER_PARTITION} como límite. */
+  private static void partitionRanges(Connection c, Kind kind, String orderedIdsSql, List<Partition> out)
+      throws SQLException {
+    List<String> bounds = new ArrayList<>();
+    try (PreparedStatement ps = c.prepareStatement(orderedIdsSql); ResultSet rs = ps.executeQuery()) {
+      long n = 0;
+      while (rs.next()) {
+        if (n++ % IDS_PER_PARTITION == 0) bounds.add(rs.getString(1));
+      }
+    }
+    for (int i = 0; i < bounds.size(); i++) {
+      out.add(new Partition(kind, bounds.get(i), i + 1 < bounds.size() ? bounds.get(i + 1) : null, null));
+    }
+  }
+
+  private static void partitionIds(Kind kind, List<String> ids, List<Partition> out) {
+    for (int from = 0; from < ids.size(); from += IDS_PER_PARTITION) {
+      out.add(new Partition(kind, null, null, ids.subList(from, Math.min(ids.size(), from + IDS_PER_PARTITION))));
+    }
+  }
+
+  private static List<String> touched(Connection c, String sql, long fromRowid, long toRowid) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      ps.setLong(1, fromRowid);
+      ps.setLong(2, toRowid);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<String> out = new ArrayList<>();
+        while (rs.next()) {
+          if (rs.getString(1) != null) out.add(rs.getString(1));
+        }
+        return out;
+      }
+    }
+  }
+
+  private static long scalarLong(Connection c, String sql) throws SQLException {
+    try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery(sql)) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  private static boolean differs(BigDecimal a, BigDecimal b) {
+    return a.subtract(b).abs().compareTo(TOLERANCE) > 0;
+  }
+}
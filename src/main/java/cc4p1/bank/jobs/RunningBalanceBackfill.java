@@ -0,0 +1,223 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.Cuenta;
+import cc4p1.bank.domain.TipoTransaccion;
+import cc4p1.bank.repo.AccountRepo;
+import cc4p1.bank.repo.TxRepo;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Completa TRANSACCIONES.saldo_posterior y secuencia en las filas anteriores a la migración
+ * (las que quedaron en NULL). Se ejecuta una vez; repetirlo no cambia nada.
+ *
+ * <p>El saldo inicial de una cuenta no está en el historial, así que se camina
+ * <em>hacia atrás</em> desde un ancla conocida: la primera fila ya numerada por TxRepo
+ * (saldo antes de ella = su saldo_posterior menos su monto) o, si la cuenta no tiene
+ * movimientos nuevos, su saldo actual. Las filas históricas reciben las secuencias
+ * inmediatamente anteriores a la del ancla (pueden quedar en 0 o negativas si la cuenta ya
+ * tenía movimientos nuevos; lo que importa es el orden).
+ *
+ * <p>Las cuentas se reparten en tramos que se calculan en paralelo, cada uno con su propia
+ * conexión de lectura; la escritura de cada tramo es una transacción corta. Si una cuenta
+ * sin ancla recibió un movimiento entre la lectura y la escritura, se recalcula ya con el
+ * lock de escritura tomado.
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.jobs.RunningBalanceBackfill \
+ *     -Dexec.args="data/bank.db 4"
+ * </pre>
+ */
+public class RunningBalanceBackfill {
+
+  private static final int ACCOUNTS_PER_CHUNK = 200;
+  /** Solo para leer saldos visibles (base + sub-saldos); no depende del estado en memoria. */
+  private static final AccountRepo ACCOUNTS = new AccountRepo();
+
+  private final SQLite sqlite;
+  private final int threads;
+
+  /** Resultado de una ejecución: cuentas y filas completadas. */
+  public record Result(int accounts, long rows) {
+  }
+
+  /** Filas a completar de una cuenta, calculadas contra un ancla. */
+  private record Plan(String accountId, boolean anchored, BigDecimal currentBalance,
+      List<Long> rowids, List<BigDecimal> balances, List<Long> seqs) {
+  }
+
+  public RunningBalanceBackfill(SQLite sqlite, int threads) {
+    this.sqlite = sqlite;
+    this.threads = Math.max(1, threads);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = args.length > 0 ? args[0] : "data/bank.db";
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    SQLite sqlite = new SQLite(dbPath);
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    long t0 = System.nanoTime();
+    Result r = new RunningBalanceBackfill(sqlite, threads).run();
+    System.out.printf("[backfill] cuentas=%d filas=%d en %d ms%n",
+        r.accounts(), r.rows(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  /** Hay cuentas con filas sin saldo_posterior (consulta por índice, una por cuenta). */
+  public boolean hasPending() throws SQLException {
+    return !pendingAccounts(true).isEmpty();
+  }
+
+  public Result run() throws Exception {
+    List<String> accounts = pendingAccounts(false);
+    if (accounts.isEmpty()) return new Result(0, 0);
+
+    AtomicLong rows = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "balance-backfill");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int from = 0; from < accounts.size(); from += ACCOUNTS_PER_CHUNK) {
+        List<String> chunk = accounts.subList(from, Math.min(accounts.size(), from + ACCOUNTS_PER_CHUNK));
+        futures.add(pool.submit(() -> {
+          List<Plan> plans = new ArrayList<>(chunk.size());
+          try (Connection c = sqlite.get()) {
+            for (String acc : chunk) plans.add(plan(c, acc));
+            c.commit();
+          }
+          rows.addAndGet(apply(plans));
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+      }
+      return new Result(accounts.size(), rows.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private List<String> pendingAccounts(boolean firstOnly) throws SQLException {
+    String sql = """
+        SELECT c.id_cuenta FROM CUENTAS c
+         WHERE EXISTS (SELECT 1 FROM TRANSACCIONES t WHERE t.id_cuenta = c.id_cuenta AND t.secuencia IS NULL)
+         ORDER BY c.id_cuenta
+        """ + (firstOnly ? " LIMIT 1" : "");
+    try (Connection c = sqlite.get(); PreparedStatement ps = c.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+      List<String> out = new ArrayList<>();
+      while (rs.next()) out.add(rs.getString(1));
+      return out;
+    }
+  }
+
+  private static Plan plan(Connection c, String accountId) throws SQLException {
+    BigDecimal balance = null;
+    long seq = 0;
+    boolean anchored = false;
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT tipo, monto, saldo_posterior, secuencia FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND secuencia IS NOT NULL
+         ORDER BY secuencia LIMIT 1
+        """)) {
+      ps.setString(1, accountId);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          anchored = true;
+          balance = rs.getBigDecimal("saldo_posterior")
+              .subtract(TxRepo.signed(TipoTransaccion.from(rs.getString("tipo")), rs.getBigDecimal("monto")));
+          seq = rs.getLong("secuencia") - 1;
+        }
+      }
+    }
+    BigDecimal current = currentBalance(c, accountId);
+
+    List<Long> rowids = new ArrayList<>();
+    List<TipoTransaccion> tipos = new ArrayList<>();
+    List<BigDecimal> amounts = new ArrayList<>();
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT rowid, tipo, monto FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND secuencia IS NULL
+         ORDER BY fecha, rowid
+        """)) {
+      ps.setString(1, accountId);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          rowids.add(rs.getLong(1));
+          tipos.add(TipoTransaccion.from(rs.getString(2)));
+          amounts.add(rs.getBigDecimal(3));
+        }
+      }
+    }
+    if (!anchored) {
+      balance = current;
+      seq = rowids.size();
+    }
+
+    // Hacia atrás: la última fila histórica termina en el saldo del ancla
+    int n = rowids.size();
+    BigDecimal[] balances = new BigDecimal[n];
+    Long[] seqs = new Long[n];
+    for (int i = n - 1; i >= 0; i--) {
+      balances[i] = balance;
+      seqs[i] = seq--;
+      balance = balance.subtract(TxRepo.signed(tipos.get(i), amounts.get(i)));
+    }
+    return new Plan(accountId, anchored, current, rowids, List.of(balances), List.of(seqs));
+  }
+
+  private static BigDecimal currentBalance(Connection c, String accountId) throws SQLException {
+    Cuenta cu = ACCOUNTS.findById(c, accountId);
+    return cu == null ? BigDecimal.ZERO : cu.saldo();
+  }
+
+  private long apply(List<Plan> plans) throws SQLException {
+    try (Connection c = sqlite.get()) {
+      // Tomar el lock de escritura antes de leer nada: así las re-verificaciones de abajo
+      // ven el estado definitivo y no hay conflicto de snapshot al escribir
+      try (Statement s = c.createStatement()) {
+        s.executeUpdate("UPDATE TRANSACCIONES SET secuencia = secuencia WHERE 0");
+      }
+      long written = 0;
+      try (PreparedStatement up = c.prepareStatement(
+          "UPDATE TRANSACCIONES SET saldo_posterior = ?, secuencia = ? WHERE rowid = ? AND secuencia IS NULL")) {
+        for (Plan p : plans) {
+          if (!p.anchored() && stale(c, p)) p = plan(c, p.accountId());
+          for (int i = 0; i < p.rowids().size(); i++) {
+            up.setBigDecimal(1, p.balances().get(i));
+            up.setLong(2, p.seqs().get(i));
+            up.setLong(3, p.rowids().get(i));
+            up.addBatch();
+          }
+          for (int n : up.executeBatch()) written += n;
+        }
+      }
+      c.commit();
+      return written;
+    }
+  }
+
+  /** Una cuenta planificada contra su saldo actual cambió desde entonces. */
+  private static boolean stale(Connection c, Plan p) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT 1 FROM TRANSACCIONES WHERE id_cuenta = ? AND secuencia IS NOT NULL LIMIT 1")) {
+      ps.setString(1, p.accountId());
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) return true;
+      }
+    }
+    return currentBalance(c, p.accountId()).compareTo(p.currentBalance()) != 0;
+  }
+}
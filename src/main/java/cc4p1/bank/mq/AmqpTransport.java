@@ -0,0 +1,137 @@
+package cc4p1.bank.mq;
+
+import com.rabbitmq.client.*;
+
+import java.util.List;
+
+/** {@link Transport} sobre un canal de RabbitMQ (amqp-client). */
+public class AmqpTransport implements Transport {
+  private static final String USER = "admin";
+  private static final String PASSWORD = "admin";
+
+  private final Connection conn;
+  private final Channel ch;
+  private Channel confirmCh;
+
+  public AmqpTransport(String host) throws Exception {
+    ConnectionFactory f = new ConnectionFactory();
+    f.setHost(host);
+    f.setUsername(USER);
+    f.setPassword(PASSWORD);
+    this.conn = f.newConnection();
+    this.ch = conn.createChannel();
+  }
+
+  @Override
+  public void declareExchange(String exchange) throws Exception {
+    ch.exchangeDeclare(exchange, BuiltinExchangeType.DIRECT, true);
+  }
+
+  @Override
+  public void declareQueue(String queue, boolean durable) throws Exception {
+    ch.queueDeclare(queue, durable, false, false, null);
+  }
+
+  @Override
+  public String declareTempQueue() throws Exception {
+    return ch.queueDeclare("", false, true, true, null).getQueue();
+  }
+
+  @Override
+  public void bind(String queue, String exchange, String routingKey) throws Exception {
+    ch.queueBind(queue, exchange, routingKey);
+  }
+
+  @Override
+  public void publish(String exchange, String routingKey, Message m) throws Exception {
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+        .correlationId(m.correlationId())
+        .replyTo(m.replyTo())
+        .contentType(m.contentType())
+        .contentEncoding(m.contentEncoding())
+        .headers(m.headers())
+        .timestamp(m.timestamp() == null ? null : new java.util.Date(m.timestamp()))
+        .expiration(m.expiration())
+        .build();
+    // Un Channel no debe usarse desde varios hilos a la vez
+    synchronized (ch) {
+      ch.basicPublish(exchange, routingKey, props, m.body());
+    }
+  }
+
+  /**
+   * Canal aparte en modo confirm: en el canal principal las confirmaciones se mezclarían con
+   * las respuestas RPC que publican los consumidores.
+   */
+  @Override
+  public void publishConfirmed(String exchange, List<Outgoing> batch, long timeoutMillis) throws Exception {
+    synchronized (conn) {
+      if (confirmCh == null || !confirmCh.isOpen()) {
+        confirmCh = conn.createChannel();
+        confirmCh.confirmSelect();
+      }
+      for (Outgoing o : batch) {
+        Message m = o.message();
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+            .correlationId(m.correlationId())
+            .contentType(m.contentType())
+            .contentEncoding(m.contentEncoding())
+            .headers(m.headers())
+            .deliveryMode(2) // persistente
+            .build();
+        confirmCh.basicPublish(exchange, o.routingKey(), props, m.body());
+      }
+      confirmCh.waitForConfirmsOrDie(timeoutMillis);
+    }
+  }
+
+  @Override
+  public String consume(String queue, int prefetch, Consumer consumer) throws Exception {
+    synchronized (ch) {
+      ch.basicQos(prefetch);
+      return ch.basicConsume(queue, false, (tag, d) -> {
+        AMQP.BasicProperties p = d.getProperties();
+        Message m = new Message(p.getCorrelationId(), p.getReplyTo(), p.getContentType(),
+            p.getHeaders(), d.getBody(), p.getTimestamp() == null ? null : p.getTimestamp().getTime(),
+            p.getExpiration(), p.getContentEncoding());
+        long deliveryTag = d.getEnvelope().getDeliveryTag();
+        try {
+          consumer.handle(new Delivery() {
+            @Override
+            public Message message() {
+              return m;
+            }
+
+            @Override
+            public void ack() throws Exception {
+              synchronized (ch) {
+                ch.basicAck(deliveryTag, false);
+              }
+            }
+
+            @Override
+            public void nack(boolean requeue) throws Exception {
+              synchronized (ch) {
+                ch.basicNack(deliveryTag, false, requeue);
+              }
+            }
+          });
+        } catch (Exception e) {
+          throw new java.io.IOException(e);
+        }
+      }, tag -> {});
+    }
+  }
+
+  @Override
+  public void cancel(String consumerTag) throws Exception {
+    synchronized (ch) {
+      ch.basicCancel(consumerTag);
+    }
+  }
+
+  @Override
+  public void close() throws Exception {
+    try { ch.close(); } finally { conn.close(); }
+  }
+}
@@ -0,0 +1,204 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.service.BankService;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modo cluster: varios procesos BankServer, cada uno con un subconjunto de los shards
+ * ({@code BANK_LOCAL_SHARDS}). Cada shard {@code k} tiene sus propias colas,
+ * {@code bank_commands.s{k}} y {@code bank_queries.s{k}} (claves {@code bank_command.s{k}} y
+ * {@code bank_query.s{k}}), que consume solo el nodo que lo tiene; el broker hace de tabla de
+ * ruteo, así ningún nodo necesita conocer a los demás.
+ *
+ * <p>Las colas compartidas de siempre las consumen todos los nodos: lo que llega para un shard
+ * remoto se reenvía tal cual a la clave de ese shard (con el mismo reply_to y correlation id,
+ * así el dueño responde directo al cliente). Las colas de shard se declaran para todos los
+ * shards al arrancar: si un nodo está caído, lo suyo se acumula hasta que vuelva.
+ *
+ * <p>También implementa {@link BankService.Peers}: la pata de crédito de una saga se envía a
+ * la cola del shard destino y la respuesta vuelve a una cola temporal de este nodo. Esas
+ * llamadas van firmadas (HMAC-SHA256 del correlation id y el cuerpo con la clave compartida
+ * {@code BANK_CLUSTER_KEY}, cabecera {@value #PEER_HEADER}); solo con una firma válida
+ * {@link BankService} acepta las operaciones internas. Un cliente puede publicar en las mismas
+ * colas, pero no firmar.
+ */
+public final class Cluster implements BankService.Peers, AutoCloseable {
+
+  private static final String FORWARDED_HEADER = "x-forwarded-by";
+  static final String PEER_HEADER = "x-bank-peer-signature";
+  private static final String HMAC = "HmacSHA256";
+  private static final int REPLY_PREFETCH = 256;
+
+  private final Transport transport;
+  private final Shards shards;
+  private final long callTimeoutMillis;
+  private final String nodeName;
+  private final SecretKeySpec peerKey;
+  private final Map<String, CompletableFuture<String>> calls = new ConcurrentHashMap<>();
+  private final AtomicLong forwarded = new AtomicLong();
+  private String replyQueue;
+  private String replyTag;
+
+  /** {@code peerKey}: clave compartida por todos los nodos (ver {@link #peerKeyFromEnv}). */
+  public Cluster(Transport transport, Shards shards, long callTimeoutMillis, byte[] peerKey) {
+    if (peerKey == null || peerKey.length < 16) throw new IllegalArgumentException("peer key must have >= 16 bytes");
+    this.transport = transport;
+    this.shards = shards;
+    this.callTimeoutMillis = callTimeoutMillis;
+    this.peerKey = new SecretKeySpec(peerKey.clone(), HMAC);
+    StringBuilder sb = new StringBuilder("node");
+    for (int k = 0; k < shards.size(); k++) if (shards.isLocal(k)) sb.append("-s").append(k);
+    this.nodeName = sb.toString();
+  }
+
+  /** BANK_LOCAL_SHARDS ("0,2"; sin definir = todos, sin cluster) → índices locales, o null. */
+  public static Set<Integer> localShardsFromEnv(Map<String, String> env) {
+    String v = env.get("BANK_LOCAL_SHARDS");
+    if (v == null || v.isBlank()) return null;
+    Set<Integer> out = new TreeSet<>();
+    for (String part : v.split(",")) if (!part.isBlank()) out.add(Integer.parseInt(part.trim()));
+    return out;
+  }
+
+  /** BANK_SAGA_TIMEOUT_MS: espera máxima de la respuesta del nodo destino (5000). */
+  public static long callTimeoutFromEnv(Map<String, String> env) {
+    return Long.parseLong(env.getOrDefault("BANK_SAGA_TIMEOUT_MS", "5000"));
+  }
+
+  /**
+   * BANK_CLUSTER_KEY: clave compartida de los nodos (al menos 16 bytes). Sin ella las sagas
+   * no podrían acreditar en otro nodo, así que el modo cluster no arranca.
+   */
+  public static byte[] peerKeyFromEnv(Map<String, String> env) {
+    String v = env.get("BANK_CLUSTER_KEY");
+    if (v == null || v.isBlank()) throw new IllegalStateException("BANK_CLUSTER_KEY is required in cluster mode");
+    return v.trim().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static String commandRoutingKey(int shard) {
+    return "bank_command.s" + shard;
+  }
+
+  public static String queryRoutingKey(int shard) {
+    return "bank_query.s" + shard;
+  }
+
+  static String commandQueue(int shard) {
+    return "bank_commands.s" + shard;
+  }
+
+  static String queryQueue(int shard) {
+    return "bank_queries.s" + shard;
+  }
+
+  public Shards shards() {
+    return shards;
+  }
+
+  /** Declara las colas de todos los shards y la cola de respuestas de este nodo. */
+  public synchronized void start() throws Exception {
+    if (replyQueue != null) return;
+    transport.declareExchange(Rabbit.exchange());
+    for (int k = 0; k < shards.size(); k++) {
+      transport.declareQueue(commandQueue(k), true);
+      transport.bind(commandQueue(k), Rabbit.exchange(), commandRoutingKey(k));
+      transport.declareQueue(queryQueue(k), true);
+      transport.bind(queryQueue(k), Rabbit.exchange(), queryRoutingKey(k));
+    }
+    replyQueue = transport.declareTempQueue();
+    replyTag = transport.consume(replyQueue, REPLY_PREFETCH, d -> {
+      // Respuestas tardías (ya vencidas) no tienen quién las espere: se descartan
+      CompletableFuture<String> f = calls.remove(d.message().correlationId());
+      if (f != null) f.complete(new String(d.message().body()));
+      d.ack();
+    });
+  }
+
+  /** Shard dueño de la petición, o -1 si se atiende aquí (sin clave o shard local). */
+  int remoteShardOf(String partitionKey) {
+    if (partitionKey == null) return -1;
+    int k = shards.indexOf(partitionKey);
+    return shards.isLocal(k) ? -1 : k;
+  }
+
+  /** Reenvía la petición a la cola del shard dueño; responde el dueño. */
+  void forward(int shard, Transport.Message req, boolean query) throws Exception {
+    Map<String, Object> headers = req.headers() == null ? new HashMap<>() : new HashMap<>(req.headers());
+    headers.put(FORWARDED_HEADER, nodeName);
+    transport.publish(Rabbit.exchange(), query ? queryRoutingKey(shard) : commandRoutingKey(shard),
+        new Transport.Message(req.correlationId(), req.replyTo(), req.contentType(), headers, req.body(),
+            req.timestamp(), req.expiration()));
+    forwarded.incrementAndGet();
+  }
+
+  /** true si la petición trae una firma válida de otro nodo (canal de pares). */
+  boolean isPeer(Transport.Message req) {
+    Object sig = req.headers() == null ? null : req.headers().get(PEER_HEADER);
+    if (sig == null || req.correlationId() == null) return false;
+    byte[] given;
+    try {
+      given = Base64.getDecoder().decode(sig.toString());
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    return MessageDigest.isEqual(given, sign(req.correlationId(), req.body()));
+  }
+
+  private byte[] sign(String corrId, byte[] body) {
+    try {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(peerKey);
+      mac.update(corrId.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      return mac.doFinal(body);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public long forwardedCount() {
+    return forwarded.get();
+  }
+
+  @Override
+  public String call(int shard, String requestJson) throws Exception {
+    if (replyQueue == null) throw new IllegalStateException("cluster not started");
+    String corrId = nodeName + "-" + UUID.randomUUID();
+    CompletableFuture<String> f = new CompletableFuture<>();
+    calls.put(corrId, f);
+    try {
+      byte[] body = requestJson.getBytes(StandardCharsets.UTF_8);
+      Map<String, Object> headers = Map.of(PEER_HEADER, Base64.getEncoder().encodeToString(sign(corrId, body)));
+      transport.publish(Rabbit.exchange(), commandRoutingKey(shard), new Transport.Message(corrId, replyQueue,
+          "application/json", headers, body, System.currentTimeMillis(), null));
+      return f.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new TimeoutException("shard " + shard + " did not answer in " + callTimeoutMillis + " ms");
+    } finally {
+      calls.remove(corrId);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws Exception {
+    if (replyTag != null) transport.cancel(replyTag);
+    replyTag = null;
+  }
+}
@@ -0,0 +1,191 @@
+package cc4p1.bank.mq;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broker en la misma JVM que imita lo que el banco usa de RabbitMQ: exchanges
+ * directos, exchange por defecto, colas FIFO, colas temporales para reply-to,
+ * ack/nack manual y prefetch por consumidor. Cada consumidor tiene su propio hilo
+ * de entrega (como un canal AMQP, las entregas a un mismo consumidor se serializan).
+ * No persiste nada; pensado para pruebas de carga y desarrollo sin RabbitMQ.
+ */
+public class InMemoryBroker implements Transport {
+
+  private final Map<String, Map<String, Set<String>>> bindings = new ConcurrentHashMap<>();
+  private final Map<String, LinkedBlockingDeque<Message>> queues = new ConcurrentHashMap<>();
+  private final Map<String, ConsumerLoop> consumers = new ConcurrentHashMap<>();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong unroutable = new AtomicLong();
+
+  @Override
+  public void declareExchange(String exchange) {
+    bindings.computeIfAbsent(exchange, k -> new ConcurrentHashMap<>());
+  }
+
+  @Override
+  public void declareQueue(String queue, boolean durable) {
+    queues.computeIfAbsent(queue, k -> new LinkedBlockingDeque<>());
+  }
+
+  @Override
+  public String declareTempQueue() {
+    String name = "amq.gen-" + UUID.randomUUID();
+    declareQueue(name, false);
+    return name;
+  }
+
+  @Override
+  public void bind(String queue, String exchange, String routingKey) {
+    declareExchange(exchange);
+    bindings.get(exchange).computeIfAbsent(routingKey, k -> ConcurrentHashMap.newKeySet()).add(queue);
+  }
+
+  @Override
+  public void publish(String exchange, String routingKey, Message message) {
+    published.incrementAndGet();
+    if (exchange == null || exchange.isEmpty()) {
+      enqueue(routingKey, message);
+      return;
+    }
+    Map<String, Set<String>> ex = bindings.get(exchange);
+    Set<String> targets = ex == null ? null : ex.get(routingKey);
+    if (targets == null || targets.isEmpty()) {
+      unroutable.incrementAndGet(); // como AMQP sin mandatory: se descarta
+      return;
+    }
+    for (String q : targets) enqueue(q, message);
+  }
+
+  /** En memoria todo lo publicado ya está encolado: se confirma al volver de publish. */
+  @Override
+  public void publishConfirmed(String exchange, List<Outgoing> batch, long timeoutMillis) {
+    for (Outgoing o : batch) publish(exchange, o.routingKey(), o.message());
+  }
+
+  private void enqueue(String queue, Message message) {
+    LinkedBlockingDeque<Message> q = queues.get(queue);
+    if (q == null) {
+      unroutable.incrementAndGet();
+      return;
+    }
+    q.offerLast(message);
+  }
+
+  @Override
+  public String consume(String queue, int prefetch, Consumer consumer) {
+    LinkedBlockingDeque<Message> q = queues.get(queue);
+    if (q == null) throw new IllegalArgumentException("NOT_FOUND - no queue '" + queue + "'");
+    String tag = "ctag-" + UUID.randomUUID();
+    ConsumerLoop loop = new ConsumerLoop(tag, q, Math.max(1, prefetch), consumer);
+    consumers.put(tag, loop);
+    loop.thread.start();
+    return tag;
+  }
+
+  @Override
+  public void cancel(String consumerTag) {
+    ConsumerLoop loop = consumers.remove(consumerTag);
+    if (loop != null) loop.stop();
+  }
+
+  /** Mensajes pendientes (no entregados) en la cola, o -1 si no existe. */
+  public int depth(String queue) {
+    LinkedBlockingDeque<Message> q = queues.get(queue);
+    return q == null ? -1 : q.size();
+  }
+
+  public long publishedCount() {
+    return published.get();
+  }
+
+  public long unroutableCount() {
+    return unroutable.get();
+  }
+
+  @Override
+  public void close() {
+    for (String tag : consumers.keySet()) cancel(tag);
+  }
+
+  private static final class ConsumerLoop implements Runnable {
+    private final LinkedBlockingDeque<Message> queue;
+    private final Semaphore window;
+    private final Consumer consumer;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Thread thread;
+
+    ConsumerLoop(String tag, LinkedBlockingDeque<Message> queue, int prefetch, Consumer consumer) {
+      this.queue = queue;
+      this.window = new Semaphore(prefetch);
+      this.consumer = consumer;
+      this.thread = new Thread(this, "inmem-" + tag);
+      this.thread.setDaemon(true);
+    }
+
+    void stop() {
+      running.set(false);
+      thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (running.get()) {
+        Message m;
+        try {
+          window.acquire(); // respeta el prefetch: no entregar más allá de la ventana sin ack
+          m = queue.takeFirst();
+        } catch (InterruptedException e) {
+          return;
+        }
+        InMemoryDelivery d = new InMemoryDelivery(m, this);
+        try {
+          consumer.handle(d);
+        } catch (Exception e) {
+          // Sin reencolar para no girar en caliente sobre un mensaje venenoso
+          System.err.printf(" [!] InMemoryBroker consumer error: %s%n", e);
+          d.settle(false);
+        }
+      }
+    }
+  }
+
+  private static final class InMemoryDelivery implements Delivery {
+    private final Message message;
+    private final ConsumerLoop owner;
+    private final AtomicBoolean settled = new AtomicBoolean(false);
+
+    InMemoryDelivery(Message message, ConsumerLoop owner) {
+      this.message = message;
+      this.owner = owner;
+    }
+
+    @Override
+    public Message message() {
+      return message;
+    }
+
+    @Override
+    public void ack() {
+      settle(false);
+    }
+
+    @Override
+    public void nack(boolean requeue) {
+      settle(requeue);
+    }
+
+    void settle(boolean requeue) {
+      if (!settled.compareAndSet(false, true)) return;
+      if (requeue) owner.queue.offerFirst(message);
+      owner.window.release();
+    }
+  }
+}
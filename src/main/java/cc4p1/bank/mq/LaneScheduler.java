@@ -0,0 +1,205 @@
+package cc4p1.bank.mq;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reparte las peticiones recibidas por {@link Rabbit} entre tres carriles:
+ * <ul>
+ *   <li>{@link Lane#PRIORITY}: operaciones sensibles a latencia; se atiende siempre primero;</li>
+ *   <li>{@link Lane#COMMAND} y {@link Lane#QUERY}: se alternan por round-robin ponderado suave
+ *       (con pesos 3:1, de cada 4 turnos 3 son comandos), así una avalancha de consultas no
+ *       deja esperando a las transferencias y tampoco se las deja morir de hambre.</li>
+ * </ul>
+ * Cada carril tiene su propio límite de concurrencia y, además, las tareas que escriben
+ * comparten {@code writeConcurrency} cupos: SQLite admite un solo escritor, así que con el
+ * valor por defecto (1) los comandos se serializan aquí en vez de chocar con SQLITE_BUSY.
+ * Una tarea que espera cupo de escritura no frena a las consultas que vienen detrás.
+ */
+public final class LaneScheduler implements AutoCloseable {
+
+  public enum Lane { PRIORITY, COMMAND, QUERY }
+
+  /** Concurrencia por carril, cupos de escritura, pesos comando/consulta y operaciones prioritarias. */
+  public record Config(int priorityConcurrency, int commandConcurrency, int queryConcurrency, int writeConcurrency,
+      int commandWeight, int queryWeight, Set<String> priorityOps) {
+
+    public static Config defaults() {
+      return new Config(1, 1, 4, 1, 3, 1, Set.of("Transfer", "Withdraw"));
+    }
+
+    /**
+     * BANK_LANE_PRIORITY / BANK_LANE_COMMANDS / BANK_LANE_QUERIES (concurrencia), BANK_LANE_WRITERS,
+     * BANK_LANE_WEIGHTS ("comandos:consultas") y BANK_PRIORITY_OPS (lista separada por comas).
+     */
+    public static Config fromEnv(Map<String, String> env) {
+      Config d = defaults();
+      String[] w = env.getOrDefault("BANK_LANE_WEIGHTS", d.commandWeight() + ":" + d.queryWeight()).split(":");
+      String ops = env.get("BANK_PRIORITY_OPS");
+      return new Config(
+          Integer.parseInt(env.getOrDefault("BANK_LANE_PRIORITY", String.valueOf(d.priorityConcurrency()))),
+          Integer.parseInt(env.getOrDefault("BANK_LANE_COMMANDS", String.valueOf(d.commandConcurrency()))),
+          Integer.parseInt(env.getOrDefault("BANK_LANE_QUERIES", String.valueOf(d.queryConcurrency()))),
+          Integer.parseInt(env.getOrDefault("BANK_LANE_WRITERS", String.valueOf(d.writeConcurrency()))),
+          Integer.parseInt(w[0].trim()), Integer.parseInt(w[1].trim()),
+          ops == null ? d.priorityOps() : Set.of(Arrays.stream(ops.split(",")).map(String::trim)
+              .filter(s -> !s.isEmpty()).toArray(String[]::new)));
+    }
+  }
+
+  private record Task(Lane lane, boolean write, Runnable work) {
+  }
+
+  private final Config cfg;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition ready = lock.newCondition();
+  private final List<ArrayDeque<Task>> queues = new ArrayList<>();
+  private final int[] limit = new int[3];
+  private final int[] inFlight = new int[3];
+  private final long[] completed = new long[3];
+  private final int[] weight = new int[3];
+  /** Estado del round-robin ponderado suave (el algoritmo de nginx). */
+  private final int[] current = new int[3];
+  private int writes;
+  private final List<Thread> workers = new ArrayList<>();
+  private volatile boolean running = true;
+
+  public LaneScheduler(Config cfg) {
+    this.cfg = cfg;
+    for (int i = 0; i < 3; i++) queues.add(new ArrayDeque<>());
+    limit[Lane.PRIORITY.ordinal()] = Math.max(1, cfg.priorityConcurrency());
+    limit[Lane.COMMAND.ordinal()] = Math.max(1, cfg.commandConcurrency());
+    limit[Lane.QUERY.ordinal()] = Math.max(1, cfg.queryConcurrency());
+    weight[Lane.COMMAND.ordinal()] = Math.max(1, cfg.commandWeight());
+    weight[Lane.QUERY.ordinal()] = Math.max(1, cfg.queryWeight());
+    int threads = limit[0] + limit[1] + limit[2];
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(this::work, "lane-worker-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+      t.start();
+    }
+  }
+
+  public Config config() {
+    return cfg;
+  }
+
+  /** Carril de una operación: prioritaria si está en la lista, si no consulta o comando. */
+  public Lane laneFor(String type, boolean query) {
+    if (type != null && cfg.priorityOps().contains(type)) return Lane.PRIORITY;
+    return query ? Lane.QUERY : Lane.COMMAND;
+  }
+
+  /** Encola una tarea; {@code write} indica si necesita cupo de escritura. No bloquea. */
+  public void submit(Lane lane, boolean write, Runnable work) {
+    lock.lock();
+    try {
+      queues.get(lane.ordinal()).addLast(new Task(lane, write, work));
+      ready.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Tareas en cola (sin empezar) por carril. */
+  public int queued(Lane lane) {
+    lock.lock();
+    try {
+      return queues.get(lane.ordinal()).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Tareas terminadas por carril desde el inicio. */
+  public long completed(Lane lane) {
+    lock.lock();
+    try {
+      return completed[lane.ordinal()];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void work() {
+    while (running) {
+      Task t;
+      try {
+        t = take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        t.work().run();
+      } catch (RuntimeException e) {
+        System.err.printf(" [!] LaneScheduler %s: %s%n", t.lane(), e);
+      } finally {
+        done(t);
+      }
+    }
+  }
+
+  private Task take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        Task t = pick();
+        if (t != null) {
+          inFlight[t.lane().ordinal()]++;
+          if (t.write()) writes++;
+          return t;
+        }
+        ready.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Con el lock tomado: siguiente tarea elegible, o null. */
+  private Task pick() {
+    if (eligible(Lane.PRIORITY)) return queues.get(Lane.PRIORITY.ordinal()).pollFirst();
+    boolean cmd = eligible(Lane.COMMAND);
+    boolean qry = eligible(Lane.QUERY);
+    if (!cmd && !qry) return null;
+    if (cmd != qry) return queues.get((cmd ? Lane.COMMAND : Lane.QUERY).ordinal()).pollFirst();
+    int c = Lane.COMMAND.ordinal();
+    int q = Lane.QUERY.ordinal();
+    current[c] += weight[c];
+    current[q] += weight[q];
+    int chosen = current[c] >= current[q] ? c : q;
+    current[chosen] -= weight[c] + weight[q];
+    return queues.get(chosen).pollFirst();
+  }
+
+  private boolean eligible(Lane lane) {
+    int i = lane.ordinal();
+    Task head = queues.get(i).peekFirst();
+    return head != null && inFlight[i] < limit[i] && (!head.write() || writes < Math.max(1, cfg.writeConcurrency()));
+  }
+
+  private void done(Task t) {
+    lock.lock();
+    try {
+      inFlight[t.lane().ordinal()]--;
+      completed[t.lane().ordinal()]++;
+      if (t.write()) writes--;
+      ready.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    for (Thread t : workers) t.interrupt();
+  }
+}
@@ -0,0 +1,100 @@
+package cc4p1.bank.mq;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Descarte adaptativo de carga, al estilo CoDel: lo que importa no es cuánto crece la cola
+ * sino si la espera <em>mínima</em> de un intervalo supera el objetivo (una cola que nunca
+ * se vacía). También entra en sobrecarga si la latencia media de los handlers (EWMA) pasa
+ * de {@code maxHandlerMillis}.
+ *
+ * <p>En sobrecarga se descartan las consultas que esperaron más que el objetivo y las
+ * escrituras que esperaron más de {@value #WRITE_LAG_FACTOR}× el objetivo. La decisión se
+ * toma antes de llamar a BankService, así que una escritura descartada no tuvo ningún
+ * efecto y puede reintentarse con el mismo messageId.
+ */
+public final class LoadShedder {
+
+  private static final int WRITE_LAG_FACTOR = 4;
+
+  /** {@code targetLagMillis <= 0} desactiva el descarte. */
+  public record Config(long targetLagMillis, long intervalMillis, long maxHandlerMillis) {
+
+    public static Config defaults() {
+      return new Config(100, 1000, 250);
+    }
+
+    public static Config disabled() {
+      return new Config(0, 1000, 0);
+    }
+
+    /** BANK_SHED_TARGET_LAG_MS (0 = desactivado), BANK_SHED_INTERVAL_MS y BANK_SHED_MAX_HANDLER_MS. */
+    public static Config fromEnv(Map<String, String> env) {
+      Config d = defaults();
+      return new Config(
+          Long.parseLong(env.getOrDefault("BANK_SHED_TARGET_LAG_MS", String.valueOf(d.targetLagMillis()))),
+          Long.parseLong(env.getOrDefault("BANK_SHED_INTERVAL_MS", String.valueOf(d.intervalMillis()))),
+          Long.parseLong(env.getOrDefault("BANK_SHED_MAX_HANDLER_MS", String.valueOf(d.maxHandlerMillis()))));
+    }
+  }
+
+  private final Config cfg;
+  private long intervalStart;
+  private long minLag = Long.MAX_VALUE;
+  private double handlerEwmaMillis;
+  private volatile boolean overloaded;
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder shedQueries = new LongAdder();
+  private final LongAdder shedWrites = new LongAdder();
+
+  public LoadShedder(Config cfg) {
+    this.cfg = cfg;
+  }
+
+  /** Registra la espera (recepción → inicio) de una petición que está por procesarse. */
+  public synchronized void observeLag(long lagMillis, long nowMillis) {
+    if (cfg.targetLagMillis() <= 0) return;
+    minLag = Math.min(minLag, lagMillis);
+    if (intervalStart == 0) intervalStart = nowMillis;
+    if (nowMillis - intervalStart >= cfg.intervalMillis()) {
+      overloaded = minLag > cfg.targetLagMillis()
+          || (cfg.maxHandlerMillis() > 0 && handlerEwmaMillis > cfg.maxHandlerMillis());
+      minLag = Long.MAX_VALUE;
+      intervalStart = nowMillis;
+    }
+  }
+
+  /** Registra cuánto tardó el handler. */
+  public synchronized void observeHandler(long millis) {
+    handlerEwmaMillis = handlerEwmaMillis == 0 ? millis : 0.9 * handlerEwmaMillis + 0.1 * millis;
+  }
+
+  /** true si la petición debe descartarse (y la cuenta como descartada). */
+  public boolean shouldShed(boolean write, long lagMillis) {
+    if (!overloaded || cfg.targetLagMillis() <= 0) return false;
+    boolean shed = lagMillis > (write ? WRITE_LAG_FACTOR * cfg.targetLagMillis() : cfg.targetLagMillis());
+    if (shed) (write ? shedWrites : shedQueries).increment();
+    return shed;
+  }
+
+  public void countExpired() {
+    expired.increment();
+  }
+
+  public boolean overloaded() {
+    return overloaded;
+  }
+
+  public long expiredCount() {
+    return expired.sum();
+  }
+
+  public long shedQueryCount() {
+    return shedQueries.sum();
+  }
+
+  public long shedWriteCount() {
+    return shedWrites.sum();
+  }
+}
@@ -1,71 +1,354 @@
 package cc4p1.bank.mq;
 
 import cc4p1.bank.service.BankService;
-import com.rabbitmq.client.*;
+import cc4p1.bank.service.Operations;
+import cc4p1.bank.service.Reply;
+import cc4p1.bank.service.WireFormat;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class Rabbit implements AutoCloseable {
-  private final Connection conn;
-  private final Channel ch;
+  private final Transport transport;
+  private boolean verbose = true;
+  private LaneScheduler.Config lanes = LaneScheduler.Config.defaults();
+  private LaneScheduler scheduler;
+  private LoadShedder shedder = new LoadShedder(LoadShedder.Config.defaults());
+  private ReplyCompression compression = new ReplyCompression(ReplyCompression.Config.defaults());
+  private Cluster cluster;
 
   private static final String BANK_EXCHANGE = "rabbit_exchange";
+  /** Ruta de compatibilidad: mezcla todo; el carril se decide por el tipo de operación. */
   private static final String BANK_QUEUE = "bank_queue";
   private static final String BANK_ROUTING_KEY = "bank_operation";
-  private static final String USER = "admin";
-  private static final String PASSWORD = "admin";
+  private static final String COMMAND_QUEUE = "bank_commands";
+  private static final String COMMAND_ROUTING_KEY = "bank_command";
+  private static final String QUERY_QUEUE = "bank_queries";
+  private static final String QUERY_ROUTING_KEY = "bank_query";
+  private static final String PRIORITY_QUEUE = "bank_priority";
+  private static final String PRIORITY_ROUTING_KEY = "bank_priority";
+  private static final int PREFETCH = 32;
 
   public Rabbit(String host) throws Exception {
-    ConnectionFactory f = new ConnectionFactory();
-    f.setHost(host);
-    f.setUsername(USER);
-    f.setPassword(PASSWORD);
-    this.conn = f.newConnection();
-    this.ch = conn.createChannel();
+    this(new AmqpTransport(host));
+  }
+
+  /** Permite servir sobre otro transporte, p. ej. {@link InMemoryBroker} en pruebas de carga. */
+  public Rabbit(Transport transport) {
+    this.transport = transport;
+  }
+
+  /** Activa/desactiva el log por mensaje (útil desactivarlo en pruebas de carga). */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  /** Configuración del descarte por carga; debe llamarse antes de {@link #serve}. */
+  public void setLoadShedding(LoadShedder.Config cfg) {
+    this.shedder = new LoadShedder(cfg);
+  }
+
+  public LoadShedder loadShedder() {
+    return shedder;
+  }
+
+  /** Compresión de respuestas grandes (la pide el cliente con accept-encoding). */
+  public void setReplyCompression(ReplyCompression.Config cfg) {
+    this.compression = new ReplyCompression(cfg);
+  }
+
+  public ReplyCompression replyCompression() {
+    return compression;
+  }
+
+  /**
+   * Modo cluster: además de las colas compartidas consume las de sus shards locales y reenvía
+   * lo que es de shards remotos. Debe llamarse antes de {@link #serve}.
+   */
+  public void setCluster(Cluster cluster) {
+    this.cluster = cluster;
+  }
+
+  /** Configuración de carriles; debe llamarse antes de {@link #serve}. */
+  public void setLanes(LaneScheduler.Config lanes) {
+    this.lanes = lanes;
+  }
+
+  public static String exchange() {
+    return BANK_EXCHANGE;
+  }
+
+  public static String routingKey() {
+    return BANK_ROUTING_KEY;
+  }
+
+  /** Routing key recomendada para una operación: consultas y comandos van a colas distintas. */
+  public static String routingKeyFor(String type) {
+    return BankService.isQuery(type) ? QUERY_ROUTING_KEY : COMMAND_ROUTING_KEY;
+  }
+
+  /** Routing key del carril prioritario (se atiende antes que comandos y consultas). */
+  public static String priorityRoutingKey() {
+    return PRIORITY_ROUTING_KEY;
   }
 
   /**
-   * Comienza a consumir mensajes de la cola bank_queue (vinculada a bank_exchange mediante la clave de enrutamiento bank_operation).
+   * Comienza a consumir de bank_queue (compatibilidad, clave bank_operation) y de las colas
+   * por clase: bank_commands, bank_queries y bank_priority. Cada cola tiene su propia ventana
+   * de prefetch, así una avalancha de consultas no ocupa la ventana de los comandos.
+   * Las entregas no se procesan en el hilo del consumidor: pasan al {@link LaneScheduler},
+   * que decide el orden, y se confirman (ack) al terminar.
    * Las respuestas se publican en la cola indicada por `reply_to` en el mensaje de solicitud.
    */
   public void serve(BankService bank) throws Exception {
-    // 1. Declarar exchange y queue, y vincularlos
-    ch.exchangeDeclare(BANK_EXCHANGE, BuiltinExchangeType.DIRECT, true);
-    ch.queueDeclare(BANK_QUEUE, true, false, false, null);
-    ch.queueBind(BANK_QUEUE, BANK_EXCHANGE, BANK_ROUTING_KEY);
-    ch.basicQos(32);
+    // 1. Declarar exchange y colas, y vincularlas
+    transport.declareExchange(BANK_EXCHANGE);
+    String[][] routes = {
+        {BANK_QUEUE, BANK_ROUTING_KEY}, {COMMAND_QUEUE, COMMAND_ROUTING_KEY},
+        {QUERY_QUEUE, QUERY_ROUTING_KEY}, {PRIORITY_QUEUE, PRIORITY_ROUTING_KEY}};
+    for (String[] r : routes) {
+      transport.declareQueue(r[0], true);
+      transport.bind(r[0], BANK_EXCHANGE, r[1]);
+    }
+    scheduler = new LaneScheduler(lanes);
+
+    System.out.printf(" [*] Bank Server waiting on exchange=%s keys=%s,%s,%s,%s lanes=%s%n",
+        BANK_EXCHANGE, BANK_ROUTING_KEY, COMMAND_ROUTING_KEY, QUERY_ROUTING_KEY, PRIORITY_ROUTING_KEY, lanes);
 
-    System.out.printf(" [*] Bank Server waiting on exchange=%s key=%s queue=%s%n",
-        BANK_EXCHANGE, BANK_ROUTING_KEY, BANK_QUEUE);
+    for (String[] r : routes) {
+      boolean priorityRoute = PRIORITY_QUEUE.equals(r[0]);
+      transport.consume(r[0], PREFETCH, delivery -> dispatch(bank, delivery, priorityRoute, false));
+    }
+    if (cluster != null) {
+      cluster.start();
+      for (int k = 0; k < cluster.shards().size(); k++) {
+        if (!cluster.shards().isLocal(k)) continue;
+        for (String q : new String[] {Cluster.commandQueue(k), Cluster.queryQueue(k)}) {
+          transport.consume(q, PREFETCH, delivery -> dispatch(bank, delivery, false, true));
+        }
+        System.out.printf(" [*] Shard %d: keys=%s,%s%n", k, Cluster.commandRoutingKey(k), Cluster.queryRoutingKey(k));
+      }
+    }
+  }
 
-    DeliverCallback cb = (tag, delivery) -> {
-      String corrId = delivery.getProperties().getCorrelationId();
-      String replyTo = delivery.getProperties().getReplyTo();
-      String body = new String(delivery.getBody());
+  /**
+   * Entrada de otro frente (p. ej. {@link TcpFrontEnd}) por el mismo camino que una entrega del
+   * broker: plazo, carril, cupo de escritura y descarte por carga. Es siempre canal público (sin
+   * operaciones internas) y nunca se reenvía a otro nodo: en cluster, lo de un shard remoto
+   * responde SHARD_NOT_LOCAL. {@code sink} recibe la respuesta, una sola vez, desde un hilo de
+   * los carriles. Solo después de {@link #serve}.
+   */
+  public void submit(BankService bank, Transport.Message req, Consumer<byte[]> sink) {
+    Local delivery = new Local(req, sink);
+    try {
+      dispatch(bank, delivery, false, true);
+    } catch (Exception e) {
+      sink.accept(bank.error(e.getMessage(), req.correlationId()).encode(WireFormat.of(req.contentType())));
+    }
+  }
 
+  /** Entrega que no vino del broker: la respuesta va a {@code sink}; ack y nack no aplican. */
+  private record Local(Transport.Message message, Consumer<byte[]> sink) implements Transport.Delivery {
+    @Override
+    public void ack() {
+    }
+
+    @Override
+    public void nack(boolean requeue) {
+    }
+  }
+
+  /**
+   * Lo que se lee del cuerpo antes de encolar: tipo de operación, plazo opcional y los campos
+   * escalares del nivel superior (de ahí sale la clave de partición). {@code nested}: trae
+   * "payload" o "legs", donde también puede estar la clave.
+   */
+  private record Peek(String type, Long deadline, Map<String, String> fields, boolean nested) {
+    static final Peek EMPTY = new Peek(null, null, Map.of(), false);
+  }
+
+  /** {@code shardRoute}: llegó por la cola de un shard local o por {@link #submit} (nunca se reenvía). */
+  private void dispatch(BankService bank, Transport.Delivery delivery, boolean priorityRoute, boolean shardRoute)
+      throws Exception {
+    long receivedAt = System.currentTimeMillis();
+    Transport.Message req = delivery.message();
+    WireFormat format = WireFormat.of(req.contentType());
+    Peek peek = peek(req.body(), format);
+    Long deadline = deadline(req, peek, receivedAt);
+    // Vencida al llegar: se responde aquí mismo, sin pasar por la cola ni por SQLite
+    if (deadline != null && receivedAt > deadline) {
+      shedder.countExpired();
+      reply(delivery, bank.deadlineExceeded(deadline, req.correlationId()), format);
+      return;
+    }
+    // Clase de la operación según el registro del servicio (incluye las agregadas con register)
+    Operations.Operation op = bank.operations().find(peek.type());
+    boolean query = op != null && op.query();
+    // Cluster: lo de un shard remoto va a la cola de ese shard; responde su nodo
+    if (cluster != null && !shardRoute) {
+      int owner = cluster.remoteShardOf(partitionKey(op, peek, req.body(), format));
+      if (owner >= 0) {
+        cluster.forward(owner, req, query);
+        delivery.ack();
+        return;
+      }
+    }
+    LaneScheduler.Lane lane = priorityRoute ? LaneScheduler.Lane.PRIORITY : scheduler.laneFor(op == null ? peek.type() : op.name(), query);
+    // La espera cuenta desde la publicación si viene timestamp: lo que se acumula en el broker,
+    // fuera de la ventana de prefetch, también es cola
+    long queuedSince = req.timestamp() != null ? Math.min(receivedAt, req.timestamp()) : receivedAt;
+    // Operaciones internas: solo con la firma de otro nodo (ver Cluster)
+    boolean peer = !(delivery instanceof Local) && cluster != null && cluster.isPeer(req);
+    scheduler.submit(lane, !query, () -> process(bank, delivery, format, !query, queuedSince, deadline, peer));
+  }
+
+  /**
+   * Plazo efectivo: el menor entre el campo "deadline" del cuerpo y timestamp + expiration
+   * de AMQP (sin timestamp, se cuenta desde la recepción).
+   */
+  private static Long deadline(Transport.Message req, Peek peek, long receivedAt) {
+    Long deadline = peek.deadline();
+    if (req.expiration() != null) {
+      try {
+        long base = req.timestamp() != null ? req.timestamp() : receivedAt;
+        long amqp = base + Long.parseLong(req.expiration().trim());
+        deadline = deadline == null ? amqp : Math.min(deadline, amqp);
+      } catch (NumberFormatException ignored) {
+        // expiration inválida: RabbitMQ tampoco la habría aceptado
+      }
+    }
+    return deadline;
+  }
+
+  private void process(BankService bank, Transport.Delivery delivery, WireFormat format, boolean write,
+      long queuedSince, Long deadline, boolean peer) {
+    Transport.Message req = delivery.message();
+    String corrId = req.correlationId();
+    String replyTo = req.replyTo();
+    try {
+      // Antes de cualquier efecto: plazo vencido en la cola o sobrecarga
+      long now = System.currentTimeMillis();
+      long lag = now - queuedSince;
+      shedder.observeLag(lag, now);
+      if (deadline != null && now > deadline) {
+        shedder.countExpired();
+        reply(delivery, bank.deadlineExceeded(deadline, corrId), format);
+        return;
+      }
+      if (shedder.shouldShed(write, lag)) {
+        reply(delivery, bank.overloaded(lag, corrId), format);
+        return;
+      }
+
+      byte[] body = req.body();
       // Log: mensaje recibido
-      System.out.printf(" [>] Received | corrId=%s | replyTo=%s | size=%d | body=%s%n",
-          corrId, replyTo, body == null ? 0 : body.length(), body);
+      if (verbose) {
+        System.out.printf(" [>] Received | corrId=%s | replyTo=%s | size=%d | body=%s%n",
+            corrId, replyTo, body.length, printable(body, format));
+      }
 
       // Lógica de negocio
-      String response = bank.handle(body, corrId);
-
-      // Propiedades del mensaje de respuesta
-      AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-          .correlationId(corrId)
-          .contentType("application/json")
-          .build();
+      long t0 = System.nanoTime();
+      byte[] response = bank.handle(body, format, corrId, peer);
+      shedder.observeHandler((System.nanoTime() - t0) / 1_000_000);
 
       // Log: mensaje a enviar
-      System.out.printf(" [<] Sending  | corrId=%s | to=%s | size=%d | body=%s%n",
-          corrId, replyTo, response == null ? 0 : response.length(), response);
+      if (verbose) {
+        System.out.printf(" [<] Sending  | corrId=%s | to=%s | size=%d | body=%s%n",
+            corrId, replyTo, response.length, printable(response, format));
+      }
 
       // Publicar de vuelta en la cola de respuesta del cliente
-      ch.basicPublish("", replyTo, props, response.getBytes());
-      ch.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-      System.out.printf(" [✓] Acked    | corrId=%s%n", corrId);
-    };
+      reply(delivery, response, format);
+      if (verbose) {
+        System.out.printf(" [✓] Acked    | corrId=%s%n", corrId);
+      }
+    } catch (Exception e) {
+      System.err.printf(" [!] corrId=%s: %s%n", corrId, e);
+      // Fuera del broker nadie reintenta: la respuesta es el error
+      if (delivery instanceof Local local) {
+        local.sink().accept(bank.error(String.valueOf(e.getMessage()), corrId).encode(format));
+        return;
+      }
+      try {
+        delivery.nack(false);
+      } catch (Exception ignored) {
+      }
+    }
+  }
 
-    // Consumir de la cola bank_queue
-    ch.basicConsume(BANK_QUEUE, false, cb, tag -> {});
+  private void reply(Transport.Delivery delivery, Reply response, WireFormat format) throws Exception {
+    reply(delivery, response.encode(format), format);
+  }
+
+  /**
+   * Publica la respuesta con el contentType de su formato (el mismo de la petición),
+   * comprimida si la petición lo aceptó y es grande.
+   */
+  private void reply(Transport.Delivery delivery, byte[] response, WireFormat format) throws Exception {
+    if (delivery instanceof Local local) {
+      local.sink().accept(response);
+      return;
+    }
+    Transport.Message req = delivery.message();
+    ReplyCompression.Encoded out = compression.encode(response, req.headers());
+    transport.publish("", req.replyTo(), new Transport.Message(req.correlationId(), null, format.contentType(), null,
+        out.body(), null, null, out.contentEncoding()));
+    delivery.ack();
+  }
+
+  /** Cuerpo para el log: el texto si es JSON; los binarios solo por su tamaño. */
+  private static String printable(byte[] body, WireFormat format) {
+    return format == WireFormat.JSON ? new String(body, java.nio.charset.StandardCharsets.UTF_8) : "<" + format + ">";
+  }
+
+  /**
+   * Lee solo el nivel superior ("type" u "operationType", "deadline" y los demás escalares)
+   * sin armar el árbol: los lotes pueden ser grandes y BankService vuelve a parsear el cuerpo
+   * completo. Lee en streaming en cualquiera de los formatos (JSON, CBOR, Smile).
+   */
+  private Peek peek(byte[] body, WireFormat format) {
+    try (JsonParser p = format.mapper().getFactory().createParser(body)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) return Peek.EMPTY;
+      String type = null;
+      String alt = null;
+      Long deadline = null;
+      Map<String, String> fields = new HashMap<>();
+      boolean nested = false;
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String name = p.currentName();
+        JsonToken v = p.nextToken();
+        if ("type".equals(name) && v == JsonToken.VALUE_STRING) type = p.getText();
+        else if ("operationType".equals(name) && v == JsonToken.VALUE_STRING) alt = p.getText();
+        else if ("deadline".equals(name) && v.isScalarValue()) deadline = BankService.parseDeadline(p.getText());
+        else if (v.isScalarValue() && v != JsonToken.VALUE_NULL) fields.put(name, p.getText());
+        else {
+          nested |= "payload".equals(name) || "legs".equals(name);
+          p.skipChildren();
+        }
+      }
+      return new Peek(type != null ? type : alt, deadline, fields, nested);
+    } catch (Exception e) {
+      return Peek.EMPTY; // cuerpo inválido: BankService responde el error
+    }
+  }
+
+  /**
+   * Clave de partición según las claves de recurso de la operación, de los campos ya leídos
+   * en {@link #peek}; solo si el cuerpo trae "payload" o "legs" (Login, Register, lotes) se
+   * parsea completo. null si la operación es desconocida o no tiene clave (se atiende aquí).
+   */
+  private String partitionKey(Operations.Operation op, Peek peek, byte[] body, WireFormat format) {
+    if (op == null) return null;
+    if (!peek.nested()) return op.partitionKey(peek.fields());
+    try {
+      return op.partitionKey(format.mapper().readTree(body));
+    } catch (Exception e) {
+      return null;
+    }
   }
 
   /**
@@ -76,24 +359,22 @@ public class Rabbit implements AutoCloseable {
     String reniecRoutingKey = "reniec_operation";
 
     // Asegurarse que exista el intercambio
-    ch.exchangeDeclare(reniecExchange, BuiltinExchangeType.DIRECT, true);
-
-    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-        .correlationId(correlationId)
-        .replyTo(replyQueue)
-        .build();
+    transport.declareExchange(reniecExchange);
 
     // Log: envío a RENIEC
     System.out.printf(" [~] RENIEC   | exchange=%s | key=%s | corrId=%s | replyTo=%s | size=%d | body=%s%n",
         reniecExchange, reniecRoutingKey, correlationId, replyQueue,
         messageJson == null ? 0 : messageJson.length(), messageJson);
 
-    ch.basicPublish(reniecExchange, reniecRoutingKey, props, messageJson.getBytes());
+    transport.publish(reniecExchange, reniecRoutingKey,
+        new Transport.Message(correlationId, replyQueue, null, null, messageJson.getBytes()));
     return correlationId;
   }
 
   @Override
   public void close() throws Exception {
-    try { ch.close(); } finally { conn.close(); }
+    if (cluster != null) cluster.close();
+    if (scheduler != null) scheduler.close();
+    transport.close();
   }
 }
@@ -0,0 +1,179 @@
+package cc4p1.bank.mq;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresión opcional de respuestas grandes (extractos, resúmenes). El cliente la pide con la
+ * cabecera AMQP {@value #ACCEPT_HEADER} ("gzip", "deflate" o ambas, con valores {@code q} opcionales);
+ * si la respuesta ocupa al menos {@code minBytes} sale comprimida con {@code content_encoding}.
+ * Sin la cabecera nada cambia.
+ *
+ * <p>Los {@link Deflater} (memoria nativa, caros de crear) se toman de un pool acotado y se
+ * reinician tras cada uso; si el pool está vacío se crea uno y se libera al terminar.
+ */
+public final class ReplyCompression {
+
+  public static final String ACCEPT_HEADER = "accept-encoding";
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  /** {@code minBytes <= 0} desactiva la compresión. */
+  public record Config(int minBytes, int level, int poolSize) {
+
+    public static Config defaults() {
+      return new Config(8192, Deflater.BEST_SPEED, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Config disabled() {
+      return new Config(0, Deflater.BEST_SPEED, 0);
+    }
+
+    /** BANK_REPLY_COMPRESS_MIN_BYTES (0 = desactivado), BANK_REPLY_COMPRESS_LEVEL y BANK_REPLY_COMPRESS_POOL. */
+    public static Config fromEnv(Map<String, String> env) {
+      Config d = defaults();
+      return new Config(
+          Integer.parseInt(env.getOrDefault("BANK_REPLY_COMPRESS_MIN_BYTES", String.valueOf(d.minBytes()))),
+          Integer.parseInt(env.getOrDefault("BANK_REPLY_COMPRESS_LEVEL", String.valueOf(d.level()))),
+          Integer.parseInt(env.getOrDefault("BANK_REPLY_COMPRESS_POOL", String.valueOf(d.poolSize()))));
+    }
+  }
+
+  /** Cuerpo a publicar y su content_encoding (null si va sin comprimir). */
+  public record Encoded(byte[] body, String contentEncoding) {
+  }
+
+  private final Config cfg;
+  /** gzip usa deflate crudo (cabecera y CRC propios); "deflate" es el formato zlib. */
+  private final BlockingQueue<Deflater> rawPool;
+  private final BlockingQueue<Deflater> zlibPool;
+  private final LongAdder compressed = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  public ReplyCompression(Config cfg) {
+    this.cfg = cfg;
+    int size = Math.max(1, cfg.poolSize());
+    this.rawPool = new ArrayBlockingQueue<>(size);
+    this.zlibPool = new ArrayBlockingQueue<>(size);
+  }
+
+  /**
+   * Comprime {@code body} si la petición lo aceptó y supera el umbral; si no (o si comprimido
+   * no resulta más chico) lo devuelve tal cual.
+   */
+  public Encoded encode(byte[] body, Map<String, Object> requestHeaders) {
+    if (cfg.minBytes() <= 0 || body.length < cfg.minBytes() || requestHeaders == null) return new Encoded(body, null);
+    String encoding = negotiate(requestHeaders.get(ACCEPT_HEADER));
+    if (encoding == null) return new Encoded(body, null);
+    byte[] out = GZIP.equals(encoding) ? gzip(body) : deflate(body, zlibPool, false);
+    if (out.length >= body.length) return new Encoded(body, null);
+    compressed.increment();
+    bytesIn.add(body.length);
+    bytesOut.add(out.length);
+    return new Encoded(out, encoding);
+  }
+
+  /**
+   * Codificación soportada con mayor {@code q} (RFC 9110: sin q vale 1, q=0 la rechaza; a
+   * igual q gana la que aparece primero); null si ninguna.
+   */
+  static String negotiate(Object header) {
+    if (header == null) return null;
+    String best = null;
+    double bestQ = 0;
+    for (String part : header.toString().split(",")) {
+      String[] params = part.split(";");
+      String enc = params[0].trim().toLowerCase(Locale.ROOT);
+      if (!enc.equals(GZIP) && !enc.equals(DEFLATE)) continue;
+      double q = quality(params);
+      if (q > bestQ) {
+        best = enc;
+        bestQ = q;
+      }
+    }
+    return best;
+  }
+
+  /** Valor de {@code q} de los parámetros (1 si falta); 0 si está mal formado. */
+  private static double quality(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String p = params[i].trim();
+      if (p.length() < 2 || Character.toLowerCase(p.charAt(0)) != 'q' || p.charAt(1) != '=') continue;
+      try {
+        double q = Double.parseDouble(p.substring(2).trim());
+        return q >= 0 && q <= 1 ? q : 0;
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 1;
+  }
+
+  public long compressed() {
+    return compressed.sum();
+  }
+
+  public long bytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long bytesOut() {
+    return bytesOut.sum();
+  }
+
+  private byte[] gzip(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+    // Cabecera mínima (RFC 1952): magic, CM=8 (deflate), sin flags, mtime 0, XFL 0, OS desconocido
+    writeShort(out, GZIP_MAGIC);
+    out.write(Deflater.DEFLATED);
+    out.write(0);
+    writeInt(out, 0);
+    out.write(0);
+    out.write(0xff);
+    out.writeBytes(deflate(body, rawPool, true));
+    writeInt(out, (int) crc.getValue());
+    writeInt(out, body.length);
+    return out.toByteArray();
+  }
+
+  private byte[] deflate(byte[] body, BlockingQueue<Deflater> pool, boolean raw) {
+    Deflater d = pool.poll();
+    if (d == null) d = new Deflater(cfg.level(), raw);
+    try {
+      d.setInput(body);
+      d.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 16);
+      byte[] buf = new byte[8192];
+      while (!d.finished()) {
+        int n = d.deflate(buf);
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      d.reset();
+      if (!pool.offer(d)) d.end();
+    }
+  }
+
+  /** Little-endian, como exige gzip. */
+  private static void writeShort(ByteArrayOutputStream out, int v) {
+    out.write(v & 0xff);
+    out.write((v >>> 8) & 0xff);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    writeShort(out, v & 0xffff);
+    writeShort(out, (v >>> 16) & 0xffff);
+  }
+}
@@ -0,0 +1,263 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Entrada directa por TCP, sin broker: para llamadores internos sensibles a la latencia (dos
+ * saltos menos por petición). Cada petición entra por {@link Rabbit#submit}, así que pasa por
+ * los mismos plazos, carriles, cupo de escritura y descarte por carga que las del broker, con
+ * el mismo sobre de respuesta e idempotencia por messageId. Es canal público: las operaciones
+ * internas responden INTERNAL_OPERATION. En cluster solo sirve las claves de sus shards locales
+ * (las demás responden SHARD_NOT_LOCAL).
+ *
+ * <p>Protocolo: tramas con prefijo de longitud (ver {@link Frame}). Las conexiones son
+ * persistentes y admiten pipelining: el cliente puede enviar varias peticiones sin esperar
+ * (hasta {@code maxInFlight} por conexión); se ejecutan en los carriles y las respuestas salen
+ * en el orden de las peticiones.
+ *
+ * <p>Hilos de plataforma: uno para aceptar y dos por conexión (lector y escritor), con hasta
+ * {@code maxConnections} conexiones; las demás esperan en el backlog del socket. Escucha en
+ * {@code host} (por defecto solo loopback).
+ */
+public final class TcpFrontEnd implements AutoCloseable {
+
+  /** {@code port} 0: puerto libre cualquiera (ver {@link #port()}). */
+  public record Config(String host, int port, int maxInFlight, int maxFrameBytes, int maxConnections) {
+
+    public static Config defaults() {
+      return new Config("127.0.0.1", 7070, 64, 1 << 20, 64);
+    }
+
+    /**
+     * BANK_TCP_PORT (sin definir = sin entrada TCP: devuelve null), BANK_TCP_HOST (127.0.0.1;
+     * "0.0.0.0" para todas las interfaces), BANK_TCP_MAX_IN_FLIGHT, BANK_TCP_MAX_FRAME_BYTES y
+     * BANK_TCP_MAX_CONNECTIONS.
+     */
+    public static Config fromEnv(Map<String, String> env) {
+      String port = env.get("BANK_TCP_PORT");
+      if (port == null || port.isBlank()) return null;
+      Config d = defaults();
+      return new Config(env.getOrDefault("BANK_TCP_HOST", d.host()).trim(), Integer.parseInt(port.trim()),
+          Integer.parseInt(env.getOrDefault("BANK_TCP_MAX_IN_FLIGHT", String.valueOf(d.maxInFlight()))),
+          Integer.parseInt(env.getOrDefault("BANK_TCP_MAX_FRAME_BYTES", String.valueOf(d.maxFrameBytes()))),
+          Integer.parseInt(env.getOrDefault("BANK_TCP_MAX_CONNECTIONS", String.valueOf(d.maxConnections()))));
+    }
+  }
+
+  /**
+   * Trama de petición o respuesta: longitud (int32, big-endian, lo que sigue), formato (1 byte:
+   * ordinal de {@link WireFormat}, 0 = JSON), longitud del correlationId (uint16), el
+   * correlationId en UTF-8 y el cuerpo. La respuesta repite formato y correlationId; si la
+   * petición no trae correlationId se usa "tcp-{conexión}-{n}".
+   */
+  public record Frame(WireFormat format, String correlationId, byte[] body) {
+
+    private static final int HEADER = 3;
+
+    /** Siguiente trama; null si el otro extremo cerró entre tramas. */
+    public static Frame read(DataInputStream in, int maxFrameBytes) throws IOException {
+      int len;
+      try {
+        len = in.readInt();
+      } catch (EOFException e) {
+        return null;
+      }
+      if (len < HEADER || len > maxFrameBytes) throw new IOException("BAD_FRAME_LENGTH: " + len);
+      int fmt = in.readUnsignedByte();
+      if (fmt >= WireFormat.values().length) throw new IOException("BAD_FRAME_FORMAT: " + fmt);
+      int idLen = in.readUnsignedShort();
+      if (idLen > len - HEADER) throw new IOException("BAD_FRAME_ID_LENGTH: " + idLen);
+      byte[] id = new byte[idLen];
+      in.readFully(id);
+      byte[] body = new byte[len - HEADER - idLen];
+      in.readFully(body);
+      return new Frame(WireFormat.values()[fmt], idLen == 0 ? null : new String(id, StandardCharsets.UTF_8), body);
+    }
+
+    /** Escribe la trama (sin flush). */
+    public void write(DataOutputStream out) throws IOException {
+      byte[] id = correlationId == null ? new byte[0] : correlationId.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(HEADER + id.length + body.length);
+      out.writeByte(format.ordinal());
+      out.writeShort(id.length);
+      out.write(id);
+      out.write(body);
+    }
+  }
+
+  /** Marca de fin para el escritor de una conexión. */
+  private static final Future<Frame> END = CompletableFuture.completedFuture(null);
+
+  private final Rabbit rabbit;
+  private final BankService bank;
+  private final Config cfg;
+  private final ServerSocket server;
+  private final ExecutorService threads;
+  private final Semaphore slots;
+  private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+  private final AtomicLong connections = new AtomicLong();
+  private final LongAdder requests = new LongAdder();
+
+  /**
+   * Abre el puerto; empieza a aceptar conexiones con {@link #start}, después de
+   * {@link Rabbit#serve} ({@code rabbit} pone los carriles y el descarte).
+   */
+  public TcpFrontEnd(Rabbit rabbit, BankService bank, Config cfg) throws IOException {
+    this.rabbit = rabbit;
+    this.bank = bank;
+    this.cfg = cfg;
+    int maxConnections = Math.max(1, cfg.maxConnections());
+    this.slots = new Semaphore(maxConnections);
+    AtomicInteger n = new AtomicInteger();
+    this.threads = Executors.newFixedThreadPool(1 + 2 * maxConnections, r -> {
+      Thread t = new Thread(r, "tcp-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    this.server = new ServerSocket();
+    server.setReuseAddress(true);
+    server.bind(new InetSocketAddress(cfg.host(), cfg.port()));
+  }
+
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  public long connections() {
+    return connections.get();
+  }
+
+  public long requests() {
+    return requests.sum();
+  }
+
+  public void start() {
+    threads.submit(this::acceptLoop);
+    System.out.printf(" [*] TCP front end on %s:%d (maxInFlight=%d, maxConnections=%d)%n",
+        cfg.host(), port(), cfg.maxInFlight(), cfg.maxConnections());
+  }
+
+  /** Acepta solo con un cupo de conexión libre; sin cupo, los clientes esperan en el backlog. */
+  private void acceptLoop() {
+    while (!server.isClosed()) {
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        Socket s = server.accept();
+        s.setTcpNoDelay(true);
+        open.add(s);
+        threads.submit(() -> serve(s));
+      } catch (IOException e) {
+        slots.release();
+        if (!server.isClosed()) System.err.println("[WARN] TCP accept: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Lector de la conexión: cada trama pasa a los carriles ({@link Rabbit#submit}) y su respuesta
+   * futura a la cola {@code pending}, que el escritor vacía en orden. La cola acotada frena al
+   * lector (y, por TCP, al cliente) si hay {@code maxInFlight} respuestas sin enviar.
+   */
+  private void serve(Socket s) {
+    long conn = connections.incrementAndGet();
+    BlockingQueue<Future<Frame>> pending = new ArrayBlockingQueue<>(Math.max(1, cfg.maxInFlight()));
+    Future<?> writer = threads.submit(() -> writeReplies(s, pending));
+    long seq = 0;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      Frame req;
+      while ((req = Frame.read(in, cfg.maxFrameBytes())) != null) {
+        Frame r = req;
+        String corrId = r.correlationId() != null ? r.correlationId() : "tcp-" + conn + "-" + (++seq);
+        requests.increment();
+        CompletableFuture<Frame> reply = new CompletableFuture<>();
+        rabbit.submit(bank, new Transport.Message(corrId, null, r.format().contentType(), null, r.body()),
+            body -> reply.complete(new Frame(r.format(), corrId, body)));
+        while (!pending.offer(reply, 100, TimeUnit.MILLISECONDS)) {
+          if (writer.isDone()) return;
+        }
+      }
+    } catch (IOException e) {
+      if (!s.isClosed()) System.err.printf("[WARN] TCP conexión %d: %s%n", conn, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      finish(s, writer, pending);
+    }
+  }
+
+  /** Cierre de la conexión: espera a que salga lo ya leído y cierra el socket. */
+  private void finish(Socket s, Future<?> writer, BlockingQueue<Future<Frame>> pending) {
+    try {
+      while (!writer.isDone() && !pending.offer(END, 100, TimeUnit.MILLISECONDS)) {
+        // el escritor sigue vaciando la cola
+      }
+      writer.get();
+    } catch (Exception ignored) {
+    } finally {
+      close(s);
+      slots.release();
+    }
+  }
+
+  /** Respuestas en orden de llegada; flush solo cuando no hay otra lista (agrupa las del pipeline). */
+  private void writeReplies(Socket s, BlockingQueue<Future<Frame>> pending) {
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      for (Future<Frame> next = pending.take(); next != END; next = pending.take()) {
+        next.get().write(out);
+        Future<Frame> peek = pending.peek();
+        if (peek == null || peek == END || !peek.isDone()) out.flush();
+      }
+      out.flush();
+    } catch (Exception e) {
+      // El cliente se fue: se cierra para que el lector también termine
+      close(s);
+    }
+  }
+
+  private void close(Socket s) {
+    open.remove(s);
+    try {
+      s.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    for (Socket s : open) close(s);
+    threads.shutdownNow();
+  }
+}
@@ -0,0 +1,83 @@
+package cc4p1.bank.mq;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Abstracción mínima del broker usada por {@link Rabbit}: exchanges directos,
+ * colas, reply-to, correlation id, ack manual y prefetch. Implementaciones:
+ * {@link AmqpTransport} (RabbitMQ real) e {@link InMemoryBroker} (en la misma JVM,
+ * para pruebas de carga sin infraestructura).
+ */
+public interface Transport extends AutoCloseable {
+
+  /** Declara un exchange directo durable (idempotente). */
+  void declareExchange(String exchange) throws Exception;
+
+  /** Declara una cola con nombre (idempotente). */
+  void declareQueue(String queue, boolean durable) throws Exception;
+
+  /** Declara una cola temporal exclusiva con nombre generado por el broker. */
+  String declareTempQueue() throws Exception;
+
+  void bind(String queue, String exchange, String routingKey) throws Exception;
+
+  /** Publica en un exchange; "" es el exchange por defecto (routingKey = nombre de cola). */
+  void publish(String exchange, String routingKey, Message message) throws Exception;
+
+  /**
+   * Publica un lote en orden y espera a que el broker confirme todos sus mensajes
+   * (publisher confirms). Lanza excepción si alguno es rechazado o no se confirma dentro de
+   * {@code timeoutMillis}; en ese caso parte del lote pudo haberse entregado igual.
+   */
+  void publishConfirmed(String exchange, List<Outgoing> batch, long timeoutMillis) throws Exception;
+
+  /**
+   * Registra un consumidor con ack manual y como máximo {@code prefetch} entregas sin confirmar.
+   * @return consumer tag para {@link #cancel(String)}
+   */
+  String consume(String queue, int prefetch, Consumer consumer) throws Exception;
+
+  void cancel(String consumerTag) throws Exception;
+
+  /**
+   * Propiedades AMQP relevantes para el banco + cuerpo. {@code timestamp} (epoch ms) y
+   * {@code expiration} (TTL en ms, como texto) son opcionales y sirven para calcular el
+   * plazo de la petición. {@code contentEncoding}: compresión del cuerpo ("gzip", "deflate")
+   * o null.
+   */
+  record Message(String correlationId, String replyTo, String contentType,
+      Map<String, Object> headers, byte[] body, Long timestamp, String expiration, String contentEncoding) {
+
+    public Message(String correlationId, String replyTo, String contentType, Map<String, Object> headers,
+        byte[] body, Long timestamp, String expiration) {
+      this(correlationId, replyTo, contentType, headers, body, timestamp, expiration, null);
+    }
+
+    public Message(String correlationId, String replyTo, String contentType, Map<String, Object> headers,
+        byte[] body) {
+      this(correlationId, replyTo, contentType, headers, body, null, null, null);
+    }
+
+    public static Message of(String correlationId, String replyTo, byte[] body) {
+      return new Message(correlationId, replyTo, "application/json", null, body);
+    }
+  }
+
+  /** Mensaje con su routing key, para {@link #publishConfirmed}. */
+  record Outgoing(String routingKey, Message message) {
+  }
+
+  interface Delivery {
+    Message message();
+
+    void ack() throws Exception;
+
+    void nack(boolean requeue) throws Exception;
+  }
+
+  @FunctionalInterface
+  interface Consumer {
+    void handle(Delivery delivery) throws Exception;
+  }
+}
@@ -4,11 +4,45 @@ import cc4p1.bank.domain.Cuenta;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class AccountRepo {
 
+  private static final String SELECT_CUENTA = """
+      SELECT c.id_cuenta, c.id_cliente, c.saldo, c.fecha_apertura
+        FROM CUENTAS c
+      """;
+
+  /**
+   * Saldo visible de una cuenta caliente = CUENTAS.saldo + suma de sub-saldos. Solo se usa
+   * para las cuentas de {@link #striped}: el resto no paga la subconsulta.
+   */
+  private static final String SELECT_CUENTA_STRIPED = """
+      SELECT c.id_cuenta, c.id_cliente,
+             c.saldo + COALESCE((SELECT SUM(s.saldo) FROM CUENTA_SUBSALDOS s WHERE s.id_cuenta = c.id_cuenta), 0) AS saldo,
+             c.fecha_apertura
+        FROM CUENTAS c
+      """;
+
+  /** Subconsulta escalar con el saldo de una cuenta sin sub-saldos (un parámetro: id_cuenta). */
+  static final String SALDO_BASE = "(SELECT saldo FROM CUENTAS WHERE id_cuenta = ?)";
+
+  /** Como {@link #SALDO_BASE}, sumando los sub-saldos de una cuenta caliente. */
+  static final String SALDO_ACTUAL = """
+      (SELECT c.saldo + COALESCE((SELECT SUM(s.saldo) FROM CUENTA_SUBSALDOS s WHERE s.id_cuenta = c.id_cuenta), 0)
+         FROM CUENTAS c WHERE c.id_cuenta = ?)""";
+
+  /**
+   * Cuentas con sub-saldos repartidos: id_cuenta → número de slots. Decide tanto las escrituras
+   * como si las lecturas suman CUENTA_SUBSALDOS, así que hay que cargarlo con
+   * {@link #loadStriping} antes de atender peticiones.
+   */
+  private final Map<String, Integer> striped = new ConcurrentHashMap<>();
+
   public Cuenta findById(Connection c, String accountId) throws SQLException {
-    String sql = "SELECT * FROM CUENTAS WHERE id_cuenta=?";
+    String sql = (isStriped(accountId) ? SELECT_CUENTA_STRIPED : SELECT_CUENTA) + " WHERE c.id_cuenta=?";
     try (PreparedStatement ps = c.prepareStatement(sql)) {
       ps.setString(1, accountId);
       try (ResultSet rs = ps.executeQuery()) {
@@ -35,35 +69,178 @@ public class AccountRepo {
     }
   }
 
-  /** Fails if new balance would be negative. */
+  /**
+   * Fails if new balance would be negative. La verificación de saldo va en el propio
+   * UPDATE (no leer-y-luego-escribir) para que dos escritores concurrentes no puedan
+   * dejar la cuenta en negativo. Cada cambio de CUENTAS sube {@code version}.
+   */
   public void changeBalance(Connection c, String accountId, BigDecimal delta) throws SQLException {
-    // First, check if account exists
-    Cuenta account = findById(c, accountId);
-    if (account == null) {
-      throw new SQLException("ACCOUNT_NOT_FOUND");
+    Integer slots = striped.get(accountId);
+    if (slots != null) {
+      changeStripedBalance(c, accountId, slots, delta);
+      return;
     }
-    
-    // Then check if balance would be sufficient
-    if (account.saldo().add(delta).compareTo(BigDecimal.ZERO) < 0) {
-      throw new SQLException("INSUFFICIENT_FUNDS");
+    if (updateBase(c, accountId, delta)) return;
+    // Ninguna fila actualizada: distinguir cuenta inexistente de fondos insuficientes
+    if (findById(c, accountId) == null) {
+      throw new SQLException("ACCOUNT_NOT_FOUND");
     }
-    
-    // Perform the update
+    throw new SQLException("INSUFFICIENT_FUNDS");
+  }
+
+  private boolean updateBase(Connection c, String accountId, BigDecimal delta) throws SQLException {
     String sql = """
       UPDATE CUENTAS
-         SET saldo = saldo + ?
+         SET saldo = saldo + ?, version = version + 1
        WHERE id_cuenta = ?
+         AND saldo + ? >= 0
       """;
     try (PreparedStatement ps = c.prepareStatement(sql)) {
       ps.setBigDecimal(1, delta);
       ps.setString(2, accountId);
+      ps.setBigDecimal(3, delta);
+      return ps.executeUpdate() == 1;
+    }
+  }
+
+  /* ===== Cuentas calientes: sub-saldos repartidos ===== */
+
+  /**
+   * Créditos: van a un slot al azar; en CUENTAS solo se sube {@code version}.
+   * Débitos: primero la base; luego el primer slot con saldo suficiente (empezando en uno
+   * al azar); si ninguno alcanza, se consolidan todos los slots en la base y se reintenta.
+   */
+  private void changeStripedBalance(Connection c, String accountId, int slots, BigDecimal delta) throws SQLException {
+    int start = ThreadLocalRandom.current().nextInt(slots);
+    if (delta.signum() >= 0) {
+      try (PreparedStatement ps = c.prepareStatement(
+          "UPDATE CUENTA_SUBSALDOS SET saldo = saldo + ? WHERE id_cuenta=? AND slot=?")) {
+        ps.setBigDecimal(1, delta);
+        ps.setString(2, accountId);
+        ps.setInt(3, start);
+        if (ps.executeUpdate() == 1) {
+          bumpVersion(c, accountId);
+          return;
+        }
+      }
+      throw new SQLException("ACCOUNT_NOT_FOUND");
+    }
+    if (updateBase(c, accountId, delta)) return;
+
+    BigDecimal amount = delta.negate();
+    try (PreparedStatement ps = c.prepareStatement("""
+        UPDATE CUENTA_SUBSALDOS SET saldo = saldo - ?
+         WHERE id_cuenta = ?
+           AND slot = (SELECT slot FROM CUENTA_SUBSALDOS
+                        WHERE id_cuenta = ? AND saldo >= ?
+                        ORDER BY (slot - ? + ?) % ? LIMIT 1)
+        """)) {
+      ps.setBigDecimal(1, amount);
+      ps.setString(2, accountId);
+      ps.setString(3, accountId);
+      ps.setBigDecimal(4, amount);
+      ps.setInt(5, start);
+      ps.setInt(6, slots);
+      ps.setInt(7, slots);
+      if (ps.executeUpdate() == 1) {
+        bumpVersion(c, accountId);
+        return;
+      }
+    }
+
+    consolidate(c, accountId);
+    if (updateBase(c, accountId, delta)) return;
+    if (findById(c, accountId) == null) {
+      throw new SQLException("ACCOUNT_NOT_FOUND");
+    }
+    throw new SQLException("INSUFFICIENT_FUNDS");
+  }
+
+  private static void bumpVersion(Connection c, String accountId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("UPDATE CUENTAS SET version = version + 1 WHERE id_cuenta = ?")) {
+      ps.setString(1, accountId);
       ps.executeUpdate();
     }
   }
 
+  /** Mueve todos los sub-saldos de la cuenta a CUENTAS.saldo (dentro de la transacción actual). */
+  public void consolidate(Connection c, String accountId) throws SQLException {
+    try (PreparedStatement up = c.prepareStatement("""
+        UPDATE CUENTAS
+           SET saldo = saldo + (SELECT COALESCE(SUM(saldo), 0) FROM CUENTA_SUBSALDOS WHERE id_cuenta = ?),
+               version = version + 1
+         WHERE id_cuenta = ?
+        """);
+         PreparedStatement zero = c.prepareStatement(
+             "UPDATE CUENTA_SUBSALDOS SET saldo = 0 WHERE id_cuenta = ? AND saldo <> 0")) {
+      up.setString(1, accountId);
+      up.setString(2, accountId);
+      up.executeUpdate();
+      zero.setString(1, accountId);
+      zero.executeUpdate();
+    }
+  }
+
+  /**
+   * Marca una cuenta como caliente con {@code slots} sub-saldos. El saldo actual se queda
+   * en la base; los créditos posteriores se reparten entre los slots. Idempotente.
+   */
+  public void enableStriping(Connection c, String accountId, int slots) throws SQLException {
+    if (slots < 1) throw new SQLException("VALIDATION_ERROR: slots must be >= 1");
+    if (findById(c, accountId) == null) throw new SQLException("ACCOUNT_NOT_FOUND");
+    // Cambiar el número de slots: consolidar primero para no dejar saldo en slots huérfanos
+    consolidate(c, accountId);
+    try (PreparedStatement del = c.prepareStatement("DELETE FROM CUENTA_SUBSALDOS WHERE id_cuenta=?");
+         PreparedStatement ins = c.prepareStatement(
+             "INSERT INTO CUENTA_SUBSALDOS(id_cuenta, slot, saldo) VALUES(?,?,0)")) {
+      del.setString(1, accountId);
+      del.executeUpdate();
+      for (int i = 0; i < slots; i++) {
+        ins.setString(1, accountId);
+        ins.setInt(2, i);
+        ins.addBatch();
+      }
+      ins.executeBatch();
+    }
+    striped.put(accountId, slots);
+  }
+
+  /** Consolida los sub-saldos en la base y devuelve la cuenta al modo normal. */
+  public void disableStriping(Connection c, String accountId) throws SQLException {
+    consolidate(c, accountId);
+    try (PreparedStatement ps = c.prepareStatement("DELETE FROM CUENTA_SUBSALDOS WHERE id_cuenta=?")) {
+      ps.setString(1, accountId);
+      ps.executeUpdate();
+    }
+    striped.remove(accountId);
+  }
+
+  /** Carga en memoria qué cuentas tienen sub-saldos (llamar al iniciar, una vez por shard). */
+  public void loadStriping(Connection c) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT id_cuenta, COUNT(*) FROM CUENTA_SUBSALDOS GROUP BY id_cuenta");
+         ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) striped.put(rs.getString(1), rs.getInt(2));
+    }
+  }
+
+  public boolean isStriped(String accountId) {
+    return striped.containsKey(accountId);
+  }
+
+  /** Subconsulta de saldo para {@code accountId}: {@link #SALDO_ACTUAL} solo si es caliente. */
+  String saldoActual(String accountId) {
+    return isStriped(accountId) ? SALDO_ACTUAL : SALDO_BASE;
+  }
+
+  /** Las consultas por cliente no saben de antemano qué cuentas traen: suman sub-saldos si hay alguna caliente. */
+  private String selectByClient() {
+    return striped.isEmpty() ? SELECT_CUENTA : SELECT_CUENTA_STRIPED;
+  }
+
   /** Obtiene la primera cuenta de un cliente (o null si no tiene). */
   public Cuenta findAnyByClient(Connection c, String clientId) throws SQLException {
-    String sql = "SELECT * FROM CUENTAS WHERE id_cliente=? ORDER BY fecha_apertura ASC LIMIT 1";
+    String sql = selectByClient() + " WHERE c.id_cliente=? ORDER BY c.fecha_apertura ASC LIMIT 1";
     try (PreparedStatement ps = c.prepareStatement(sql)) {
       ps.setString(1, clientId);
       try (ResultSet rs = ps.executeQuery()) {
@@ -79,7 +256,7 @@ public class AccountRepo {
 
   /** Obtiene todas las cuentas de un cliente. */
   public java.util.List<Cuenta> findAllByClient(Connection c, String clientId) throws SQLException {
-    String sql = "SELECT * FROM CUENTAS WHERE id_cliente=? ORDER BY fecha_apertura ASC";
+    String sql = selectByClient() + " WHERE c.id_cliente=? ORDER BY c.fecha_apertura ASC";
     java.util.List<Cuenta> accounts = new java.util.ArrayList<>();
     try (PreparedStatement ps = c.prepareStatement(sql)) {
       ps.setString(1, clientId);
@@ -97,4 +274,3 @@ public class AccountRepo {
     return accounts;
   }
 }
-
@@ -6,6 +6,10 @@ import java.time.LocalDateTime;
 
 public class ClientRepo {
 
+  /** Lo necesario para verificar un Login: id del cliente y valor de CLIENTES.password. */
+  public record Credential(String clientId, String dni, String password) {
+  }
+
   public Cliente findById(Connection c, String clientId) throws SQLException {
     String sql = "SELECT * FROM CLIENTES WHERE id_cliente=?";
     try (PreparedStatement ps = c.prepareStatement(sql)) {
@@ -30,7 +34,7 @@ public class ClientRepo {
     throw new UnsupportedOperationException("Use insert(Connection, Cliente, String password)");
   }
 
-  /** Inserta un cliente con contraseña en texto plano (para entorno local). */
+  /** Inserta un cliente; {@code password} es el valor a guardar (hash de Passwords.hash). */
   public void insert(Connection c, Cliente cli, String password) throws SQLException {
     String sql = """
       INSERT INTO CLIENTES(id_cliente,dni,nombres,apellido_pat,apellido_mat,password,direccion,telefono,correo,fecha_registro)
@@ -61,14 +65,16 @@ public class ClientRepo {
     }
   }
 
-  /** Autentica por dni y password; devuelve el cliente si coincide, null si no. */
-  public Cliente authenticate(Connection c, String dni, String password) throws SQLException {
-    String sql = "SELECT * FROM CLIENTES WHERE dni=? AND password=?";
+  /**
+   * Credencial guardada para un DNI, o null. La comparación se hace fuera de SQL
+   * (Passwords.verify), así la conexión no queda abierta durante el PBKDF2.
+   */
+  public Credential findCredential(Connection c, String dni) throws SQLException {
+    String sql = "SELECT id_cliente, dni, password FROM CLIENTES WHERE dni=?";
     try (PreparedStatement ps = c.prepareStatement(sql)) {
       ps.setString(1, dni);
-      ps.setString(2, password);
       try (ResultSet rs = ps.executeQuery()) {
-        return rs.next() ? Cliente.from(rs) : null;
+        return rs.next() ? new Credential(rs.getString(1), rs.getString(2), rs.getString(3)) : null;
       }
     }
   }
@@ -2,12 +2,15 @@ package cc4p1.bank.repo;
 
 import cc4p1.bank.domain.EstadoPrestamo;
 import cc4p1.bank.domain.Prestamo;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDate;
 
 public class LoanRepo {
 
+  private final OutboxRepo outbox = new OutboxRepo();
+
   public Prestamo findById(Connection c, String loanId) throws SQLException {
     try (PreparedStatement ps = c.prepareStatement("SELECT * FROM PRESTAMOS WHERE id_prestamo=?")) {
       ps.setString(1, loanId);
@@ -19,7 +22,8 @@ public class LoanRepo {
             rs.getBigDecimal("monto_inicial"),
             rs.getBigDecimal("monto_pendiente"),
             EstadoPrestamo.from(rs.getString("estado")),
-            LocalDate.parse(rs.getString("fecha_solicitud"))) : null;
+            LocalDate.parse(rs.getString("fecha_solicitud")),
+            rs.getLong("version")) : null;
       }
     }
   }
@@ -46,6 +50,13 @@ public class LoanRepo {
     String txId = "TX-" + loanId; // or a UUID
     txRepo.deposit(c, accountRepo, txId, accountId, principal, null);
 
+    outbox.append(c, OutboxRepo.LOAN_CREATED, loanId, JsonNodeFactory.instance.objectNode()
+        .put("loanId", loanId)
+        .put("clientId", clientId)
+        .put("accountId", accountId)
+        .put("principal", principal)
+        .put("txId", txId)
+        .toString());
     return loanId;
   }
 
@@ -55,20 +66,40 @@ public class LoanRepo {
   public Prestamo applyPayment(Connection c, String loanId, BigDecimal amount) throws SQLException {
     Prestamo p = findById(c, loanId);
     if (p == null) throw new SQLException("LOAN_NOT_FOUND");
+    return applyPayment(c, p, amount);
+  }
+
+  /**
+   * Igual, sobre un préstamo ya leído (quizá en otra transacción): el UPDATE solo se aplica
+   * si la fila sigue en {@code p.version()}; si otro pago la cambió entre medio, lanza
+   * VERSION_CONFLICT y quien llama vuelve a leer (ver OptimisticRetry).
+   */
+  public Prestamo applyPayment(Connection c, Prestamo p, BigDecimal amount) throws SQLException {
     if (amount == null || amount.signum() <= 0) throw new SQLException("VALIDATION_ERROR: amount must be > 0");
     if (amount.compareTo(p.montoPendiente()) > 0) throw new SQLException("OVERPAYMENT");
+    String loanId = p.idPrestamo();
 
     BigDecimal newPending = p.montoPendiente().subtract(amount);
     String newEstado = newPending.compareTo(BigDecimal.ZERO) == 0 ? "pagado" : p.estado().toString();
 
     try (PreparedStatement ps = c.prepareStatement(
-        "UPDATE PRESTAMOS SET monto_pendiente=?, estado=? WHERE id_prestamo=?")) {
+        "UPDATE PRESTAMOS SET monto_pendiente=?, estado=?, version=version+1 WHERE id_prestamo=? AND version=?")) {
       ps.setBigDecimal(1, newPending);
       ps.setString(2, newEstado);
       ps.setString(3, loanId);
-      ps.executeUpdate();
+      ps.setLong(4, p.version());
+      if (ps.executeUpdate() == 0) {
+        throw new SQLException(findById(c, loanId) == null ? "LOAN_NOT_FOUND" : "VERSION_CONFLICT");
+      }
     }
 
+    outbox.append(c, OutboxRepo.LOAN_PAID, loanId, JsonNodeFactory.instance.objectNode()
+        .put("loanId", loanId)
+        .put("amount", amount)
+        .put("pending", newPending)
+        .put("status", newEstado)
+        .toString());
+
     // Return updated entity
     return findById(c, loanId);
   }
@@ -101,7 +132,8 @@ public class LoanRepo {
               rs.getBigDecimal("monto_inicial"),
               rs.getBigDecimal("monto_pendiente"),
               EstadoPrestamo.from(rs.getString("estado")),
-              LocalDate.parse(rs.getString("fecha_solicitud"))));
+              LocalDate.parse(rs.getString("fecha_solicitud")),
+              rs.getLong("version")));
         }
         return loans;
       }
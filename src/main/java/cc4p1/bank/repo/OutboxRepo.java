@@ -0,0 +1,94 @@
+package cc4p1.bank.repo;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outbox de eventos de dominio (EVENTOS_SALIDA). Los repos escriben aquí dentro de la
+ * transacción del llamador, así el evento existe si y solo si el cambio se confirmó;
+ * {@link cc4p1.bank.jobs.OutboxRelay} los publica después, fuera del camino de la petición.
+ */
+public class OutboxRepo {
+
+  public static final String TRANSACTION_POSTED = "TransactionPosted";
+  public static final String LOAN_CREATED = "LoanCreated";
+  public static final String LOAN_PAID = "LoanPaid";
+
+  /** Evento pendiente de publicar; {@code payload} es JSON. */
+  public record Event(long id, String tipo, String agregado, String payload, String fecha) {
+  }
+
+  /** TransactionPosted armado en SQL desde la fila ya insertada (incluye saldo_posterior). */
+  private static final String TX_EVENT = """
+      INSERT INTO EVENTOS_SALIDA(tipo, agregado, payload, fecha)
+      SELECT '%s', id_cuenta,
+             json_object('txId', id_transaccion, 'transferId', id_transferencia, 'accountId', id_cuenta,
+                         'destAccountId', id_cuenta_destino, 'type', tipo, 'amount', monto,
+                         'balanceAfter', saldo_posterior, 'sequence', secuencia, 'timestamp', fecha,
+                         'metadata', json(metadata)),
+             fecha
+        FROM TRANSACCIONES
+      """.formatted(TRANSACTION_POSTED);
+
+  public void append(Connection c, String tipo, String agregado, String payloadJson) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "INSERT INTO EVENTOS_SALIDA(tipo, agregado, payload) VALUES(?,?,?)")) {
+      ps.setString(1, tipo);
+      ps.setString(2, agregado);
+      ps.setString(3, payloadJson);
+      ps.executeUpdate();
+    }
+  }
+
+  /** TransactionPosted de la última fila insertada en esta conexión. */
+  void transactionPosted(Connection c) throws SQLException {
+    try (Statement s = c.createStatement()) {
+      s.executeUpdate(TX_EVENT + " WHERE rowid = last_insert_rowid()");
+    }
+  }
+
+  /** TransactionPosted de varias filas, en el orden en que se insertaron. */
+  void transactionsPosted(Connection c, List<String> txIds) throws SQLException {
+    if (txIds.isEmpty()) return;
+    String marks = String.join(",", java.util.Collections.nCopies(txIds.size(), "?"));
+    try (PreparedStatement ps = c.prepareStatement(TX_EVENT + " WHERE id_transaccion IN (" + marks + ") ORDER BY rowid")) {
+      for (int i = 0; i < txIds.size(); i++) ps.setString(i + 1, txIds.get(i));
+      ps.executeUpdate();
+    }
+  }
+
+  public List<Event> after(Connection c, long id, int limit) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT id, tipo, agregado, payload, fecha FROM EVENTOS_SALIDA WHERE id > ? ORDER BY id LIMIT ?")) {
+      ps.setLong(1, id);
+      ps.setInt(2, limit);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<Event> out = new ArrayList<>();
+        while (rs.next()) {
+          out.add(new Event(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+        }
+        return out;
+      }
+    }
+  }
+
+  /** Último id confirmado por el broker (0 si nunca se publicó nada). */
+  public long cursor(Connection c) throws SQLException {
+    try (Statement s = c.createStatement();
+         ResultSet rs = s.executeQuery("SELECT COALESCE((SELECT ultimo_id FROM EVENTOS_CURSOR WHERE id = 1), 0)")) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  /** Avanza la marca de agua; nunca retrocede. */
+  public void advance(Connection c, long id) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        INSERT INTO EVENTOS_CURSOR(id, ultimo_id, fecha) VALUES(1, ?, datetime('now'))
+        ON CONFLICT(id) DO UPDATE SET ultimo_id = MAX(ultimo_id, excluded.ultimo_id), fecha = excluded.fecha
+        """)) {
+      ps.setLong(1, id);
+      ps.executeUpdate();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package cc4p1.bank.repo;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ORDENES_PROGRAMADAS: transferencias programadas y órdenes permanentes. Vive en el shard de
+ * la cuenta origen. Solo se leen las activas que vencen pronto (índice parcial por proxima).
+ */
+public class ScheduleRepo {
+
+  /**
+   * Una orden. {@code nextAt}: epoch ms de la ocurrencia {@code occurrence} (0, 1, ...);
+   * {@code intervalSeconds} null = una sola vez; {@code remaining} null = sin límite.
+   */
+  public record Order(String orderId, String fromAccountId, String toAccountId, BigDecimal amount,
+      String metadataJson, long nextAt, Long intervalSeconds, Integer remaining, long occurrence,
+      String estado, int failures, String lastError) {
+
+    public boolean active() {
+      return "activa".equals(estado);
+    }
+  }
+
+  private static final String COLUMNS = """
+      id_orden, id_cuenta_origen, id_cuenta_destino, monto, metadata, proxima, intervalo_seg,
+      restantes, ocurrencia, estado, fallos, ultimo_error
+      """;
+
+  public void insert(Connection c, Order o) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        INSERT INTO ORDENES_PROGRAMADAS(id_orden, id_cuenta_origen, id_cuenta_destino, monto, metadata,
+                                        proxima, intervalo_seg, restantes)
+        VALUES(?,?,?,?,?,?,?,?)
+        """)) {
+      ps.setString(1, o.orderId());
+      ps.setString(2, o.fromAccountId());
+      ps.setString(3, o.toAccountId());
+      ps.setBigDecimal(4, o.amount());
+      ps.setString(5, o.metadataJson());
+      ps.setLong(6, o.nextAt());
+      ps.setObject(7, o.intervalSeconds());
+      ps.setObject(8, o.remaining());
+      ps.executeUpdate();
+    }
+  }
+
+  public Order find(Connection c, String orderId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("SELECT " + COLUMNS + " FROM ORDENES_PROGRAMADAS WHERE id_orden = ?")) {
+      ps.setString(1, orderId);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? map(rs) : null;
+      }
+    }
+  }
+
+  /**
+   * Activas con {@code afterAt < proxima <= untilAt}, o {@code proxima = afterAt} e id mayor que
+   * {@code afterId} (paginación por clave), en orden de (proxima, id).
+   */
+  public List<Order> due(Connection c, long afterAt, String afterId, long untilAt, int limit) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("SELECT " + COLUMNS + """
+         FROM ORDENES_PROGRAMADAS
+         WHERE estado = 'activa' AND proxima <= ?
+           AND (proxima > ? OR (proxima = ? AND id_orden > ?))
+         ORDER BY proxima, id_orden
+         LIMIT ?
+        """)) {
+      ps.setLong(1, untilAt);
+      ps.setLong(2, afterAt);
+      ps.setLong(3, afterAt);
+      ps.setString(4, afterId);
+      ps.setInt(5, limit);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<Order> out = new ArrayList<>();
+        while (rs.next()) out.add(map(rs));
+        return out;
+      }
+    }
+  }
+
+  /** Órdenes de una cuenta origen, las activas primero y por próxima ejecución. */
+  public List<Order> byAccount(Connection c, String accountId, int limit) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("SELECT " + COLUMNS + """
+         FROM ORDENES_PROGRAMADAS
+         WHERE id_cuenta_origen = ?
+         ORDER BY estado <> 'activa', proxima
+         LIMIT ?
+        """)) {
+      ps.setString(1, accountId);
+      ps.setInt(2, limit);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<Order> out = new ArrayList<>();
+        while (rs.next()) out.add(map(rs));
+        return out;
+      }
+    }
+  }
+
+  /**
+   * Pasa a la siguiente ocurrencia (o termina la orden) después de ejecutar la actual;
+   * {@code error} no nulo cuenta un fallo. Devuelve la orden actualizada.
+   */
+  public Order advance(Connection c, Order o, String error) throws SQLException {
+    Integer remaining = o.remaining() == null ? null : o.remaining() - 1;
+    boolean done = o.intervalSeconds() == null || (remaining != null && remaining <= 0);
+    long nextAt = done ? o.nextAt() : o.nextAt() + o.intervalSeconds() * 1000;
+    String estado = done ? "terminada" : "activa";
+    int failures = o.failures() + (error == null ? 0 : 1);
+    String lastError = error == null ? o.lastError() : error;
+    try (PreparedStatement ps = c.prepareStatement("""
+        UPDATE ORDENES_PROGRAMADAS
+           SET proxima = ?, restantes = ?, ocurrencia = ocurrencia + 1, estado = ?, fallos = ?, ultimo_error = ?
+         WHERE id_orden = ? AND ocurrencia = ? AND estado = 'activa'
+        """)) {
+      ps.setLong(1, nextAt);
+      ps.setObject(2, remaining);
+      ps.setString(3, estado);
+      ps.setInt(4, failures);
+      ps.setString(5, lastError);
+      ps.setString(6, o.orderId());
+      ps.setLong(7, o.occurrence());
+      if (ps.executeUpdate() != 1) throw new SQLException("ORDER_CHANGED");
+    }
+    return new Order(o.orderId(), o.fromAccountId(), o.toAccountId(), o.amount(), o.metadataJson(), nextAt,
+        o.intervalSeconds(), remaining, o.occurrence() + 1, estado, failures, lastError);
+  }
+
+  /** Cancela una orden activa de la cuenta; false si no existe, es de otra cuenta o ya terminó. */
+  public boolean cancel(Connection c, String orderId, String fromAccountId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        UPDATE ORDENES_PROGRAMADAS SET estado = 'cancelada'
+         WHERE id_orden = ? AND id_cuenta_origen = ? AND estado = 'activa'
+        """)) {
+      ps.setString(1, orderId);
+      ps.setString(2, fromAccountId);
+      return ps.executeUpdate() == 1;
+    }
+  }
+
+  private static Order map(ResultSet rs) throws SQLException {
+    long interval = rs.getLong(7);
+    Long intervalSeconds = rs.wasNull() ? null : interval;
+    int left = rs.getInt(8);
+    Integer remaining = rs.wasNull() ? null : left;
+    return new Order(rs.getString(1), rs.getString(2), rs.getString(3), rs.getBigDecimal(4), rs.getString(5),
+        rs.getLong(6), intervalSeconds, remaining, rs.getLong(9), rs.getString(10), rs.getInt(11), rs.getString(12));
+  }
+}
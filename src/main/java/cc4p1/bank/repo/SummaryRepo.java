@@ -0,0 +1,103 @@
+package cc4p1.bank.repo;
+
+import cc4p1.bank.domain.TipoTransaccion;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Agregados diarios por cuenta y tipo (CUENTA_RESUMEN_DIARIO). Se mantienen de forma
+ * incremental desde TxRepo en la misma transacción que la fila de TRANSACCIONES.
+ */
+public class SummaryRepo {
+
+  /** Una fila agregada: conteo, suma, mínimo y máximo de montos de un tipo en un día. */
+  public record DailySummary(String accountId, String dia, TipoTransaccion tipo,
+      long cantidad, BigDecimal total, BigDecimal minimo, BigDecimal maximo) {
+  }
+
+  private static final String UPSERT = """
+      INSERT INTO CUENTA_RESUMEN_DIARIO(id_cuenta,dia,tipo,cantidad,total,minimo,maximo)
+      VALUES(?,?,?,?,?,?,?)
+      ON CONFLICT(id_cuenta,dia,tipo) DO UPDATE SET
+        cantidad = cantidad + excluded.cantidad,
+        total    = total + excluded.total,
+        minimo   = MIN(minimo, excluded.minimo),
+        maximo   = MAX(maximo, excluded.maximo)
+      """;
+
+  /** Suma un movimiento (o un agregado parcial) al resumen del día. Conmutativo. */
+  public void add(Connection c, DailySummary s) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(UPSERT)) {
+      bind(ps, s);
+      ps.executeUpdate();
+    }
+  }
+
+  public void addAll(Connection c, List<DailySummary> rows) throws SQLException {
+    if (rows.isEmpty()) return;
+    try (PreparedStatement ps = c.prepareStatement(UPSERT)) {
+      for (DailySummary s : rows) {
+        bind(ps, s);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    }
+  }
+
+  private static void bind(PreparedStatement ps, DailySummary s) throws SQLException {
+    ps.setString(1, s.accountId());
+    ps.setString(2, s.dia());
+    ps.setString(3, s.tipo().toString());
+    ps.setLong(4, s.cantidad());
+    ps.setBigDecimal(5, s.total());
+    ps.setBigDecimal(6, s.minimo());
+    ps.setBigDecimal(7, s.maximo());
+  }
+
+  /** Totales por tipo en el rango de días [from, to] (YYYY-MM-DD, inclusivo). */
+  public List<DailySummary> totalsByType(Connection c, String accountId, String from, String to) throws SQLException {
+    String sql = """
+        SELECT tipo, SUM(cantidad) AS cantidad, SUM(total) AS total, MIN(minimo) AS minimo, MAX(maximo) AS maximo
+          FROM CUENTA_RESUMEN_DIARIO
+         WHERE id_cuenta=? AND dia >= ? AND dia <= ?
+         GROUP BY tipo
+        """;
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      ps.setString(1, accountId);
+      ps.setString(2, from);
+      ps.setString(3, to);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<DailySummary> out = new ArrayList<>();
+        while (rs.next()) {
+          out.add(new DailySummary(accountId, null, TipoTransaccion.from(rs.getString("tipo")),
+              rs.getLong("cantidad"), rs.getBigDecimal("total"), rs.getBigDecimal("minimo"), rs.getBigDecimal("maximo")));
+        }
+        return out;
+      }
+    }
+  }
+
+  /** Filas diarias en el rango [from, to], ordenadas por día. */
+  public List<DailySummary> daily(Connection c, String accountId, String from, String to) throws SQLException {
+    String sql = """
+        SELECT * FROM CUENTA_RESUMEN_DIARIO
+         WHERE id_cuenta=? AND dia >= ? AND dia <= ?
+         ORDER BY dia, tipo
+        """;
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      ps.setString(1, accountId);
+      ps.setString(2, from);
+      ps.setString(3, to);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<DailySummary> out = new ArrayList<>();
+        while (rs.next()) {
+          out.add(new DailySummary(accountId, rs.getString("dia"), TipoTransaccion.from(rs.getString("tipo")),
+              rs.getLong("cantidad"), rs.getBigDecimal("total"), rs.getBigDecimal("minimo"), rs.getBigDecimal("maximo")));
+        }
+        return out;
+      }
+    }
+  }
+}
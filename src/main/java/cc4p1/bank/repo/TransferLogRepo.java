@@ -0,0 +1,94 @@
+package cc4p1.bank.repo;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TRANSFERENCIAS_2PC: registro del coordinador de transferencias entre shards. Vive en el
+ * shard de la cuenta origen y se escribe en la misma transacción que el débito.
+ */
+public class TransferLogRepo {
+
+  public record Pending(String transferId, String fromAccountId, String toAccountId, BigDecimal amount,
+      String metadataJson) {
+  }
+
+  public void prepare(Connection c, String transferId, String from, String to, BigDecimal amount,
+      String metadataJson) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        INSERT INTO TRANSFERENCIAS_2PC(id_transferencia, id_cuenta_origen, id_cuenta_destino, monto, metadata)
+        VALUES(?,?,?,?,?)
+        """)) {
+      ps.setString(1, transferId);
+      ps.setString(2, from);
+      ps.setString(3, to);
+      ps.setBigDecimal(4, amount);
+      ps.setString(5, metadataJson);
+      ps.executeUpdate();
+    }
+  }
+
+  /** Una transferencia del registro con su estado ('preparada', 'confirmada' o 'revertida'). */
+  public record Logged(Pending transfer, String estado) {
+  }
+
+  /** La transferencia {@code transferId} de este shard; null si no está registrada aquí. */
+  public Logged find(Connection c, String transferId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT id_transferencia, id_cuenta_origen, id_cuenta_destino, monto, metadata, estado
+          FROM TRANSFERENCIAS_2PC
+         WHERE id_transferencia = ?
+        """)) {
+      ps.setString(1, transferId);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) return null;
+        return new Logged(new Pending(rs.getString(1), rs.getString(2), rs.getString(3), rs.getBigDecimal(4),
+            rs.getString(5)), rs.getString(6));
+      }
+    }
+  }
+
+  /** Preparadas hace al menos {@code minAgeSeconds} (las más recientes las termina su propio flujo). */
+  public List<Pending> pending(Connection c, int minAgeSeconds, int limit) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT id_transferencia, id_cuenta_origen, id_cuenta_destino, monto, metadata
+          FROM TRANSFERENCIAS_2PC
+         WHERE estado = 'preparada' AND fecha <= datetime('now', ?)
+         ORDER BY fecha
+         LIMIT ?
+        """)) {
+      ps.setString(1, "-" + minAgeSeconds + " seconds");
+      ps.setInt(2, limit);
+      try (ResultSet rs = ps.executeQuery()) {
+        List<Pending> out = new ArrayList<>();
+        while (rs.next()) {
+          out.add(new Pending(rs.getString(1), rs.getString(2), rs.getString(3), rs.getBigDecimal(4), rs.getString(5)));
+        }
+        return out;
+      }
+    }
+  }
+
+  /** Cierra una preparada ('confirmada' o 'revertida'); false si ya estaba cerrada. */
+  public boolean finish(Connection c, String transferId, String estado) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        UPDATE TRANSFERENCIAS_2PC SET estado = ?, fecha_fin = datetime('now')
+         WHERE id_transferencia = ? AND estado = 'preparada'
+        """)) {
+      ps.setString(1, estado);
+      ps.setString(2, transferId);
+      return ps.executeUpdate() == 1;
+    }
+  }
+
+  /** Suma de montos preparados (dinero en tránsito entre shards). */
+  public BigDecimal inFlight(Connection c) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT COALESCE(SUM(monto), 0) FROM TRANSFERENCIAS_2PC WHERE estado = 'preparada'");
+         ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getBigDecimal(1) : BigDecimal.ZERO;
+    }
+  }
+}
@@ -2,14 +2,27 @@ package cc4p1.bank.repo;
 
 import cc4p1.bank.domain.TipoTransaccion;
 import cc4p1.bank.domain.Transaccion;
+import cc4p1.bank.util.TxHash;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TxRepo {
 
+  /** Mismo formato que datetime('now') de SQLite (UTC). */
+  private static final DateTimeFormatter FECHA = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private final SummaryRepo summaries = new SummaryRepo();
+  private final OutboxRepo outbox = new OutboxRepo();
+
   public Transaccion findById(Connection c, String txId) throws SQLException {
     try (PreparedStatement ps = c.prepareStatement("SELECT * FROM TRANSACCIONES WHERE id_transaccion=?")) {
       ps.setString(1, txId);
@@ -55,7 +68,7 @@ public class TxRepo {
     accounts.changeBalance(c, accountId, amount);
 
     // Step 2: register transaction
-  insertTx(c, txId, transferId, accountId, null, null, TipoTransaccion.deposito, amount);
+  insertTx(c, accounts, txId, transferId, accountId, null, null, TipoTransaccion.deposito, amount);
 
     return txId;
   }
@@ -68,7 +81,7 @@ public class TxRepo {
     accounts.changeBalance(c, accountId, amount.negate());
 
     // Step 2: register transaction
-  insertTx(c, txId, transferId, accountId, null, null, TipoTransaccion.retiro, amount);
+  insertTx(c, accounts, txId, transferId, accountId, null, null, TipoTransaccion.retiro, amount);
 
     return txId;
   }
@@ -81,47 +94,288 @@ public class TxRepo {
       String toAccount, BigDecimal amount,
     AccountRepo accounts, String metadataJson) throws SQLException {
     // 1) debit (fails if negative via AccountRepo.changeBalance)
-    accounts.changeBalance(c, fromAccount, amount.negate());
-  insertTx(c, txId, transferId, fromAccount, toAccount, metadataJson, TipoTransaccion.retiro, amount);
+    transferOut(c, accounts, transferId, txId, fromAccount, toAccount, amount, metadataJson);
 
     // 2) credit
-    accounts.changeBalance(c, toAccount, amount);
     // usar un id de transacción distinto para la segunda pata
-    String txId2 = cc4p1.bank.util.Ids.tx();
-  insertTx(c, txId2, transferId, toAccount, toAccount, metadataJson, TipoTransaccion.deposito, amount);
+    transferIn(c, accounts, transferId, cc4p1.bank.util.Ids.tx(), toAccount, amount, metadataJson);
+  }
+
+  /** Pata de salida de una transferencia (en transferencias entre shards, la fase de preparación). */
+  public void transferOut(Connection c, AccountRepo accounts, String transferId, String txId, String fromAccount,
+      String toAccount, BigDecimal amount, String metadataJson) throws SQLException {
+    accounts.changeBalance(c, fromAccount, amount.negate());
+    insertTx(c, accounts, txId, transferId, fromAccount, toAccount, metadataJson, TipoTransaccion.retiro, amount);
+  }
+
+  /** Pata de entrada de una transferencia (o la devolución al origen si se revierte). */
+  public void transferIn(Connection c, AccountRepo accounts, String transferId, String txId, String toAccount,
+      BigDecimal amount, String metadataJson) throws SQLException {
+    accounts.changeBalance(c, toAccount, amount);
+    insertTx(c, accounts, txId, transferId, toAccount, toAccount, metadataJson, TipoTransaccion.deposito, amount);
   }
 
   /**
    * Registers a loan payment: debit from account and create a 'deuda' transaction.
+   * El préstamo queda en metadata ({"loanId":...}) para poder conciliar PRESTAMOS con sus pagos.
    */
-  public String payDebt(Connection c, AccountRepo accounts, String txId, String accountId, BigDecimal amount) throws SQLException {
+  public String payDebt(Connection c, AccountRepo accounts, String txId, String accountId, BigDecimal amount,
+      String loanId) throws SQLException {
     // Debit
     accounts.changeBalance(c, accountId, amount.negate());
     // Log transaction as 'deuda'
-  insertTx(c, txId, null, accountId, null, null, TipoTransaccion.deuda, amount);
+    String metadata = loanId == null ? null : JsonNodeFactory.instance.objectNode().put("loanId", loanId).toString();
+  insertTx(c, accounts, txId, null, accountId, null, metadata, TipoTransaccion.deuda, amount);
     return txId;
   }
 
+  /** Fila a insertar en TRANSACCIONES por {@link #insertBatch}. */
+  public record TxRow(String txId, String transferId, String accountId, String destAccountId,
+      String metadataJson, TipoTransaccion tipo, BigDecimal amount) {
+  }
+
+  private static final int BATCH_ROWS = 500;
+
+  /**
+   * Inserta varias filas con sentencias INSERT multi-fila (hasta {@value #BATCH_ROWS} por
+   * sentencia). No toca saldos: el llamador ya aplicó los cambios con AccountRepo.
+   * El resumen diario se actualiza con una fila agregada por (cuenta, tipo) y cada fila deja
+   * su evento TransactionPosted en el outbox.
+   *
+   * <p>saldo_posterior/secuencia: como los saldos ya incluyen todo el lote, se parte del
+   * saldo actual menos el neto del lote en cada cuenta y se avanza fila por fila; el hash
+   * (que incluye ese saldo) se encadena igual que en {@link #insertTx}.
+   */
+  public void insertBatch(Connection c, AccountRepo accounts, List<TxRow> rows) throws SQLException {
+    String fecha = now();
+    Map<String, BigDecimal> netByAccount = new LinkedHashMap<>();
+    for (TxRow r : rows) netByAccount.merge(r.accountId(), signed(r.tipo(), r.amount()), BigDecimal::add);
+    Map<String, BigDecimal> running = new java.util.HashMap<>();
+    Map<String, ChainHead> chain = new java.util.HashMap<>();
+    try (PreparedStatement base = c.prepareStatement("SELECT " + AccountRepo.SALDO_BASE);
+         PreparedStatement striped = c.prepareStatement("SELECT " + AccountRepo.SALDO_ACTUAL)) {
+      for (var e : netByAccount.entrySet()) {
+        PreparedStatement ps = accounts.isStriped(e.getKey()) ? striped : base;
+        ps.setString(1, e.getKey());
+        try (ResultSet rs = ps.executeQuery()) {
+          BigDecimal current = rs.next() ? rs.getBigDecimal(1) : null;
+          if (current == null) throw new SQLException("ACCOUNT_NOT_FOUND");
+          running.put(e.getKey(), current.subtract(e.getValue()));
+        }
+        // El lote ya tiene el lock de escritura: la cabeza leída aquí no puede cambiar
+        chain.put(e.getKey(), loadHead(c, e.getKey()));
+      }
+    }
+
+    for (int from = 0; from < rows.size(); from += BATCH_ROWS) {
+      List<TxRow> chunk = rows.subList(from, Math.min(rows.size(), from + BATCH_ROWS));
+      StringBuilder sql = new StringBuilder(
+          "INSERT INTO TRANSACCIONES(id_transaccion,id_transferencia,id_cuenta,id_cuenta_destino,metadata,tipo,monto,fecha,saldo_posterior,secuencia,hash,hash_anterior,version_hash) VALUES ");
+      for (int i = 0; i < chunk.size(); i++) {
+        sql.append(i == 0 ? "" : ",").append("(?,?,?,?,?,?,?,?,?,?,?,?,?)");
+      }
+      try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+        int p = 1;
+        for (TxRow r : chunk) {
+          ps.setString(p++, r.txId());
+          if (r.transferId() == null) ps.setNull(p++, Types.VARCHAR); else ps.setString(p++, r.transferId());
+          ps.setString(p++, r.accountId());
+          if (r.destAccountId() == null) ps.setNull(p++, Types.VARCHAR); else ps.setString(p++, r.destAccountId());
+          if (r.metadataJson() == null) ps.setNull(p++, Types.VARCHAR); else ps.setString(p++, r.metadataJson());
+          ps.setString(p++, r.tipo().toString());
+          ps.setDouble(p++, r.amount().doubleValue());
+          ps.setString(p++, fecha);
+          double after = running.merge(r.accountId(), signed(r.tipo(), r.amount()), BigDecimal::add).doubleValue();
+          ps.setDouble(p++, after);
+          ChainHead prev = chain.get(r.accountId());
+          long seq = prev.secuencia() + 1;
+          String hash = TxHash.compute(TxHash.VERSION, prev.hash(), r.txId(), r.transferId(), r.accountId(),
+              r.destAccountId(), r.metadataJson(), r.tipo().toString(), r.amount().doubleValue(), fecha, seq, after);
+          ps.setLong(p++, seq);
+          ps.setString(p++, hash);
+          ps.setString(p++, prev.hash());
+          ps.setInt(p++, TxHash.VERSION);
+          chain.put(r.accountId(), new ChainHead(seq, hash));
+        }
+        ps.executeUpdate();
+      }
+      outbox.transactionsPosted(c, chunk.stream().map(TxRow::txId).toList());
+    }
+
+    Map<String, SummaryRepo.DailySummary> agg = new LinkedHashMap<>();
+    String dia = fecha.substring(0, 10);
+    for (TxRow r : rows) {
+      agg.merge(r.accountId() + '|' + r.tipo(),
+          new SummaryRepo.DailySummary(r.accountId(), dia, r.tipo(), 1, r.amount(), r.amount(), r.amount()),
+          (a, b) -> new SummaryRepo.DailySummary(a.accountId(), dia, a.tipo(), a.cantidad() + b.cantidad(),
+              a.total().add(b.total()), a.minimo().min(b.minimo()), a.maximo().max(b.maximo())));
+    }
+    summaries.addAll(c, new ArrayList<>(agg.values()));
+    heads.putAll(chain);
+  }
+
+  /**
+   * Saldo de una cuenta a un instante: {@code balance} es el saldo tras el último movimiento
+   * con fecha &lt;= {@code at}; {@code txId}/{@code secuencia} identifican ese movimiento
+   * (null si se dedujo del primer movimiento posterior).
+   */
+  public record BalanceAt(BigDecimal balance, String txId, Long secuencia) {
+  }
+
+  /**
+   * Saldo al instante {@code at} ("YYYY-MM-DD HH:MM:SS", UTC) leyendo saldo_posterior con una
+   * búsqueda por índice. Si no hay movimientos hasta ese instante se usa el primero posterior
+   * (su saldo menos su monto con signo). Devuelve null si la cuenta no tiene movimientos.
+   * Lanza BALANCE_HISTORY_PENDING si la fila encontrada aún no pasó por el backfill.
+   */
+  public BalanceAt balanceAt(Connection c, String accountId, String at) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT id_transaccion, saldo_posterior, secuencia FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND fecha <= ?
+         ORDER BY fecha DESC, secuencia DESC
+         LIMIT 1
+        """)) {
+      ps.setString(1, accountId);
+      ps.setString(2, at);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          BigDecimal bal = rs.getBigDecimal("saldo_posterior");
+          if (bal == null) throw new SQLException("BALANCE_HISTORY_PENDING");
+          return new BalanceAt(bal, rs.getString("id_transaccion"), rs.getLong("secuencia"));
+        }
+      }
+    }
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT tipo, monto, saldo_posterior FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND fecha > ?
+         ORDER BY fecha ASC, secuencia ASC
+         LIMIT 1
+        """)) {
+      ps.setString(1, accountId);
+      ps.setString(2, at);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) return null;
+        BigDecimal bal = rs.getBigDecimal("saldo_posterior");
+        if (bal == null) throw new SQLException("BALANCE_HISTORY_PENDING");
+        return new BalanceAt(bal.subtract(signed(TipoTransaccion.from(rs.getString("tipo")), rs.getBigDecimal("monto"))),
+            null, null);
+      }
+    }
+  }
+
+  /** Monto con signo según su efecto en el saldo: depósitos suman, retiros y deudas restan. */
+  public static BigDecimal signed(TipoTransaccion tipo, BigDecimal amount) {
+    return tipo == TipoTransaccion.deposito ? amount : amount.negate();
+  }
+
   /* ===== Helpers ===== */
 
-  private void insertTx(Connection c, String txId, String transferId, String accountId, String destAccountId, String metadataJson, TipoTransaccion tipo,
+  private static String now() {
+    return LocalDateTime.now(ZoneOffset.UTC).format(FECHA);
+  }
+
+  /**
+   * INSERT … SELECT que solo inserta si la cabeza de cadena en caché sigue siendo la real
+   * (misma secuencia máxima y mismo hash en esa secuencia); si no, no inserta nada y
+   * {@link #insertTx} recarga la cabeza y reintenta.
+   */
+  private static final String INSERT_TX = """
+      INSERT INTO TRANSACCIONES(id_transaccion,id_transferencia,id_cuenta,id_cuenta_destino,metadata,tipo,monto,fecha,
+                                saldo_posterior,secuencia,hash,hash_anterior,version_hash)
+      SELECT ?,?,?,?,?,?,?,?,?,?,?,?,?
+       WHERE COALESCE((SELECT MAX(secuencia) FROM TRANSACCIONES WHERE id_cuenta = ?), 0) = ?
+         AND COALESCE((SELECT hash FROM TRANSACCIONES WHERE id_cuenta = ? AND secuencia = ?), ?) = ?
+      """;
+
+  /** Última fila encadenada de una cuenta. */
+  private record ChainHead(long secuencia, String hash) {
+  }
+
+  /**
+   * Cabezas de cadena por cuenta, para calcular el hash sin leer antes de insertar. Puede
+   * quedar adelantada si la transacción que la actualizó hace rollback; el WHERE de
+   * {@link #INSERT_TX} lo detecta.
+   */
+  private final Map<String, ChainHead> heads = new ConcurrentHashMap<>();
+
+  /**
+   * Inserta la fila encadenada, su evento TransactionPosted y la suma al resumen diario, en
+   * la transacción del llamador. saldo_posterior sale del saldo ya cambiado por el llamador
+   * dentro de esta transacción; se lee antes porque entra en el hash.
+   */
+  private void insertTx(Connection c, AccountRepo accounts, String txId, String transferId, String accountId, String destAccountId, String metadataJson, TipoTransaccion tipo,
       BigDecimal amount) throws SQLException {
-    String sql = """
-        INSERT INTO TRANSACCIONES(id_transaccion,id_transferencia,id_cuenta,id_cuenta_destino,metadata,tipo,monto,fecha)
-        VALUES(?,?,?,?,?,?, ?,datetime('now'))
-        """;
-    try (PreparedStatement ps = c.prepareStatement(sql)) {
-      ps.setString(1, txId);
-      if (transferId == null)
-        ps.setNull(2, Types.VARCHAR);
-      else
-        ps.setString(2, transferId);
-      ps.setString(3, accountId);
-      if (destAccountId == null) ps.setNull(4, Types.VARCHAR); else ps.setString(4, destAccountId);
-      if (metadataJson == null) ps.setNull(5, Types.VARCHAR); else ps.setString(5, metadataJson);
-      ps.setString(6, tipo.toString());
-      ps.setBigDecimal(7, amount);
-      ps.executeUpdate();
+    String fecha = now();
+    double monto = amount.doubleValue();
+    double saldo = currentBalance(c, accounts, accountId);
+    try (PreparedStatement ps = c.prepareStatement(INSERT_TX)) {
+      for (int attempt = 0; ; attempt++) {
+        ChainHead head = heads.get(accountId);
+        if (head == null) head = loadHead(c, accountId);
+        long seq = head.secuencia() + 1;
+        String hash = TxHash.compute(TxHash.VERSION, head.hash(), txId, transferId, accountId, destAccountId,
+            metadataJson, tipo.toString(), monto, fecha, seq, saldo);
+
+        ps.setString(1, txId);
+        if (transferId == null)
+          ps.setNull(2, Types.VARCHAR);
+        else
+          ps.setString(2, transferId);
+        ps.setString(3, accountId);
+        if (destAccountId == null) ps.setNull(4, Types.VARCHAR); else ps.setString(4, destAccountId);
+        if (metadataJson == null) ps.setNull(5, Types.VARCHAR); else ps.setString(5, metadataJson);
+        ps.setString(6, tipo.toString());
+        ps.setDouble(7, monto);
+        ps.setString(8, fecha);
+        ps.setDouble(9, saldo);
+        ps.setLong(10, seq);
+        ps.setString(11, hash);
+        ps.setString(12, head.hash());
+        ps.setInt(13, TxHash.VERSION);
+        ps.setString(14, accountId);
+        ps.setLong(15, head.secuencia());
+        ps.setString(16, accountId);
+        ps.setLong(17, head.secuencia());
+        ps.setString(18, TxHash.GENESIS);
+        ps.setString(19, head.hash());
+        if (ps.executeUpdate() == 1) {
+          outbox.transactionPosted(c);
+          heads.put(accountId, new ChainHead(seq, hash));
+          break;
+        }
+        heads.remove(accountId);
+        if (attempt > 0) throw new SQLException("CHAIN_HEAD_CONFLICT");
+      }
+    }
+    summaries.add(c, new SummaryRepo.DailySummary(accountId, fecha.substring(0, 10), tipo, 1, amount, amount, amount));
+  }
+
+  /** Saldo actual (base + sub-saldos si es caliente) de la cuenta, como lo suma SQLite. */
+  private static double currentBalance(Connection c, AccountRepo accounts, String accountId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("SELECT " + accounts.saldoActual(accountId))) {
+      ps.setString(1, accountId);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) throw new SQLException("ACCOUNT_NOT_FOUND");
+        double saldo = rs.getDouble(1);
+        if (rs.wasNull()) throw new SQLException("ACCOUNT_NOT_FOUND");
+        return saldo;
+      }
+    }
+  }
+
+  /** Lee la cabeza real de la cadena (filas históricas sin hash cuentan como génesis). */
+  private static ChainHead loadHead(Connection c, String accountId) throws SQLException {
+    try (PreparedStatement ps = c.prepareStatement("""
+        SELECT secuencia, hash FROM TRANSACCIONES
+         WHERE id_cuenta = ? AND secuencia IS NOT NULL
+         ORDER BY secuencia DESC LIMIT 1
+        """)) {
+      ps.setString(1, accountId);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) return new ChainHead(0, TxHash.GENESIS);
+        String hash = rs.getString(2);
+        return new ChainHead(rs.getLong(1), hash == null ? TxHash.GENESIS : hash);
+      }
     }
   }
 
@@ -136,6 +390,8 @@ public class TxRepo {
         rs.getString("metadata"),
         TipoTransaccion.from(rs.getString("tipo")),
         rs.getBigDecimal("monto"),
-        when);
+        when,
+        rs.getBigDecimal("saldo_posterior"),
+        rs.getObject("secuencia") == null ? null : rs.getLong("secuencia"));
   }
 }
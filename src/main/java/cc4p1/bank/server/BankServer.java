@@ -5,11 +5,39 @@
 package cc4p1.bank.server;
 
 import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.jobs.AuditCheckpoints;
+import cc4p1.bank.jobs.DailySummaryBackfill;
+import cc4p1.bank.jobs.OutboxRelay;
+import cc4p1.bank.jobs.PasswordBackfill;
+import cc4p1.bank.jobs.RunningBalanceBackfill;
+import cc4p1.bank.mq.AmqpTransport;
+import cc4p1.bank.mq.Cluster;
+import cc4p1.bank.mq.LaneScheduler;
+import cc4p1.bank.mq.LoadShedder;
+import cc4p1.bank.mq.ReplyCompression;
 import cc4p1.bank.mq.Rabbit;
+import cc4p1.bank.mq.TcpFrontEnd;
 import cc4p1.bank.repo.*;
+import cc4p1.bank.service.AccountLocks;
 import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.CredentialVerifier;
+import cc4p1.bank.service.DailyLimits;
 import cc4p1.bank.service.MockReniecClient;
+import cc4p1.bank.service.OptimisticRetry;
+import cc4p1.bank.service.RateLimiter;
+import cc4p1.bank.service.ScheduledTransfers;
 import cc4p1.bank.service.ReniecRpcClient;
+import cc4p1.bank.service.Sessions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -18,11 +46,17 @@ import cc4p1.bank.service.ReniecRpcClient;
 public class BankServer {
 
     public static void main(String[] args) throws Exception {
-        // 1) Base de datos
-        SQLite sqlite = new SQLite("data/bank.db");
+        // 1) Base de datos: BANK_SHARDS archivos (por defecto 1, data/bank.db); con N > 1,
+        // data/bank.s{k}.db, partidos por id de cuenta (ver Shards y ShardSplitter). Con
+        // BANK_LOCAL_SHARDS este proceso es un nodo de cluster que solo abre esos shards
+        int shardCount = Integer.parseInt(System.getenv().getOrDefault("BANK_SHARDS", "1"));
+        Set<Integer> localShards = Cluster.localShardsFromEnv(System.getenv());
+        Shards shards = Shards.open("data/bank.db", shardCount, localShards);
 
         // 2) Inicializar esquema si hace falta
-        sqlite.initializeIfNeeded("/db/init_db.sql");
+        shards.initializeIfNeeded("/db/init_db.sql");
+        if (shardCount > 1) System.out.printf("[INFO] %d shards (locales: %s)%n", shardCount,
+                localShards == null ? "todos" : localShards);
 
         // 3) Dependencias
         var clientRepo = new ClientRepo();
@@ -31,6 +65,58 @@ public class BankServer {
         var txRepo = new TxRepo();
         var messageRepo = new MessageRepo();
 
+        // Escrituras: BEGIN IMMEDIATE y reintento con espera si otro escritor tiene la base
+        // (BANK_BUSY_DEADLINE_MS, BANK_BUSY_BACKOFF_MS, BANK_BUSY_MAX_BACKOFF_MS)
+        SQLite.BusyPolicy busy = SQLite.BusyPolicy.fromEnv(System.getenv());
+        for (SQLite sqlite : shards.all()) sqlite.setBusyPolicy(busy);
+
+        // Cuentas calientes con sub-saldos repartidos, p. ej. BANK_HOT_ACCOUNTS=CU001:8,CU050:4
+        String hot = System.getenv().getOrDefault("BANK_HOT_ACCOUNTS", "");
+        for (String entry : hot.split(",")) {
+            if (entry.isBlank()) continue;
+            String[] kv = entry.trim().split(":");
+            int slots = kv.length > 1 ? Integer.parseInt(kv[1]) : 8;
+            try (var c = shards.forKey(kv[0]).get()) {
+                accountRepo.enableStriping(c, kv[0], slots);
+                c.commit();
+            }
+            System.out.printf("[INFO] Cuenta caliente %s con %d sub-saldos%n", kv[0], slots);
+        }
+        for (SQLite sqlite : shards.all()) {
+            try (var c = sqlite.get()) {
+                accountRepo.loadStriping(c);
+                c.commit();
+            }
+        }
+
+        // Backfills de filas anteriores a las migraciones, en segundo plano y por shard
+        for (int k = 0; k < shards.size(); k++) {
+            if (shards.isLocal(k)) startBackfills(shards.get(k), shards.size() == 1 ? "main" : "s" + k);
+        }
+
+        // Checkpoints firmados de las cadenas de hash, solo si hay clave (BANK_AUDIT_KEY)
+        byte[] auditKey = AuditCheckpoints.keyFromEnv();
+        if (auditKey != null) {
+            long minutes = Long.parseLong(System.getenv().getOrDefault("BANK_AUDIT_CHECKPOINT_MINUTES", "15"));
+            List<AuditCheckpoints> audits = new ArrayList<>();
+            for (SQLite sqlite : shards.all()) audits.add(new AuditCheckpoints(sqlite, auditKey));
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "audit-checkpoints");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                for (AuditCheckpoints audit : audits) {
+                    try {
+                        audit.create();
+                    } catch (Exception e) {
+                        System.err.println("[WARN] Checkpoint de auditoría falló: " + e.getMessage());
+                    }
+                }
+            }, minutes, minutes, TimeUnit.MINUTES);
+            System.out.printf("[INFO] Checkpoints de auditoría cada %d min%n", minutes);
+        }
+
         String rabbitHost = System.getenv().getOrDefault("RABBIT_HOST", "localhost");
         boolean useMockReniec = "true".equalsIgnoreCase(System.getenv().getOrDefault("USE_RENIEC_MOCK", "true"));
 
@@ -44,10 +130,21 @@ public class BankServer {
             reniec = new ReniecRpcClient(rabbitHost);
         }
         final Rabbit mq = new Rabbit(rabbitHost);
+        // Eventos de dominio (outbox) por una conexión aparte, para no competir con las respuestas RPC
+        final AmqpTransport eventsTransport = new AmqpTransport(rabbitHost);
+        // Un relay por shard: cada uno tiene su propio EVENTOS_SALIDA y su marca de agua
+        final List<OutboxRelay> relays = new ArrayList<>();
+        for (int k = 0; k < shards.size(); k++) {
+            if (!shards.isLocal(k)) continue;
+            relays.add(new OutboxRelay(shards.get(k), eventsTransport,
+                    Integer.parseInt(System.getenv().getOrDefault("BANK_EVENTS_BATCH", "200")),
+                    Long.parseLong(System.getenv().getOrDefault("BANK_EVENTS_POLL_MS", "100")),
+                    shards.size() == 1 ? null : "s" + k));
+        }
 
         // 5) Servicio principal del banco
         BankService bank = new BankService(
-                sqlite,
+                shards,
                 clientRepo,
                 accountRepo,
                 loanRepo,
@@ -55,18 +152,103 @@ public class BankServer {
                 messageRepo,
                 reniec
         );
+        // Límites en memoria: BANK_RATE_LIMITS y BANK_DAILY_OUTFLOW_LIMIT; el tope diario
+        // arranca con lo ya retirado hoy según TRANSACCIONES
+        bank.setRateLimiter(RateLimiter.fromEnv(System.getenv()));
+        DailyLimits daily = DailyLimits.fromEnv(System.getenv());
+        int withOutflows = 0;
+        for (SQLite sqlite : shards.all()) {
+            try (var c = sqlite.get()) {
+                withOutflows += daily.rehydrate(c);
+                c.commit();
+            }
+        }
+        if (daily.enabled()) System.out.printf("[INFO] Tope diario %s: %d cuentas con salidas hoy%n", daily.limit(), withOutflows);
+        bank.setDailyLimits(daily);
+        // PBKDF2 en pool acotado (BANK_LOGIN_*) y sesiones en memoria (BANK_SESSION_*)
+        final CredentialVerifier credentials = CredentialVerifier.fromEnv(System.getenv());
+        bank.setCredentials(credentials, Sessions.fromEnv(System.getenv()));
+        // Cerrojos por cuenta (BANK_ACCOUNT_LOCK_STRIPES, BANK_ACCOUNT_LOCK_TIMEOUT_MS)
+        bank.setAccountLocks(AccountLocks.fromEnv(System.getenv()));
+        // Escrituras optimistas (PayLoan): BANK_CAS_ATTEMPTS, BANK_CAS_BACKOFF_MS
+        bank.setOptimisticRetry(OptimisticRetry.fromEnv(System.getenv()));
+
+        // Cluster: colas por shard, reenvío y sagas por una conexión aparte (BANK_SAGA_TIMEOUT_MS);
+        // las llamadas entre nodos van firmadas con BANK_CLUSTER_KEY
+        final byte[] clusterKey = shards.clustered() ? Cluster.peerKeyFromEnv(System.getenv()) : null;
+        final AmqpTransport clusterTransport = shards.clustered() ? new AmqpTransport(rabbitHost) : null;
+        if (clusterTransport != null) {
+            Cluster cluster = new Cluster(clusterTransport, shards, Cluster.callTimeoutFromEnv(System.getenv()), clusterKey);
+            mq.setCluster(cluster);
+            bank.setPeers(cluster);
+        }
 
         // 6) Registrar shutdown hook para cerrar recursos ordenadamente
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (OutboxRelay relay : relays) {
+                try { relay.close(); } catch (Exception ignored) {}
+            }
+            try { eventsTransport.close(); } catch (Exception ignored) {}
             try { mq.close(); } catch (Exception ignored) {}
+            if (clusterTransport != null) {
+                try { clusterTransport.close(); } catch (Exception ignored) {}
+            }
+            credentials.close();
             // Cerrar Reniec solo si es... cerrable
             if (reniec instanceof AutoCloseable) {
                 try { ((AutoCloseable) reniec).close(); } catch (Exception ignored) {}
             }
         }));
 
-        // 7) Iniciar consumidor RabbitMQ
+        // 7) Iniciar consumidor RabbitMQ (carriles: ver LaneScheduler.Config.fromEnv)
+        // Con N shards locales hay N escritores posibles: por defecto, N cupos de escritura y de comandos
+        Map<String, String> laneEnv = new HashMap<>(System.getenv());
+        if (shards.all().size() > 1) {
+            laneEnv.putIfAbsent("BANK_LANE_WRITERS", String.valueOf(shards.all().size()));
+            laneEnv.putIfAbsent("BANK_LANE_COMMANDS", String.valueOf(shards.all().size()));
+        }
+        mq.setLanes(LaneScheduler.Config.fromEnv(laneEnv));
+        mq.setLoadShedding(LoadShedder.Config.fromEnv(System.getenv()));
+        mq.setReplyCompression(ReplyCompression.Config.fromEnv(System.getenv()));
         mq.serve(bank);
+
+        // Entrada TCP directa, sin broker, junto a Rabbit (solo si BANK_TCP_PORT está definido)
+        TcpFrontEnd.Config tcpCfg = TcpFrontEnd.Config.fromEnv(System.getenv());
+        if (tcpCfg != null) {
+            TcpFrontEnd tcp = new TcpFrontEnd(mq, bank, tcpCfg);
+            tcp.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { tcp.close(); } catch (Exception ignored) {}
+            }));
+        }
+        for (OutboxRelay relay : relays) relay.start();
+
+        // Transferencias programadas: solo la ventana próxima en memoria (BANK_SCHEDULE_*)
+        ScheduledTransfers schedule = bank.scheduledTransfers();
+        schedule.setConfig(ScheduledTransfers.Config.fromEnv(System.getenv()));
+        schedule.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { schedule.close(); } catch (Exception ignored) {}
+        }));
+
+        // Transferencias entre shards que quedaron a medias (caída entre fases, nodo destino
+        // caído): todas al arrancar y luego, periódicamente, las que llevan unos segundos preparadas
+        if (shards.size() > 1) {
+            int recovered = bank.recoverCrossShardTransfers(true);
+            if (recovered > 0) System.out.printf("[INFO] %d transferencias entre shards terminadas%n", recovered);
+            ScheduledExecutorService recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cross-shard-recovery");
+                t.setDaemon(true);
+                return t;
+            });
+            recovery.scheduleWithFixedDelay(() -> {
+                try {
+                    bank.recoverCrossShardTransfers(false);
+                } catch (Exception e) {
+                    System.err.println("[WARN] Recuperación de transferencias entre shards: " + e.getMessage());
+                }
+            }, 5, 5, TimeUnit.SECONDS);
+        }
         System.out.println("Bank Server iniciado. Esperando mensajes...");
 
         // 8) Mantener el proceso vivo
@@ -76,4 +258,53 @@ public class BankServer {
             Thread.currentThread().interrupt();
         }
     }
+
+    private static void startBackfills(SQLite sqlite, String label) throws Exception {
+        // Resumen diario de movimientos anteriores a la migración: en segundo plano,
+        // el servidor atiende mientras tanto (los resúmenes de esos días saldrán incompletos)
+        DailySummaryBackfill backfill = new DailySummaryBackfill(sqlite, 2);
+        if (backfill.hasPending()) {
+            Thread t = new Thread(() -> {
+                try {
+                    var res = backfill.run();
+                    System.out.printf("[INFO] Backfill de CUENTA_RESUMEN_DIARIO (%s): %d tramos%n", label, res.chunks());
+                } catch (Exception e) {
+                    System.err.println("[WARN] Backfill de CUENTA_RESUMEN_DIARIO falló: " + e.getMessage());
+                }
+            }, "summary-backfill-" + label);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Contraseñas en texto plano → PBKDF2, por tramos (Login las acepta mientras tanto)
+        PasswordBackfill passwords = new PasswordBackfill(sqlite, 2);
+        if (passwords.hasPending()) {
+            Thread t = new Thread(() -> {
+                try {
+                    var res = passwords.run();
+                    System.out.printf("[INFO] Backfill de contraseñas (%s): %d convertidas%n", label, res.rows());
+                } catch (Exception e) {
+                    System.err.println("[WARN] Backfill de contraseñas falló: " + e.getMessage());
+                }
+            }, "password-backfill-" + label);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // saldo_posterior/secuencia de filas anteriores a la migración (GetBalanceAt
+        // responde BALANCE_HISTORY_PENDING para esas filas hasta que termine)
+        RunningBalanceBackfill balances = new RunningBalanceBackfill(sqlite, 2);
+        if (balances.hasPending()) {
+            Thread t = new Thread(() -> {
+                try {
+                    var res = balances.run();
+                    System.out.printf("[INFO] Backfill de saldo_posterior (%s): %d cuentas, %d filas%n", label, res.accounts(), res.rows());
+                } catch (Exception e) {
+                    System.err.println("[WARN] Backfill de saldo_posterior falló: " + e.getMessage());
+                }
+            }, "balance-backfill-" + label);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
 }
@@ -0,0 +1,167 @@
+package cc4p1.bank.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cerrojos por cuenta, repartidos en un arreglo fijo de franjas (stripes): dos escritores
+ * sobre la misma cuenta se ordenan aquí, en memoria, antes de pedir el escritor de SQLite;
+ * los de cuentas distintas casi nunca comparten franja. No hay mapa ni cerrojo global que
+ * recorrer: la franja sale del hash del id.
+ *
+ * <p>Varias cuentas (Transfer, lotes) se toman en orden ascendente de franja, así dos
+ * transferencias cruzadas A→B y B→A no pueden trabarse. La espera es acotada: pasado
+ * {@code timeoutMillis} se sueltan las ya tomadas y se lanza LOCK_TIMEOUT.
+ *
+ * <p>Por el broker solo hay contención si LaneScheduler deja pasar más de una escritura a la
+ * vez (BANK_LANE_WRITERS &gt; 1 y carriles de comandos/prioridad con concurrencia &gt; 1); con los
+ * valores por defecto las escrituras ya llegan de a una.
+ */
+public final class AccountLocks {
+
+  /** Franja con su contención acumulada; {@code lastAccount} es la última cuenta que esperó en ella. */
+  public record StripeStats(int stripe, long contended, long acquisitions, String lastAccount) {
+  }
+
+  /** Cerrojos tomados; se sueltan al cerrar. */
+  public interface Held extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private final ReentrantLock[] stripes;
+  private final int mask;
+  private final long timeoutMillis;
+  private final AtomicLongArray acquired;
+  private final AtomicLongArray contended;
+  private final AtomicReferenceArray<String> lastContended;
+  private final LongAdder acquisitions = new LongAdder();
+  private final LongAdder contentions = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  /** {@code stripes} se redondea a potencia de 2. */
+  public AccountLocks(int stripes, long timeoutMillis) {
+    int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    if (stripes <= 1) n = 1;
+    this.stripes = new ReentrantLock[n];
+    for (int i = 0; i < n; i++) this.stripes[i] = new ReentrantLock();
+    this.mask = n - 1;
+    this.timeoutMillis = timeoutMillis;
+    this.acquired = new AtomicLongArray(n);
+    this.contended = new AtomicLongArray(n);
+    this.lastContended = new AtomicReferenceArray<>(n);
+  }
+
+  /** BANK_ACCOUNT_LOCK_STRIPES (1024) y BANK_ACCOUNT_LOCK_TIMEOUT_MS (2000). */
+  public static AccountLocks fromEnv(Map<String, String> env) {
+    return new AccountLocks(
+        Integer.parseInt(env.getOrDefault("BANK_ACCOUNT_LOCK_STRIPES", "1024")),
+        Long.parseLong(env.getOrDefault("BANK_ACCOUNT_LOCK_TIMEOUT_MS", "2000")));
+  }
+
+  public int stripeOf(String accountId) {
+    int h = accountId.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  public Held acquire(String... accountIds) {
+    return acquire(Arrays.asList(accountIds));
+  }
+
+  /**
+   * Toma las franjas de las cuentas (sin repetir, en orden ascendente); null se ignora.
+   * Lanza IllegalStateException("LOCK_TIMEOUT") si no lo logra a tiempo (o si se interrumpe).
+   */
+  public Held acquire(Collection<String> accountIds) {
+    // Una sola pasada: franja -> primera cuenta que cae en ella (para el diagnóstico de contención)
+    TreeMap<Integer, String> byStripe = new TreeMap<>();
+    for (String id : accountIds) {
+      if (id != null) byStripe.putIfAbsent(stripeOf(id), id);
+    }
+    int[] order = new int[byStripe.size()];
+    String[] names = new String[order.length];
+    int i = 0;
+    for (Map.Entry<Integer, String> e : byStripe.entrySet()) {
+      order[i] = e.getKey();
+      names[i++] = e.getValue();
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int taken = 0;
+    try {
+      for (; taken < order.length; taken++) {
+        int s = order[taken];
+        ReentrantLock l = stripes[s];
+        if (!l.tryLock()) {
+          contended.incrementAndGet(s);
+          contentions.increment();
+          lastContended.set(s, names[taken]);
+          boolean got;
+          try {
+            got = l.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            got = false;
+          }
+          if (!got) {
+            timeouts.increment();
+            throw new IllegalStateException("LOCK_TIMEOUT");
+          }
+        }
+        acquired.incrementAndGet(s);
+      }
+    } finally {
+      if (taken < order.length) release(order, taken);
+    }
+    acquisitions.increment();
+    return () -> release(order, order.length);
+  }
+
+  private void release(int[] order, int count) {
+    for (int j = count - 1; j >= 0; j--) stripes[order[j]].unlock();
+  }
+
+  public int stripes() {
+    return stripes.length;
+  }
+
+  /** Las {@code n} franjas con más esperas (solo las que tuvieron alguna). */
+  public List<StripeStats> hotStripes(int n) {
+    List<StripeStats> all = new ArrayList<>();
+    for (int s = 0; s < stripes.length; s++) {
+      long c = contended.get(s);
+      if (c > 0) all.add(new StripeStats(s, c, acquired.get(s), lastContended.get(s)));
+    }
+    all.sort((a, b) -> Long.compare(b.contended(), a.contended()));
+    return all.subList(0, Math.min(n, all.size()));
+  }
+
+  /** Contadores globales y franjas calientes, para GetServerStats. */
+  public Map<String, Object> stats(int hot) {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("stripes", stripes.length);
+    m.put("acquisitions", acquisitions.sum());
+    m.put("contended", contentions.sum());
+    m.put("timeouts", timeouts.sum());
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (StripeStats s : hotStripes(hot)) {
+      Map<String, Object> it = new LinkedHashMap<>();
+      it.put("stripe", s.stripe());
+      it.put("contended", s.contended());
+      it.put("acquisitions", s.acquisitions());
+      it.put("lastAccount", s.lastAccount());
+      list.add(it);
+    }
+    m.put("hotStripes", list);
+    return m;
+  }
+}
@@ -0,0 +1,21 @@
+package cc4p1.bank.service;
+
+import java.util.Map;
+
+/**
+ * Error de negocio que debe deshacer la transacción de escritura en curso (ver
+ * {@code SQLite.write}) y llegar al cliente con sus detalles. No se reintenta.
+ */
+final class BankException extends Exception {
+
+  private final transient Map<String, Object> details;
+
+  BankException(String code, Map<String, Object> details) {
+    super(code);
+    this.details = details;
+  }
+
+  Map<String, Object> details() {
+    return details;
+  }
+}
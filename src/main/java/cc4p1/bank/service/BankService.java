@@ -1,26 +1,43 @@
 package cc4p1.bank.service;
 
 import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
 import cc4p1.bank.repo.*;
 import cc4p1.bank.util.Ids;
 import cc4p1.bank.domain.*;
+import cc4p1.bank.service.Operations.Operation;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BankService {
 
-  private final SQLite sqlite;
+  private final Shards shards;
   private final ClientRepo clientRepo;
   private final AccountRepo accountRepo;
   private final LoanRepo loanRepo;
   private final TxRepo txRepo;
   private final MessageRepo messageRepo;
   private final ReniecClient reniec; // interfaz a reniec
+  private final CrossShardTransfers crossShard;
+  private final SummaryRepo summaryRepo = new SummaryRepo();
+  private final ScheduleRepo scheduleRepo = new ScheduleRepo();
+  private final ScheduledTransfers scheduled;
   private final ObjectMapper om = new ObjectMapper();
+  private volatile RateLimiter rateLimiter = RateLimiter.unlimited();
+  private volatile DailyLimits dailyLimits = DailyLimits.unlimited();
+  private volatile CredentialVerifier credentials = CredentialVerifier.fromEnv(Map.of());
+  private volatile Sessions sessions = Sessions.fromEnv(Map.of());
+  private volatile AccountLocks accountLocks = AccountLocks.fromEnv(Map.of());
+  private volatile OptimisticRetry casRetry = OptimisticRetry.fromEnv(Map.of());
+  private final Operations operations = new Operations(STANDARD);
 
   public BankService(SQLite sqlite,
       ClientRepo clientRepo,
@@ -29,65 +46,211 @@ public class BankService {
       TxRepo txRepo,
       MessageRepo messageRepo,
       ReniecClient reniec) {
-    this.sqlite = sqlite;
+    this(Shards.single(sqlite), clientRepo, accountRepo, loanRepo, txRepo, messageRepo, reniec);
+  }
+
+  /** Almacenamiento partido por cuenta (ver {@link Shards}); con un shard, igual que el anterior. */
+  public BankService(Shards shards,
+      ClientRepo clientRepo,
+      AccountRepo accountRepo,
+      LoanRepo loanRepo,
+      TxRepo txRepo,
+      MessageRepo messageRepo,
+      ReniecClient reniec) {
+    this.shards = shards;
     this.clientRepo = clientRepo;
     this.accountRepo = accountRepo;
     this.loanRepo = loanRepo;
     this.txRepo = txRepo;
     this.messageRepo = messageRepo;
     this.reniec = reniec;
+    this.crossShard = new CrossShardTransfers(shards, accountRepo, txRepo, messageRepo);
+    this.scheduled = new ScheduledTransfers(shards, accountRepo, txRepo, messageRepo, crossShard);
+  }
+
+  /** Planificador de ScheduleTransfer; el servidor lo arranca con {@link ScheduledTransfers#start}. */
+  public ScheduledTransfers scheduledTransfers() {
+    return scheduled;
+  }
+
+  /**
+   * Termina las transferencias entre shards que quedaron preparadas (caída entre fases o
+   * destino ocupado). {@code includeRecent}: también las recién preparadas (al arrancar).
+   */
+  public int recoverCrossShardTransfers(boolean includeRecent) throws Exception {
+    return shards.size() == 1 ? 0 : crossShard.recover(includeRecent);
+  }
+
+  /**
+   * Nodos que atienden los shards remotos (modo cluster). Las transferencias hacia cuentas de
+   * esos shards pasan a ser una saga: ver {@link CrossShardTransfers}.
+   */
+  public void setPeers(Peers peers) {
+    crossShard.setPeers(peers);
+  }
+
+  /**
+   * Cerrojos por cuenta: los escritores de una misma cuenta esperan aquí, sin ocupar el
+   * escritor del shard, y los de otras cuentas pasan (ver {@link AccountLocks}).
+   */
+  public void setAccountLocks(AccountLocks accountLocks) {
+    this.accountLocks = accountLocks;
+    crossShard.setLocks(accountLocks);
+    scheduled.setLocks(accountLocks);
+  }
+
+  public AccountLocks accountLocks() {
+    return accountLocks;
+  }
+
+  /** Reintentos de las escrituras con compare-and-set (PayLoan). */
+  public void setOptimisticRetry(OptimisticRetry casRetry) {
+    this.casRetry = casRetry;
+  }
+
+  public OptimisticRetry optimisticRetry() {
+    return casRetry;
+  }
+
+  /** Límites de frecuencia por operación (por defecto, ninguno). */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /** Tope diario de salidas por cuenta (por defecto, ninguno). */
+  public void setDailyLimits(DailyLimits dailyLimits) {
+    this.dailyLimits = dailyLimits;
+    scheduled.setDailyLimits(dailyLimits);
+  }
+
+  public DailyLimits dailyLimits() {
+    return dailyLimits;
+  }
+
+  /** Pool acotado para PBKDF2 (Login/Register) y caché de sesiones. */
+  public void setCredentials(CredentialVerifier credentials, Sessions sessions) {
+    this.credentials = credentials;
+    this.sessions = sessions;
   }
 
-  /** Entry point from Rabbit. corrId is echoed back in the response JSON. */
+  /**
+   * Operaciones estándar. Las claves siguen el orden en que se elige la partición: la cuenta
+   * afectada, o el token de sesión / DNI / clientId en las operaciones de cliente.
+   */
+  private static final Operations STANDARD = new Operations()
+      .register(Operation.query("GetBalance", BankService::handleGetBalance).requires("accountId").keys("accountId"))
+      .register(Operation.query("GetClientInfo", BankService::handleGetClientInfo).requires("clientId").keys("clientId"))
+      .register(Operation.query("ListTransactions", BankService::handleListTransactions)
+          .requires("accountId").keys("accountId"))
+      .register(Operation.query("GetBalanceAt", BankService::handleGetBalanceAt)
+          .requires("accountId", "at").keys("accountId"))
+      .register(Operation.query("GetAccountSummary", BankService::handleGetAccountSummary)
+          .requires("accountId").keys("accountId"))
+      .register(Operation.query("ListClientLoans", BankService::handleListClientLoans)
+          .requires("clientId").keys("clientId"))
+      .register(Operation.query("GetServerStats", BankService::handleGetServerStats))
+      // Extensiones para el cliente web (alias en minúsculas; campos en "payload")
+      .register(Operation.query("Login", BankService::handleLogin).aliases("login")
+          .keys("sessionToken", "dni", "usuario"))
+      .register(Operation.command("Register", BankService::handleRegister).aliases("register")
+          .requires("password").keys("dni", "usuario"))
+      .register(Operation.command("Deposit", BankService::handleDeposit).requires("accountId", "amount").keys("accountId"))
+      .register(Operation.command("Withdraw", BankService::handleWithdraw).requires("accountId", "amount").keys("accountId"))
+      .register(Operation.command("Transfer", BankService::handleTransfer)
+          .requires("fromAccountId", "toAccountId", "amount").keys("fromAccountId", "toAccountId"))
+      .register(Operation.command("CreateLoan", BankService::handleCreateLoan)
+          .requires("clientId", "accountId", "principal").keys("accountId", "clientId"))
+      .register(Operation.command("PayLoan", BankService::handlePayLoan)
+          .requires("loanId", "accountId", "amount").keys("accountId"))
+      .register(Operation.command("BatchDeposit", (b, r, corrId) -> b.handleBatch(r, corrId, false))
+          .keys("accountId"))
+      .register(Operation.command("BatchTransfer", (b, r, corrId) -> b.handleBatch(r, corrId, true))
+          .keys("fromAccountId", "toAccountId"))
+      // Transferencias futuras y órdenes permanentes (ver ScheduledTransfers)
+      .register(Operation.command("ScheduleTransfer", BankService::handleScheduleTransfer)
+          .requires("fromAccountId", "toAccountId", "amount").keys("fromAccountId"))
+      .register(Operation.command("CancelScheduledTransfer", BankService::handleCancelScheduledTransfer)
+          .requires("orderId", "fromAccountId").keys("fromAccountId"))
+      .register(Operation.query("ListScheduledTransfers", BankService::handleListScheduledTransfers)
+          .requires("accountId").keys("accountId"))
+      // Internas: crédito de una saga de otro nodo y la consulta al origen que lo respalda
+      // (ver CrossShardTransfers)
+      .register(Operation.internal("CreditTransfer", BankService::handleCreditTransfer)
+          .requires("transferId", "fromAccountId", "toAccountId", "amount").keys("toAccountId"))
+      .register(Operation.query("GetPreparedTransfer", BankService::handleGetPreparedTransfer)
+          .requires("transferId", "fromAccountId").keys("fromAccountId").peersOnly());
+
+  /** true si la operación estándar solo lee; tipos desconocidos cuentan como escritura. */
+  public static boolean isQuery(String type) {
+    return STANDARD.isQuery(type);
+  }
+
+  /**
+   * Operaciones de este servicio: las estándar más las agregadas con {@link #register}. El
+   * transporte las consulta para elegir cola, carril y partición.
+   */
+  public Operations operations() {
+    return operations;
+  }
+
+  /**
+   * Agrega una operación a este servicio; lanza IllegalArgumentException si su nombre o un
+   * alias ya existe.
+   */
+  public void register(Operation op) {
+    operations.register(op);
+  }
+
+  /** Entry point (texto JSON). corrId is echoed back in the response JSON. */
   public String handle(String body, String corrId) {
+    return new String(handle(body.getBytes(StandardCharsets.UTF_8), WireFormat.JSON, corrId), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Entry point from Rabbit: el cuerpo viene en {@code format} (según el contentType de la
+   * petición) y la respuesta sale en el mismo formato, con el mismo sobre ok/error.
+   */
+  public byte[] handle(byte[] body, WireFormat format, String corrId) {
+    return handle(body, format, corrId, false);
+  }
+
+  /**
+   * Igual; {@code peer}: la petición llegó por el canal autenticado entre nodos, el único por
+   * el que se aceptan las operaciones internas (CreditTransfer).
+   */
+  public byte[] handle(byte[] body, WireFormat format, String corrId, boolean peer) {
+    Reply reply;
+    try {
+      reply = handle(format.mapper().readTree(body), corrId, peer);
+    } catch (Exception e) {
+      reply = error(e.getMessage(), corrId);
+    }
+    return reply.encode(format);
+  }
+
+  private Reply handle(JsonNode r, String corrId, boolean peer) {
     try {
-      JsonNode r = om.readTree(body);
       // Compat: aceptar tanto {type} como {operationType}
       String type = r.hasNonNull("type") ? r.get("type").asText()
           : (r.hasNonNull("operationType") ? r.get("operationType").asText() : null);
       if (type == null) {
         return error("MISSING_type", corrId);
       }
-  // Normalizar alias en minúsculas comunes (no requerido por ahora)
-      switch (type) {
-        case "GetBalance" -> {
-          return handleGetBalance(r, corrId);
-        }
-        case "GetClientInfo" -> {
-          return handleGetClientInfo(r, corrId);
-        }
-        case "ListTransactions" -> {
-          return handleListTransactions(r, corrId);
-        }
-        case "Deposit" -> {
-          return handleDeposit(r, corrId);
-        }
-        case "Withdraw" -> {
-          return handleWithdraw(r, corrId);
-        }
-        case "Transfer" -> {
-          return handleTransfer(r, corrId);
-        }
-        case "CreateLoan" -> {
-          return handleCreateLoan(r, corrId);
-        }
-        case "PayLoan" -> {
-          return handlePayLoan(r, corrId);
-        }
-        case "ListClientLoans" -> {
-          return handleListClientLoans(r, corrId);
-        }
-        // Extensiones para el cliente web (alias en minúsculas)
-        case "login", "Login" -> {
-          return handleLogin(r, corrId);
-        }
-        case "register", "Register" -> {
-          return handleRegister(r, corrId);
-        }
-        default -> {
-          return error("UNKNOWN_TYPE: " + type, corrId);
-        }
+      // Plazo del llamador: vencido, no se toca la base (ni lecturas ni escrituras)
+      if (r.hasNonNull("deadline")) {
+        Long deadline = parseDeadline(r.get("deadline").asText());
+        if (deadline == null) return error("VALIDATION_ERROR: deadline", corrId);
+        if (System.currentTimeMillis() > deadline) return deadlineExceeded(deadline, corrId);
       }
+      Operation op = operations.find(type);
+      if (op == null) return error("UNKNOWN_TYPE: " + type, corrId);
+      if (op.internal() && !peer) return error("INTERNAL_OPERATION: " + op.name(), corrId);
+      // Límite de frecuencia: en memoria, antes de abrir conexión (por nombre, no por alias)
+      long retryAfter = rateLimiter.acquire(op.name(), r);
+      if (retryAfter > 0) return error("RATE_LIMITED", Map.of("retryAfterMs", retryAfter), corrId);
+      String missing = op.missing(r);
+      if (missing != null) return error(missing, corrId);
+      return op.handler().handle(this, r, corrId);
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
     }
@@ -95,11 +258,33 @@ public class BankService {
 
   /* ======================= READS ======================= */
 
-  private String handleGetBalance(JsonNode r, String corrId) throws Exception {
+  /**
+   * Contadores en memoria de este nodo (no toca la base): cerrojos por cuenta, franjas
+   * calientes, reintentos optimistas y reintentos por base ocupada de cada shard.
+   */
+  private Reply handleGetServerStats(JsonNode r, String corrId) throws Exception {
+    int hot = r.hasNonNull("hot") ? r.get("hot").asInt() : 10;
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("accountLocks", accountLocks.stats(Math.max(0, hot)));
+    data.put("optimisticRetry", casRetry.stats());
+    List<Map<String, Object>> writes = new ArrayList<>();
+    for (int k = 0; k < shards.size(); k++) {
+      if (!shards.isLocal(k)) continue;
+      Map<String, Object> w = new LinkedHashMap<>();
+      w.put("shard", k);
+      w.putAll(shards.get(k).writeStats());
+      writes.add(w);
+    }
+    data.put("writes", writes);
+    data.put("scheduledTransfers", Map.of("fired", scheduled.fired(), "failed", scheduled.failed(),
+        "inMemory", scheduled.inMemory()));
+    return ok(data, corrId);
+  }
+
+  private Reply handleGetBalance(JsonNode r, String corrId) throws Exception {
     String accountId = reqStr(r, "accountId");
-    try (Connection c = sqlite.get()) {
+    try (Connection c = shards.forKey(accountId).read()) {
       Cuenta cu = accountRepo.findById(c, accountId);
-      c.commit();
       if (cu == null)
         return error("ACCOUNT_NOT_FOUND", corrId);
       Map<String, Object> data = Map.of(
@@ -110,51 +295,52 @@ public class BankService {
     }
   }
 
-  private String handleGetClientInfo(JsonNode r, String corrId) throws Exception {
+  private Reply handleGetClientInfo(JsonNode r, String corrId) throws Exception {
     String clientId = reqStr(r, "clientId");
-    try (Connection c = sqlite.get()) {
-      Cliente cli = clientRepo.findById(c, clientId);
-      if (cli == null) {
-        c.commit();
-        return error("CLIENT_NOT_FOUND", corrId);
-      }
-      
-      // Get all accounts for this client
-      List<Cuenta> accounts = accountRepo.findAllByClient(c, clientId);
-      c.commit();
-      
-      // Use LinkedHashMap to allow null values
-      Map<String, Object> data = new LinkedHashMap<>();
-      data.put("clientId", cli.idCliente());
-      data.put("dni", cli.dni());
-      data.put("nombres", cli.nombres());
-      // Combine apellidos
-      String apellidos = cli.apellidoPat();
-      if (cli.apellidoMat() != null && !cli.apellidoMat().isEmpty()) {
-        apellidos = apellidos + " " + cli.apellidoMat();
-      }
-      data.put("apellidos", apellidos);
-      data.put("direccion", cli.direccion());
-      data.put("telefono", cli.telefono());
-      data.put("correo", cli.correo());
-      data.put("fechaRegistro", String.valueOf(cli.fechaRegistro()).replace('T', ' '));
-      
-      List<Map<String, Object>> accountsList = new ArrayList<>();
-      for (Cuenta account : accounts) {
-        Map<String, Object> accountInfo = new LinkedHashMap<>();
-        accountInfo.put("accountId", account.idCuenta());
-        accountInfo.put("balance", account.saldo());
-        accountInfo.put("fechaApertura", account.fechaApertura().toString());
-        accountsList.add(accountInfo);
+    // Con shards el cliente está copiado donde tenga cuentas: se juntan las de todos
+    Cliente cli = null;
+    List<Cuenta> accounts = new ArrayList<>();
+    for (SQLite db : homeFirst(clientId)) {
+      try (Connection c = db.read()) {
+        Cliente found = clientRepo.findById(c, clientId);
+        if (found != null) {
+          if (cli == null) cli = found;
+          accounts.addAll(accountRepo.findAllByClient(c, clientId));
+        }
       }
-      data.put("accounts", accountsList);
-      data.put("totalAccounts", accountsList.size());
-      
-      return ok(data, corrId);
     }
+    if (cli == null) return error("CLIENT_NOT_FOUND", corrId);
+    // Use LinkedHashMap to allow null values
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("clientId", cli.idCliente());
+    data.put("dni", cli.dni());
+    data.put("nombres", cli.nombres());
+    // Combine apellidos
+    String apellidos = cli.apellidoPat();
+    if (cli.apellidoMat() != null && !cli.apellidoMat().isEmpty()) {
+      apellidos = apellidos + " " + cli.apellidoMat();
+    }
+    data.put("apellidos", apellidos);
+    data.put("direccion", cli.direccion());
+    data.put("telefono", cli.telefono());
+    data.put("correo", cli.correo());
+    data.put("fechaRegistro", String.valueOf(cli.fechaRegistro()).replace('T', ' '));
+    
+    List<Map<String, Object>> accountsList = new ArrayList<>();
+    for (Cuenta account : accounts) {
+      Map<String, Object> accountInfo = new LinkedHashMap<>();
+      accountInfo.put("accountId", account.idCuenta());
+      accountInfo.put("balance", account.saldo());
+      accountInfo.put("fechaApertura", account.fechaApertura().toString());
+      accountsList.add(accountInfo);
+    }
+    data.put("accounts", accountsList);
+    data.put("totalAccounts", accountsList.size());
+    
+    return ok(data, corrId);
   }
 
-  private String handleListTransactions(JsonNode r, String corrId) throws Exception {
+  private Reply handleListTransactions(JsonNode r, String corrId) throws Exception {
     String accountId = reqStr(r, "accountId");
     String fromRaw = optStr(r, "from", "0001-01-01");
     String toRaw = optStr(r, "to", "9999-12-31");
@@ -164,16 +350,12 @@ public class BankService {
     int limit = optInt(r, "limit", 100);
     int offset = optInt(r, "offset", 0);
 
-    try (Connection c = sqlite.get()) {
+    try (Connection c = shards.forKey(accountId).read()) {
       // Get account info for balance
       Cuenta cuenta = accountRepo.findById(c, accountId);
-      if (cuenta == null) {
-        c.commit();
-        return error("ACCOUNT_NOT_FOUND", corrId);
-      }
+      if (cuenta == null) return error("ACCOUNT_NOT_FOUND", corrId);
       
       List<Transaccion> items = txRepo.listByAccountAndDate(c, accountId, from, to, limit, offset);
-      c.commit();
       List<Map<String, Object>> list = new ArrayList<>();
       for (Transaccion t : items) {
         java.util.Map<String, Object> it = new java.util.LinkedHashMap<>();
@@ -184,6 +366,7 @@ public class BankService {
         it.put("tipo", t.tipo().toString());
         it.put("monto", t.monto());
         it.put("fecha", t.fecha() == null ? null : t.fecha().toString().replace('T', ' '));
+        it.put("balanceAfter", t.saldoPosterior()); // null en filas históricas aún sin backfill
         if (t.metadata() != null) {
           try {
             com.fasterxml.jackson.databind.JsonNode meta = om.readTree(t.metadata());
@@ -207,35 +390,147 @@ public class BankService {
     }
   }
 
-  /* ======================= WRITES (idempotent) ======================= */
+  /**
+   * Saldo de la cuenta a un instante dado, con una búsqueda por índice sobre
+   * TRANSACCIONES.saldo_posterior (sin sumar el historial). {@code at} acepta fecha
+   * (se toma el fin de ese día) o fecha-hora ISO; todo en UTC.
+   */
+  private Reply handleGetBalanceAt(JsonNode r, String corrId) throws Exception {
+    String accountId = reqStr(r, "accountId");
+    String at = normalizeTimestampParam(reqStr(r, "at"));
+    if (at == null) return error("VALIDATION_ERROR: at must be YYYY-MM-DD or YYYY-MM-DDTHH:MM:SS", corrId);
 
-  /** Login por DNI y password (solo lectura; no requiere idempotencia). */
-  private String handleLogin(JsonNode r, String corrId) throws Exception {
-    JsonNode src = r.has("payload") ? r.get("payload") : r;
-    String dni = src.hasNonNull("dni") ? src.get("dni").asText() : reqStr(src, "usuario");
-    String password = reqStr(src, "password");
-    try (Connection c = sqlite.get()) {
-      var cli = clientRepo.authenticate(c, dni, password);
-      c.commit();
-      if (cli == null) return error("INVALID_CREDENTIALS", corrId);
-      var acct = accountRepo.findAnyByClient(c, cli.idCliente());
+    try (Connection c = shards.forKey(accountId).read()) {
+      Cuenta cuenta = accountRepo.findById(c, accountId);
+      if (cuenta == null) return error("ACCOUNT_NOT_FOUND", corrId);
+      TxRepo.BalanceAt b = txRepo.balanceAt(c, accountId, at);
+      Map<String, Object> data = new LinkedHashMap<>();
+      data.put("accountId", accountId);
+      data.put("at", at);
+      // Sin movimientos: el saldo nunca cambió
+      data.put("balance", b == null ? cuenta.saldo() : b.balance());
+      data.put("asOfTxId", b == null ? null : b.txId());
+      data.put("secuencia", b == null ? null : b.secuencia());
+      data.put("currency", "PEN");
+      return ok(data, corrId);
+    }
+  }
+
+  /**
+   * Totales por tipo en un rango de días, leídos de CUENTA_RESUMEN_DIARIO (una fila por
+   * día y tipo) en vez de recorrer TRANSACCIONES. Por defecto: mes en curso (UTC).
+   */
+  private Reply handleGetAccountSummary(JsonNode r, String corrId) throws Exception {
+    String accountId = reqStr(r, "accountId");
+    java.time.LocalDate today = java.time.LocalDate.now(java.time.ZoneOffset.UTC);
+    String from = normalizeDateParam(optStr(r, "from", null), today.withDayOfMonth(1).toString());
+    String to = normalizeDateParam(optStr(r, "to", null), today.toString());
+    boolean daily = r.path("daily").asBoolean(false);
+
+    try (Connection c = shards.forKey(accountId).read()) {
+      Cuenta cuenta = accountRepo.findById(c, accountId);
+      if (cuenta == null) return error("ACCOUNT_NOT_FOUND", corrId);
+      List<SummaryRepo.DailySummary> totals = summaryRepo.totalsByType(c, accountId, from, to);
+      List<SummaryRepo.DailySummary> days = daily ? summaryRepo.daily(c, accountId, from, to) : List.of();
+
+      Map<String, Object> byType = new LinkedHashMap<>();
+      BigDecimal net = BigDecimal.ZERO;
+      for (SummaryRepo.DailySummary s : totals) {
+        byType.put(s.tipo().toString(), summaryMap(s));
+        net = s.tipo() == TipoTransaccion.deposito ? net.add(s.total()) : net.subtract(s.total());
+      }
       Map<String, Object> data = new LinkedHashMap<>();
-      data.put("clientId", cli.idCliente());
-      // Alias para clientes web en español
-      data.put("clienteId", cli.idCliente());
-      data.put("dni", cli.dni());
-      if (acct != null) {
-        data.put("accountId", acct.idCuenta());
-        data.put("balance", acct.saldo());
+      data.put("accountId", accountId);
+      data.put("from", from);
+      data.put("to", to);
+      data.put("currentBalance", cuenta.saldo());
+      data.put("totals", byType);
+      data.put("net", net);
+      if (daily) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (SummaryRepo.DailySummary s : days) {
+          Map<String, Object> it = summaryMap(s);
+          it.put("dia", s.dia());
+          it.put("tipo", s.tipo().toString());
+          list.add(it);
+        }
+        data.put("days", list);
       }
-      // Agregar banderita de compatibilidad
-      data.put("status", "ok");
       return ok(data, corrId);
     }
   }
 
+  private static Map<String, Object> summaryMap(SummaryRepo.DailySummary s) {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("count", s.cantidad());
+    m.put("total", s.total());
+    m.put("min", s.minimo());
+    m.put("max", s.maximo());
+    return m;
+  }
+
+  /* ======================= WRITES (idempotent) ======================= */
+
+  /**
+   * Login por DNI y password, o por {@code sessionToken} de un Login anterior (solo lectura;
+   * no requiere idempotencia). El PBKDF2 corre en el pool acotado de CredentialVerifier; sin
+   * cupo responde OVERLOADED sin esperar. Credenciales ya verificadas dentro del TTL de la
+   * sesión no vuelven a calcular el hash ni a consultar CLIENTES.
+   */
+  private Reply handleLogin(JsonNode r, String corrId) throws Exception {
+    JsonNode src = r.has("payload") ? r.get("payload") : r;
+    String token = optStr(src, "sessionToken", null);
+    Sessions.Session session;
+    if (token != null) {
+      session = sessions.get(token);
+      if (session == null) return error("INVALID_SESSION", corrId);
+    } else {
+      String dni = src.hasNonNull("dni") ? src.get("dni").asText() : reqStr(src, "usuario");
+      String password = reqStr(src, "password");
+      String clientId = sessions.recentLogin(dni, password);
+      if (clientId == null) {
+        ClientRepo.Credential cred = null;
+        for (SQLite db : homeFirst(dni)) {
+          try (Connection c = db.read()) {
+            cred = clientRepo.findCredential(c, dni);
+          }
+          if (cred != null) break;
+        }
+        // DNI inexistente: se verifica igual (contra un hash ficticio) para no delatarlo por el tiempo
+        Boolean valid = credentials.verify(password, cred == null ? null : cred.password());
+        if (valid == null) return overloaded(credentials.retryAfterMillis(), corrId);
+        if (!valid || cred == null) return error("INVALID_CREDENTIALS", corrId);
+        clientId = cred.clientId();
+        sessions.rememberLogin(dni, password, clientId);
+      }
+      // En cluster el token debe caer en un shard de este nodo: ahí se enrutará el siguiente Login
+      session = sessions.issue(clientId, dni, t -> shards.isLocal(shards.indexOf(t)));
+    }
+    Cuenta acct = null;
+    for (SQLite db : homeFirst(session.clientId())) {
+      try (Connection c = db.read()) {
+        acct = accountRepo.findAnyByClient(c, session.clientId());
+      }
+      if (acct != null) break;
+    }
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("clientId", session.clientId());
+    // Alias para clientes web en español
+    data.put("clienteId", session.clientId());
+    data.put("dni", session.dni());
+    if (acct != null) {
+      data.put("accountId", acct.idCuenta());
+      data.put("balance", acct.saldo());
+    }
+    data.put("sessionToken", session.token());
+    data.put("sessionExpiresAt", java.time.Instant.ofEpochMilli(session.expiresAt()).toString());
+    // Agregar banderita de compatibilidad
+    data.put("status", "ok");
+    return ok(data, corrId);
+  }
+
   /** Registro de cliente + creación de cuenta vacía. Requiere idempotencia. */
-  private String handleRegister(JsonNode r, String corrId) throws Exception {
+  private Reply handleRegister(JsonNode r, String corrId) throws Exception {
     JsonNode p = r.has("payload") ? r.get("payload") : r;
     String msgId = optStr(r, "messageId", optStr(p, "messageId", null));
     if (msgId == null) throw new IllegalArgumentException("MISSING_messageId");
@@ -249,318 +544,693 @@ public class BankService {
     String telefono = optStr(p, "telefono", null);
     String correo = optStr(p, "correo", null);
     java.math.BigDecimal initial = p.hasNonNull("saldo") ? new java.math.BigDecimal(p.get("saldo").asText()) : java.math.BigDecimal.ZERO;
-
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
-      }
-
-      // Unicidad por DNI
-      if (clientRepo.findByDni(c, dni) != null) {
-        c.rollback();
-        return error("CLIENT_ALREADY_EXISTS", corrId);
+    // Hash antes de abrir la transacción: no retener el escritor de SQLite durante el PBKDF2
+    String passwordHash = credentials.hash(password);
+    if (passwordHash == null) return overloaded(credentials.retryAfterMillis(), corrId);
+
+    // El cliente y su primera cuenta van al shard del DNI; la unicidad se revisa también en
+    // los demás (clientes de una base partida pueden estar en cualquiera)
+    int shard = shards.indexOf(dni);
+    for (int k = 0; k < shards.size(); k++) {
+      if (!shards.isLocal(k)) continue;
+      try (Connection c = shards.get(k).read()) {
+        boolean duplicate = k == shard && messageRepo.alreadyProcessed(c, msgId);
+        boolean exists = clientRepo.findByDni(c, dni) != null;
+        if (duplicate) return ok(Map.of("duplicate", true), corrId);
+        if (exists) return error("CLIENT_ALREADY_EXISTS", corrId);
       }
+    }
 
-      // RENIEC validation (RPC); fail if not valid
-      var v = reniec.verify(dni); // should throw or return a struct {valid, ...}
-      if (!v.valid()) {
-        c.rollback();
-        return error("RENIEC_INVALID_ID", corrId);
-      }
-
-      String clientId = cc4p1.bank.util.Ids.client();
-      var cli = new cc4p1.bank.domain.Cliente(clientId, dni, nombres, apePat, apeMat, direccion, telefono, correo, java.time.LocalDateTime.now());
-      clientRepo.insert(c, cli, password);
-
-      // Crear cuenta con saldo inicial
-      String accountId = cc4p1.bank.util.Ids.account();
-      var cu = new cc4p1.bank.domain.Cuenta(accountId, clientId, initial, java.time.LocalDate.now());
-      accountRepo.insert(c, cu);
-
-      messageRepo.markProcessed(c, msgId);
-      c.commit();
-      java.util.Map<String, Object> data = new java.util.LinkedHashMap<>();
-      data.put("clientId", clientId);
-      // Alias para clientes web en español
-      data.put("clienteId", clientId);
-      data.put("accountId", accountId);
-      data.put("initialBalance", initial);
-      data.put("status", "ok");
-      return ok(data, corrId);
+    // RENIEC validation (RPC) antes de pedir el escritor: no retenerlo durante la llamada
+    var v = reniec.verify(dni); // should throw or return a struct {valid, ...}
+    if (!v.valid()) return error("RENIEC_INVALID_ID", corrId);
+
+    try (var lock = shards.lockWrite(shard)) {
+      return shards.get(shard).write(c -> {
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+
+        // Unicidad por DNI (otra alta pudo entrar desde la lectura)
+        if (clientRepo.findByDni(c, dni) != null) return error("CLIENT_ALREADY_EXISTS", corrId);
+
+        String clientId = idInShard(cc4p1.bank.util.Ids::client, shard);
+        var cli = new cc4p1.bank.domain.Cliente(clientId, dni, nombres, apePat, apeMat, direccion, telefono, correo, java.time.LocalDateTime.now());
+        clientRepo.insert(c, cli, passwordHash);
+
+        // Crear cuenta con saldo inicial
+        String accountId = idInShard(cc4p1.bank.util.Ids::account, shard);
+        var cu = new cc4p1.bank.domain.Cuenta(accountId, clientId, initial, java.time.LocalDate.now());
+        accountRepo.insert(c, cu);
+
+        messageRepo.markProcessed(c, msgId);
+        java.util.Map<String, Object> data = new java.util.LinkedHashMap<>();
+        data.put("clientId", clientId);
+        // Alias para clientes web en español
+        data.put("clienteId", clientId);
+        data.put("accountId", accountId);
+        data.put("initialBalance", initial);
+        data.put("status", "ok");
+        return ok(data, corrId);
+      });
     }
   }
 
-  private String handleDeposit(JsonNode r, String corrId) throws Exception {
+  private Reply handleDeposit(JsonNode r, String corrId) throws Exception {
     String msgId = reqStr(r, "messageId");
     String accountId = reqStr(r, "accountId");
     BigDecimal amount = reqBig(r, "amount");
 
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
-      }
-      String txId = Ids.tx();
-      txRepo.deposit(c, accountRepo, txId, accountId, amount, null);
-      messageRepo.markProcessed(c, msgId);
-      var newBal = accountRepo.findById(c, accountId).saldo();
-      c.commit();
-      return ok(Map.of("accountId", accountId, "newBalance", newBal, "txId", txId), corrId);
+    int shard = shards.indexOf(accountId);
+    try (var held = accountLocks.acquire(accountId); var lock = shards.lockWrite(shard)) {
+      return shards.get(shard).write(c -> {
+          if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+          String txId = Ids.tx();
+          txRepo.deposit(c, accountRepo, txId, accountId, amount, null);
+          messageRepo.markProcessed(c, msgId);
+          var newBal = accountRepo.findById(c, accountId).saldo();
+          return ok(Map.of("accountId", accountId, "newBalance", newBal, "txId", txId), corrId);
+      });
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
     }
   }
 
-  private String handleWithdraw(JsonNode r, String corrId) throws Exception {
+  private Reply handleWithdraw(JsonNode r, String corrId) throws Exception {
     String msgId = reqStr(r, "messageId");
     String accountId = reqStr(r, "accountId");
     BigDecimal amount = reqBig(r, "amount");
-
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
-      }
-      String txId = Ids.tx();
-      txRepo.withdraw(c, accountRepo, txId, accountId, amount, null); // throws if insufficient
-      messageRepo.markProcessed(c, msgId);
-      var newBal = accountRepo.findById(c, accountId).saldo();
-      c.commit();
-      return ok(Map.of("accountId", accountId, "newBalance", newBal, "txId", txId), corrId);
+    if (!dailyLimits.tryReserve(accountId, amount)) return dailyLimitExceeded(accountId, corrId);
+
+    boolean committed = false;
+    var applied = new AtomicBoolean();
+    int shard = shards.indexOf(accountId);
+    try (var held = accountLocks.acquire(accountId); var lock = shards.lockWrite(shard)) {
+      Reply res = shards.get(shard).write(c -> {
+        applied.set(false);
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+        String txId = Ids.tx();
+        txRepo.withdraw(c, accountRepo, txId, accountId, amount, null); // throws if insufficient
+        messageRepo.markProcessed(c, msgId);
+        var newBal = accountRepo.findById(c, accountId).saldo();
+        applied.set(true);
+        return ok(Map.of("accountId", accountId, "newBalance", newBal, "txId", txId), corrId);
+      });
+      committed = applied.get();
+      return res;
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
+    } finally {
+      if (!committed) dailyLimits.release(accountId, amount);
     }
   }
 
-  private String handleTransfer(JsonNode r, String corrId) throws Exception {
+  private Reply handleTransfer(JsonNode r, String corrId) throws Exception {
     String msgId = reqStr(r, "messageId");
     String from = reqStr(r, "fromAccountId");
     String to = reqStr(r, "toAccountId");
     BigDecimal amount = reqBig(r, "amount");
     // Optional metadata object (e.g., {"note":"..."})
-    String metadataJson = null;
-    if (r.has("metadata") && !r.get("metadata").isNull()) {
-      metadataJson = om.writeValueAsString(r.get("metadata"));
-    }
+    String metadataJson = r.hasNonNull("metadata") ? om.writeValueAsString(r.get("metadata")) : null;
     if (from.equals(to))
       return error("SAME_ACCOUNT", corrId);
+    if (!dailyLimits.tryReserve(from, amount)) return dailyLimitExceeded(from, corrId);
+
+    int shard = shards.indexOf(from);
+    if (shard != shards.indexOf(to)) return handleCrossShardTransfer(msgId, from, to, amount, metadataJson, corrId);
+
+    boolean committed = false;
+    var applied = new AtomicBoolean();
+    // Ambas cuentas en orden de franja (AccountLocks): A→B y B→A a la vez no se traban
+    try (var held = accountLocks.acquire(from, to); var lock = shards.lockWrite(shard)) {
+      Reply res = shards.get(shard).write(c -> {
+        applied.set(false);
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+        String transferId = Ids.transfer();
+        String txId = Ids.tx();
+
+        txRepo.transfer(c, transferId, txId, from, to, amount, accountRepo, metadataJson);
+
+        messageRepo.markProcessed(c, msgId);
+        var fromAcc = accountRepo.findById(c, from);
+        var toAcc = accountRepo.findById(c, to);
+        var fromBal = fromAcc.saldo();
+        var toBal = toAcc.saldo();
+
+        // Obtener nombre del titular de la cuenta destino
+        String receivingClientName = clientName(c, toAcc.idCliente());
+        applied.set(true);
+
+        // Usar LinkedHashMap para permitir posibles valores nulos
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("txId", txId);
+        data.put("transferId", transferId);
+        data.put("fromAccountId", from);
+        data.put("toAccountId", to);
+        data.put("fromAccountNewBalance", fromBal);
+        data.put("toAccountNewBalance", toBal);
+        data.put("receivingClientName", receivingClientName);
+        if (metadataJson != null) {
+          data.put("metadata", om.readTree(metadataJson));
+        }
+        return ok(data, corrId);
+      });
+      committed = applied.get();
+      return res;
+    } catch (Exception e) {
+      return error(e.getMessage(), corrId);
+    } finally {
+      if (!committed) dailyLimits.release(from, amount);
+    }
+  }
 
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
-      }
+  /**
+   * Transfer entre cuentas de shards distintos (ver {@link CrossShardTransfers}). Si el crédito
+   * no se pudo aplicar todavía, responde ok con {@code settlement: "pending"} y sin saldo
+   * destino: el débito ya es durable y la recuperación termina la transferencia.
+   */
+  private Reply handleCrossShardTransfer(String msgId, String from, String to, BigDecimal amount,
+      String metadataJson, String corrId) {
+    boolean committed = false;
+    try {
       String transferId = Ids.transfer();
-      String txId = Ids.tx();
+      var res = crossShard.transfer(msgId, transferId, from, to, amount, metadataJson);
+      if (res.duplicate()) return ok(Map.of("duplicate", true), corrId);
+      committed = true;
 
-  txRepo.transfer(c, transferId, txId, from, to, amount, accountRepo, metadataJson);
-
-      messageRepo.markProcessed(c, msgId);
-      var fromAcc = accountRepo.findById(c, from);
-      var toAcc = accountRepo.findById(c, to);
-      var fromBal = fromAcc.saldo();
-      var toBal = toAcc.saldo();
-
-      // Obtener nombre del titular de la cuenta destino
-      var recvClient = clientRepo.findById(c, toAcc.idCliente());
+      // Destino en otro nodo: el nombre no se consulta (la respuesta no espera a ese nodo)
       String receivingClientName = null;
-      if (recvClient != null) {
-        StringBuilder sb = new StringBuilder();
-        if (recvClient.nombres() != null && !recvClient.nombres().isEmpty()) sb.append(recvClient.nombres());
-        if (recvClient.apellidoPat() != null && !recvClient.apellidoPat().isEmpty()) {
-          if (sb.length() > 0) sb.append(' ');
-          sb.append(recvClient.apellidoPat());
-        }
-        if (recvClient.apellidoMat() != null && !recvClient.apellidoMat().isEmpty()) {
-          if (sb.length() > 0) sb.append(' ');
-          sb.append(recvClient.apellidoMat());
+      if (shards.isLocal(shards.indexOf(to))) {
+        try (Connection c = shards.forKey(to).read()) {
+          var toAcc = accountRepo.findById(c, to);
+          if (toAcc != null) receivingClientName = clientName(c, toAcc.idCliente());
         }
-        receivingClientName = sb.toString();
       }
-      c.commit();
-
-      // Usar LinkedHashMap para permitir posibles valores nulos
       Map<String, Object> data = new LinkedHashMap<>();
-      data.put("txId", txId);
+      data.put("txId", res.txId());
       data.put("transferId", transferId);
       data.put("fromAccountId", from);
       data.put("toAccountId", to);
-      data.put("fromAccountNewBalance", fromBal);
-      data.put("toAccountNewBalance", toBal);
+      data.put("fromAccountNewBalance", res.fromBalance());
+      data.put("toAccountNewBalance", res.toBalance());
       data.put("receivingClientName", receivingClientName);
+      data.put("settlement", res.settlement());
       if (metadataJson != null) {
         data.put("metadata", om.readTree(metadataJson));
       }
       return ok(data, corrId);
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
+    } finally {
+      if (!committed) dailyLimits.release(from, amount);
+    }
+  }
+
+  /** Nombre completo del titular, o null si el cliente no está en esta conexión. */
+  private String clientName(Connection c, String clientId) throws Exception {
+    var recvClient = clientRepo.findById(c, clientId);
+    if (recvClient == null) return null;
+    StringBuilder sb = new StringBuilder();
+    if (recvClient.nombres() != null && !recvClient.nombres().isEmpty()) sb.append(recvClient.nombres());
+    if (recvClient.apellidoPat() != null && !recvClient.apellidoPat().isEmpty()) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append(recvClient.apellidoPat());
+    }
+    if (recvClient.apellidoMat() != null && !recvClient.apellidoMat().isEmpty()) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append(recvClient.apellidoMat());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Estado de una transferencia en el registro de su shard origen; la consulta el nodo destino
+   * antes de acreditar (ver {@link CrossShardTransfers#creditFromPeer}).
+   */
+  private Reply handleGetPreparedTransfer(JsonNode r, String corrId) throws Exception {
+    TransferLogRepo.Logged logged = crossShard.findLogged(reqStr(r, "fromAccountId"), reqStr(r, "transferId"));
+    if (logged == null) return error("TRANSFER_NOT_FOUND", corrId);
+    TransferLogRepo.Pending t = logged.transfer();
+    return ok(Map.of("transferId", t.transferId(), "fromAccountId", t.fromAccountId(), "toAccountId", t.toAccountId(),
+        "amount", t.amount(), "estado", logged.estado()), corrId);
+  }
+
+  /**
+   * Pata de crédito de una transferencia que empezó en otro nodo, solo con el débito
+   * preparado en el origen. Idempotente por {@code transferId}: repetirla devuelve el saldo sin
+   * acreditar de nuevo.
+   */
+  private Reply handleCreditTransfer(JsonNode r, String corrId) throws Exception {
+    String transferId = reqStr(r, "transferId");
+    String from = reqStr(r, "fromAccountId");
+    String to = reqStr(r, "toAccountId");
+    BigDecimal amount = reqBig(r, "amount");
+    String metadataJson = r.hasNonNull("metadata") ? om.writeValueAsString(r.get("metadata")) : null;
+    try {
+      BigDecimal newBal = crossShard.creditFromPeer(new TransferLogRepo.Pending(transferId, from, to, amount, metadataJson));
+      return ok(Map.of("transferId", transferId, "accountId", to, "newBalance", newBal), corrId);
+    } catch (Exception e) {
+      return error(e.getMessage(), corrId);
     }
   }
 
-  private String handleCreateLoan(JsonNode r, String corrId) throws Exception {
+  private Reply handleCreateLoan(JsonNode r, String corrId) throws Exception {
     String msgId = reqStr(r, "messageId");
     String clientId = reqStr(r, "clientId");
     String accountId = reqStr(r, "accountId"); // where to credit the loan
     BigDecimal principal = reqBig(r, "principal");
 
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
-      }
-
-      // 1) Validate client exists
-      var cli = clientRepo.findById(c, clientId);
-      if (cli == null) {
-        c.rollback();
-        return error("CLIENT_NOT_FOUND", corrId);
-      }
-
-      // 2) Validate account exists and belongs to client
-      var account = accountRepo.findById(c, accountId);
-      if (account == null) {
-        c.rollback();
-        return error("ACCOUNT_NOT_FOUND", corrId);
-      }
-      if (!account.idCliente().equals(clientId)) {
-        c.rollback();
-        return error("ACCOUNT_NOT_OWNED_BY_CLIENT", corrId);
-      }
-
-      // 3) RENIEC validation (RPC); fail if not valid
-      var v = reniec.verify(cli.dni()); // should throw or return a struct {valid, ...}
-      if (!v.valid()) {
-        c.rollback();
-        return error("RENIEC_INVALID_ID", corrId);
+    // El préstamo vive en el shard de la cuenta que recibe el crédito
+    int shard = shards.indexOf(accountId);
+    try {
+      // 1-3) Validaciones y RENIEC (RPC) en una lectura, sin retener el escritor
+      String dni;
+      try (Connection c = shards.get(shard).read()) {
+        boolean duplicate = messageRepo.alreadyProcessed(c, msgId);
+        var cli = clientRepo.findById(c, clientId);
+        var account = accountRepo.findById(c, accountId);
+        if (duplicate) return ok(Map.of("duplicate", true), corrId);
+        if (cli == null) return error("CLIENT_NOT_FOUND", corrId);
+        if (account == null) return error("ACCOUNT_NOT_FOUND", corrId);
+        if (!account.idCliente().equals(clientId)) return error("ACCOUNT_NOT_OWNED_BY_CLIENT", corrId);
+        dni = cli.dni();
       }
+      var v = reniec.verify(dni); // should throw or return a struct {valid, ...}
+      if (!v.valid()) return error("RENIEC_INVALID_ID", corrId);
 
       // 4) Create loan and credit account
-      String loanId = Ids.loan();
-      loanRepo.createAndCredit(c, loanId, clientId, accountId, principal, txRepo, accountRepo);
-
-      messageRepo.markProcessed(c, msgId);
-      var newBal = accountRepo.findById(c, accountId).saldo();
-      c.commit();
-
-      Map<String, Object> data = Map.of(
-          "loanId", loanId, "clientId", clientId,
-          "creditedAccountId", accountId,
-          "principal", principal, "status", "activo",
-          "newBalance", newBal);
-      return ok(data, corrId);
+      try (var held = accountLocks.acquire(accountId); var lock = shards.lockWrite(shard)) {
+        return shards.get(shard).write(c -> {
+          if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+          String loanId = Ids.loan();
+          loanRepo.createAndCredit(c, loanId, clientId, accountId, principal, txRepo, accountRepo);
+
+          messageRepo.markProcessed(c, msgId);
+          var newBal = accountRepo.findById(c, accountId).saldo();
+
+          Map<String, Object> data = Map.of(
+              "loanId", loanId, "clientId", clientId,
+              "creditedAccountId", accountId,
+              "principal", principal, "status", "activo",
+              "newBalance", newBal);
+          return ok(data, corrId);
+        });
+      }
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
     }
   }
 
-  private String handlePayLoan(JsonNode r, String corrId) throws Exception {
+  private Reply handlePayLoan(JsonNode r, String corrId) throws Exception {
     String msgId = reqStr(r, "messageId");
     String loanId = reqStr(r, "loanId");
     String accountId = reqStr(r, "accountId");
     BigDecimal amount = reqBig(r, "amount");
-
-    try (Connection c = sqlite.get()) {
-      if (messageRepo.alreadyProcessed(c, msgId)) {
-        c.rollback();
-        return ok(Map.of("duplicate", true), corrId);
+    try {
+      try {
+        return casRetry.run("PayLoan", () -> payLoanOnce(msgId, loanId, accountId, amount, corrId));
+      } catch (SQLException e) {
+        if (!OptimisticRetry.CONFLICT.equals(e.getMessage())) throw e;
+        // Agotados los intentos optimistas: uno más con la cuenta tomada desde la lectura, así
+        // otro pago desde la misma cuenta no puede volver a ganar la carrera
+        try (var held = accountLocks.acquire(accountId)) {
+          return payLoanOnce(msgId, loanId, accountId, amount, corrId);
+        }
       }
+    } catch (Exception e) {
+      return error(e.getMessage(), corrId);
+    }
+  }
 
-      // Validate loan
-      var loan = loanRepo.findById(c, loanId);
-      if (loan == null) {
-        c.rollback();
-        return error("LOAN_NOT_FOUND", corrId);
-      }
-      if (amount.signum() <= 0) {
-        c.rollback();
-        return error("VALIDATION_ERROR: amount must be > 0", corrId);
-      }
-      if (amount.compareTo(loan.montoPendiente()) > 0) {
-        c.rollback();
-        return error("OVERPAYMENT", corrId);
-      }
+  /**
+   * Un intento de PayLoan. El préstamo se lee y valida en una conexión de lectura,
+   * sin cerrojos ni cupo de escritura; la escritura lo actualiza con compare-and-set sobre la
+   * versión leída. Si otro pago llegó antes, VERSION_CONFLICT revierte todo (débito incluido)
+   * y {@link OptimisticRetry} repite el intento.
+   */
+  private Reply payLoanOnce(String msgId, String loanId, String accountId, BigDecimal amount, String corrId)
+      throws Exception {
+    int shard = shards.indexOf(accountId);
+    Prestamo loan;
+    try (Connection c = shards.get(shard).read()) {
+      if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+      loan = loanRepo.findById(c, loanId);
+    }
+    if (loan == null) {
+      // Préstamo de otro shard: pagarlo desde esta cuenta sería una escritura en dos bases
+      return error(loanInOtherShard(loanId, shard) ? "CROSS_SHARD_NOT_SUPPORTED" : "LOAN_NOT_FOUND", corrId);
+    }
+    if (amount.signum() <= 0) return error("VALIDATION_ERROR: amount must be > 0", corrId);
+    if (amount.compareTo(loan.montoPendiente()) > 0) return error("OVERPAYMENT", corrId);
+
+    try (var held = accountLocks.acquire(accountId); var lock = shards.lockWrite(shard)) {
+      return shards.get(shard).write(c -> {
+          if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+
+          // Ensure account exists
+          if (accountRepo.findById(c, accountId) == null) return error("ACCOUNT_NOT_FOUND", corrId);
+
+          // 1) Debit account and log 'deuda' transaction
+          String txId = Ids.tx();
+          txRepo.payDebt(c, accountRepo, txId, accountId, amount, loanId);
+
+          // 2) Apply payment to loan (solo si sigue en la versión validada)
+          var updated = loanRepo.applyPayment(c, loan, amount);
+
+          messageRepo.markProcessed(c, msgId);
+          var newBal = accountRepo.findById(c, accountId).saldo();
+
+          Map<String, Object> data = new LinkedHashMap<>();
+          data.put("txId", txId);
+          data.put("loanId", loanId);
+          data.put("accountId", accountId);
+          data.put("paid", amount);
+          data.put("newBalance", newBal);
+          data.put("newPending", updated.montoPendiente());
+          data.put("status", updated.estado().toString());
+          return ok(data, corrId);
+      });
+    }
+  }
 
-      // Ensure account exists
-      var account = accountRepo.findById(c, accountId);
-      if (account == null) {
-        c.rollback();
-        return error("ACCOUNT_NOT_FOUND", corrId);
+  private boolean loanInOtherShard(String loanId, int shard) throws Exception {
+    for (int k = 0; k < shards.size(); k++) {
+      if (k == shard || !shards.isLocal(k)) continue;
+      try (Connection c = shards.get(k).read()) {
+        boolean found = loanRepo.findById(c, loanId) != null;
+        if (found) return true;
       }
+    }
+    return false;
+  }
 
-      // 1) Debit account and log 'deuda' transaction
-      String txId = Ids.tx();
-      txRepo.payDebt(c, accountRepo, txId, accountId, amount);
-
-      // 2) Apply payment to loan
-      var updated = loanRepo.applyPayment(c, loanId, amount);
+  /** Máximo de patas por lote (acota el tamaño de la transacción de escritura). */
+  private static final int MAX_BATCH_LEGS = 50_000;
 
-      messageRepo.markProcessed(c, msgId);
-      var newBal = accountRepo.findById(c, accountId).saldo();
-      c.commit();
+  /**
+   * BatchDeposit / BatchTransfer: aplica todas las patas en una sola transacción y responde una vez.
+   * mode=allOrNothing (por defecto): la primera pata inválida revierte el lote completo.
+   * mode=bestEffort: cada pata corre bajo un SAVEPOINT; las que fallan se revierten solas y se informan.
+   * Las filas de TRANSACCIONES se insertan al final con INSERT multi-fila.
+   * Cada pata de BatchTransfer reserva su monto del tope diario de la cuenta origen, como
+   * Transfer: sin cupo la pata falla con DAILY_LIMIT_EXCEEDED, y lo reservado se libera si el
+   * lote no se confirma.
+   */
+  private Reply handleBatch(JsonNode r, String corrId, boolean transfers) throws Exception {
+    String msgId = reqStr(r, "messageId");
+    String mode = optStr(r, "mode", "allOrNothing");
+    boolean bestEffort;
+    if ("bestEffort".equalsIgnoreCase(mode)) bestEffort = true;
+    else if ("allOrNothing".equalsIgnoreCase(mode)) bestEffort = false;
+    else return error("VALIDATION_ERROR: mode must be allOrNothing or bestEffort", corrId);
+    JsonNode legs = r.get("legs");
+    if (legs == null || !legs.isArray() || legs.isEmpty())
+      return error("VALIDATION_ERROR: legs must be a non-empty array", corrId);
+    if (legs.size() > MAX_BATCH_LEGS)
+      return error("VALIDATION_ERROR: too many legs (max " + MAX_BATCH_LEGS + ")", corrId);
+    // Un lote es una sola transacción: todas sus cuentas deben estar en el mismo shard
+    int shard = batchShard(legs);
+    if (shard < 0) return error("CROSS_SHARD_NOT_SUPPORTED", corrId);
+
+    // Filas del intento en curso; sus 'retiro' son también las reservas del tope diario
+    List<TxRepo.TxRow> rows = new ArrayList<>(transfers ? legs.size() * 2 : legs.size());
+    boolean committed = false;
+    try (var held = accountLocks.acquire(batchAccounts(legs)); var lock = shards.lockWrite(shard)) {
+      Reply response = shards.get(shard).write(c -> {
+        // Reintento por base ocupada: lo reservado por el intento anterior se devuelve
+        releaseOutflows(rows);
+        rows.clear();
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+
+        List<Map<String, Object>> results = new ArrayList<>(legs.size());
+        int applied = 0;
+        for (int i = 0; i < legs.size(); i++) {
+          JsonNode leg = legs.get(i);
+          Map<String, Object> res = new LinkedHashMap<>();
+          res.put("index", i);
+          Savepoint sp = bestEffort ? c.setSavepoint() : null;
+          try {
+            BigDecimal amount = reqBig(leg, "amount");
+            if (amount.signum() <= 0) throw new IllegalArgumentException("VALIDATION_ERROR: amount must be > 0");
+            String txId = Ids.tx();
+            if (transfers) {
+              String from = reqStr(leg, "fromAccountId");
+              String to = reqStr(leg, "toAccountId");
+              if (from.equals(to)) throw new IllegalArgumentException("SAME_ACCOUNT");
+              String meta = leg.hasNonNull("metadata") ? om.writeValueAsString(leg.get("metadata")) : null;
+              String transferId = Ids.transfer();
+              if (!dailyLimits.tryReserve(from, amount)) throw new IllegalArgumentException("DAILY_LIMIT_EXCEEDED");
+              try {
+                accountRepo.changeBalance(c, from, amount.negate());
+                accountRepo.changeBalance(c, to, amount);
+              } catch (Exception e) {
+                dailyLimits.release(from, amount);
+                throw e;
+              }
+              rows.add(new TxRepo.TxRow(txId, transferId, from, to, meta, TipoTransaccion.retiro, amount));
+              rows.add(new TxRepo.TxRow(Ids.tx(), transferId, to, to, meta, TipoTransaccion.deposito, amount));
+              res.put("transferId", transferId);
+            } else {
+              String accountId = reqStr(leg, "accountId");
+              accountRepo.changeBalance(c, accountId, amount);
+              rows.add(new TxRepo.TxRow(txId, null, accountId, null, null, TipoTransaccion.deposito, amount));
+            }
+            if (sp != null) c.releaseSavepoint(sp);
+            res.put("ok", true);
+            res.put("txId", txId);
+            applied++;
+          } catch (Exception e) {
+            if (!bestEffort) {
+              Map<String, Object> failed = new LinkedHashMap<>();
+              failed.put("index", i);
+              failed.put("error", e.getMessage());
+              throw new BankException("BATCH_REJECTED", Map.of("failedLeg", failed));
+            }
+            c.rollback(sp);
+            c.releaseSavepoint(sp);
+            res.put("ok", false);
+            res.put("error", e.getMessage());
+          }
+          results.add(res);
+        }
 
-      Map<String, Object> data = new LinkedHashMap<>();
-      data.put("txId", txId);
-      data.put("loanId", loanId);
-      data.put("accountId", accountId);
-      data.put("paid", amount);
-      data.put("newBalance", newBal);
-      data.put("newPending", updated.montoPendiente());
-      data.put("status", updated.estado().toString());
-      return ok(data, corrId);
+        txRepo.insertBatch(c, accountRepo, rows);
+        messageRepo.markProcessed(c, msgId);
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("batchId", msgId);
+        data.put("mode", bestEffort ? "bestEffort" : "allOrNothing");
+        data.put("applied", applied);
+        data.put("failed", legs.size() - applied);
+        data.put("results", results);
+        return ok(data, corrId);
+      });
+      committed = true;
+      return response;
+    } catch (BankException e) {
+      return error(e.getMessage(), e.details(), corrId);
     } catch (Exception e) {
       return error(e.getMessage(), corrId);
+    } finally {
+      if (!committed) releaseOutflows(rows);
+    }
+  }
+
+  /** Devuelve al tope diario las salidas ('retiro') de un lote que no se confirmó. */
+  private void releaseOutflows(List<TxRepo.TxRow> rows) {
+    for (TxRepo.TxRow row : rows) {
+      if (row.tipo() == TipoTransaccion.retiro) dailyLimits.release(row.accountId(), row.amount());
     }
   }
 
-  private String handleListClientLoans(JsonNode r, String corrId) throws Exception {
+  /** Cuentas que toca el lote (las patas mal formadas fallan después, dentro de la transacción). */
+  private static List<String> batchAccounts(JsonNode legs) {
+    List<String> out = new ArrayList<>();
+    for (JsonNode leg : legs) {
+      for (String field : List.of("accountId", "fromAccountId", "toAccountId")) {
+        if (leg.hasNonNull(field)) out.add(leg.get(field).asText());
+      }
+    }
+    return out;
+  }
+
+  /** Shard común a las cuentas del lote (0 si ninguna pata trae cuenta); -1 si hay más de uno. */
+  private int batchShard(JsonNode legs) {
+    int shard = -1;
+    for (JsonNode leg : legs) {
+      for (String field : List.of("accountId", "fromAccountId", "toAccountId")) {
+        if (!leg.hasNonNull(field)) continue;
+        int k = shards.indexOf(leg.get(field).asText());
+        if (shard >= 0 && k != shard) return -1;
+        shard = k;
+      }
+    }
+    return Math.max(shard, 0);
+  }
+
+  private Reply handleListClientLoans(JsonNode r, String corrId) throws Exception {
     String clientId = reqStr(r, "clientId");
     String status = optStr(r, "status", "todo"); // "activo", "pagado", or "todo"
 
-    try (Connection c = sqlite.get()) {
-      // Validate client exists
-      var cli = clientRepo.findById(c, clientId);
-      if (cli == null) {
-        c.commit();
-        return error("CLIENT_NOT_FOUND", corrId);
+    String filterStatus = "todo".equalsIgnoreCase(status) ? null : status;
+    boolean found = false;
+    List<Prestamo> loans = new ArrayList<>();
+    for (SQLite db : homeFirst(clientId)) {
+      try (Connection c = db.read()) {
+        // Validate client exists
+        if (clientRepo.findById(c, clientId) != null) {
+          found = true;
+          // Get loans filtered by status
+          loans.addAll(loanRepo.listByClient(c, clientId, filterStatus));
+        }
       }
+    }
+    if (!found) return error("CLIENT_NOT_FOUND", corrId);
+    // Count active loans
+    long activeCount = loans.stream()
+        .filter(loan -> loan.estado() == EstadoPrestamo.activo)
+        .count();
+
+    // Build response
+    List<Map<String, Object>> loanList = new ArrayList<>();
+    for (Prestamo loan : loans) {
+      Map<String, Object> loanInfo = new LinkedHashMap<>();
+      loanInfo.put("loanId", loan.idPrestamo());
+      loanInfo.put("accountId", loan.idCuenta());
+      loanInfo.put("principal", loan.montoInicial());
+      loanInfo.put("pending", loan.montoPendiente());
+      loanInfo.put("status", loan.estado().toString());
+      loanInfo.put("requestDate", loan.fechaSolicitud().toString());
+      loanList.add(loanInfo);
+    }
 
-      // Get loans filtered by status
-      String filterStatus = "todo".equalsIgnoreCase(status) ? null : status;
-      List<Prestamo> loans = loanRepo.listByClient(c, clientId, filterStatus);
-      
-      // Count active loans
-      long activeCount = loans.stream()
-          .filter(loan -> loan.estado() == EstadoPrestamo.activo)
-          .count();
-
-      c.commit();
-
-      // Build response
-      List<Map<String, Object>> loanList = new ArrayList<>();
-      for (Prestamo loan : loans) {
-        Map<String, Object> loanInfo = new LinkedHashMap<>();
-        loanInfo.put("loanId", loan.idPrestamo());
-        loanInfo.put("accountId", loan.idCuenta());
-        loanInfo.put("principal", loan.montoInicial());
-        loanInfo.put("pending", loan.montoPendiente());
-        loanInfo.put("status", loan.estado().toString());
-        loanInfo.put("requestDate", loan.fechaSolicitud().toString());
-        loanList.add(loanInfo);
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("clientId", clientId);
+    data.put("totalLoans", loans.size());
+    data.put("activeLoans", activeCount);
+    data.put("loans", loanList);
+
+    return ok(data, corrId);
+  }
+
+  /* ======================= ÓRDENES PROGRAMADAS ======================= */
+
+  /**
+   * ScheduleTransfer: transferencia en {@code at} (ISO-8601 o epoch ms; por defecto, ya) y, con
+   * {@code everySeconds}, orden permanente; {@code occurrences} limita las repeticiones. Se
+   * guarda en el shard de la cuenta origen; la ejecuta {@link ScheduledTransfers}.
+   */
+  private Reply handleScheduleTransfer(JsonNode r, String corrId) throws Exception {
+    String msgId = reqStr(r, "messageId");
+    String from = reqStr(r, "fromAccountId");
+    String to = reqStr(r, "toAccountId");
+    BigDecimal amount = reqBig(r, "amount");
+    if (amount.signum() <= 0) return error("VALIDATION_ERROR: amount must be > 0", corrId);
+    if (from.equals(to)) return error("SAME_ACCOUNT", corrId);
+    long at = System.currentTimeMillis();
+    if (r.hasNonNull("at")) {
+      Long parsed = parseDeadline(r.get("at").asText());
+      if (parsed == null) return error("VALIDATION_ERROR: at", corrId);
+      at = parsed;
+    }
+    Long every = r.hasNonNull("everySeconds") ? r.get("everySeconds").asLong() : null;
+    if (every != null && every <= 0) return error("VALIDATION_ERROR: everySeconds must be > 0", corrId);
+    Integer occurrences = r.hasNonNull("occurrences") ? r.get("occurrences").asInt() : null;
+    if (occurrences != null && occurrences <= 0) return error("VALIDATION_ERROR: occurrences must be > 0", corrId);
+    String metadataJson = r.hasNonNull("metadata") ? om.writeValueAsString(r.get("metadata")) : null;
+    // Destino en este nodo: se valida ahora; en otro nodo, al ejecutar (ACCOUNT_NOT_FOUND en la orden)
+    if (shards.isLocal(shards.indexOf(to))) {
+      try (Connection c = shards.forKey(to).read()) {
+        if (accountRepo.findById(c, to) == null) return error("ACCOUNT_NOT_FOUND", corrId);
       }
+    }
 
-      Map<String, Object> data = new LinkedHashMap<>();
-      data.put("clientId", clientId);
-      data.put("totalLoans", loans.size());
-      data.put("activeLoans", activeCount);
-      data.put("loans", loanList);
+    int shard = shards.indexOf(from);
+    ScheduleRepo.Order order = new ScheduleRepo.Order(Ids.order(), from, to, amount, metadataJson, at, every,
+        occurrences, 0, "activa", 0, null);
+    var inserted = new AtomicBoolean();
+    try (var lock = shards.lockWrite(shard)) {
+      Reply res = shards.get(shard).write(c -> {
+        inserted.set(false);
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+        if (accountRepo.findById(c, from) == null) return error("ACCOUNT_NOT_FOUND", corrId);
+        scheduleRepo.insert(c, order);
+        messageRepo.markProcessed(c, msgId);
+        inserted.set(true);
+        return ok(scheduledOrder(order), corrId);
+      });
+      if (inserted.get()) scheduled.offer(shard, order);
+      return res;
+    }
+  }
 
-      return ok(data, corrId);
+  private Reply handleCancelScheduledTransfer(JsonNode r, String corrId) throws Exception {
+    String msgId = reqStr(r, "messageId");
+    String orderId = reqStr(r, "orderId");
+    String from = reqStr(r, "fromAccountId");
+    int shard = shards.indexOf(from);
+    try (var lock = shards.lockWrite(shard)) {
+      return shards.get(shard).write(c -> {
+        if (messageRepo.alreadyProcessed(c, msgId)) return ok(Map.of("duplicate", true), corrId);
+        if (!scheduleRepo.cancel(c, orderId, from)) return error("ORDER_NOT_FOUND", corrId);
+        messageRepo.markProcessed(c, msgId);
+        return ok(Map.of("orderId", orderId, "status", "cancelada"), corrId);
+      });
     }
   }
 
+  private Reply handleListScheduledTransfers(JsonNode r, String corrId) throws Exception {
+    String accountId = reqStr(r, "accountId");
+    int limit = Math.max(1, Math.min(500, r.hasNonNull("limit") ? r.get("limit").asInt() : 100));
+    List<Map<String, Object>> list = new ArrayList<>();
+    try (Connection c = shards.forKey(accountId).read()) {
+      for (ScheduleRepo.Order o : scheduleRepo.byAccount(c, accountId, limit)) list.add(scheduledOrder(o));
+    }
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("accountId", accountId);
+    data.put("count", list.size());
+    data.put("orders", list);
+    return ok(data, corrId);
+  }
+
+  private Map<String, Object> scheduledOrder(ScheduleRepo.Order o) throws Exception {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("orderId", o.orderId());
+    m.put("fromAccountId", o.fromAccountId());
+    m.put("toAccountId", o.toAccountId());
+    m.put("amount", o.amount());
+    m.put("nextExecution", java.time.Instant.ofEpochMilli(o.nextAt()).toString());
+    m.put("everySeconds", o.intervalSeconds());
+    m.put("remaining", o.remaining());
+    m.put("occurrence", o.occurrence());
+    m.put("status", o.estado());
+    m.put("failures", o.failures());
+    m.put("lastError", o.lastError());
+    if (o.metadataJson() != null) m.put("metadata", om.readTree(o.metadataJson()));
+    return m;
+  }
+
   /* ======================= helpers ======================= */
 
+  /** Id nuevo que cae en el shard dado (con N shards, ~N intentos en promedio). */
+  private String idInShard(java.util.function.Supplier<String> gen, int shard) {
+    String id;
+    do {
+      id = gen.get();
+    } while (shards.indexOf(id) != shard);
+    return id;
+  }
+
+  /** Shards locales en orden de búsqueda: primero el de la clave, luego el resto. */
+  private List<SQLite> homeFirst(String key) {
+    if (shards.size() == 1) return shards.all();
+    int home = shards.indexOf(key);
+    List<SQLite> out = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      int k = (home + i) % shards.size();
+      if (shards.isLocal(k)) out.add(shards.get(k));
+    }
+    return out;
+  }
+
   private static String reqStr(JsonNode r, String name) {
     if (!r.hasNonNull(name))
       throw new IllegalArgumentException("MISSING_" + name);
@@ -581,7 +1251,8 @@ public class BankService {
     return new BigDecimal(r.get(name).asText());
   }
 
-  private String ok(Object data, String corrId) throws Exception {
+  /** Respuesta ok con {@code data}; pública para los handlers registrados fuera de esta clase. */
+  public Reply ok(Object data, String corrId) {
     // Map.of no permite valores nulos; construir mapa mutable explícito
     java.util.Map<String, Object> res = new java.util.LinkedHashMap<>();
     res.put("ok", true);
@@ -589,26 +1260,71 @@ public class BankService {
     res.put("data", data);
     res.put("error", null);
     res.put("correlationId", corrId);
-    return om.writeValueAsString(res);
+    return new Reply(res);
+  }
+
+  public Reply error(String msg, String corrId) {
+    return error(msg, null, corrId);
+  }
+
+  /** Error con detalles opcionales (se agregan al objeto error junto a message). */
+  public Reply error(String msg, Map<String, Object> details, String corrId) {
+    // Evitar Map.of con nulos; usar mapas mutables
+    java.util.Map<String, Object> err = new java.util.LinkedHashMap<>();
+    err.put("message", msg);
+    if (details != null) err.putAll(details);
+    java.util.Map<String, Object> res = new java.util.LinkedHashMap<>();
+    res.put("ok", false);
+    res.put("status", "error"); // compat con algunos clientes web
+    res.put("data", null);
+    res.put("error", err);
+    res.put("correlationId", corrId);
+    return new Reply(res);
   }
 
-  private String error(String msg, String corrId) {
+  /**
+   * Plazo de una petición: epoch en milisegundos o instante ISO-8601 ("2025-10-05T14:03:11Z").
+   * null si el texto no es ninguno de los dos.
+   */
+  public static Long parseDeadline(String text) {
+    if (text == null || text.isBlank()) return null;
     try {
-      // Evitar Map.of con nulos; usar mapas mutables
-      java.util.Map<String, Object> err = new java.util.LinkedHashMap<>();
-      err.put("message", msg);
-      java.util.Map<String, Object> res = new java.util.LinkedHashMap<>();
-      res.put("ok", false);
-  res.put("status", "error"); // compat con algunos clientes web
-      res.put("data", null);
-      res.put("error", err);
-      res.put("correlationId", corrId);
-      return om.writeValueAsString(res);
-    } catch (Exception e) {
-      return "{\"ok\":false,\"error\":{\"message\":\"" + msg + "\"}}";
+      return Long.parseLong(text.trim());
+    } catch (NumberFormatException e) {
+      try {
+        return java.time.Instant.parse(text.trim()).toEpochMilli();
+      } catch (java.time.format.DateTimeParseException e2) {
+        return null;
+      }
     }
   }
 
+  /** Respuesta DEADLINE_EXCEEDED (la petición no se ejecutó). */
+  public Reply deadlineExceeded(long deadlineMillis, String corrId) {
+    Map<String, Object> details = new LinkedHashMap<>();
+    details.put("deadline", java.time.Instant.ofEpochMilli(deadlineMillis).toString());
+    return error("DEADLINE_EXCEEDED", details, corrId);
+  }
+
+  /** Respuesta OVERLOADED: descartada por carga antes de ejecutarse; se puede reintentar. */
+  public Reply overloaded(long retryAfterMillis, String corrId) {
+    return error("OVERLOADED", Map.of("retryAfterMs", retryAfterMillis), corrId);
+  }
+
+  private Reply dailyLimitExceeded(String accountId, String corrId) {
+    Map<String, Object> details = new LinkedHashMap<>();
+    details.put("accountId", accountId);
+    details.put("limit", dailyLimits.limit());
+    details.put("used", dailyLimits.used(accountId));
+    return error("DAILY_LIMIT_EXCEEDED", details, corrId);
+  }
+
+  /* Nodos del cluster: envían una petición al nodo que atiende un shard (ver cc4p1.bank.mq.Cluster) */
+  public interface Peers {
+    /** Respuesta JSON del nodo dueño de {@code shard}; lanza excepción si no llega a tiempo. */
+    String call(int shard, String requestJson) throws Exception;
+  }
+
   /* Minimal RENIEC client contract */
   public interface ReniecClient {
     Verification verify(String dni) throws Exception;
@@ -617,6 +1333,20 @@ public class BankService {
     }
   }
 
+  /**
+   * YYYY-MM-DD → fin de ese día; YYYY-MM-DD[T| ]HH:MM[:SS][Z] → "YYYY-MM-DD HH:MM:SS".
+   * Devuelve null si no se reconoce.
+   */
+  private static String normalizeTimestampParam(String s) {
+    String d = normalizeDateParam(s, null);
+    if (d == null) return null;
+    String t = s.trim().replace('T', ' ').replace("Z", "");
+    if (t.length() == 10) return d + " 23:59:59";
+    if (t.length() == 16) t = t + ":00";
+    if (t.length() < 19 || !t.substring(10, 19).matches(" \\d{2}:\\d{2}:\\d{2}")) return null;
+    return t.substring(0, 19);
+  }
+
   /**
    * Normalizes various date string formats (e.g., 2025-10-01, 2025-10-01T00:00:00,
    * 2025-10-01T00:00:00Z) to plain YYYY-MM-DD for SQLite date() function.
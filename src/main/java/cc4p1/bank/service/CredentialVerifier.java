@@ -0,0 +1,109 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.util.Passwords;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool acotado para el trabajo caro de contraseñas (PBKDF2 de Login y Register).
+ *
+ * <p>Como mucho {@code maxPending} cálculos en curso o en espera: si no hay cupo se
+ * devuelve null al instante (el handler responde OVERLOADED), en vez de acumular una
+ * cola que haga crecer la latencia de todos. El cupo se libera cuando el cálculo termina,
+ * no cuando el llamador se cansa de esperar, así el límite vale también con timeouts.
+ * Los hilos del carril de consultas que esperan un Login son a lo sumo {@code maxPending}:
+ * con los valores por defecto (2) quedan carriles libres para el resto de lecturas.
+ */
+public final class CredentialVerifier implements AutoCloseable {
+
+  private final ThreadPoolExecutor pool;
+  private final Semaphore slots;
+  private final long timeoutMillis;
+  private final LongAdder rejected = new LongAdder();
+
+  public CredentialVerifier(int threads, int maxPending, long timeoutMillis) {
+    int n = Math.max(1, threads);
+    AtomicInteger seq = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(n, n, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "credential-" + seq.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    this.pool.allowCoreThreadTimeOut(true);
+    this.slots = new Semaphore(Math.max(1, maxPending));
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** BANK_LOGIN_THREADS (2), BANK_LOGIN_PENDING (2) y BANK_LOGIN_TIMEOUT_MS (1000). */
+  public static CredentialVerifier fromEnv(Map<String, String> env) {
+    return new CredentialVerifier(
+        Integer.parseInt(env.getOrDefault("BANK_LOGIN_THREADS", "2")),
+        Integer.parseInt(env.getOrDefault("BANK_LOGIN_PENDING", "2")),
+        Long.parseLong(env.getOrDefault("BANK_LOGIN_TIMEOUT_MS", "1000")));
+  }
+
+  /** TRUE/FALSE según la contraseña, o null si no hubo cupo o se agotó el tiempo. */
+  public Boolean verify(String password, String stored) {
+    return run(() -> Passwords.verify(password, stored));
+  }
+
+  /** Hash nuevo para guardar, o null si no hubo cupo o se agotó el tiempo. */
+  public String hash(String password) {
+    return run(() -> Passwords.hash(password));
+  }
+
+  /** Sugerencia de espera para reintentar cuando no hubo cupo. */
+  public long retryAfterMillis() {
+    return Math.max(1, timeoutMillis / 4);
+  }
+
+  public long rejectedCount() {
+    return rejected.sum();
+  }
+
+  private <T> T run(Callable<T> work) {
+    if (!slots.tryAcquire()) {
+      rejected.increment();
+      return null;
+    }
+    Future<T> f;
+    try {
+      f = pool.submit(() -> {
+        try {
+          return work.call();
+        } finally {
+          slots.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      slots.release();
+      throw e;
+    }
+    try {
+      return f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      rejected.increment();
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdownNow();
+  }
+}
@@ -0,0 +1,322 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.repo.AccountRepo;
+import cc4p1.bank.repo.MessageRepo;
+import cc4p1.bank.repo.TransferLogRepo;
+import cc4p1.bank.repo.TransferLogRepo.Pending;
+import cc4p1.bank.repo.TxRepo;
+import cc4p1.bank.util.Ids;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transferencias entre cuentas de shards distintos, en dos fases durables:
+ * <ol>
+ *   <li><b>Preparar</b> (shard origen, una transacción): débito, fila 'retiro', registro
+ *       'preparada' en TRANSFERENCIAS_2PC y messageId marcado. Desde aquí la transferencia
+ *       está decidida: el dinero sale del origen aunque el proceso caiga.</li>
+ *   <li><b>Aplicar</b> (shard destino, una transacción): crédito y fila 'deposito', marcando
+ *       {@code 2pc:<transferId>} en MENSAJES_PROCESADOS, así aplicarla dos veces no duplica.</li>
+ *   <li><b>Cerrar</b> (shard origen): la preparada pasa a 'confirmada'.</li>
+ * </ol>
+ * Si el destino ya no existe se compensa: se devuelve el monto al origen y queda
+ * 'revertida'. Si falla por otra causa (p. ej. SQLITE_BUSY) queda 'preparada' y
+ * {@link #recover} la termina: las fases 2 y 3 son idempotentes.
+ *
+ * <p>Si el shard destino es de otro nodo (cluster), la misma secuencia es una saga: la fase 2
+ * es una petición {@code CreditTransfer} al nodo dueño y la compensación se dispara con su
+ * ACCOUNT_NOT_FOUND (el nodo destino, antes de acreditar, confirma con el origen que la
+ * transferencia está preparada: ver {@link #creditFromPeer}). Se ejecuta en un hilo propio después de responder ({@code pending}):
+ * esperar al otro nodo ocupando el cupo de escritura podría trabar a dos nodos que se
+ * transfieren entre sí.
+ *
+ * <p>Invariante: la suma de saldos de todos los shards más lo preparado (en tránsito) no
+ * cambia con las transferencias.
+ */
+final class CrossShardTransfers {
+
+  static final String APPLIED_PREFIX = "2pc:";
+  /** Las preparadas más nuevas las termina su propio flujo; recover solo toma las viejas. */
+  private static final int RECOVER_MIN_AGE_SECONDS = 5;
+  private static final int RECOVER_BATCH = 500;
+
+  /** Resultado del origen; {@code toBalance} es null si quedó pendiente de acreditar. */
+  record Result(boolean duplicate, String txId, BigDecimal fromBalance, BigDecimal toBalance, String settlement) {
+  }
+
+  private final Shards shards;
+  private final AccountRepo accounts;
+  private final TxRepo txs;
+  private final MessageRepo messages;
+  private final TransferLogRepo log = new TransferLogRepo();
+  private final ObjectMapper om = new ObjectMapper();
+  private volatile AccountLocks locks = AccountLocks.fromEnv(Map.of());
+  private volatile BankService.Peers peers;
+  private volatile ExecutorService saga;
+
+  CrossShardTransfers(Shards shards, AccountRepo accounts, TxRepo txs, MessageRepo messages) {
+    this.shards = shards;
+    this.accounts = accounts;
+    this.txs = txs;
+    this.messages = messages;
+  }
+
+  void setLocks(AccountLocks locks) {
+    this.locks = locks;
+  }
+
+  /** Cerrojo de una cuenta; LOCK_TIMEOUT como SQLException, así cuenta como fallo transitorio. */
+  private AccountLocks.Held lock(String accountId) throws SQLException {
+    try {
+      return locks.acquire(accountId);
+    } catch (IllegalStateException e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+  }
+
+  synchronized void setPeers(BankService.Peers peers) {
+    this.peers = peers;
+    if (saga == null) {
+      saga = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "transfer-saga");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  Result transfer(String msgId, String transferId, String from, String to, BigDecimal amount, String metadataJson)
+      throws Exception {
+    int src = shards.indexOf(from);
+    boolean remote = !shards.isLocal(shards.indexOf(to));
+    if (remote && peers == null) throw new SQLException("SHARD_NOT_LOCAL");
+    // Validar el destino antes de debitar: así la compensación queda para casos raros
+    if (!remote) {
+      try (Connection c = shards.forKey(to).read()) {
+        boolean exists = accounts.findById(c, to) != null;
+        if (!exists) throw new SQLException("ACCOUNT_NOT_FOUND");
+      }
+    }
+
+    String txId = Ids.tx();
+    BigDecimal fromBal;
+    try (var held = lock(from); var lock = shards.lockWrite(src)) {
+      fromBal = shards.get(src).write(c -> {
+        if (messages.alreadyProcessed(c, msgId)) return null;
+        txs.transferOut(c, accounts, transferId, txId, from, to, amount, metadataJson);
+        log.prepare(c, transferId, from, to, amount, metadataJson);
+        messages.markProcessed(c, msgId);
+        return accounts.findById(c, from).saldo();
+      });
+    }
+    if (fromBal == null) return new Result(true, null, null, null, null);
+
+    Pending p = new Pending(transferId, from, to, amount, metadataJson);
+    if (remote) {
+      saga.execute(() -> settle(p));
+      return new Result(false, txId, fromBal, null, "pending");
+    }
+    BigDecimal toBal;
+    try {
+      toBal = apply(p);
+    } catch (SQLException e) {
+      if (!"ACCOUNT_NOT_FOUND".equals(e.getMessage())) {
+        return new Result(false, txId, fromBal, null, "pending");
+      }
+      compensate(p);
+      throw new SQLException("TRANSFER_REVERTED: destination account not found");
+    }
+    try {
+      close(p, "confirmada");
+    } catch (SQLException e) {
+      // Ya acreditada; recover cerrará el registro
+    }
+    return new Result(false, txId, fromBal, toBal, "settled");
+  }
+
+  /** Fases 2 y 3 (o la compensación); si algo falla queda preparada para {@link #recover}. */
+  private void settle(Pending p) {
+    try {
+      apply(p);
+      close(p, "confirmada");
+    } catch (SQLException e) {
+      if (!"ACCOUNT_NOT_FOUND".equals(e.getMessage())) return;
+      try {
+        compensate(p);
+      } catch (SQLException ignored) {
+        // recover la vuelve a intentar
+      }
+    }
+  }
+
+  /** Fase 2 en el shard destino, local o en el nodo que lo atiende. */
+  private BigDecimal apply(Pending p) throws SQLException {
+    int dst = shards.indexOf(p.toAccountId());
+    return shards.isLocal(dst) ? credit(p) : creditRemote(dst, p);
+  }
+
+  private BigDecimal creditRemote(int dst, Pending p) throws SQLException {
+    ObjectNode req = om.createObjectNode()
+        .put("type", "CreditTransfer")
+        .put("transferId", p.transferId())
+        .put("fromAccountId", p.fromAccountId())
+        .put("toAccountId", p.toAccountId())
+        .put("amount", p.amount().toPlainString());
+    JsonNode res;
+    try {
+      if (p.metadataJson() != null) req.set("metadata", om.readTree(p.metadataJson()));
+      res = om.readTree(peers.call(dst, req.toString()));
+    } catch (Exception e) {
+      throw new SQLException("SAGA_UNAVAILABLE: " + e.getMessage(), e);
+    }
+    if (!res.path("ok").asBoolean()) throw new SQLException(res.path("error").path("message").asText());
+    return new BigDecimal(res.path("data").path("newBalance").asText());
+  }
+
+  /**
+   * Fase 2 en un shard local: acredita (idempotente) y devuelve el saldo nuevo del destino.
+   * También la usa el nodo destino al recibir CreditTransfer.
+   */
+  BigDecimal credit(Pending p) throws SQLException {
+    int dst = shards.indexOf(p.toAccountId());
+    try (var held = lock(p.toAccountId()); var lock = shards.lockWrite(dst)) {
+      return write(dst, c -> {
+        String key = APPLIED_PREFIX + p.transferId();
+        if (!messages.alreadyProcessed(c, key)) {
+          if (accounts.findById(c, p.toAccountId()) == null) throw new SQLException("ACCOUNT_NOT_FOUND");
+          txs.transferIn(c, accounts, p.transferId(), Ids.tx(), p.toAccountId(), p.amount(), p.metadataJson());
+          messages.markProcessed(c, key);
+        }
+        return accounts.findById(c, p.toAccountId()).saldo();
+      });
+    }
+  }
+
+  /**
+   * Fase 2 pedida por otro nodo (CreditTransfer). La primera vez que llega un
+   * {@code transferId}, antes de acreditar, se confirma con el shard origen que está
+   * 'preparada' con las mismas cuentas y monto: sin ese débito registrado no se acredita
+   * (TRANSFER_NOT_PREPARED). La consulta al origen es GetPreparedTransfer, que solo lee y va por
+   * el carril de consultas de ese nodo, así no espera a sus escritores.
+   */
+  BigDecimal creditFromPeer(Pending p) throws SQLException {
+    if (p.amount().signum() <= 0) throw new SQLException("VALIDATION_ERROR: amount must be > 0");
+    int dst = shards.indexOf(p.toAccountId());
+    if (!shards.isLocal(dst)) throw new SQLException("SHARD_NOT_LOCAL");
+    boolean applied;
+    try (Connection c = shards.get(dst).read()) {
+      applied = messages.alreadyProcessed(c, APPLIED_PREFIX + p.transferId());
+    }
+    if (!applied) {
+      TransferLogRepo.Logged origin = prepared(p);
+      Pending o = origin == null ? null : origin.transfer();
+      if (o == null || !"preparada".equals(origin.estado()) || !p.fromAccountId().equals(o.fromAccountId())
+          || !p.toAccountId().equals(o.toAccountId()) || p.amount().compareTo(o.amount()) != 0) {
+        throw new SQLException("TRANSFER_NOT_PREPARED");
+      }
+    }
+    return credit(p);
+  }
+
+  /** Registro de la transferencia en el shard origen, local o en el nodo que lo atiende. */
+  private TransferLogRepo.Logged prepared(Pending p) throws SQLException {
+    int src = shards.indexOf(p.fromAccountId());
+    if (shards.isLocal(src)) return findLogged(p.fromAccountId(), p.transferId());
+    if (peers == null) throw new SQLException("SAGA_UNAVAILABLE: no peers");
+    JsonNode res;
+    try {
+      res = om.readTree(peers.call(src, om.createObjectNode()
+          .put("type", "GetPreparedTransfer")
+          .put("transferId", p.transferId())
+          .put("fromAccountId", p.fromAccountId())
+          .toString()));
+    } catch (Exception e) {
+      throw new SQLException("SAGA_UNAVAILABLE: " + e.getMessage(), e);
+    }
+    if (!res.path("ok").asBoolean()) {
+      String code = res.path("error").path("message").asText();
+      if ("TRANSFER_NOT_FOUND".equals(code)) return null;
+      throw new SQLException(code);
+    }
+    JsonNode d = res.path("data");
+    return new TransferLogRepo.Logged(new Pending(d.path("transferId").asText(), d.path("fromAccountId").asText(),
+        d.path("toAccountId").asText(), new BigDecimal(d.path("amount").asText()), null), d.path("estado").asText());
+  }
+
+  /** Registro de {@code transferId} en un shard local del origen (GetPreparedTransfer). */
+  TransferLogRepo.Logged findLogged(String fromAccountId, String transferId) throws SQLException {
+    try (Connection c = shards.forKey(fromAccountId).read()) {
+      return log.find(c, transferId);
+    }
+  }
+
+  /** {@code SQLite.write} con las fallas como SQLException: acá todas cuentan como transitorias. */
+  private <T> T write(int shard, SQLite.Work<T> work) throws SQLException {
+    try {
+      return shards.get(shard).write(work);
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+  }
+
+  private void close(Pending p, String estado) throws SQLException {
+    int src = shards.indexOf(p.fromAccountId());
+    try (var lock = shards.lockWrite(src)) {
+      write(src, c -> log.finish(c, p.transferId(), estado));
+    }
+  }
+
+  /** Devuelve el monto al origen y marca 'revertida', en una sola transacción. */
+  private void compensate(Pending p) throws SQLException {
+    int src = shards.indexOf(p.fromAccountId());
+    try (var held = lock(p.fromAccountId()); var lock = shards.lockWrite(src)) {
+      write(src, c -> {
+        if (log.finish(c, p.transferId(), "revertida")) {
+          String meta = JsonNodeFactory.instance.objectNode().put("reversalOf", p.transferId()).toString();
+          txs.transferIn(c, accounts, p.transferId(), Ids.tx(), p.fromAccountId(), p.amount(), meta);
+        }
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Termina las transferencias preparadas de todos los shards (al iniciar y periódicamente).
+   * Devuelve cuántas se cerraron.
+   */
+  int recover(boolean includeRecent) throws SQLException {
+    int done = 0;
+    for (int k = 0; k < shards.size(); k++) {
+      if (!shards.isLocal(k)) continue;
+      List<Pending> batch;
+      try (Connection c = shards.get(k).read()) {
+        batch = log.pending(c, includeRecent ? 0 : RECOVER_MIN_AGE_SECONDS, RECOVER_BATCH);
+      }
+      for (Pending p : batch) {
+        try {
+          apply(p);
+          close(p, "confirmada");
+        } catch (SQLException e) {
+          if (!"ACCOUNT_NOT_FOUND".equals(e.getMessage())) continue; // transitorio: siguiente vuelta
+          compensate(p);
+        }
+        done++;
+      }
+    }
+    return done;
+  }
+}
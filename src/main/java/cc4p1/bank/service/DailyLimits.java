@@ -0,0 +1,127 @@
+package cc4p1.bank.service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Tope diario de salidas (retiros y transferencias enviadas) por cuenta, en memoria y en
+ * céntimos. Se reserva antes de tocar la base y se libera si la operación no llega a
+ * confirmarse, así el chequeo no cuesta una consulta.
+ *
+ * <p>Al iniciar, {@link #rehydrate} suma lo ya gastado hoy (filas 'retiro' de TRANSACCIONES)
+ * para que reiniciar el servidor no reinicie el tope. El día es el de las fechas de
+ * TRANSACCIONES (UTC).
+ */
+public final class DailyLimits {
+
+  private static final class Day {
+    final long epochDay;
+    final AtomicLong cents;
+
+    Day(long epochDay, long cents) {
+      this.epochDay = epochDay;
+      this.cents = new AtomicLong(cents);
+    }
+  }
+
+  /** 0 = sin tope. */
+  private final long limitCents;
+  private final Map<String, Day> used = new ConcurrentHashMap<>();
+  private final LongSupplier millisClock;
+
+  public DailyLimits(BigDecimal limit) {
+    this(limit, System::currentTimeMillis);
+  }
+
+  /** Con un reloj en epoch ms propio (pruebas). */
+  DailyLimits(BigDecimal limit, LongSupplier millisClock) {
+    this.limitCents = limit == null ? 0 : cents(limit);
+    this.millisClock = millisClock;
+  }
+
+  public static DailyLimits unlimited() {
+    return new DailyLimits(null);
+  }
+
+  /** BANK_DAILY_OUTFLOW_LIMIT en soles (por defecto 20000; 0 = sin tope). */
+  public static DailyLimits fromEnv(Map<String, String> env) {
+    BigDecimal limit = new BigDecimal(env.getOrDefault("BANK_DAILY_OUTFLOW_LIMIT", "20000"));
+    return new DailyLimits(limit.signum() == 0 ? null : limit);
+  }
+
+  public boolean enabled() {
+    return limitCents > 0;
+  }
+
+  public BigDecimal limit() {
+    return BigDecimal.valueOf(limitCents, 2);
+  }
+
+  /** Reserva {@code amount} del tope de hoy; false (sin reservar nada) si lo excede. */
+  public boolean tryReserve(String accountId, BigDecimal amount) {
+    if (limitCents <= 0) return true;
+    long amt = cents(amount);
+    AtomicLong counter = today(accountId);
+    while (true) {
+      long cur = counter.get();
+      if (cur + amt > limitCents) return false;
+      if (counter.compareAndSet(cur, cur + amt)) return true;
+    }
+  }
+
+  /** Devuelve una reserva de una operación que no se confirmó. */
+  public void release(String accountId, BigDecimal amount) {
+    if (limitCents <= 0) return;
+    Day d = used.get(accountId);
+    if (d != null && d.epochDay == epochDay()) d.cents.addAndGet(-cents(amount));
+  }
+
+  public BigDecimal used(String accountId) {
+    Day d = used.get(accountId);
+    return d == null || d.epochDay != epochDay() ? BigDecimal.ZERO.setScale(2) : BigDecimal.valueOf(d.cents.get(), 2);
+  }
+
+  /** Carga las salidas de hoy; devuelve cuántas cuentas tenían movimientos. */
+  public int rehydrate(Connection c) throws SQLException {
+    if (limitCents <= 0) return 0;
+    long day = epochDay();
+    int n = 0;
+    try (PreparedStatement ps = c.prepareStatement(
+        "SELECT id_cuenta, SUM(monto) FROM TRANSACCIONES WHERE tipo = 'retiro' AND fecha >= ? GROUP BY id_cuenta")) {
+      ps.setString(1, LocalDate.ofEpochDay(day) + " 00:00:00");
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          used.put(rs.getString(1), new Day(day, cents(rs.getBigDecimal(2))));
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  private AtomicLong today(String accountId) {
+    long day = epochDay();
+    Day d = used.get(accountId);
+    if (d == null || d.epochDay != day) {
+      d = used.compute(accountId, (k, v) -> v == null || v.epochDay != day ? new Day(day, 0) : v);
+    }
+    return d.cents;
+  }
+
+  private long epochDay() {
+    return Math.floorDiv(millisClock.getAsLong(), 86_400_000L);
+  }
+
+  private static long cents(BigDecimal amount) {
+    return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+  }
+}
@@ -0,0 +1,184 @@
+package cc4p1.bank.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de operaciones: tipo (o alias) → handler, junto con lo que el transporte necesita
+ * saber antes de ejecutarla: si solo lee (cola, carril y cupo de escritura), si exige
+ * {@code messageId}, qué campos son obligatorios y de qué campos salen sus claves de recurso
+ * (cuentas, cliente, DNI), que deciden el shard y, en cluster, el nodo que la atiende.
+ *
+ * <p>Una operación nueva se agrega con {@link #register}; {@link BankService#handle} no cambia.
+ */
+public final class Operations {
+
+  /**
+   * Ejecuta una operación ya validada contra su esquema; arma la respuesta con
+   * {@link BankService#ok}/{@link BankService#error}.
+   */
+  @FunctionalInterface
+  public interface Handler {
+    Reply handle(BankService bank, JsonNode r, String corrId) throws Exception;
+  }
+
+  /**
+   * Descripción de una operación. Los campos de {@code required} y {@code keys} se buscan en
+   * {@code payload} si la petición lo trae (clientes web) y si no en el nivel superior; los de
+   * {@code keys} también en cada elemento de {@code legs} (lotes). Se arma con
+   * {@link #query}/{@link #command}/{@link #internal} y los métodos {@code aliases},
+   * {@code requires}, {@code keys} y {@code peersOnly}.
+   *
+   * <p>{@code internal}: solo la aceptan otros nodos del cluster; {@link BankService#handle}
+   * la rechaza si la petición no llegó por el canal de pares (ver {@code Cluster}).
+   */
+  public record Operation(String name, Set<String> aliases, boolean query, boolean idempotent, boolean internal,
+      List<String> required, List<String> keys, Handler handler) {
+
+    /** Solo lee: sin messageId ni cupo de escritura. */
+    public static Operation query(String name, Handler handler) {
+      return new Operation(name, Set.of(), true, false, false, List.of(), List.of(), handler);
+    }
+
+    /** Escribe y exige messageId (idempotencia). */
+    public static Operation command(String name, Handler handler) {
+      return new Operation(name, Set.of(), false, true, false, List.of(), List.of(), handler);
+    }
+
+    /**
+     * Escribe sin messageId y solo entre nodos (p. ej. CreditTransfer, idempotente por su
+     * transferId).
+     */
+    public static Operation internal(String name, Handler handler) {
+      return new Operation(name, Set.of(), false, false, true, List.of(), List.of(), handler);
+    }
+
+    public Operation aliases(String... aliases) {
+      return new Operation(name, Set.of(aliases), query, idempotent, internal, required, keys, handler);
+    }
+
+    public Operation requires(String... fields) {
+      return new Operation(name, aliases, query, idempotent, internal, List.of(fields), keys, handler);
+    }
+
+    /** Campos de las claves de recurso, en orden de preferencia para la partición. */
+    public Operation keys(String... fields) {
+      return new Operation(name, aliases, query, idempotent, internal, required, List.of(fields), handler);
+    }
+
+    /** Solo por el canal de pares, como las internas (p. ej. una consulta entre nodos). */
+    public Operation peersOnly() {
+      return new Operation(name, aliases, query, idempotent, true, required, keys, handler);
+    }
+
+    /** Código MISSING_campo del primer campo obligatorio ausente; null si está completa. */
+    public String missing(JsonNode r) {
+      JsonNode src = source(r);
+      if (idempotent && !r.hasNonNull("messageId") && !src.hasNonNull("messageId")) return "MISSING_messageId";
+      for (String field : required) {
+        if (!src.hasNonNull(field)) return "MISSING_" + field;
+      }
+      return null;
+    }
+
+    /** Claves de recurso de la petición (sin repetir, en orden de {@code keys}). */
+    public List<String> resourceKeys(JsonNode r) {
+      Set<String> out = new LinkedHashSet<>();
+      JsonNode src = source(r);
+      for (String field : keys) {
+        if (src.hasNonNull(field)) out.add(src.get(field).asText());
+      }
+      JsonNode legs = r.get("legs");
+      if (legs != null && legs.isArray()) {
+        for (JsonNode leg : legs) {
+          for (String field : keys) {
+            if (leg.hasNonNull(field)) out.add(leg.get(field).asText());
+          }
+        }
+      }
+      return new ArrayList<>(out);
+    }
+
+    /** Clave de partición: la primera clave de recurso; null si no tiene. */
+    public String partitionKey(JsonNode r) {
+      List<String> k = resourceKeys(r);
+      return k.isEmpty() ? null : k.get(0);
+    }
+
+    /**
+     * Igual, a partir de los campos de nivel superior ya leídos (sin armar el árbol JSON);
+     * null si ninguno está ahí (quizá en payload o legs).
+     */
+    public String partitionKey(Map<String, String> topLevel) {
+      for (String field : keys) {
+        String v = topLevel.get(field);
+        if (v != null) return v;
+      }
+      return null;
+    }
+
+    private static JsonNode source(JsonNode r) {
+      return r.has("payload") ? r.get("payload") : r;
+    }
+  }
+
+  private final Map<String, Operation> byType = new ConcurrentHashMap<>();
+
+  public Operations() {
+  }
+
+  /** Copia de otro registro (cada BankService agrega lo suyo sin tocar el catálogo común). */
+  public Operations(Operations base) {
+    byType.putAll(base.byType);
+  }
+
+  /**
+   * Registra la operación con su nombre y alias. Lanza IllegalArgumentException si alguno ya
+   * está registrado.
+   */
+  public synchronized Operations register(Operation op) {
+    List<String> types = new ArrayList<>();
+    types.add(op.name());
+    types.addAll(op.aliases());
+    for (String t : types) {
+      if (byType.containsKey(t)) throw new IllegalArgumentException("DUPLICATE_OPERATION: " + t);
+    }
+    for (String t : types) byType.put(t, op);
+    return this;
+  }
+
+  /** Operación por nombre o alias; null si no existe. */
+  public Operation find(String type) {
+    return type == null ? null : byType.get(type);
+  }
+
+  /** true si la operación solo lee; tipos desconocidos cuentan como escritura. */
+  public boolean isQuery(String type) {
+    Operation op = find(type);
+    return op != null && op.query();
+  }
+
+  /** Nombres de campo que alguna operación usa como clave de recurso. */
+  public Set<String> keyFields() {
+    Set<String> out = new LinkedHashSet<>();
+    for (Operation op : all()) out.addAll(op.keys());
+    return out;
+  }
+
+  /** Operaciones registradas, una vez cada una (sin alias), por nombre. */
+  public Collection<Operation> all() {
+    Map<String, Operation> out = new LinkedHashMap<>();
+    byType.values().stream()
+        .sorted((a, b) -> a.name().compareTo(b.name()))
+        .forEach(op -> out.putIfAbsent(op.name(), op));
+    return out.values();
+  }
+}
@@ -0,0 +1,81 @@
+package cc4p1.bank.service;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reintento de escrituras optimistas: la operación lee sin ocupar el escritor y escribe con
+ * compare-and-set sobre {@code version}; si otra escritura ganó la carrera
+ * (VERSION_CONFLICT) se repite entera, hasta {@code maxAttempts} veces, con una espera al azar
+ * entre 0 y {@code backoffMillis · 2^intento} (jitter completo, para que los perdedores no
+ * vuelvan a chocar juntos). Agotados los intentos, {@link #run} lanza VERSION_CONFLICT y
+ * decide quien llama: PayLoan hace un último intento con el cerrojo de la cuenta tomado antes
+ * de leer, y solo si también pierde (un pago desde otra cuenta) llega al cliente.
+ */
+public final class OptimisticRetry {
+
+  public static final String CONFLICT = "VERSION_CONFLICT";
+
+  private final int maxAttempts;
+  private final long backoffMillis;
+  private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> exhausted = new ConcurrentHashMap<>();
+
+  public OptimisticRetry(int maxAttempts, long backoffMillis) {
+    if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be >= 1");
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+  }
+
+  /** BANK_CAS_ATTEMPTS (4) y BANK_CAS_BACKOFF_MS (2). */
+  public static OptimisticRetry fromEnv(Map<String, String> env) {
+    return new OptimisticRetry(
+        Integer.parseInt(env.getOrDefault("BANK_CAS_ATTEMPTS", "4")),
+        Long.parseLong(env.getOrDefault("BANK_CAS_BACKOFF_MS", "2")));
+  }
+
+  /** Ejecuta {@code body}; lo repite mientras falle con VERSION_CONFLICT y queden intentos. */
+  public <T> T run(String op, Callable<T> body) throws Exception {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return body.call();
+      } catch (SQLException e) {
+        if (!CONFLICT.equals(e.getMessage())) throw e;
+        if (attempt >= maxAttempts) {
+          exhausted.computeIfAbsent(op, k -> new LongAdder()).increment();
+          throw e;
+        }
+        retries.computeIfAbsent(op, k -> new LongAdder()).increment();
+        long cap = backoffMillis << Math.min(attempt - 1, 10);
+        if (cap > 0) Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+      }
+    }
+  }
+
+  public long retries(String op) {
+    LongAdder a = retries.get(op);
+    return a == null ? 0 : a.sum();
+  }
+
+  public long exhausted(String op) {
+    LongAdder a = exhausted.get(op);
+    return a == null ? 0 : a.sum();
+  }
+
+  /** Reintentos y agotados por operación, para GetServerStats. */
+  public Map<String, Object> stats() {
+    Map<String, Object> perOp = new TreeMap<>();
+    for (String op : retries.keySet()) perOp.put(op, Map.of("retries", retries(op), "exhausted", exhausted(op)));
+    for (String op : exhausted.keySet()) perOp.putIfAbsent(op, Map.of("retries", retries(op), "exhausted", exhausted(op)));
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("maxAttempts", maxAttempts);
+    m.put("operations", perOp);
+    return m;
+  }
+}
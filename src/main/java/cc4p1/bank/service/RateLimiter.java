@@ -0,0 +1,146 @@
+package cc4p1.bank.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Límite de frecuencia por operación y por clave (dni, cliente o cuenta), en memoria y sin
+ * tocar SQLite: rechazar cuesta una búsqueda en un mapa y un CAS.
+ *
+ * <p>Cada cubeta es un token bucket implementado como GCRA: un solo {@link AtomicLong} con el
+ * "tiempo teórico de llegada" (TAT). Con tasa r y ráfaga b, una petición en {@code now}
+ * se acepta si {@code max(TAT, now) - now <= (b-1)/r}, y entonces TAT avanza 1/r. Es
+ * equivalente a un token bucket de capacidad b, pero se actualiza con un CAS sin locks.
+ *
+ * <p>Las cubetas se reparten en {@value #SHARDS} mapas por hash de la clave; cada tanto se
+ * barre un shard y se eliminan las cubetas ya llenas (TAT en el pasado), que equivalen a no
+ * tener cubeta.
+ */
+public final class RateLimiter {
+
+  private static final int SHARDS = 16;
+  private static final int SWEEP_EVERY = 1 << 14;
+
+  /**
+   * Política de una operación: la clave sale del primer campo presente de {@code keyFields}
+   * (en el cuerpo o en "payload"); {@code burst} peticiones de golpe y {@code perSecond}
+   * sostenidas.
+   */
+  public record Policy(String op, List<String> keyFields, int burst, double perSecond) {
+  }
+
+  private final Map<String, Policy> policies;
+  @SuppressWarnings("unchecked")
+  private final ConcurrentHashMap<String, AtomicLong>[] shards = new ConcurrentHashMap[SHARDS];
+  private final AtomicLong calls = new AtomicLong();
+  private final LongSupplier nanoClock;
+
+  public RateLimiter(List<Policy> policies) {
+    this(policies, System::nanoTime);
+  }
+
+  /** Con un reloj en nanosegundos propio (pruebas). */
+  RateLimiter(List<Policy> policies, LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    Map<String, Policy> m = new HashMap<>();
+    for (Policy p : policies) m.put(p.op(), p);
+    this.policies = Map.copyOf(m);
+    for (int i = 0; i < SHARDS; i++) shards[i] = new ConcurrentHashMap<>();
+  }
+
+  /** Sin límites (valor por defecto de BankService). */
+  public static RateLimiter unlimited() {
+    return new RateLimiter(List.of());
+  }
+
+  /** Políticas por defecto del servidor. */
+  public static List<Policy> defaultPolicies() {
+    return List.of(
+        new Policy("Login", List.of("dni", "usuario"), 10, 0.2),
+        new Policy("login", List.of("dni", "usuario"), 10, 0.2),
+        new Policy("Register", List.of("dni", "usuario"), 3, 0.01),
+        new Policy("register", List.of("dni", "usuario"), 3, 0.01),
+        new Policy("Withdraw", List.of("accountId"), 20, 5),
+        new Policy("Transfer", List.of("fromAccountId"), 20, 5),
+        new Policy("Deposit", List.of("accountId"), 50, 20),
+        new Policy("PayLoan", List.of("accountId"), 20, 5),
+        new Policy("CreateLoan", List.of("clientId"), 3, 0.01));
+  }
+
+  /**
+   * BANK_RATE_LIMITS="Op:campo|alterno:ráfaga:porSegundo,..." reemplaza las políticas de las
+   * operaciones nombradas; "off" desactiva todo.
+   */
+  public static RateLimiter fromEnv(Map<String, String> env) {
+    String spec = env.getOrDefault("BANK_RATE_LIMITS", "");
+    if ("off".equalsIgnoreCase(spec.trim())) return unlimited();
+    Map<String, Policy> byOp = new HashMap<>();
+    for (Policy p : defaultPolicies()) byOp.put(p.op(), p);
+    for (String part : spec.split(",")) {
+      if (part.isBlank()) continue;
+      String[] f = part.trim().split(":");
+      if (f.length != 4) throw new IllegalArgumentException("BANK_RATE_LIMITS inválido: " + part);
+      byOp.put(f[0], new Policy(f[0], List.of(f[1].split("\\|")), Integer.parseInt(f[2]), Double.parseDouble(f[3])));
+    }
+    return new RateLimiter(new ArrayList<>(byOp.values()));
+  }
+
+  /**
+   * Consume un permiso para la petición; 0 si se acepta, o los milisegundos (>= 1) hasta
+   * que habría uno disponible.
+   */
+  public long acquire(String op, JsonNode req) {
+    Policy p = policies.get(op);
+    if (p == null) return 0;
+    String key = key(p, req);
+    if (key == null) return 0; // sin clave: lo rechazará la validación del handler
+    return acquire(op + '|' + key, p.burst(), p.perSecond(), nanoClock.getAsLong());
+  }
+
+  long acquire(String bucketKey, int burst, double perSecond, long now) {
+    ConcurrentHashMap<String, AtomicLong> shard = shards[(bucketKey.hashCode() & 0x7fffffff) % SHARDS];
+    if ((calls.incrementAndGet() & (SWEEP_EVERY - 1)) == 0) sweep(shard, now);
+    long interval = (long) (1_000_000_000L / perSecond);
+    long tolerance = interval * (Math.max(1, burst) - 1);
+    AtomicLong tat = shard.get(bucketKey);
+    if (tat == null) {
+      AtomicLong fresh = new AtomicLong(now + interval);
+      tat = shard.putIfAbsent(bucketKey, fresh);
+      if (tat == null) return 0;
+    }
+    while (true) {
+      long cur = tat.get();
+      long base = Math.max(cur, now);
+      long wait = base - now - tolerance;
+      if (wait > 0) return Math.max(1, wait / 1_000_000);
+      if (tat.compareAndSet(cur, base + interval)) return 0;
+    }
+  }
+
+  private static void sweep(ConcurrentHashMap<String, AtomicLong> shard, long now) {
+    shard.entrySet().removeIf(e -> e.getValue().get() <= now);
+  }
+
+  private static String key(Policy p, JsonNode req) {
+    JsonNode payload = req.path("payload");
+    for (String f : p.keyFields()) {
+      if (req.hasNonNull(f)) return req.get(f).asText();
+      if (payload.hasNonNull(f)) return payload.get(f).asText();
+    }
+    return null;
+  }
+
+  /** Cubetas vivas (para métricas y pruebas). */
+  public int size() {
+    int n = 0;
+    for (var s : shards) n += s.size();
+    return n;
+  }
+}
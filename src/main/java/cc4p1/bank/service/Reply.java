@@ -0,0 +1,60 @@
+package cc4p1.bank.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Respuesta de una operación, todavía sin codificar: el sobre de {@code ok()}/{@code error()}
+ * ({@code ok}, {@code status}, {@code data}, {@code error}, {@code correlationId}). Se codifica
+ * una sola vez, al salir, en el formato que pidió el cliente (ver {@link WireFormat}).
+ */
+public final class Reply {
+  private final Map<String, Object> envelope;
+
+  Reply(Map<String, Object> envelope) {
+    this.envelope = envelope;
+  }
+
+  public boolean ok() {
+    return Boolean.TRUE.equals(envelope.get("ok"));
+  }
+
+  /** Mensaje de error (null si es ok). */
+  public String errorMessage() {
+    return envelope.get("error") instanceof Map<?, ?> err ? (String) err.get("message") : null;
+  }
+
+  /**
+   * Codifica el sobre. Si {@code data} no se puede serializar, responde en su lugar el error
+   * (mismo sobre, sin data), como si el handler hubiera fallado.
+   */
+  public byte[] encode(WireFormat format) {
+    try {
+      return format.mapper().writeValueAsBytes(envelope);
+    } catch (Exception e) {
+      Map<String, Object> err = new LinkedHashMap<>();
+      err.put("message", e.getMessage());
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("ok", false);
+      res.put("status", "error");
+      res.put("data", null);
+      res.put("error", err);
+      res.put("correlationId", envelope.get("correlationId"));
+      try {
+        return format.mapper().writeValueAsBytes(res);
+      } catch (Exception e2) {
+        return "{\"ok\":false,\"error\":{\"message\":\"ENCODING_ERROR\"}}".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  /** El sobre en JSON (API de texto y pruebas). */
+  public String json() {
+    return new String(encode(WireFormat.JSON), java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return json();
+  }
+}
@@ -0,0 +1,378 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.repo.AccountRepo;
+import cc4p1.bank.repo.MessageRepo;
+import cc4p1.bank.repo.ScheduleRepo;
+import cc4p1.bank.repo.ScheduleRepo.Order;
+import cc4p1.bank.repo.TxRepo;
+import cc4p1.bank.util.Ids;
+import cc4p1.bank.util.TimingWheel;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ejecuta las transferencias programadas y órdenes permanentes de ORDENES_PROGRAMADAS
+ * (operación {@code ScheduleTransfer}).
+ *
+ * <p>En memoria solo está la ventana próxima ({@code windowMillis}): cada tanto se leen de los
+ * shards locales las órdenes activas que vencen dentro de ella y se cuelgan de una
+ * {@link TimingWheel} como (shard, orden, ocurrencia). Un millón de órdenes mensuales no ocupa
+ * memoria hasta la víspera. Las órdenes nuevas que caen dentro de la ventana ya leída entran
+ * con {@link #offer}.
+ *
+ * <p>Al vencer se ejecutan por lotes de hasta {@code batchSize} por shard, en una transacción
+ * con un SAVEPOINT por orden, con {@link TxRepo#transfer} como Transfer. Cada ocurrencia se
+ * marca en MENSAJES_PROCESADOS como {@code SCH:<orden>:<ocurrencia>} en la misma transacción
+ * que avanza la orden: ejecutarla dos veces no duplica. Cada ocurrencia reserva su monto del
+ * tope diario de la cuenta origen al ejecutarse, como Transfer. Un fallo de negocio
+ * (INSUFFICIENT_FUNDS, DAILY_LIMIT_EXCEEDED, ...) se anota en la orden y se pasa a la
+ * ocurrencia siguiente, sin reintento; uno
+ * transitorio (base ocupada, LOCK_TIMEOUT) reintenta el lote más tarde. Las órdenes hacia
+ * otro shard van por {@link CrossShardTransfers} con la misma clave.
+ *
+ * <p>Las ocurrencias atrasadas (servidor detenido) se ejecutan todas, en orden, al arrancar.
+ */
+public final class ScheduledTransfers implements AutoCloseable {
+
+  static final String OCCURRENCE_PREFIX = "SCH:";
+  private static final int WHEEL_SLOTS = 64;
+  private static final int WHEEL_LEVELS = 3;
+  private static final int LOAD_PAGE = 1000;
+  private static final long RETRY_DELAY_MS = 1000;
+  private static final List<String> TRANSIENT_ERRORS = List.of("DB_BUSY", "LOCK_TIMEOUT", "SAGA_UNAVAILABLE");
+
+  /** {@code tickMillis}: resolución; {@code windowMillis}: cuánto adelante se lee de la base. */
+  public record Config(long tickMillis, long windowMillis, int batchSize) {
+
+    public static Config defaults() {
+      return new Config(100, 60_000, 200);
+    }
+
+    /** BANK_SCHEDULE_TICK_MS, BANK_SCHEDULE_WINDOW_MS y BANK_SCHEDULE_BATCH. */
+    public static Config fromEnv(Map<String, String> env) {
+      Config d = defaults();
+      return new Config(
+          Long.parseLong(env.getOrDefault("BANK_SCHEDULE_TICK_MS", String.valueOf(d.tickMillis()))),
+          Long.parseLong(env.getOrDefault("BANK_SCHEDULE_WINDOW_MS", String.valueOf(d.windowMillis()))),
+          Integer.parseInt(env.getOrDefault("BANK_SCHEDULE_BATCH", String.valueOf(d.batchSize()))));
+    }
+  }
+
+  private record Due(int shard, String orderId, long occurrence) {
+  }
+
+  private final Shards shards;
+  private final AccountRepo accounts;
+  private final TxRepo txs;
+  private final MessageRepo messages;
+  private final CrossShardTransfers crossShard;
+  private final ScheduleRepo orders = new ScheduleRepo();
+  private volatile AccountLocks locks = AccountLocks.fromEnv(Map.of());
+  private volatile DailyLimits dailyLimits = DailyLimits.unlimited();
+  private volatile Config cfg = Config.defaults();
+  private final LongAdder fired = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  // Rueda y ventana: las usan el hilo del planificador y offer (peticiones); guardadas por this
+  private TimingWheel<Due> wheel;
+  private long loadedUntil = Long.MIN_VALUE;
+  private volatile boolean running;
+  private Thread thread;
+
+  ScheduledTransfers(Shards shards, AccountRepo accounts, TxRepo txs, MessageRepo messages,
+      CrossShardTransfers crossShard) {
+    this.shards = shards;
+    this.accounts = accounts;
+    this.txs = txs;
+    this.messages = messages;
+    this.crossShard = crossShard;
+  }
+
+  void setLocks(AccountLocks locks) {
+    this.locks = locks;
+  }
+
+  void setDailyLimits(DailyLimits dailyLimits) {
+    this.dailyLimits = dailyLimits;
+  }
+
+  /** Debe llamarse antes de {@link #start} (o del primer {@link #tick}). */
+  public synchronized void setConfig(Config cfg) {
+    this.cfg = cfg;
+    this.wheel = null;
+    this.loadedUntil = Long.MIN_VALUE;
+  }
+
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    thread = new Thread(this::loop, "scheduled-transfers");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void loop() {
+    while (running) {
+      try {
+        tick(System.currentTimeMillis());
+        Thread.sleep(cfg.tickMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        System.err.println("[WARN] ScheduledTransfers: " + e.getMessage());
+        try {
+          Thread.sleep(RETRY_DELAY_MS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Orden recién creada o modificada: si vence dentro de la ventana ya leída entra a la
+   * rueda; si no, la leerá la carga de su ventana.
+   */
+  synchronized void offer(int shard, Order o) {
+    if (wheel != null && o.active() && o.nextAt() <= loadedUntil) {
+      wheel.add(o.nextAt(), new Due(shard, o.orderId(), o.occurrence()));
+    }
+  }
+
+  /**
+   * Un paso del planificador en el instante {@code now}: extiende la ventana si hace falta y
+   * ejecuta lo vencido. Devuelve cuántas ocurrencias se procesaron (aplicadas o fallidas).
+   */
+  public int tick(long now) throws SQLException {
+    List<Due> due;
+    synchronized (this) {
+      if (wheel == null) wheel = new TimingWheel<>(Math.max(1, cfg.tickMillis()), WHEEL_SLOTS, WHEEL_LEVELS, now);
+      long window = Math.max(cfg.tickMillis(), Math.min(cfg.windowMillis(), wheel.horizonMillis()));
+      // Se lee por adelantado cuando queda media ventana: la carga no cae justo al vencer
+      if (loadedUntil == Long.MIN_VALUE || now + window / 2 >= loadedUntil) load(now + window);
+      due = wheel.advance(now);
+    }
+    if (due.isEmpty()) return 0;
+
+    Map<Integer, List<Due>> byShard = new LinkedHashMap<>();
+    for (Due d : due) byShard.computeIfAbsent(d.shard(), k -> new ArrayList<>()).add(d);
+    int done = 0;
+    int batchSize = Math.max(1, cfg.batchSize());
+    for (var e : byShard.entrySet()) {
+      List<Due> list = e.getValue();
+      for (int from = 0; from < list.size(); from += batchSize) {
+        List<Due> batch = list.subList(from, Math.min(list.size(), from + batchSize));
+        try {
+          List<Order> next = fire(e.getKey(), batch);
+          done += next.size();
+          for (Order o : next) offer(e.getKey(), o);
+        } catch (Exception ex) {
+          System.err.printf("[WARN] Órdenes programadas (shard %d, %d): %s; reintento en %d ms%n",
+              e.getKey(), batch.size(), ex.getMessage(), RETRY_DELAY_MS);
+          synchronized (this) {
+            for (Due d : batch) wheel.add(now + RETRY_DELAY_MS, d);
+          }
+        }
+      }
+    }
+    return done;
+  }
+
+  /** Lee de cada shard local las activas con proxima en (loadedUntil, until], por páginas. */
+  private void load(long until) throws SQLException {
+    for (int k = 0; k < shards.size(); k++) {
+      if (!shards.isLocal(k)) continue;
+      try (Connection c = shards.get(k).read()) {
+        long afterAt = loadedUntil;
+        String afterId = null;
+        List<Order> page;
+        do {
+          page = orders.due(c, afterAt, afterId, until, LOAD_PAGE);
+          for (Order o : page) wheel.add(o.nextAt(), new Due(k, o.orderId(), o.occurrence()));
+          if (!page.isEmpty()) {
+            afterAt = page.get(page.size() - 1).nextAt();
+            afterId = page.get(page.size() - 1).orderId();
+          }
+        } while (page.size() == LOAD_PAGE);
+      }
+    }
+    loadedUntil = until;
+  }
+
+  /**
+   * Ejecuta un lote del shard {@code k}; devuelve las órdenes avanzadas (las que siguen activas
+   * vuelven a la rueda si su próxima ocurrencia cae en la ventana).
+   */
+  private List<Order> fire(int k, List<Due> batch) throws Exception {
+    // Lectura previa: las canceladas o ya avanzadas se descartan y se sabe qué cuentas cerrar
+    List<Order> local = new ArrayList<>();
+    List<Order> remote = new ArrayList<>();
+    try (Connection c = shards.get(k).read()) {
+      for (Due d : batch) {
+        Order o = orders.find(c, d.orderId());
+        if (o == null || !o.active() || o.occurrence() != d.occurrence()) continue;
+        (shards.indexOf(o.toAccountId()) == k ? local : remote).add(o);
+      }
+    }
+    List<Order> out = new ArrayList<>(local.size() + remote.size());
+    if (!local.isEmpty()) out.addAll(fireLocal(k, local));
+    for (Order o : remote) {
+      Order next = fireRemote(k, o);
+      if (next != null) out.add(next);
+    }
+    return out;
+  }
+
+  private List<Order> fireLocal(int k, List<Order> due) throws Exception {
+    Set<String> touched = new LinkedHashSet<>();
+    for (Order o : due) {
+      touched.add(o.fromAccountId());
+      touched.add(o.toAccountId());
+    }
+    // Aplicadas en el intento en curso, cada una con su reserva del tope diario
+    List<Order> applied = new ArrayList<>();
+    List<Order> out;
+    boolean committed = false;
+    try (var held = locks.acquire(touched); var lock = shards.lockWrite(k)) {
+      out = shards.get(k).write(c -> {
+        // Reintento por base ocupada: lo reservado por el intento anterior se devuelve
+        release(applied);
+        applied.clear();
+        List<Order> next = new ArrayList<>(due.size());
+        for (Order d : due) {
+          Order o = orders.find(c, d.orderId());
+          if (o == null || !o.active() || o.occurrence() != d.occurrence()) continue;
+          String key = key(o);
+          String error = null;
+          if (!messages.alreadyProcessed(c, key)) {
+            if (!dailyLimits.tryReserve(o.fromAccountId(), o.amount())) {
+              error = "DAILY_LIMIT_EXCEEDED";
+            } else {
+              Savepoint sp = c.setSavepoint();
+              try {
+                txs.transfer(c, Ids.transfer(), Ids.tx(), o.fromAccountId(), o.toAccountId(), o.amount(), accounts,
+                    o.metadataJson());
+                messages.markProcessed(c, key);
+                c.releaseSavepoint(sp);
+                applied.add(o);
+              } catch (SQLException e) {
+                dailyLimits.release(o.fromAccountId(), o.amount());
+                if (!isBusinessError(e)) throw e;
+                c.rollback(sp);
+                c.releaseSavepoint(sp);
+                error = e.getMessage();
+              }
+            }
+          }
+          next.add(orders.advance(c, o, error));
+        }
+        return next;
+      });
+      committed = true;
+    } finally {
+      if (!committed) release(applied);
+    }
+    count(out, applied.size());
+    return out;
+  }
+
+  /** Devuelve al tope diario las reservas de ocurrencias que no se confirmaron. */
+  private void release(List<Order> reserved) {
+    for (Order o : reserved) dailyLimits.release(o.fromAccountId(), o.amount());
+  }
+
+  private Order fireRemote(int k, Order o) throws Exception {
+    String error = null;
+    boolean applied = false;
+    if (!dailyLimits.tryReserve(o.fromAccountId(), o.amount())) {
+      error = "DAILY_LIMIT_EXCEEDED";
+    } else {
+      try {
+        var res = crossShard.transfer(key(o), Ids.transfer(), o.fromAccountId(), o.toAccountId(), o.amount(),
+            o.metadataJson());
+        applied = !res.duplicate();
+      } catch (SQLException e) {
+        if (!isBusinessError(e)) throw e;
+        error = e.getMessage();
+      } finally {
+        // Repetida (ya contada al aplicarse) o fallida: la reserva se devuelve
+        if (!applied) dailyLimits.release(o.fromAccountId(), o.amount());
+      }
+    }
+    String err = error;
+    try (var lock = shards.lockWrite(k)) {
+      Order next = shards.get(k).write(c -> {
+        Order cur = orders.find(c, o.orderId());
+        if (cur == null || !cur.active() || cur.occurrence() != o.occurrence()) return null;
+        return orders.advance(c, cur, err);
+      });
+      if (next != null) count(List.of(next), applied ? 1 : 0);
+      return next;
+    }
+  }
+
+  private void count(List<Order> advanced, int applied) {
+    fired.add(applied);
+    failed.add(advanced.size() - applied);
+  }
+
+  /** Clave de idempotencia de una ocurrencia. */
+  static String key(Order o) {
+    return OCCURRENCE_PREFIX + o.orderId() + ":" + o.occurrence();
+  }
+
+  /**
+   * Errores de negocio de los repos (INSUFFICIENT_FUNDS, ACCOUNT_NOT_FOUND, ...): sin código del
+   * driver ni causa. Los demás son transitorios: SQLITE_BUSY del driver y los que se nombran en
+   * {@link #TRANSIENT_ERRORS}, que pueden llegar sin causa (el cerrojo de escritura del shard
+   * agotado lanza DB_BUSY a secas).
+   */
+  private static boolean isBusinessError(SQLException e) {
+    String msg = e.getMessage();
+    if (msg != null) {
+      for (String prefix : TRANSIENT_ERRORS) {
+        if (msg.startsWith(prefix)) return false;
+      }
+    }
+    return e.getErrorCode() == 0 && e.getCause() == null;
+  }
+
+  /** Ocurrencias aplicadas desde el arranque. */
+  public long fired() {
+    return fired.sum();
+  }
+
+  /** Ocurrencias que fallaron por un error de negocio (se anotan en la orden). */
+  public long failed() {
+    return failed.sum();
+  }
+
+  /** Ocurrencias en memoria (la ventana próxima). */
+  public synchronized int inMemory() {
+    return wheel == null ? 0 : wheel.size();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    Thread t;
+    synchronized (this) {
+      running = false;
+      t = thread;
+    }
+    if (t != null) {
+      t.interrupt();
+      t.join(5_000);
+    }
+  }
+}
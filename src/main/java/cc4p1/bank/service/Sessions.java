@@ -0,0 +1,127 @@
+package cc4p1.bank.service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sesiones en memoria de corta vida. Tras un Login correcto se emite un token opaco
+ * ({@code sessionToken}) que permite volver a autenticarse sin PBKDF2 ni consulta a
+ * CLIENTES. Además se recuerda, por DNI, una huella HMAC (clave aleatoria del proceso) de la
+ * contraseña recién verificada: un Login repetido con las mismas credenciales dentro del TTL
+ * tampoco recalcula el hash.
+ *
+ * <p>Se pierden al reiniciar (el cliente vuelve a enviar la contraseña). Con
+ * {@code maxEntries} lleno se purgan las vencidas y, si aún no hay lugar, simplemente no se
+ * guarda: la memoria queda acotada aunque lleguen ráfagas de logins.
+ */
+public final class Sessions {
+
+  public record Session(String token, String clientId, String dni, long expiresAt) {
+  }
+
+  private record Recent(byte[] fingerprint, String clientId, long expiresAt) {
+  }
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final long ttlMillis;
+  private final int maxEntries;
+  private final Map<String, Session> byToken = new ConcurrentHashMap<>();
+  private final Map<String, Recent> recentByDni = new ConcurrentHashMap<>();
+  private final byte[] key = new byte[32];
+
+  public Sessions(long ttlMillis, int maxEntries) {
+    this.ttlMillis = ttlMillis;
+    this.maxEntries = maxEntries;
+    RANDOM.nextBytes(key);
+  }
+
+  /** BANK_SESSION_TTL_SECONDS (900) y BANK_SESSION_MAX (100000). */
+  public static Sessions fromEnv(Map<String, String> env) {
+    return new Sessions(
+        Long.parseLong(env.getOrDefault("BANK_SESSION_TTL_SECONDS", "900")) * 1000,
+        Integer.parseInt(env.getOrDefault("BANK_SESSION_MAX", "100000")));
+  }
+
+  public Session issue(String clientId, String dni) {
+    return issue(clientId, dni, t -> true);
+  }
+
+  /** Como {@link #issue(String, String)}, con un token que cumpla {@code accept} (p. ej. su shard). */
+  public Session issue(String clientId, String dni, Predicate<String> accept) {
+    String token;
+    do {
+      byte[] raw = new byte[24];
+      RANDOM.nextBytes(raw);
+      token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    } while (!accept.test(token));
+    Session s = new Session(token, clientId, dni, System.currentTimeMillis() + ttlMillis);
+    if (room(byToken, Session::expiresAt)) byToken.put(s.token(), s);
+    return s;
+  }
+
+  /** Sesión vigente del token, o null. */
+  public Session get(String token) {
+    Session s = byToken.get(token);
+    if (s == null) return null;
+    if (s.expiresAt() <= System.currentTimeMillis()) {
+      byToken.remove(token, s);
+      return null;
+    }
+    return s;
+  }
+
+  public void invalidate(String token) {
+    byToken.remove(token);
+  }
+
+  /** Recuerda que {@code password} de {@code dni} se acaba de verificar. */
+  public void rememberLogin(String dni, String password, String clientId) {
+    if (room(recentByDni, Recent::expiresAt)) {
+      recentByDni.put(dni, new Recent(fingerprint(dni, password), clientId, System.currentTimeMillis() + ttlMillis));
+    }
+  }
+
+  /** clientId si las mismas credenciales se verificaron hace menos del TTL, o null. */
+  public String recentLogin(String dni, String password) {
+    Recent r = recentByDni.get(dni);
+    if (r == null) return null;
+    if (r.expiresAt() <= System.currentTimeMillis()) {
+      recentByDni.remove(dni, r);
+      return null;
+    }
+    return MessageDigest.isEqual(r.fingerprint(), fingerprint(dni, password)) ? r.clientId() : null;
+  }
+
+  public int size() {
+    return byToken.size();
+  }
+
+  private <V> boolean room(Map<String, V> m, ToLongFunction<V> expiresAt) {
+    if (m.size() < maxEntries) return true;
+    long now = System.currentTimeMillis();
+    m.values().removeIf(v -> expiresAt.applyAsLong(v) <= now);
+    return m.size() < maxEntries;
+  }
+
+  private byte[] fingerprint(String dni, String password) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      mac.update(dni.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
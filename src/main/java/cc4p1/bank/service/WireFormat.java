@@ -0,0 +1,49 @@
+package cc4p1.bank.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import java.util.Locale;
+
+/**
+ * Codificación de peticiones y respuestas, elegida por el {@code contentType} AMQP de la
+ * petición: JSON (por defecto y para cualquier tipo desconocido), CBOR o Smile. Los binarios
+ * llevan el mismo árbol que el JSON (mismo sobre ok/error), sin texto: las páginas grandes
+ * (ListTransactions, lotes) ocupan menos y se codifican con menos CPU.
+ */
+public enum WireFormat {
+  JSON("application/json", new ObjectMapper()),
+  CBOR("application/cbor", new CBORMapper()),
+  SMILE("application/x-jackson-smile", new SmileMapper());
+
+  private final String contentType;
+  private final ObjectMapper mapper;
+
+  WireFormat(String contentType, ObjectMapper mapper) {
+    this.contentType = contentType;
+    this.mapper = mapper;
+  }
+
+  public String contentType() {
+    return contentType;
+  }
+
+  /** Mapper compartido (thread-safe) de la codificación; su factory sirve para leer en streaming. */
+  public ObjectMapper mapper() {
+    return mapper;
+  }
+
+  /** Formato de un contentType ("application/cbor; v=1" incluido); JSON si es null o desconocido. */
+  public static WireFormat of(String contentType) {
+    if (contentType == null) return JSON;
+    String base = contentType;
+    int semi = base.indexOf(';');
+    if (semi >= 0) base = base.substring(0, semi);
+    base = base.trim().toLowerCase(Locale.ROOT);
+    for (WireFormat f : values()) {
+      if (f.contentType.equals(base)) return f;
+    }
+    return "application/smile".equals(base) ? SMILE : JSON;
+  }
+}
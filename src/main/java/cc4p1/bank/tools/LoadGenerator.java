@@ -0,0 +1,238 @@
+package cc4p1.bank.tools;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.Cliente;
+import cc4p1.bank.domain.Cuenta;
+import cc4p1.bank.mq.InMemoryBroker;
+import cc4p1.bank.mq.Rabbit;
+import cc4p1.bank.mq.Transport;
+import cc4p1.bank.repo.*;
+import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.MockReniecClient;
+import cc4p1.bank.util.LatencyHistogram;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga de lazo abierto sin RabbitMQ: levanta el banco completo
+ * (SQLite temporal + BankService + Rabbit) sobre un {@link InMemoryBroker} y le
+ * envía peticiones a una tasa objetivo fija, independiente de lo que tarden las
+ * respuestas. La latencia se mide desde el instante en que la petición <em>debía</em>
+ * enviarse según el calendario, no desde que se envió, para corregir la omisión
+ * coordinada (si el emisor se atrasa, ese atraso cuenta como latencia).
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.mainClass=cc4p1.bank.tools.LoadGenerator \
+ *     -Dexec.args="--rate 300 --duration 30 --accounts 1000 --mix GetBalance=40,Deposit=20,Transfer=20,ListTransactions=15,CreateLoan=5"
+ * </pre>
+ */
+public class LoadGenerator {
+
+  private static final String[] OPS = {
+      "GetBalance", "Deposit", "Withdraw", "Transfer", "ListTransactions", "CreateLoan"};
+
+  private final ObjectMapper om = new ObjectMapper();
+  private final Map<String, Pending> inFlight = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> latency = new TreeMap<>();
+  private final Map<String, AtomicLong> errors = new TreeMap<>();
+  private final LatencyHistogram overall = new LatencyHistogram();
+  private final AtomicLong seq = new AtomicLong();
+
+  private record Pending(String op, long intendedNanos, boolean measured) {
+  }
+
+  record Config(double rate, int durationSec, int warmupSec, int accounts, Map<String, Integer> mix,
+      boolean verbose) {
+
+    static Config parse(String[] args) {
+      Map<String, String> a = new HashMap<>();
+      for (int i = 0; i + 1 < args.length; i += 2) a.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+      Map<String, Integer> mix = new LinkedHashMap<>();
+      for (String part : a.getOrDefault("mix",
+          "GetBalance=40,Deposit=20,Transfer=20,ListTransactions=15,CreateLoan=5").split(",")) {
+        String[] kv = part.split("=");
+        if (!Arrays.asList(OPS).contains(kv[0])) throw new IllegalArgumentException("op no soportada: " + kv[0]);
+        mix.put(kv[0], Integer.parseInt(kv[1]));
+      }
+      return new Config(
+          Double.parseDouble(a.getOrDefault("rate", "200")),
+          Integer.parseInt(a.getOrDefault("duration", "30")),
+          Integer.parseInt(a.getOrDefault("warmup", "5")),
+          Integer.parseInt(a.getOrDefault("accounts", "1000")),
+          mix,
+          Boolean.parseBoolean(a.getOrDefault("verbose", "false")));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config cfg = Config.parse(args);
+    Path dbFile = Files.createTempFile("bank-load-", ".db");
+    Files.delete(dbFile);
+    try {
+      new LoadGenerator().run(cfg, dbFile);
+    } finally {
+      Files.deleteIfExists(dbFile);
+      Files.deleteIfExists(Path.of(dbFile + "-wal"));
+      Files.deleteIfExists(Path.of(dbFile + "-shm"));
+      Files.deleteIfExists(Path.of(dbFile + "-journal"));
+    }
+  }
+
+  void run(Config cfg, Path dbFile) throws Exception {
+    SQLite sqlite = new SQLite(dbFile.toString());
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    var clientRepo = new ClientRepo();
+    var accountRepo = new AccountRepo();
+    seed(sqlite, clientRepo, accountRepo, cfg.accounts());
+    BankService bank = new BankService(sqlite, clientRepo, accountRepo, new LoanRepo(), new TxRepo(),
+        new MessageRepo(), new MockReniecClient(true, 0));
+
+    try (InMemoryBroker broker = new InMemoryBroker()) {
+      Rabbit server = new Rabbit(broker);
+      server.setVerbose(cfg.verbose());
+      server.serve(bank);
+
+      String replyQueue = broker.declareTempQueue();
+      broker.consume(replyQueue, Integer.MAX_VALUE, d -> {
+        long now = System.nanoTime();
+        Pending p = inFlight.remove(d.message().correlationId());
+        d.ack();
+        if (p == null || !p.measured()) return;
+        long lat = now - p.intendedNanos();
+        JsonNode res = om.readTree(d.message().body());
+        synchronized (latency) {
+          latency.computeIfAbsent(p.op(), k -> new LatencyHistogram()).record(lat);
+          if (!res.path("ok").asBoolean(false)) errors.computeIfAbsent(p.op(), k -> new AtomicLong()).incrementAndGet();
+        }
+        overall.record(lat);
+      });
+
+      System.out.printf("[load] rate=%.1f/s duration=%ds warmup=%ds accounts=%d mix=%s%n",
+          cfg.rate(), cfg.durationSec(), cfg.warmupSec(), cfg.accounts(), cfg.mix());
+
+      long period = (long) (1_000_000_000L / cfg.rate());
+      long start = System.nanoTime();
+      long measureFrom = start + TimeUnit.SECONDS.toNanos(cfg.warmupSec());
+      long end = measureFrom + TimeUnit.SECONDS.toNanos(cfg.durationSec());
+      long sent = 0;
+      for (long i = 0; ; i++) {
+        long intended = start + i * period;
+        if (intended >= end) break;
+        long wait;
+        while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+        String op = pick(cfg.mix());
+        String corrId = "lg-" + i;
+        inFlight.put(corrId, new Pending(op, intended, intended >= measureFrom));
+        broker.publish(Rabbit.exchange(), Rabbit.routingKeyFor(op),
+            new Transport.Message(corrId, replyQueue, "application/json", null,
+                om.writeValueAsBytes(request(op, cfg.accounts())), System.currentTimeMillis(), null));
+        sent++;
+      }
+
+      // Esperar a que se vacíen las respuestas pendientes (máx. 30 s)
+      long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (!inFlight.isEmpty() && System.nanoTime() < drainUntil) Thread.sleep(10);
+      long elapsed = System.nanoTime() - measureFrom;
+      report(cfg, sent, elapsed);
+    }
+  }
+
+  private static void seed(SQLite sqlite, ClientRepo clients, AccountRepo accounts, int n) throws Exception {
+    try (Connection c = sqlite.get()) {
+      for (int i = 0; i < n; i++) {
+        clients.insert(c, new Cliente(clientId(i), String.format("8%07d", i), "LOAD", "PAT", "MAT",
+            null, null, null, LocalDateTime.now()), "load");
+        accounts.insert(c, new Cuenta(accountId(i), clientId(i), new BigDecimal("1000000000.00"), LocalDate.now()));
+      }
+      c.commit();
+    }
+  }
+
+  private static String clientId(int i) {
+    return String.format("CL-LG%06d", i);
+  }
+
+  private static String accountId(int i) {
+    return String.format("CU-LG%06d", i);
+  }
+
+  private static String pick(Map<String, Integer> mix) {
+    int total = 0;
+    for (int w : mix.values()) total += w;
+    int r = ThreadLocalRandom.current().nextInt(total);
+    for (var e : mix.entrySet()) {
+      r -= e.getValue();
+      if (r < 0) return e.getKey();
+    }
+    throw new IllegalStateException();
+  }
+
+  private Map<String, Object> request(String op, int accounts) {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    int i = rnd.nextInt(accounts);
+    Map<String, Object> r = new LinkedHashMap<>();
+    r.put("type", op);
+    switch (op) {
+      case "GetBalance" -> r.put("accountId", accountId(i));
+      case "ListTransactions" -> {
+        r.put("accountId", accountId(i));
+        r.put("limit", 20);
+      }
+      case "Deposit", "Withdraw" -> {
+        r.put("messageId", "lg-msg-" + seq.incrementAndGet());
+        r.put("accountId", accountId(i));
+        r.put("amount", "1.00");
+      }
+      case "Transfer" -> {
+        int j = accounts == 1 ? i : (i + 1 + rnd.nextInt(accounts - 1)) % accounts;
+        r.put("messageId", "lg-msg-" + seq.incrementAndGet());
+        r.put("fromAccountId", accountId(i));
+        r.put("toAccountId", accountId(j));
+        r.put("amount", "1.00");
+      }
+      case "CreateLoan" -> {
+        r.put("messageId", "lg-msg-" + seq.incrementAndGet());
+        r.put("clientId", clientId(i));
+        r.put("accountId", accountId(i));
+        r.put("principal", "100.00");
+      }
+      default -> throw new IllegalArgumentException(op);
+    }
+    return r;
+  }
+
+  private void report(Config cfg, long sent, long elapsedNanos) {
+    double secs = elapsedNanos / 1e9;
+    System.out.printf("%n[load] sent=%d answered(measured)=%d unanswered=%d achieved=%.1f/s (target %.1f/s)%n",
+        sent, overall.count(), inFlight.size(), overall.count() / secs, cfg.rate());
+    System.out.printf("%-18s %8s %7s %9s %9s %9s %9s %9s%n",
+        "op", "count", "errors", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+    synchronized (latency) {
+      for (var e : latency.entrySet()) {
+        AtomicLong err = errors.get(e.getKey());
+        row(e.getKey(), e.getValue(), err == null ? 0 : err.get());
+      }
+    }
+    long totalErr = errors.values().stream().mapToLong(AtomicLong::get).sum();
+    row("ALL", overall, totalErr);
+  }
+
+  private static void row(String name, LatencyHistogram h, long errors) {
+    System.out.printf("%-18s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, h.count(), errors,
+        h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6,
+        h.percentile(99.9) / 1e6, h.max() / 1e6);
+  }
+}
@@ -0,0 +1,67 @@
+package cc4p1.bank.tools;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parte una base de un solo archivo en N shards (ver {@link Shards}): copia la base completa
+ * a cada {@code bank.s{k}.db} con VACUUM INTO y después poda de cada copia lo que pertenece a
+ * otros shards. La base original no se modifica (queda como respaldo); el servidor debe
+ * estar detenido mientras corre.
+ *
+ * <pre>
+ * java -cp target/classes:... cc4p1.bank.tools.ShardSplitter --source data/bank.db --shards 4
+ * </pre>
+ */
+public final class ShardSplitter {
+
+  private ShardSplitter() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> a = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) a.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    String source = a.getOrDefault("source", "data/bank.db");
+    int n = Integer.parseInt(a.getOrDefault("shards", "2"));
+    long t0 = System.nanoTime();
+    Shards shards = split(source, n);
+    System.out.printf("[split] %s en %d shards en %d ms%n", source, shards.size(), (System.nanoTime() - t0) / 1_000_000);
+  }
+
+  /** Crea los N shards junto a {@code sourcePath}; falla si alguno ya existe. */
+  public static Shards split(String sourcePath, int n) throws Exception {
+    if (n < 2) throw new IllegalArgumentException("shards must be >= 2");
+    for (int k = 0; k < n; k++) {
+      if (Files.exists(Path.of(Shards.path(sourcePath, k, n)))) {
+        throw new IllegalStateException("SHARD_EXISTS: " + Shards.path(sourcePath, k, n));
+      }
+    }
+    // Migraciones primero, así todas las copias salen con el esquema al día
+    SQLite src = new SQLite(sourcePath);
+    src.initializeIfNeeded("/db/init_db.sql");
+    try (Connection c = src.get()) {
+      c.setAutoCommit(true); // VACUUM no corre dentro de una transacción
+      for (int k = 0; k < n; k++) {
+        try (PreparedStatement ps = c.prepareStatement("VACUUM INTO ?")) {
+          ps.setString(1, Shards.path(sourcePath, k, n));
+          ps.execute();
+        }
+      }
+    }
+
+    Shards shards = Shards.open(sourcePath, n);
+    for (int k = 0; k < n; k++) {
+      shards.get(k).initializeIfNeeded("/db/init_db.sql");
+      int removed = shards.prune(k);
+      System.out.printf("[split] shard %d: %d filas ajenas borradas%n", k, removed);
+    }
+    return shards;
+  }
+}
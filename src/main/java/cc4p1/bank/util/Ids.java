@@ -9,12 +9,23 @@ public class Ids {
     return UUID.randomUUID().toString().substring(0, 6);
   }
 
+  // Transacciones y transferencias se generan en volumen: 6 hex (16M) colisiona
+  // con pocas decenas de miles de filas, así que usan 12 hex.
+  private static String longUuid() {
+    String u = UUID.randomUUID().toString();
+    return u.substring(0, 8) + u.substring(9, 13);
+  }
+
   public static String tx() {
-    return "TX-" + shortUuid();
+    return "TX-" + longUuid();
   }
 
   public static String transfer() {
-    return "TF-" + LocalDate.now() + "-" + shortUuid();
+    return "TF-" + LocalDate.now() + "-" + longUuid();
+  }
+
+  public static String order() {
+    return "OP-" + longUuid();
   }
 
   public static String loan() {
@@ -0,0 +1,82 @@
+package cc4p1.bank.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-lineal de valores no negativos (p. ej. latencias en nanosegundos)
+ * con error relativo &lt; 3.2%: 64 cubetas exactas y luego 32 sub-cubetas por potencia de 2.
+ * Seguro para registrar desde varios hilos sin bloqueo.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;           // 32
+  private static final int LINEAR = SUB_COUNT * 2;              // 64 valores exactos
+  private static final int SIZE = LINEAR + (63 - 6) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) value = 0;
+    counts.incrementAndGet(indexOf(value));
+    total.incrementAndGet();
+    sum.addAndGet(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  public long count() {
+    return total.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = total.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /** Valor en el percentil {@code p} (0..100), redondeado al límite superior de su cubeta. */
+  public long percentile(double p) {
+    long n = total.get();
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < SIZE; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  /** Suma los conteos de {@code other} en este histograma. */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < SIZE; i++) {
+      long c = other.counts.get(i);
+      if (c != 0) counts.addAndGet(i, c);
+    }
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  private static int indexOf(long v) {
+    if (v < LINEAR) return (int) v;
+    int e = 63 - Long.numberOfLeadingZeros(v);            // >= 6
+    int sub = (int) (v >>> (e - SUB_BITS)) - SUB_COUNT;    // 0..31
+    return LINEAR + (e - 6) * SUB_COUNT + sub;
+  }
+
+  private static long upperBound(int i) {
+    if (i < LINEAR) return i;
+    int k = (i - LINEAR) / SUB_COUNT;
+    int sub = (i - LINEAR) % SUB_COUNT;
+    int shift = k + 6 - SUB_BITS;
+    return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+  }
+}
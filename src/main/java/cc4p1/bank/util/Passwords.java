@@ -0,0 +1,79 @@
+package cc4p1.bank.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Hash de contraseñas con PBKDF2-HMAC-SHA256 y sal aleatoria. Formato guardado en
+ * CLIENTES.password: {@code pbkdf2-sha256$<iteraciones>$<sal>$<hash>} (Base64 sin relleno).
+ * Las iteraciones viajan en el valor, así se pueden subir sin invalidar los existentes.
+ *
+ * <p>Un valor sin el prefijo es una contraseña en texto plano de antes de la migración
+ * (o cargada a mano): se compara en tiempo constante y jobs.PasswordBackfill la convierte.
+ */
+public final class Passwords {
+
+  public static final String PREFIX = "pbkdf2-sha256$";
+  public static final int ITERATIONS = 210_000;
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final Base64.Encoder B64 = Base64.getEncoder().withoutPadding();
+  private static final Base64.Decoder B64D = Base64.getDecoder();
+
+  /** Para DNIs inexistentes: se verifica contra esto y tarda lo mismo que uno real. */
+  private static volatile String dummy;
+
+  private Passwords() {
+  }
+
+  public static boolean isHashed(String stored) {
+    return stored != null && stored.startsWith(PREFIX);
+  }
+
+  public static String hash(String password) {
+    byte[] salt = new byte[SALT_BYTES];
+    RANDOM.nextBytes(salt);
+    return PREFIX + ITERATIONS + '$' + B64.encodeToString(salt) + '$'
+        + B64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+  }
+
+  /** true si {@code password} corresponde a {@code stored}; con stored null hace el mismo trabajo y da false. */
+  public static boolean verify(String password, String stored) {
+    if (stored == null) {
+      verify(password, dummy());
+      return false;
+    }
+    if (!isHashed(stored)) {
+      return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+    }
+    String[] f = stored.split("\\$");
+    if (f.length != 4) return false;
+    byte[] expected = B64D.decode(f[3]);
+    byte[] actual = pbkdf2(password, B64D.decode(f[2]), Integer.parseInt(f[1]));
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  private static String dummy() {
+    String d = dummy;
+    if (d == null) dummy = d = hash("dummy");
+    return d;
+  }
+
+  private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package cc4p1.bank.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rueda de tiempo jerárquica (Varghese–Lauck): {@code levels} ruedas de {@code slots} cubetas;
+ * la cubeta de un nivel cubre {@code slots} veces lo que cubre una del nivel de abajo. Un
+ * elemento se guarda en el nivel más bajo cuyo "dígito" superior coincide con el tiempo actual
+ * y baja de nivel (cascada) cuando la rueda de abajo llega a su cubeta. Agregar es O(1) y
+ * avanzar un tick es O(1) más lo que vence.
+ *
+ * <p>El alcance es limitado: el nivel más alto es relativo al actual y lo que vence a
+ * {@code tick × (slots-1) × slots^(levels-1)} o más no entra ({@link #add} devuelve false).
+ * No es segura para varios hilos.
+ */
+public final class TimingWheel<T> {
+
+  private record Entry<T>(long tick, T item) {
+  }
+
+  private final long tickMillis;
+  private final int slots;
+  private final int levels;
+  /** slots^l, para l = 0..levels-1. */
+  private final long[] span;
+  private final List<List<Entry<T>>> buckets;
+  /** Vencidos al agregarse (o ya en el tick actual): salen en el próximo {@link #advance}. */
+  private final List<T> ready = new ArrayList<>();
+  private long current;
+  private int size;
+
+  public TimingWheel(long tickMillis, int slots, int levels, long startMillis) {
+    if (tickMillis <= 0 || slots < 2 || levels < 1) throw new IllegalArgumentException("timing wheel");
+    this.tickMillis = tickMillis;
+    this.slots = slots;
+    this.levels = levels;
+    this.span = new long[levels];
+    span[0] = 1;
+    for (int l = 1; l < levels; l++) span[l] = Math.multiplyExact(span[l - 1], slots);
+    this.buckets = new ArrayList<>(levels * slots);
+    for (int i = 0; i < levels * slots; i++) buckets.add(null);
+    this.current = Math.floorDiv(startMillis, tickMillis);
+  }
+
+  /** Alcance garantizado desde cualquier momento (ms). */
+  public long horizonMillis() {
+    return tickMillis * (slots - 1) * span[levels - 1];
+  }
+
+  /** Elementos pendientes (en la rueda o listos para salir). */
+  public int size() {
+    return size + ready.size();
+  }
+
+  /**
+   * Agrega {@code item} para que salga cuando {@link #advance} llegue a {@code dueMillis}; si ya
+   * venció sale en el próximo avance. false si está fuera de alcance (no se agrega).
+   */
+  public boolean add(long dueMillis, T item) {
+    long tick = Math.floorDiv(dueMillis, tickMillis);
+    if (tick <= current) {
+      ready.add(item);
+      return true;
+    }
+    if (tick / span[levels - 1] - current / span[levels - 1] >= slots) return false;
+    place(new Entry<>(tick, item));
+    size++;
+    return true;
+  }
+
+  /** Avanza hasta {@code nowMillis} y devuelve lo vencido, en orden de vencimiento por tick. */
+  public List<T> advance(long nowMillis) {
+    long target = Math.floorDiv(nowMillis, tickMillis);
+    List<T> out = new ArrayList<>(ready);
+    ready.clear();
+    // Rueda vacía: se salta directo, sin recorrer los ticks intermedios
+    if (size == 0) {
+      current = Math.max(current, target);
+      return out;
+    }
+    while (current < target && size > 0) {
+      current++;
+      // Cascada de arriba abajo: lo que baja de un nivel puede caer en una cubeta que también toca bajar
+      for (int l = levels - 1; l >= 1; l--) {
+        if (current % span[l] == 0) {
+          List<Entry<T>> moved = take(l, (int) ((current / span[l]) % slots));
+          if (moved != null) {
+            for (Entry<T> e : moved) place(e);
+          }
+        }
+      }
+      List<Entry<T>> due = take(0, (int) (current % slots));
+      if (due != null) {
+        size -= due.size();
+        for (Entry<T> e : due) out.add(e.item());
+      }
+    }
+    current = Math.max(current, target);
+    return out;
+  }
+
+  private void place(Entry<T> e) {
+    // Nivel más bajo cuyo dígito superior coincide con el actual; si ninguno, el más alto
+    int l = 0;
+    while (l < levels - 1 && e.tick() / span[l + 1] != current / span[l + 1]) l++;
+    int index = l * slots + (int) ((e.tick() / span[l]) % slots);
+    List<Entry<T>> bucket = buckets.get(index);
+    if (bucket == null) buckets.set(index, bucket = new ArrayList<>());
+    bucket.add(e);
+  }
+
+  private List<Entry<T>> take(int level, int slot) {
+    int index = level * slots + slot;
+    List<Entry<T>> bucket = buckets.get(index);
+    buckets.set(index, null);
+    return bucket;
+  }
+}
@@ -0,0 +1,69 @@
+package cc4p1.bank.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Hash encadenado de una fila de TRANSACCIONES: SHA-256 del hash anterior de la misma
+ * cuenta más los campos de la fila, cada uno con prefijo de longitud (así ningún valor
+ * puede "correrse" al campo vecino). El monto entra como el double que guarda SQLite,
+ * para que el verificador obtenga exactamente lo mismo al releer la columna REAL.
+ *
+ * <p>Formato por fila (TRANSACCIONES.version_hash): 1 (o NULL, filas anteriores) no incluye
+ * saldo_posterior; {@value #VERSION}, el actual, lo agrega al final, también como double.
+ */
+public final class TxHash {
+
+  /** hash_anterior de la primera fila encadenada de cada cuenta. */
+  public static final String GENESIS = "0".repeat(64);
+
+  /** Formato de las filas nuevas: incluye saldo_posterior. */
+  public static final int VERSION = 2;
+
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private TxHash() {
+  }
+
+  /** {@code saldoPosterior} solo entra con {@code version} 2; con 1 se ignora. */
+  public static String compute(int version, String prevHash, String txId, String transferId, String accountId,
+      String destAccountId, String metadata, String tipo, double monto, String fecha, long secuencia,
+      double saldoPosterior) {
+    if (version != 1 && version != VERSION) throw new IllegalArgumentException("hash version " + version);
+    StringBuilder sb = new StringBuilder(208);
+    field(sb, prevHash);
+    field(sb, txId);
+    field(sb, transferId);
+    field(sb, accountId);
+    field(sb, destAccountId);
+    field(sb, metadata);
+    field(sb, tipo);
+    field(sb, Double.toString(monto));
+    field(sb, fecha);
+    field(sb, Long.toString(secuencia));
+    if (version == VERSION) field(sb, Double.toString(saldoPosterior));
+    return sha256Hex(sb.toString());
+  }
+
+  public static String sha256Hex(String s) {
+    MessageDigest md = SHA256.get();
+    md.reset();
+    return HexFormat.of().formatHex(md.digest(s.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static void field(StringBuilder sb, String v) {
+    if (v == null) {
+      sb.append("-1:");
+      return;
+    }
+    sb.append(v.length()).append(':').append(v);
+  }
+}
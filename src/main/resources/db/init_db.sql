@@ -9,7 +9,7 @@ CREATE TABLE IF NOT EXISTS CLIENTES (
     nombres        TEXT NOT NULL,
     apellido_pat  TEXT NOT NULL,
     apellido_mat  TEXT NOT NULL,
-    password       TEXT NOT NULL,                -- Para autenticación (texto plano en entorno local)
+    password       TEXT NOT NULL,                -- PBKDF2 (util.Passwords), formato pbkdf2-sha256$iter$sal$hash
     direccion      TEXT,
     telefono       TEXT,
     correo         TEXT,
@@ -24,6 +24,7 @@ CREATE TABLE IF NOT EXISTS CUENTAS (
     id_cliente     TEXT NOT NULL,
     saldo          REAL NOT NULL DEFAULT 0,
     fecha_apertura TEXT NOT NULL DEFAULT (date('now')),
+    version        INTEGER NOT NULL DEFAULT 0,    -- sube con cada cambio de saldo
     FOREIGN KEY (id_cliente) REFERENCES CLIENTES(id_cliente)
 );
 
@@ -38,6 +39,7 @@ CREATE TABLE IF NOT EXISTS PRESTAMOS (
     monto_pendiente REAL NOT NULL,
     estado          TEXT NOT NULL CHECK (estado IN ('activo','pagado')),
     fecha_solicitud TEXT NOT NULL DEFAULT (date('now')),
+    version         INTEGER NOT NULL DEFAULT 0,   -- compare-and-set en LoanRepo.applyPayment
     FOREIGN KEY (id_cliente) REFERENCES CLIENTES(id_cliente),
     FOREIGN KEY (id_cuenta) REFERENCES CUENTAS(id_cuenta)
 );
@@ -54,9 +56,139 @@ CREATE TABLE IF NOT EXISTS TRANSACCIONES (
     tipo           TEXT NOT NULL CHECK (tipo IN ('deposito','retiro', 'deuda')),
     monto          REAL NOT NULL CHECK (monto >= 0),
     fecha          TEXT NOT NULL DEFAULT (datetime('now')),
+    saldo_posterior REAL DEFAULT NULL,           -- Saldo de id_cuenta tras este movimiento
+    secuencia      INTEGER DEFAULT NULL,         -- Orden del movimiento dentro de id_cuenta (1, 2, 3...)
+    hash           TEXT DEFAULT NULL,            -- SHA-256 de la fila encadenado al hash anterior de id_cuenta (ver TxHash)
+    hash_anterior  TEXT DEFAULT NULL,            -- hash de la fila previa de id_cuenta (ceros en la primera encadenada)
+    version_hash   INTEGER DEFAULT NULL,         -- formato de hash: NULL o 1 sin saldo_posterior, 2 con saldo_posterior
     FOREIGN KEY (id_cuenta) REFERENCES CUENTAS(id_cuenta)
 );
 
+-- =========================================================
+-- TABLA: CUENTA_SUBSALDOS
+-- =========================================================
+-- Sub-saldos de cuentas "calientes" (opcional): los créditos se reparten entre N slots
+-- para no serializarse sobre la misma fila de CUENTAS. Saldo total = CUENTAS.saldo + SUM(slots).
+CREATE TABLE IF NOT EXISTS CUENTA_SUBSALDOS (
+    id_cuenta TEXT NOT NULL,
+    slot      INTEGER NOT NULL,
+    saldo     REAL NOT NULL DEFAULT 0 CHECK (saldo >= 0),
+    PRIMARY KEY (id_cuenta, slot),
+    FOREIGN KEY (id_cuenta) REFERENCES CUENTAS(id_cuenta)
+);
+
+-- =========================================================
+-- TABLA: CUENTA_RESUMEN_DIARIO
+-- =========================================================
+-- Agregado por cuenta, día (UTC) y tipo. Se mantiene en la misma transacción que cada
+-- INSERT en TRANSACCIONES (TxRepo), así los resúmenes por rango leen pocas filas.
+CREATE TABLE IF NOT EXISTS CUENTA_RESUMEN_DIARIO (
+    id_cuenta TEXT NOT NULL,
+    dia       TEXT NOT NULL,                     -- YYYY-MM-DD
+    tipo      TEXT NOT NULL CHECK (tipo IN ('deposito','retiro','deuda')),
+    cantidad  INTEGER NOT NULL,
+    total     REAL NOT NULL,
+    minimo    REAL NOT NULL,
+    maximo    REAL NOT NULL,
+    PRIMARY KEY (id_cuenta, dia, tipo)
+) WITHOUT ROWID;
+
+-- Tramos de TRANSACCIONES (por rowid) anteriores al resumen que falta agregar.
+-- Los llena la migración de bases existentes y los consume DailySummaryBackfill.
+CREATE TABLE IF NOT EXISTS CUENTA_RESUMEN_BACKFILL (
+    desde_rowid INTEGER PRIMARY KEY,
+    hasta_rowid INTEGER NOT NULL,
+    estado      TEXT NOT NULL DEFAULT ('pendiente') CHECK (estado IN ('pendiente','hecho'))
+);
+
+-- =========================================================
+-- TABLA: RECONCILIACION_CHECKPOINT
+-- =========================================================
+-- Última fila de TRANSACCIONES (rowid) cubierta por la conciliación. El modo incremental
+-- solo revisa las cuentas y préstamos tocados después de ella.
+CREATE TABLE IF NOT EXISTS RECONCILIACION_CHECKPOINT (
+    id           INTEGER PRIMARY KEY CHECK (id = 1),
+    ultimo_rowid INTEGER NOT NULL,
+    fecha        TEXT NOT NULL DEFAULT (datetime('now')),
+    discrepancias INTEGER NOT NULL DEFAULT 0
+);
+
+-- =========================================================
+-- TABLA: AUDITORIA_CHECKPOINTS
+-- =========================================================
+-- Checkpoints firmados de las cadenas de hash: raiz resume la cabeza de cada cuenta hasta
+-- ultimo_rowid y firma es un HMAC encadenado a la firma anterior (ver AuditCheckpoints).
+CREATE TABLE IF NOT EXISTS AUDITORIA_CHECKPOINTS (
+    id             INTEGER PRIMARY KEY AUTOINCREMENT,
+    fecha          TEXT NOT NULL DEFAULT (datetime('now')),
+    ultimo_rowid   INTEGER NOT NULL,
+    cuentas        INTEGER NOT NULL,
+    raiz           TEXT NOT NULL,
+    firma          TEXT NOT NULL,
+    firma_anterior TEXT NOT NULL
+);
+
+-- =========================================================
+-- TABLA: EVENTOS_SALIDA
+-- =========================================================
+-- Outbox de eventos de dominio (TransactionPosted, LoanCreated, LoanPaid), escritos en la
+-- misma transacción que el cambio. id da el orden de publicación (SQLite tiene un solo
+-- escritor, así que los ids se confirman en orden). Los publica OutboxRelay.
+CREATE TABLE IF NOT EXISTS EVENTOS_SALIDA (
+    id        INTEGER PRIMARY KEY AUTOINCREMENT,
+    tipo      TEXT NOT NULL,
+    agregado  TEXT NOT NULL,                     -- id de cuenta o préstamo
+    payload   TEXT NOT NULL,                     -- JSON
+    fecha     TEXT NOT NULL DEFAULT (datetime('now'))
+);
+
+-- Último id de EVENTOS_SALIDA confirmado por el broker (marca de agua de OutboxRelay).
+CREATE TABLE IF NOT EXISTS EVENTOS_CURSOR (
+    id          INTEGER PRIMARY KEY CHECK (id = 1),
+    ultimo_id   INTEGER NOT NULL,
+    fecha       TEXT NOT NULL DEFAULT (datetime('now'))
+);
+
+-- =========================================================
+-- TABLA: TRANSFERENCIAS_2PC
+-- =========================================================
+-- Registro del coordinador de transferencias entre shards, en el shard de la cuenta origen.
+-- 'preparada': el débito ya está confirmado y falta acreditar en el shard destino.
+-- Al iniciar (y periódicamente) se reintentan las preparadas.
+CREATE TABLE IF NOT EXISTS TRANSFERENCIAS_2PC (
+    id_transferencia  TEXT PRIMARY KEY,
+    id_cuenta_origen  TEXT NOT NULL,
+    id_cuenta_destino TEXT NOT NULL,
+    monto             REAL NOT NULL CHECK (monto > 0),
+    metadata          TEXT,
+    estado            TEXT NOT NULL DEFAULT 'preparada' CHECK (estado IN ('preparada','confirmada','revertida')),
+    fecha             TEXT NOT NULL DEFAULT (datetime('now')),
+    fecha_fin         TEXT
+);
+
+-- =========================================================
+-- TABLA: ORDENES_PROGRAMADAS
+-- =========================================================
+-- Transferencias programadas (una vez) y órdenes permanentes (cada intervalo_seg), en el
+-- shard de la cuenta origen. proxima: epoch ms de la ocurrencia número ocurrencia. Cada
+-- ejecución se marca en MENSAJES_PROCESADOS como SCH:<id_orden>:<ocurrencia>.
+CREATE TABLE IF NOT EXISTS ORDENES_PROGRAMADAS (
+    id_orden          TEXT PRIMARY KEY,
+    id_cuenta_origen  TEXT NOT NULL,
+    id_cuenta_destino TEXT NOT NULL,
+    monto             REAL NOT NULL CHECK (monto > 0),
+    metadata          TEXT,
+    proxima           INTEGER NOT NULL,
+    intervalo_seg     INTEGER,                   -- NULL: una sola vez
+    restantes         INTEGER,                   -- NULL: sin límite
+    ocurrencia        INTEGER NOT NULL DEFAULT 0,
+    estado            TEXT NOT NULL DEFAULT 'activa' CHECK (estado IN ('activa','terminada','cancelada')),
+    fallos            INTEGER NOT NULL DEFAULT 0,
+    ultimo_error      TEXT,
+    fecha             TEXT NOT NULL DEFAULT (datetime('now')),
+    FOREIGN KEY (id_cuenta_origen) REFERENCES CUENTAS(id_cuenta)
+);
+
 -- =========================================================
 -- TABLA: MENSAJES_PROCESADOS
 -- =========================================================
@@ -73,11 +205,18 @@ CREATE TABLE IF NOT EXISTS MENSAJES_PROCESADOS (
 CREATE INDEX IF NOT EXISTS idx_cuentas_cliente ON CUENTAS(id_cliente);
 CREATE INDEX IF NOT EXISTS idx_prestamos_cliente ON PRESTAMOS(id_cliente);
 CREATE INDEX IF NOT EXISTS idx_transacciones_cuenta_fecha ON TRANSACCIONES(id_cuenta, fecha DESC);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_transacciones_cuenta_secuencia ON TRANSACCIONES(id_cuenta, secuencia);
+-- Pagos de préstamo por loanId (metadata de las filas 'deuda'), usado por la conciliación
+CREATE INDEX IF NOT EXISTS idx_transacciones_prestamo ON TRANSACCIONES(json_extract(metadata, '$.loanId')) WHERE tipo = 'deuda';
+CREATE INDEX IF NOT EXISTS idx_transferencias_2pc_preparadas ON TRANSFERENCIAS_2PC(fecha) WHERE estado = 'preparada';
+CREATE INDEX IF NOT EXISTS idx_ordenes_programadas_proxima ON ORDENES_PROGRAMADAS(proxima, id_orden) WHERE estado = 'activa';
+CREATE INDEX IF NOT EXISTS idx_ordenes_programadas_cuenta ON ORDENES_PROGRAMADAS(id_cuenta_origen);
 
+-- Contraseñas de prueba: secret1 y secret2 (guardadas como hash)
 INSERT INTO CLIENTES(id_cliente, dni, nombres, apellido_pat, apellido_mat, password, direccion)
 VALUES
-    ('CL001','45678912','MARÍA ELENA','GARCÍA','FLORES','secret1','Av. Universitaria 1234'),
-    ('CL002','12345678','JUAN CARLOS','RAMÍREZ','QUISPE','secret2','Av. La Molina 5678');
+    ('CL001','45678912','MARÍA ELENA','GARCÍA','FLORES','pbkdf2-sha256$210000$giSWJ/hePRykd/RwfkdmiQ$nKqQOmVrai0twB7ft2F40NminxDMBdJcjP4NXJFymKo','Av. Universitaria 1234'),
+    ('CL002','12345678','JUAN CARLOS','RAMÍREZ','QUISPE','pbkdf2-sha256$210000$VhAGsardp96xUjua0HvZOA$skFAwcNotvS4pYr8xbQ/+WcyXIzRji/+KbY2F4V9qbM','Av. La Molina 5678');
 
 INSERT INTO CUENTAS(id_cuenta, id_cliente, saldo)
 VALUES ('CU001','CL001',2500.00),
@@ -86,11 +225,17 @@ VALUES ('CU001','CL001',2500.00),
 INSERT INTO PRESTAMOS(id_prestamo, id_cliente, id_cuenta, monto_inicial, monto_pendiente, estado)
 VALUES ('PR001','CL001','CU001',10000.00,8000.00,'activo');
 
-INSERT INTO TRANSACCIONES(id_transaccion, id_cuenta, id_cuenta_destino, tipo, monto, fecha)
-VALUES ('TX001','CU001', NULL,'deposito',500.00, '2025-10-01 10:00:00'),
-       ('TX002','CU001', NULL,'deposito',500.00 , '2025-10-02 11:00:00');
+INSERT INTO TRANSACCIONES(id_transaccion, id_cuenta, id_cuenta_destino, tipo, monto, fecha, saldo_posterior, secuencia)
+VALUES ('TX001','CU001', NULL,'deposito',500.00, '2025-10-01 10:00:00', 2300.00, 1),
+       ('TX002','CU001', NULL,'deposito',500.00 , '2025-10-02 11:00:00', 2800.00, 2);
+
 
+INSERT INTO TRANSACCIONES(id_transaccion, id_transferencia, id_cuenta, id_cuenta_destino, tipo, monto, fecha, saldo_posterior, secuencia)
+VALUES ('TX003','TR001','CU001','CU002','retiro',300.00, '2025-10-03 12:00:00', 2500.00, 3),
+       ('TX004','TR001','CU002','CU002','deposito',300.00, '2025-10-03 12:00:00', 1500.00, 1);
 
-INSERT INTO TRANSACCIONES(id_transaccion, id_transferencia, id_cuenta, id_cuenta_destino, tipo, monto, fecha)
-VALUES ('TX003','TR001','CU001','CU002','retiro',300.00, '2025-10-03 12:00:00'),
-       ('TX004','TR001','CU002','CU002','deposito',300.00, '2025-10-03 12:00:00');
\ No newline at end of file
+-- Resumen diario de los movimientos de ejemplo
+INSERT INTO CUENTA_RESUMEN_DIARIO(id_cuenta, dia, tipo, cantidad, total, minimo, maximo)
+SELECT id_cuenta, date(fecha), tipo, COUNT(*), SUM(monto), MIN(monto), MAX(monto)
+  FROM TRANSACCIONES
+ GROUP BY id_cuenta, date(fecha), tipo;
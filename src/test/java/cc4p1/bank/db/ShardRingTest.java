@@ -0,0 +1,64 @@
+package cc4p1.bank.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardRingTest {
+
+  private static final int KEYS = 20_000;
+
+  private static String key(int i) {
+    return "CU" + (1_000_000 + i);
+  }
+
+  @Test
+  void placement_is_deterministic_and_in_range() {
+    for (int n = 1; n <= 5; n++) {
+      var a = new ShardRing(n);
+      var b = new ShardRing(n);
+      assertEquals(n, a.size());
+      for (int i = 0; i < 1_000; i++) {
+        int s = a.shardOf(key(i));
+        assertTrue(s >= 0 && s < n, key(i) + " -> " + s);
+        assertEquals(s, b.shardOf(key(i)));
+      }
+    }
+    // Valor fijo: la ubicación de una cuenta no puede cambiar entre versiones
+    assertEquals(6443569972952516508L, ShardRing.hash("CU001"));
+    assertThrows(IllegalArgumentException.class, () -> new ShardRing(0));
+  }
+
+  @Test
+  void keys_with_a_common_prefix_spread_evenly() {
+    int n = 4;
+    var ring = new ShardRing(n);
+    int[] count = new int[n];
+    for (int i = 0; i < KEYS; i++) count[ring.shardOf(key(i))]++;
+    for (int c : count) {
+      // 128 puntos por shard: cada uno recibe su cuarto con holgura de ±30 %
+      assertTrue(Math.abs(c - KEYS / n) < 0.3 * KEYS / n, Arrays.toString(count));
+    }
+  }
+
+  @Test
+  void adding_a_shard_moves_about_one_in_n_plus_one_keys_and_only_to_the_new_shard() {
+    for (int n = 1; n <= 4; n++) {
+      var before = new ShardRing(n);
+      var after = new ShardRing(n + 1);
+      int moved = 0;
+      for (int i = 0; i < KEYS; i++) {
+        int from = before.shardOf(key(i));
+        int to = after.shardOf(key(i));
+        if (from != to) {
+          assertEquals(n, to, key(i));
+          moved++;
+        }
+      }
+      double expected = (double) KEYS / (n + 1);
+      assertTrue(Math.abs(moved - expected) < 0.3 * expected, n + " -> " + (n + 1) + ": " + moved);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package cc4p1.bank.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardsTest {
+
+  private Path dir;
+  private Shards shards;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    dir = Files.createTempDirectory("bank-shards-");
+    shards = Shards.open(dir.resolve("bank.db").toString(), 2);
+    for (SQLite db : shards.all()) db.setBusyPolicy(new SQLite.BusyPolicy(50, 1, 5));
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    try (var files = Files.list(dir)) {
+      for (Path p : files.toList()) Files.deleteIfExists(p);
+    }
+    Files.deleteIfExists(dir);
+  }
+
+  @Test
+  void write_lock_wait_is_bounded_by_the_busy_deadline() throws Exception {
+    CountDownLatch held = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService other = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> holder = other.submit(() -> {
+        try (var lock = shards.lockWrite(0)) {
+          held.countDown();
+          release.await();
+        }
+        return null;
+      });
+      held.await();
+
+      // Otro escritor del mismo shard se rinde con DB_BUSY; el otro shard no espera
+      SQLException busy = assertThrows(SQLException.class, () -> shards.lockWrite(0));
+      assertEquals("DB_BUSY", busy.getMessage());
+      try (var lock = shards.lockWrite(1)) {
+        assertNotNull(lock);
+      }
+
+      release.countDown();
+      holder.get();
+      try (var lock = shards.lockWrite(0)) {
+        assertNotNull(lock);
+      }
+    } finally {
+      release.countDown();
+      other.shutdownNow();
+    }
+  }
+}
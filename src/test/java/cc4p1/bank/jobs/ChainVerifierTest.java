@@ -0,0 +1,93 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.repo.TxRepo;
+import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.MockReniecClient;
+import cc4p1.bank.service.TestBank;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChainVerifierTest {
+
+  @Test
+  void detects_tampered_row_and_checkpoints_cover_heads() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      byte[] key = "test-key".getBytes(StandardCharsets.UTF_8);
+      t.call(Map.of("type", "Deposit", "messageId", "hc-1", "accountId", "CU001", "amount", "10.10"));
+      // Otro proceso (otra caché de cabezas) escribe en la misma cuenta: la caché de `bank` queda vieja
+      var other = new BankService(t.sqlite, t.clientRepo, t.accountRepo, t.loanRepo, new TxRepo(), t.messageRepo,
+          new MockReniecClient(true, 0));
+      other.handle(t.om.writeValueAsString(Map.of("type", "Deposit", "messageId", "hc-2", "accountId", "CU001",
+          "amount", "1.00")), "corr-1");
+      t.call(Map.of("type", "Transfer", "messageId", "hc-3", "fromAccountId", "CU001", "toAccountId", "CU002", "amount", "3.30"));
+      t.call(Map.of("type", "BatchDeposit", "messageId", "hc-4", "legs", List.of(
+          Map.of("accountId", "CU001", "amount", "0.70"),
+          Map.of("accountId", "CU002", "amount", "2.00"))));
+
+      var checkpoints = new AuditCheckpoints(t.sqlite, key);
+      var cp = checkpoints.create();
+      assertEquals(2, cp.cuentas());
+      var verifier = new ChainVerifier(t.sqlite, 2, key);
+      var found = Collections.synchronizedList(new ArrayList<ChainVerifier.Finding>());
+      var full = verifier.run(false, found::add);
+      assertEquals(List.of(), found);
+      assertEquals(10, full.rows()); // 4 filas de la semilla (sin hash) + 6 encadenadas
+
+      String tx;
+      try (Connection c = t.sqlite.get(); var st = c.createStatement();
+           var rs = st.executeQuery("SELECT id_transaccion FROM TRANSACCIONES WHERE id_cuenta='CU002' AND hash IS NOT NULL ORDER BY secuencia LIMIT 1")) {
+        tx = rs.getString(1);
+        rs.close();
+        st.executeUpdate("UPDATE TRANSACCIONES SET monto = 33.00 WHERE id_transaccion='" + tx + "'");
+        c.commit();
+      }
+      t.call(Map.of("type", "Deposit", "messageId", "hc-5", "accountId", "CU001", "amount", "1.00"));
+      var inc = verifier.run(true, found::add);
+      assertEquals(1, inc.accounts());
+      assertEquals(List.of(), found); // el cambio es anterior al checkpoint
+
+      verifier.run(false, found::add);
+      assertEquals(1, found.size());
+      assertEquals("HASH_MISMATCH", found.get(0).kind());
+      assertEquals(tx, found.get(0).txId());
+
+      found.clear();
+      new ChainVerifier(t.sqlite, 1, "otra".getBytes(StandardCharsets.UTF_8))
+          .run(true, found::add);
+      assertEquals("CHECKPOINT_SIGNATURE_INVALID", found.get(0).kind());
+
+      // saldo_posterior entra en el hash, y bajar la fila al formato sin saldo no lo esconde
+      String last;
+      try (Connection c = t.sqlite.get(); var st = c.createStatement();
+           var rs = st.executeQuery("SELECT id_transaccion FROM TRANSACCIONES WHERE id_cuenta='CU001' ORDER BY secuencia DESC LIMIT 1")) {
+        last = rs.getString(1);
+        rs.close();
+        st.executeUpdate("UPDATE TRANSACCIONES SET saldo_posterior = saldo_posterior + 100 WHERE id_transaccion='" + last + "'");
+        c.commit();
+      }
+      found.clear();
+      verifier.run(true, found::add);
+      assertEquals(1, found.size());
+      assertEquals("HASH_MISMATCH", found.get(0).kind());
+      assertEquals(last, found.get(0).txId());
+      try (Connection c = t.sqlite.get(); var st = c.createStatement()) {
+        st.executeUpdate("UPDATE TRANSACCIONES SET version_hash = NULL WHERE id_transaccion='" + last + "'");
+        c.commit();
+      }
+      found.clear();
+      verifier.run(true, found::add);
+      assertEquals(Set.of("HASH_VERSION_DOWNGRADE", "HASH_MISMATCH"),
+          found.stream().map(ChainVerifier.Finding::kind).collect(Collectors.toSet()));
+    }
+  }
+}
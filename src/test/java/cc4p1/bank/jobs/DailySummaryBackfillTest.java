@@ -0,0 +1,46 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.service.TestBank;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DailySummaryBackfillTest {
+
+  @Test
+  void rebuilds_pending_chunks_once() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      t.call(Map.of("type", "Transfer", "messageId", "bf-1", "fromAccountId", "CU001", "toAccountId", "CU002", "amount", "10.00"));
+      String expected;
+      try (Connection c = t.sqlite.get(); var st = c.createStatement()) {
+        expected = dumpSummary(c);
+        // Simular una base migrada: resumen vacío y todas las filas como tramos pendientes
+        st.executeUpdate("DELETE FROM CUENTA_RESUMEN_DIARIO");
+        st.executeUpdate("INSERT INTO CUENTA_RESUMEN_BACKFILL(desde_rowid, hasta_rowid) VALUES (1,2),(3,4),(5,6)");
+        c.commit();
+      }
+      var job = new DailySummaryBackfill(t.sqlite, 3);
+      assertEquals(3, job.run().chunks());
+      assertEquals(0, job.run().chunks());
+      try (Connection c = t.sqlite.get()) {
+        assertEquals(expected, dumpSummary(c));
+        c.commit();
+      }
+    }
+  }
+
+  private static String dumpSummary(Connection c) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    try (var ps = c.prepareStatement("SELECT * FROM CUENTA_RESUMEN_DIARIO ORDER BY id_cuenta, dia, tipo");
+         var rs = ps.executeQuery()) {
+      while (rs.next()) {
+        sb.append(rs.getString(1)).append(rs.getString(2)).append(rs.getString(3)).append(rs.getLong(4))
+            .append('/').append(rs.getDouble(5)).append('/').append(rs.getDouble(6)).append('/').append(rs.getDouble(7)).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
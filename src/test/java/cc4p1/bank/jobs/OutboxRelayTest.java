@@ -0,0 +1,70 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.mq.InMemoryBroker;
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxRelayTest {
+
+  @Test
+  void publishes_committed_events_in_order_once() throws Exception {
+    try (TestBank t = TestBank.open(); var broker = new InMemoryBroker()) {
+      JsonNode loan = t.call(Map.of("type", "CreateLoan", "messageId", "ev-1", "clientId", "CL002",
+          "accountId", "CU002", "principal", "100.00"));
+      String loanId = loan.path("data").path("loanId").asText();
+      JsonNode paid = t.call(Map.of("type", "PayLoan", "messageId", "ev-2", "loanId", loanId, "accountId", "CU002", "amount", "100.00"));
+      assertTrue(paid.get("ok").asBoolean(), paid.toPrettyString());
+      t.call(Map.of("type", "Withdraw", "messageId", "ev-3", "accountId", "CU001", "amount", "999999.00")); // falla: sin evento
+      JsonNode tr = t.call(Map.of("type", "Transfer", "messageId", "ev-4", "fromAccountId", "CU001", "toAccountId", "CU002", "amount", "5.00"));
+      assertTrue(tr.get("ok").asBoolean(), tr.toPrettyString());
+
+      broker.declareQueue("events", true);
+      for (String key : List.of("TransactionPosted", "LoanCreated", "LoanPaid")) {
+        broker.bind("events", OutboxRelay.EXCHANGE, key);
+      }
+      // Un transporte que falla no debe avanzar la marca de agua
+      var failing = new InMemoryBroker() {
+        @Override
+        public void publishConfirmed(String exchange, List<Outgoing> batch, long timeoutMillis) {
+          throw new IllegalStateException("nack");
+        }
+      };
+      assertThrows(IllegalStateException.class, () -> new OutboxRelay(t.sqlite, failing, 10, 10).publishOnce());
+
+      var relay = new OutboxRelay(t.sqlite, broker, 4, 10);
+      assertEquals(4, relay.publishOnce());
+      assertEquals(2, relay.publishOnce());
+      assertEquals(0, relay.publishOnce());
+      assertEquals(6, broker.depth("events"));
+
+      var received = new LinkedBlockingQueue<JsonNode>();
+      broker.consume("events", 10, d -> {
+        received.add(t.om.readTree(d.message().body()));
+        d.ack();
+      });
+      List<String> types = new ArrayList<>();
+      long prevId = 0;
+      for (int i = 0; i < 6; i++) {
+        JsonNode ev = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(ev);
+        assertTrue(ev.path("eventId").asLong() > prevId);
+        prevId = ev.path("eventId").asLong();
+        types.add(ev.path("type").asText());
+        if ("LoanPaid".equals(ev.path("type").asText())) {
+          assertEquals("pagado", ev.path("data").path("status").asText());
+        }
+      }
+      assertEquals(List.of("TransactionPosted", "LoanCreated", "TransactionPosted", "LoanPaid",
+          "TransactionPosted", "TransactionPosted"), types);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.service.CredentialVerifier;
+import cc4p1.bank.service.Sessions;
+import cc4p1.bank.service.TestBank;
+import cc4p1.bank.util.Passwords;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordBackfillTest {
+
+  @Test
+  void plaintext_rows_keep_logging_in_until_the_backfill_hashes_them() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      // Register guarda hash; una fila en texto plano sirve para Login hasta que el backfill la convierte
+      assertTrue(t.call(Map.of("type", "Register", "messageId", "reg-pw", "dni", "87654321", "password", "clave",
+          "nombres", "ANA")).get("ok").asBoolean());
+      try (Connection c = t.sqlite.get(); var st = c.createStatement()) {
+        st.executeUpdate("INSERT INTO CLIENTES(id_cliente,dni,nombres,apellido_pat,apellido_mat,password) "
+            + "VALUES('CL-OLD','11112222','OLD','P','M','legacy')");
+        c.commit();
+      }
+      t.sqlite.initializeIfNeeded("/db/init_db.sql");
+      var backfill = new PasswordBackfill(t.sqlite, 2);
+      assertTrue(backfill.hasPending()); // la migración ya no hashea
+      t.bank.setCredentials(new CredentialVerifier(2, 8, 5_000), new Sessions(60_000, 100));
+      assertTrue(t.call(Map.of("type", "Login", "dni", "11112222", "password", "legacy")).get("ok").asBoolean());
+      assertEquals(new PasswordBackfill.Result(1, 1), backfill.run());
+      assertFalse(backfill.hasPending());
+      assertEquals(new PasswordBackfill.Result(0, 0), backfill.run());
+      try (Connection c = t.sqlite.get()) {
+        assertTrue(Passwords.isHashed(t.clientRepo.findCredential(c, "87654321").password()));
+        assertTrue(Passwords.isHashed(t.clientRepo.findCredential(c, "11112222").password()));
+        c.commit();
+      }
+      t.bank.setCredentials(new CredentialVerifier(2, 8, 5_000), new Sessions(60_000, 100));
+      assertTrue(t.call(Map.of("type", "Login", "dni", "87654321", "password", "clave")).get("ok").asBoolean());
+      assertTrue(t.call(Map.of("type", "Login", "dni", "11112222", "password", "legacy")).get("ok").asBoolean());
+    }
+  }
+
+  @Test
+  void walks_the_table_in_chunks() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      int rows = PasswordBackfill.CHUNK_ROWS + 1;
+      try (Connection c = t.sqlite.get(); PreparedStatement ps = c.prepareStatement(
+          "INSERT INTO CLIENTES(id_cliente,dni,nombres,apellido_pat,apellido_mat,password) VALUES(?,?,'OLD','P','M',?)")) {
+        for (int i = 0; i < rows; i++) {
+          ps.setString(1, "CL-OLD" + (1000 + i));
+          ps.setString(2, String.valueOf(30000000 + i));
+          ps.setString(3, "legacy" + i);
+          ps.addBatch();
+        }
+        ps.executeBatch();
+        c.commit();
+      }
+      var backfill = new PasswordBackfill(t.sqlite, 4);
+      assertEquals(new PasswordBackfill.Result(2, rows), backfill.run());
+      assertFalse(backfill.hasPending());
+      try (Connection c = t.sqlite.get()) {
+        assertTrue(Passwords.verify("legacy" + (rows - 1),
+            t.clientRepo.findCredential(c, String.valueOf(30000000 + rows - 1)).password()));
+        c.commit();
+      }
+    }
+  }
+}
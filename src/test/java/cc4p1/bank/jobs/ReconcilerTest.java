@@ -0,0 +1,49 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconcilerTest {
+
+  @Test
+  void reports_tampered_balance_and_incremental_checks_only_touched_accounts() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      JsonNode loan = t.call(Map.of("type", "CreateLoan", "messageId", "rc-1", "clientId", "CL002",
+          "accountId", "CU002", "principal", "200.00"));
+      String loanId = loan.path("data").path("loanId").asText();
+      t.call(Map.of("type", "PayLoan", "messageId", "rc-2", "loanId", loanId, "accountId", "CU001", "amount", "50.00"));
+      t.call(Map.of("type", "Transfer", "messageId", "rc-3", "fromAccountId", "CU001", "toAccountId", "CU002", "amount", "5.00"));
+
+      var reconciler = new Reconciler(t.sqlite, 2);
+      var found = Collections.synchronizedList(new ArrayList<Reconciler.Discrepancy>());
+      var full = reconciler.run(false, found::add);
+      assertEquals(List.of(), found);
+      assertEquals(2, full.accounts());
+      assertEquals(2, full.loans());
+      assertEquals(1, full.unverifiedLoans()); // PR001: pagos de la semilla sin loanId
+
+      try (Connection c = t.sqlite.get(); var st = c.createStatement()) {
+        st.executeUpdate("UPDATE CUENTAS SET saldo = saldo + 1 WHERE id_cuenta='CU002'");
+        c.commit();
+      }
+      t.call(Map.of("type", "Deposit", "messageId", "rc-4", "accountId", "CU001", "amount", "1.00"));
+      var inc = reconciler.run(true, found::add);
+      assertEquals(1, inc.accounts());
+      assertEquals(List.of(), found);
+
+      reconciler.run(false, found::add);
+      assertEquals(1, found.size());
+      assertEquals("BALANCE_MISMATCH", found.get(0).kind());
+      assertEquals("CU002", found.get(0).id());
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package cc4p1.bank.jobs;
+
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunningBalanceBackfillTest {
+
+  @Test
+  void fills_history_walking_back_from_anchor() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      t.call(Map.of("type", "Deposit", "messageId", "rb-1", "accountId", "CU002", "amount", "25.00"));
+      try (Connection c = t.sqlite.get(); var st = c.createStatement()) {
+        // Simular filas previas a la migración: CU001 conserva TX003 como ancla, CU002 no tiene ancla
+        st.executeUpdate("UPDATE TRANSACCIONES SET saldo_posterior=NULL, secuencia=NULL WHERE id_transaccion IN ('TX001','TX002')");
+        st.executeUpdate("UPDATE TRANSACCIONES SET saldo_posterior=NULL, secuencia=NULL WHERE id_cuenta='CU002'");
+        c.commit();
+      }
+      JsonNode pending = t.call(Map.of("type", "GetBalanceAt", "accountId", "CU002", "at", "2025-10-05"));
+      assertEquals("BALANCE_HISTORY_PENDING", pending.path("error").path("message").asText());
+
+      var job = new RunningBalanceBackfill(t.sqlite, 2);
+      assertEquals(2, job.run().accounts());
+      assertFalse(job.hasPending());
+
+      assertEquals(2800.00, t.balanceAt("CU001", "2025-10-02"), 0.001);
+      assertEquals(1500.00, t.balanceAt("CU002", "2025-10-05"), 0.001);
+      try (Connection c = t.sqlite.get()) {
+        assertEquals(3, TestBank.runningBalanceHistoryOk(c, "CU001"));
+        assertEquals(2, TestBank.runningBalanceHistoryOk(c, "CU002"));
+        c.commit();
+      }
+    }
+  }
+}
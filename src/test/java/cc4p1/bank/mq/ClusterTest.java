@@ -0,0 +1,178 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.domain.Cliente;
+import cc4p1.bank.domain.Cuenta;
+import cc4p1.bank.repo.AccountRepo;
+import cc4p1.bank.repo.TransferLogRepo;
+import cc4p1.bank.service.BankService;
+import cc4p1.bank.service.MockReniecClient;
+import cc4p1.bank.service.TestBank;
+import cc4p1.bank.tools.ShardSplitter;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterTest {
+
+  private static final byte[] PEER_KEY = "clave-de-prueba-del-cluster".getBytes();
+
+  @Test
+  void nodes_forward_foreign_partitions_and_settle_transfers_by_saga() throws Exception {
+    try (TestBank t = TestBank.open(); var broker = new InMemoryBroker()) {
+      ShardSplitter.split(t.db.toString(), 2);
+      BankService[] nodes = new BankService[2];
+      Shards[] local = new Shards[2];
+      Rabbit[] servers = new Rabbit[2];
+      Cluster[] clusters = new Cluster[2];
+      for (int k = 0; k < 2; k++) {
+        local[k] = Shards.open(t.db.toString(), 2, Set.of(k));
+        nodes[k] = new BankService(local[k], t.clientRepo, new AccountRepo(), t.loanRepo, t.txRepo, t.messageRepo,
+            new MockReniecClient(true, 0));
+        var cluster = clusters[k] = new Cluster(broker, local[k], 300, PEER_KEY);
+        nodes[k].setPeers(cluster);
+        servers[k] = new Rabbit(broker);
+        servers[k].setVerbose(false);
+        servers[k].setCluster(cluster);
+      }
+      // Intentos de la saga del nodo 0: se cuentan al terminar (respuesta o vencimiento)
+      var sagaCalls = new CountDownLatch(2);
+      nodes[0].setPeers((shard, json) -> {
+        try {
+          return clusters[0].call(shard, json);
+        } finally {
+          sagaCalls.countDown();
+        }
+      });
+      servers[0].serve(nodes[0]);
+      String replyQueue = broker.declareTempQueue();
+      var replies = new ConcurrentHashMap<String, CompletableFuture<JsonNode>>();
+      broker.consume(replyQueue, 100, d -> {
+        reply(replies, d.message().correlationId()).complete(t.om.readTree(d.message().body()));
+        d.ack();
+      });
+
+      // Cuentas por shard; el nodo 1 todavía no arrancó, así que se crean en su base directo
+      String[] accts = {"CU-n0", "CU-n1"};
+      for (int k = 0; k < 2; k++) {
+        for (int i = 0; local[k].indexOf(accts[k]) != k; i++) accts[k] = "CU-n" + k + "-" + i;
+        try (Connection c = local[k].get(k).get()) {
+          t.clientRepo.insert(c, new Cliente("CL-n" + k, "7000000" + k, "N", "P", "M", null, null,
+              null, LocalDateTime.now()), "x");
+          t.accountRepo.insert(c, new Cuenta(accts[k], "CL-n" + k, new BigDecimal("1000"), LocalDate.now()));
+          c.commit();
+        }
+      }
+      String missing = "CU-x";
+      for (int i = 0; local[0].indexOf(missing) != 1; i++) missing = "CU-x" + i;
+
+      // Saga con el nodo destino caído: débito durable y respuesta pending; el crédito espera en su cola
+      JsonNode res = rpc(broker, replies, replyQueue, t, "t1", Map.of("type", "Transfer", "messageId", "cl-1",
+          "fromAccountId", accts[0], "toAccountId", accts[1], "amount", "100"));
+      assertEquals("pending", res.path("data").path("settlement").asText(), res.toPrettyString());
+      assertEquals(900.0, res.path("data").path("fromAccountNewBalance").asDouble(), 1e-9);
+      assertTrue(rpc(broker, replies, replyQueue, t, "t2", Map.of("type", "Transfer", "messageId", "cl-2",
+          "fromAccountId", accts[0], "toAccountId", missing, "amount", "50")).path("ok").asBoolean());
+      assertTrue(sagaCalls.await(5, TimeUnit.SECONDS));
+      try (Connection c = local[0].get(0).get()) {
+        assertEquals(0, new BigDecimal("150").compareTo(new TransferLogRepo().inFlight(c)));
+        c.commit();
+      }
+
+      // Arranca el nodo 1: atiende su cola (incluido el crédito acumulado) y recover cierra la saga
+      servers[1].serve(nodes[1]);
+      int settled = 0;
+      for (int attempt = 0; settled < 2 && attempt < 20; attempt++) {
+        settled += nodes[0].recoverCrossShardTransfers(true);
+      }
+      assertEquals(2, settled);
+      JsonNode toBal = rpc(broker, replies, replyQueue, t, "b1", Map.of("type", "GetBalance", "accountId", accts[1]));
+      assertEquals(1100.0, toBal.path("data").path("balance").asDouble(), 1e-9, toBal.toPrettyString());
+      // Compensada: el destino no existe, los 50 vuelven al origen
+      assertEquals(900.0, rpc(broker, replies, replyQueue, t, "b0", Map.of("type", "GetBalance", "accountId", accts[0]))
+          .path("data").path("balance").asDouble(), 1e-9);
+      try (Connection c = local[0].get(0).get(); var st = c.createStatement();
+           var rs = st.executeQuery("SELECT estado, COUNT(*) FROM TRANSFERENCIAS_2PC GROUP BY estado ORDER BY estado")) {
+        assertTrue(rs.next());
+        assertEquals("confirmada", rs.getString(1));
+        assertTrue(rs.next());
+        assertEquals("revertida", rs.getString(1));
+        assertFalse(rs.next());
+        c.commit();
+      }
+      // Cada petición la atendió el dueño de su cuenta, llegara al nodo que llegara
+      assertTrue(rpc(broker, replies, replyQueue, t, "b2", Map.of("type", "Deposit", "messageId", "cl-3",
+          "accountId", accts[1], "amount", "1")).path("ok").asBoolean());
+
+      // Un cliente que publica CreditTransfer en la cola del shard (sin firma, o con una falsa) no acredita
+      Map<String, Object> credit = Map.of("type", "CreditTransfer", "transferId", "TF-forged", "fromAccountId", accts[0],
+          "toAccountId", accts[1], "amount", "500");
+      broker.publish(Rabbit.exchange(), Cluster.commandRoutingKey(1),
+          Transport.Message.of("f1", replyQueue, t.om.writeValueAsBytes(credit)));
+      broker.publish(Rabbit.exchange(), Cluster.commandRoutingKey(1),
+          new Transport.Message("f2", replyQueue, "application/json",
+              Map.of("x-bank-peer-signature", "AAAA"), t.om.writeValueAsBytes(credit)));
+      for (String id : List.of("f1", "f2")) {
+        assertEquals("INTERNAL_OPERATION: CreditTransfer", reply(replies, id).get(5, TimeUnit.SECONDS)
+            .path("error").path("message").asText());
+      }
+      assertEquals(1101.0, rpc(broker, replies, replyQueue, t, "b3", Map.of("type", "GetBalance", "accountId", accts[1]))
+          .path("data").path("balance").asDouble(), 1e-9);
+
+      // Aun firmada, solo se acredita lo preparado en el origen con las mismas cuentas y monto
+      assertEquals("TRANSFER_NOT_PREPARED", t.om.readTree(clusters[0].call(1, t.om.writeValueAsString(credit)))
+          .path("error").path("message").asText());
+      String confirmed;
+      try (Connection c = local[0].get(0).get(); var st = c.createStatement();
+           var rs = st.executeQuery("SELECT id_transferencia FROM TRANSFERENCIAS_2PC WHERE estado = 'confirmada'")) {
+        assertTrue(rs.next());
+        confirmed = rs.getString(1);
+        c.commit();
+      }
+      // Ya aplicada (el origen la cerró): repetirla devuelve el saldo sin acreditar de nuevo
+      Map<String, Object> replay = Map.of("type", "CreditTransfer", "transferId", confirmed,
+          "fromAccountId", accts[0], "toAccountId", accts[1], "amount", "100");
+      assertEquals(1101.0, t.om.readTree(clusters[0].call(1, t.om.writeValueAsString(replay)))
+          .path("data").path("newBalance").asDouble(), 1e-9);
+      try (Connection c = local[0].get(0).get()) {
+        new TransferLogRepo().prepare(c, "TF-open", accts[0], accts[1], new BigDecimal("20"), null);
+        c.commit();
+      }
+      Map<String, Object> inflated = Map.of("type", "CreditTransfer", "transferId", "TF-open",
+          "fromAccountId", accts[0], "toAccountId", accts[1], "amount", "2000");
+      assertEquals("TRANSFER_NOT_PREPARED", t.om.readTree(clusters[0].call(1, t.om.writeValueAsString(inflated)))
+          .path("error").path("message").asText());
+      Map<String, Object> negative = Map.of("type", "CreditTransfer", "transferId", "TF-open",
+          "fromAccountId", accts[0], "toAccountId", accts[1], "amount", "-20");
+      assertTrue(t.om.readTree(clusters[0].call(1, t.om.writeValueAsString(negative)))
+          .path("error").path("message").asText().startsWith("VALIDATION_ERROR"));
+      assertEquals(1101.0, rpc(broker, replies, replyQueue, t, "b4", Map.of("type", "GetBalance", "accountId", accts[1]))
+          .path("data").path("balance").asDouble(), 1e-9);
+    }
+  }
+
+  private static CompletableFuture<JsonNode> reply(Map<String, CompletableFuture<JsonNode>> replies, String id) {
+    return replies.computeIfAbsent(id, k -> new CompletableFuture<>());
+  }
+
+  /** Publica la petición por la ruta pública y espera su respuesta. */
+  private static JsonNode rpc(InMemoryBroker broker, Map<String, CompletableFuture<JsonNode>> replies,
+      String replyQueue, TestBank t, String id, Map<String, Object> req) throws Exception {
+    broker.publish(Rabbit.exchange(), Rabbit.routingKeyFor((String) req.get("type")),
+        Transport.Message.of(id, replyQueue, t.om.writeValueAsBytes(req)));
+    return reply(replies, id).get(5, TimeUnit.SECONDS);
+  }
+}
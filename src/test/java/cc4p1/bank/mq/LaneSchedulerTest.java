@@ -0,0 +1,94 @@
+package cc4p1.bank.mq;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LaneSchedulerTest {
+
+  @Test
+  void priority_lane_goes_first_and_stuck_queries_do_not_hold_commands() throws Exception {
+    // Con el cupo de escritura y el carril de consultas ocupados: la prioritaria sale antes
+    // que los comandos encolados antes que ella, y las consultas atascadas no frenan a nadie
+    var cfg = new LaneScheduler.Config(1, 1, 1, 1, 3, 1, Set.of("Transfer"));
+    try (var lanes = new LaneScheduler(cfg)) {
+      var writeGate = new CountDownLatch(1);
+      var queryGate = new CountDownLatch(1);
+      var started = new CountDownLatch(2);
+      var order = Collections.synchronizedList(new ArrayList<String>());
+      var writesDone = new CountDownLatch(3);
+      var done = new CountDownLatch(6);
+      lanes.submit(LaneScheduler.Lane.COMMAND, true, () -> {
+        started.countDown();
+        awaitQuietly(writeGate);
+      });
+      lanes.submit(LaneScheduler.Lane.QUERY, false, () -> {
+        started.countDown();
+        awaitQuietly(queryGate);
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      for (String id : List.of("Q1", "C1", "Q2", "C2", "P1", "Q3")) {
+        boolean query = id.startsWith("Q");
+        var lane = lanes.laneFor(id.startsWith("P") ? "Transfer" : "x", query);
+        lanes.submit(lane, !query, () -> {
+          order.add(id);
+          if (!query) writesDone.countDown();
+          done.countDown();
+        });
+      }
+      writeGate.countDown();
+      assertTrue(writesDone.await(5, TimeUnit.SECONDS));
+      assertEquals(List.of("P1", "C1", "C2"), List.copyOf(order));
+      assertEquals(3, lanes.queued(LaneScheduler.Lane.QUERY));
+      queryGate.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(List.of("Q1", "Q2", "Q3"), order.subList(3, 6));
+    }
+  }
+
+  @Test
+  void failing_task_frees_its_slot() throws Exception {
+    var cfg = new LaneScheduler.Config(1, 1, 1, 1, 3, 1, Set.of());
+    try (var lanes = new LaneScheduler(cfg)) {
+      var ran = new CountDownLatch(1);
+      lanes.submit(LaneScheduler.Lane.COMMAND, true, () -> {
+        throw new IllegalStateException("falla a propósito");
+      });
+      lanes.submit(LaneScheduler.Lane.COMMAND, true, ran::countDown);
+      assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  void env_config_and_lane_selection() {
+    var cfg = LaneScheduler.Config.fromEnv(Map.of("BANK_LANE_QUERIES", "8", "BANK_LANE_WEIGHTS", "5:2",
+        "BANK_PRIORITY_OPS", "Withdraw, ,PayLoan"));
+    assertEquals(8, cfg.queryConcurrency());
+    assertEquals(5, cfg.commandWeight());
+    assertEquals(2, cfg.queryWeight());
+    assertEquals(Set.of("Withdraw", "PayLoan"), cfg.priorityOps());
+    assertEquals(LaneScheduler.Config.defaults(), LaneScheduler.Config.fromEnv(Map.of()));
+    try (var lanes = new LaneScheduler(cfg)) {
+      assertEquals(LaneScheduler.Lane.PRIORITY, lanes.laneFor("PayLoan", false));
+      assertEquals(LaneScheduler.Lane.QUERY, lanes.laneFor("GetBalance", true));
+      assertEquals(LaneScheduler.Lane.COMMAND, lanes.laneFor("Deposit", false));
+      assertEquals(LaneScheduler.Lane.COMMAND, lanes.laneFor(null, false));
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadShedderTest {
+
+  @Test
+  void standing_queue_over_an_interval_sheds_queries_first() {
+    var shedder = new LoadShedder(new LoadShedder.Config(100, 1000, 0));
+    shedder.observeLag(150, 10_000);
+    assertFalse(shedder.shouldShed(false, 150));
+    shedder.observeLag(120, 11_000);
+    assertTrue(shedder.overloaded());
+    assertTrue(shedder.shouldShed(false, 150));
+    assertFalse(shedder.shouldShed(true, 150));
+    assertTrue(shedder.shouldShed(true, 450));
+    assertEquals(1, shedder.shedQueryCount());
+    assertEquals(1, shedder.shedWriteCount());
+    shedder.observeLag(5, 11_500);
+    shedder.observeLag(5, 12_000);
+    assertFalse(shedder.overloaded());
+  }
+
+  @Test
+  void a_burst_that_drains_within_the_interval_is_not_overload() {
+    var shedder = new LoadShedder(new LoadShedder.Config(100, 1000, 0));
+    shedder.observeLag(900, 10_000);
+    shedder.observeLag(40, 10_400);
+    shedder.observeLag(900, 11_000);
+    assertFalse(shedder.overloaded());
+  }
+
+  @Test
+  void slow_handlers_overload_and_a_zero_target_disables_shedding() {
+    var shedder = new LoadShedder(new LoadShedder.Config(100, 1000, 50));
+    for (int i = 0; i < 10; i++) shedder.observeHandler(200);
+    shedder.observeLag(0, 10_000);
+    shedder.observeLag(0, 11_000);
+    assertTrue(shedder.overloaded());
+    assertTrue(shedder.shouldShed(false, 101));
+
+    var off = new LoadShedder(LoadShedder.Config.disabled());
+    off.observeLag(10_000, 10_000);
+    off.observeLag(10_000, 20_000);
+    assertFalse(off.overloaded());
+    assertFalse(off.shouldShed(true, 10_000));
+  }
+
+  @Test
+  void expired_broker_messages_are_answered_without_reaching_the_bank() throws Exception {
+    try (TestBank t = TestBank.open(); var broker = new InMemoryBroker(); var server = new Rabbit(broker)) {
+      server.setVerbose(false);
+      server.serve(t.bank);
+      String replyQueue = broker.declareTempQueue();
+      var replies = new LinkedBlockingQueue<JsonNode>();
+      broker.consume(replyQueue, 10, d -> {
+        replies.add(t.om.readTree(d.message().body()));
+        d.ack();
+      });
+      // TTL AMQP vencido: publicado hace 10 s con expiration de 1 s
+      broker.publish(Rabbit.exchange(), Rabbit.routingKeyFor("GetBalance"),
+          new Transport.Message("dl-2", replyQueue, "application/json", null,
+              "{\"type\":\"GetBalance\",\"accountId\":\"CU001\"}".getBytes(),
+              System.currentTimeMillis() - 10_000, "1000"));
+      JsonNode res = replies.poll(5, TimeUnit.SECONDS);
+      assertNotNull(res);
+      assertEquals("DEADLINE_EXCEEDED", res.path("error").path("message").asText());
+      assertEquals(1, server.loadShedder().expiredCount());
+      assertEquals(2500.0, t.balance("CU001"), 1e-9);
+    }
+  }
+}
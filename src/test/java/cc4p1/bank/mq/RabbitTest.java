@@ -0,0 +1,57 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RabbitTest {
+
+  @Test
+  void serves_query_command_priority_and_compat_routes() throws Exception {
+    try (TestBank t = TestBank.open(); var broker = new InMemoryBroker(); var server = new Rabbit(broker)) {
+      server.setVerbose(false);
+      server.serve(t.bank);
+      String[][] sends = {
+          {"q", Rabbit.routingKeyFor("GetBalance"), "{\"type\":\"GetBalance\",\"accountId\":\"CU001\"}"},
+          {"c", Rabbit.routingKeyFor("Deposit"),
+              "{\"type\":\"Deposit\",\"messageId\":\"ln-1\",\"accountId\":\"CU001\",\"amount\":\"1.00\"}"},
+          {"p", Rabbit.priorityRoutingKey(),
+              "{\"messageId\":\"ln-2\",\"type\":\"Withdraw\",\"accountId\":\"CU001\",\"amount\":\"1.00\"}"},
+          {"compat", Rabbit.routingKey(), "{\"type\":\"GetBalance\",\"accountId\":\"CU002\"}"},
+          {"bad", Rabbit.routingKey(), "not json"}};
+      String replyQueue = broker.declareTempQueue();
+      var replies = new ConcurrentHashMap<String, JsonNode>();
+      var received = new CountDownLatch(sends.length);
+      broker.consume(replyQueue, 100, d -> {
+        replies.put(d.message().correlationId(), t.om.readTree(d.message().body()));
+        d.ack();
+        received.countDown();
+      });
+      for (String[] m : sends) {
+        broker.publish(Rabbit.exchange(), m[1], Transport.Message.of(m[0], replyQueue, m[2].getBytes()));
+      }
+      assertTrue(received.await(5, TimeUnit.SECONDS));
+      assertEquals(sends.length, replies.size());
+      for (String ok : List.of("q", "c", "p", "compat")) {
+        assertTrue(replies.get(ok).get("ok").asBoolean(), replies.get(ok).toPrettyString());
+      }
+      assertFalse(replies.get("bad").get("ok").asBoolean());
+      assertEquals(2500.0, t.balance("CU001"), 1e-9);
+    }
+  }
+
+  @Test
+  void routing_keys_split_queries_from_commands() {
+    assertNotEquals(Rabbit.routingKeyFor("GetBalance"), Rabbit.routingKeyFor("Deposit"));
+    assertEquals(Rabbit.routingKeyFor("GetBalance"), Rabbit.routingKeyFor("ListTransactions"));
+    assertEquals(Rabbit.routingKeyFor("Deposit"), Rabbit.routingKeyFor("Transfer"));
+  }
+}
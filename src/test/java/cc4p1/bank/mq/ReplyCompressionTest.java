@@ -0,0 +1,95 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.service.TestBank;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplyCompressionTest {
+
+  @Test
+  void negotiate_prefers_the_highest_q_and_skips_refused_encodings() {
+    assertNull(ReplyCompression.negotiate(null));
+    assertNull(ReplyCompression.negotiate("br, identity"));
+    assertEquals("gzip", ReplyCompression.negotiate("br, gzip, deflate"));
+
+    // Mayor q gana aunque venga después; a igual q, la primera
+    assertEquals("deflate", ReplyCompression.negotiate("gzip;q=0.5, deflate"));
+    assertEquals("deflate", ReplyCompression.negotiate("deflate;q=0.7, gzip;q=0.7"));
+    assertEquals("gzip", ReplyCompression.negotiate("deflate;q=0.2, GZIP ; Q=0.9"));
+
+    // q=0 (o mal formado) la rechaza
+    assertEquals("deflate", ReplyCompression.negotiate("gzip;q=0, deflate;q=0.1"));
+    assertNull(ReplyCompression.negotiate("gzip;q=0"));
+    assertNull(ReplyCompression.negotiate("gzip;q=abc"));
+    assertNull(ReplyCompression.negotiate("gzip;q=2"));
+  }
+
+  @Test
+  void large_replies_are_compressed_when_the_request_accepts_an_encoding() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      for (int i = 0; i < 30; i++) {
+        t.call(Map.of("type", "Deposit", "messageId", "gz-" + i, "accountId", "CU001", "amount", "1.25"));
+      }
+      try (var broker = new InMemoryBroker(); var server = new Rabbit(broker)) {
+        server.setVerbose(false);
+        server.setReplyCompression(new ReplyCompression.Config(1024, Deflater.BEST_SPEED, 2));
+        server.serve(t.bank);
+        String replyQueue = broker.declareTempQueue();
+        var replies = new LinkedBlockingQueue<Transport.Message>();
+        broker.consume(replyQueue, 10, d -> {
+          replies.add(d.message());
+          d.ack();
+        });
+        byte[] page = t.om.writeValueAsBytes(Map.of("type", "ListTransactions", "accountId", "CU001",
+            "from", "2000-01-01", "to", "2100-12-31", "limit", 100));
+        byte[] balance = t.om.writeValueAsBytes(Map.of("type", "GetBalance", "accountId", "CU001"));
+        BiFunction<byte[], String, Transport.Message> ask = (body, accept) -> {
+          try {
+            Map<String, Object> headers = accept == null ? null : Map.of("accept-encoding", accept);
+            broker.publish(Rabbit.exchange(), Rabbit.routingKey(),
+                new Transport.Message("gz", replyQueue, "application/json", headers, body));
+            return replies.poll(5, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        };
+
+        // Sin cabecera: tal cual
+        var plain = ask.apply(page, null);
+        assertNull(plain.contentEncoding());
+        JsonNode expected = t.om.readTree(plain.body());
+        assertEquals(33, expected.path("data").path("count").asInt());
+
+        // gzip (la soportada de mayor q) y deflate: mismo contenido, menos bytes
+        var gz = ask.apply(page, "br, deflate;q=0.5, gzip;q=0.8");
+        assertEquals("gzip", gz.contentEncoding());
+        assertTrue(gz.body().length < plain.body().length);
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(gz.body()))) {
+          assertEquals(expected, t.om.readTree(in.readAllBytes()));
+        }
+        var zlib = ask.apply(page, "deflate");
+        assertEquals("deflate", zlib.contentEncoding());
+        try (var in = new InflaterInputStream(new ByteArrayInputStream(zlib.body()))) {
+          assertEquals(expected, t.om.readTree(in.readAllBytes()));
+        }
+
+        // Bajo el umbral o codificación no soportada: sin comprimir
+        assertNull(ask.apply(balance, "gzip").contentEncoding());
+        assertNull(ask.apply(page, "br").contentEncoding());
+        assertEquals(2, server.replyCompression().compressed());
+        assertTrue(server.replyCompression().bytesOut() < server.replyCompression().bytesIn());
+      }
+    }
+  }
+}
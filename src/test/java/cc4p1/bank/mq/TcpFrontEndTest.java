@@ -0,0 +1,85 @@
+package cc4p1.bank.mq;
+
+import cc4p1.bank.service.TestBank;
+import cc4p1.bank.service.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpFrontEndTest {
+
+  @Test
+  void pipelines_requests_and_answers_in_order() throws Exception {
+    try (TestBank t = TestBank.open(); var broker = new InMemoryBroker(); var server = new Rabbit(broker)) {
+      server.setVerbose(false);
+      server.serve(t.bank);
+      try (var tcp = new TcpFrontEnd(server, t.bank,
+              new TcpFrontEnd.Config("127.0.0.1", 0, 8, 1 << 16, 4));
+          var socket = new Socket("127.0.0.1", tcp.port())) {
+        tcp.start();
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        // 20 depósitos (uno repetido) y consultas intercaladas, todo enviado antes de leer nada
+        int n = 20;
+        for (int i = 0; i < n; i++) {
+          WireFormat f = WireFormat.values()[i % WireFormat.values().length];
+          String messageId = "tcp-" + (i == n - 2 ? 0 : i);
+          Map<String, Object> req = i % 5 == 4
+              ? Map.of("type", "GetBalance", "accountId", "CU002")
+              : Map.of("type", "Deposit", "messageId", messageId, "accountId", "CU002", "amount", "1.00");
+          new TcpFrontEnd.Frame(f, i % 2 == 0 ? "c" + i : null, f.mapper().writeValueAsBytes(req)).write(out);
+        }
+        out.flush();
+        for (int i = 0; i < n; i++) {
+          var reply = TcpFrontEnd.Frame.read(in, 1 << 16);
+          assertNotNull(reply);
+          WireFormat f = WireFormat.values()[i % WireFormat.values().length];
+          assertEquals(f, reply.format());
+          JsonNode res = f.mapper().readTree(reply.body());
+          assertTrue(res.get("ok").asBoolean(), res.toString());
+          // Mismo orden que las peticiones; sin correlationId, uno de la conexión
+          String corrId = i % 2 == 0 ? "c" + i : reply.correlationId();
+          assertEquals(corrId, reply.correlationId());
+          assertEquals(corrId, res.path("correlationId").asText());
+          if (i % 2 == 1) assertTrue(corrId.startsWith("tcp-"), corrId);
+        }
+        // 16 depósitos, uno de ellos repetido (mismo messageId): 15 aplicados
+        assertEquals(1500.0 + 15, t.balance("CU002"), 1e-9);
+
+        // Mismo camino que el broker: plazo vencido (cuenta el descarte) y canal público
+        Map<String, Object> late = Map.of("type", "GetBalance", "accountId", "CU002", "deadline", 1);
+        Map<String, Object> credit = Map.of("type", "CreditTransfer", "transferId", "TF-tcp", "fromAccountId", "CU001",
+            "toAccountId", "CU002", "amount", "100");
+        new TcpFrontEnd.Frame(WireFormat.JSON, "late", t.om.writeValueAsBytes(late)).write(out);
+        new TcpFrontEnd.Frame(WireFormat.JSON, "credit", t.om.writeValueAsBytes(credit)).write(out);
+        out.flush();
+        assertEquals("DEADLINE_EXCEEDED", t.om.readTree(TcpFrontEnd.Frame.read(in, 1 << 16).body())
+            .path("error").path("message").asText());
+        assertEquals(1, server.loadShedder().expiredCount());
+        assertEquals("INTERNAL_OPERATION: CreditTransfer", t.om.readTree(TcpFrontEnd.Frame.read(in, 1 << 16)
+            .body()).path("error").path("message").asText());
+
+        // Trama inválida: se cierra la conexión; el puerto sigue atendiendo
+        out.writeInt(2);
+        out.flush();
+        assertNull(TcpFrontEnd.Frame.read(in, 1 << 16));
+        try (var again = new Socket("127.0.0.1", tcp.port())) {
+          var o = new DataOutputStream(again.getOutputStream());
+          new TcpFrontEnd.Frame(WireFormat.JSON, "x", "{}".getBytes()).write(o);
+          var r = TcpFrontEnd.Frame.read(new DataInputStream(again.getInputStream()), 1 << 16);
+          assertEquals("MISSING_type", t.om.readTree(r.body()).path("error").path("message").asText());
+        }
+        assertEquals(2, tcp.connections());
+      }
+    }
+  }
+}
+
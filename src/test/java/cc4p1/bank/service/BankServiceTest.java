@@ -1,6 +1,7 @@
 package cc4p1.bank.service;
 
 import cc4p1.bank.db.SQLite;
+import cc4p1.bank.domain.Prestamo;
 import cc4p1.bank.repo.*;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -11,7 +12,16 @@ import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -48,6 +58,8 @@ class BankServiceTest {
   @AfterEach
   void tearDown() throws IOException {
     Files.deleteIfExists(tempDb);
+    Files.deleteIfExists(Path.of(tempDb + "-wal"));
+    Files.deleteIfExists(Path.of(tempDb + "-shm"));
   }
 
   private JsonNode call(Map<String, Object> req) throws Exception {
@@ -448,4 +460,542 @@ class BankServiceTest {
     }
     assertTrue(foundDebt);
   }
+
+  @Test
+  void batchDeposit_applies_all_legs_in_one_reply_and_is_idempotent() throws Exception {
+    Map<String, Object> req = Map.of(
+        "type", "BatchDeposit",
+        "messageId", "batch-1",
+        "legs", List.of(
+            Map.of("accountId", "CU001", "amount", "100.00"),
+            Map.of("accountId", "CU002", "amount", "50.00"),
+            Map.of("accountId", "CU001", "amount", "25.00")));
+    JsonNode res = call(req);
+    assertTrue(res.get("ok").asBoolean());
+    assertEquals(3, res.path("data").path("applied").asInt());
+    assertEquals(3, res.path("data").path("results").size());
+
+    JsonNode dup = call(req);
+    assertTrue(dup.path("data").path("duplicate").asBoolean());
+
+    try (Connection c = sqlite.get()) {
+      assertEquals(0, accountRepo.findById(c, "CU001").saldo().compareTo(new BigDecimal("2625.00")));
+      assertEquals(0, accountRepo.findById(c, "CU002").saldo().compareTo(new BigDecimal("1550.00")));
+      c.commit();
+    }
+  }
+
+  @Test
+  void batchTransfer_allOrNothing_rejects_whole_batch_on_failed_leg() throws Exception {
+    JsonNode res = call(Map.of(
+        "type", "BatchTransfer",
+        "messageId", "batch-2",
+        "legs", List.of(
+            Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "100.00"),
+            Map.of("fromAccountId", "CU002", "toAccountId", "CU001", "amount", "999999.00"))));
+    assertFalse(res.get("ok").asBoolean());
+    assertEquals("BATCH_REJECTED", res.path("error").path("message").asText());
+    assertEquals(1, res.path("error").path("failedLeg").path("index").asInt());
+
+    try (Connection c = sqlite.get()) {
+      assertEquals(0, accountRepo.findById(c, "CU001").saldo().compareTo(new BigDecimal("2500.00")));
+      assertEquals(0, accountRepo.findById(c, "CU002").saldo().compareTo(new BigDecimal("1500.00")));
+      c.commit();
+    }
+  }
+
+  @Test
+  void batchTransfer_bestEffort_reports_per_leg_results() throws Exception {
+    JsonNode res = call(Map.of(
+        "type", "BatchTransfer",
+        "messageId", "batch-3",
+        "mode", "bestEffort",
+        "legs", List.of(
+            Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "100.00"),
+            Map.of("fromAccountId", "CU002", "toAccountId", "CU001", "amount", "999999.00"),
+            Map.of("fromAccountId", "CU002", "toAccountId", "CU999", "amount", "1.00"))));
+    assertTrue(res.get("ok").asBoolean());
+    JsonNode data = res.path("data");
+    assertEquals(1, data.path("applied").asInt());
+    assertEquals(2, data.path("failed").asInt());
+    assertTrue(data.path("results").get(0).path("ok").asBoolean());
+    assertEquals("INSUFFICIENT_FUNDS", data.path("results").get(1).path("error").asText());
+    assertEquals("ACCOUNT_NOT_FOUND", data.path("results").get(2).path("error").asText());
+
+    try (Connection c = sqlite.get()) {
+      // La pata 3 debitó CU002 antes de fallar en CU999: el savepoint debe haberlo revertido
+      assertEquals(0, accountRepo.findById(c, "CU001").saldo().compareTo(new BigDecimal("2400.00")));
+      assertEquals(0, accountRepo.findById(c, "CU002").saldo().compareTo(new BigDecimal("1600.00")));
+      try (var ps = c.prepareStatement("SELECT COUNT(*) FROM TRANSACCIONES WHERE id_transferencia=?")) {
+        ps.setString(1, data.path("results").get(0).path("transferId").asText());
+        try (var rs = ps.executeQuery()) {
+          rs.next();
+          assertEquals(2, rs.getInt(1));
+        }
+      }
+      c.commit();
+    }
+  }
+
+  @Test
+  void batchTransfer_legs_count_against_the_daily_outflow_limit() throws Exception {
+    bank.setDailyLimits(new DailyLimits(new BigDecimal("300.00")));
+    // allOrNothing: la pata sin cupo rechaza el lote y las reservas de las anteriores se devuelven
+    JsonNode rejected = call(Map.of("type", "BatchTransfer", "messageId", "dbatch-1", "legs", List.of(
+        Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "200.00"),
+        Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "150.00"))));
+    assertEquals("BATCH_REJECTED", rejected.path("error").path("message").asText());
+    assertEquals("DAILY_LIMIT_EXCEEDED", rejected.path("error").path("failedLeg").path("error").asText());
+    assertEquals(new BigDecimal("0.00"), bank.dailyLimits().used("CU001"));
+    assertEquals(2500.0, balance("CU001"), 1e-9);
+
+    // bestEffort: solo falla la pata que no entra; una fallida por saldo tampoco consume tope
+    JsonNode partial = call(Map.of("type", "BatchTransfer", "messageId", "dbatch-2", "mode", "bestEffort",
+        "legs", List.of(
+            Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "200.00"),
+            Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "150.00"),
+            Map.of("fromAccountId", "CU002", "toAccountId", "CU001", "amount", "250.00"),
+            Map.of("fromAccountId", "CU002", "toAccountId", "CU999", "amount", "10.00"))));
+    JsonNode results = partial.path("data").path("results");
+    assertTrue(results.get(0).path("ok").asBoolean());
+    assertEquals("DAILY_LIMIT_EXCEEDED", results.get(1).path("error").asText());
+    assertTrue(results.get(2).path("ok").asBoolean());
+    assertEquals("ACCOUNT_NOT_FOUND", results.get(3).path("error").asText());
+    assertEquals(new BigDecimal("200.00"), bank.dailyLimits().used("CU001"));
+    assertEquals(new BigDecimal("250.00"), bank.dailyLimits().used("CU002"));
+    // Repetido: no vuelve a reservar
+    call(Map.of("type", "BatchTransfer", "messageId", "dbatch-2", "mode", "bestEffort", "legs", List.of(
+        Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "200.00"))));
+    assertEquals(new BigDecimal("200.00"), bank.dailyLimits().used("CU001"));
+    assertEquals("DAILY_LIMIT_EXCEEDED", call(Map.of("type", "Withdraw", "messageId", "dbatch-3",
+        "accountId", "CU001", "amount", "150.00")).path("error").path("message").asText());
+  }
+
+  @Test
+  void stripedHotAccount_spreads_credits_and_consolidates_on_large_debit() throws Exception {
+    try (Connection c = sqlite.get()) {
+      accountRepo.enableStriping(c, "CU002", 4);
+      c.commit();
+    }
+    long version = accountVersion("CU002");
+    for (int i = 0; i < 8; i++) {
+      JsonNode dep = call(Map.of("type", "Deposit", "messageId", "hot-" + i, "accountId", "CU002", "amount", "100.00"));
+      assertTrue(dep.get("ok").asBoolean());
+    }
+    // Los créditos a un slot también cuentan como cambio de la cuenta
+    assertEquals(version + 8, accountVersion("CU002"));
+    JsonNode bal = call(Map.of("type", "GetBalance", "accountId", "CU002"));
+    assertEquals(2300.00, bal.path("data").path("balance").asDouble(), 0.001);
+
+    // Más que la base (1500) y que cualquier slot individual: obliga a consolidar
+    JsonNode w = call(Map.of("type", "Withdraw", "messageId", "hot-w", "accountId", "CU002", "amount", "2250.00"));
+    assertTrue(w.get("ok").asBoolean(), w.toPrettyString());
+    assertEquals(50.00, w.path("data").path("newBalance").asDouble(), 0.001);
+
+    JsonNode tooMuch = call(Map.of("type", "Withdraw", "messageId", "hot-w2", "accountId", "CU002", "amount", "50.01"));
+    assertEquals("INSUFFICIENT_FUNDS", tooMuch.path("error").path("message").asText());
+  }
+
+  @Test
+  void getAccountSummary_reads_daily_aggregates_for_range() throws Exception {
+    JsonNode oct = call(Map.of("type", "GetAccountSummary", "accountId", "CU001",
+        "from", "2025-10-01", "to", "2025-10-31", "daily", true));
+    assertTrue(oct.get("ok").asBoolean(), oct.toPrettyString());
+    JsonNode totals = oct.path("data").path("totals");
+    assertEquals(2, totals.path("deposito").path("count").asInt());
+    assertEquals(1000.00, totals.path("deposito").path("total").asDouble(), 0.001);
+    assertEquals(300.00, totals.path("retiro").path("max").asDouble(), 0.001);
+    assertEquals(700.00, oct.path("data").path("net").asDouble(), 0.001);
+    assertEquals(3, oct.path("data").path("days").size());
+
+    call(Map.of("type", "Deposit", "messageId", "sum-1", "accountId", "CU001", "amount", "40.00"));
+    call(Map.of("type", "Deposit", "messageId", "sum-2", "accountId", "CU001", "amount", "60.00"));
+    // Sin rango: mes en curso
+    JsonNode mtd = call(Map.of("type", "GetAccountSummary", "accountId", "CU001"));
+    JsonNode dep = mtd.path("data").path("totals").path("deposito");
+    assertEquals(2, dep.path("count").asInt());
+    assertEquals(100.00, dep.path("total").asDouble(), 0.001);
+    assertEquals(40.00, dep.path("min").asDouble(), 0.001);
+    assertEquals(60.00, dep.path("max").asDouble(), 0.001);
+  }
+
+  @Test
+  void getBalanceAt_uses_running_balance_of_history() throws Exception {
+    // Semilla CU001: +500 (10-01), +500 (10-02), -300 (10-03) → saldo actual 2500
+    assertEquals(2800.00, balanceAt("CU001", "2025-10-02"), 0.001);
+    assertEquals(2500.00, balanceAt("CU001", "2025-10-03T12:00:00Z"), 0.001);
+    // Antes del primer movimiento: saldo previo a ese movimiento
+    assertEquals(1800.00, balanceAt("CU001", "2025-09-30"), 0.001);
+
+    call(Map.of("type", "Deposit", "messageId", "bal-1", "accountId", "CU001", "amount", "100.00"));
+    call(Map.of("type", "BatchTransfer", "messageId", "bal-2", "legs", List.of(
+        Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "10.00"),
+        Map.of("fromAccountId", "CU001", "toAccountId", "CU002", "amount", "20.00"))));
+    assertEquals(2570.00, balanceAt("CU001", "2999-01-01"), 0.001);
+    assertEquals(2500.00, balanceAt("CU001", "2025-12-31"), 0.001);
+
+    try (Connection c = sqlite.get()) {
+      assertEquals(6, TestBank.runningBalanceHistoryOk(c, "CU001"));
+      assertEquals(3, TestBank.runningBalanceHistoryOk(c, "CU002"));
+      c.commit();
+    }
+  }
+
+  @Test
+  void expired_requests_are_rejected_before_touching_the_database() throws Exception {
+    String past = Instant.now().minusSeconds(5).toString();
+    JsonNode late = call(Map.of("type", "Deposit", "messageId", "dl-1", "accountId", "CU001", "amount", "10.00",
+        "deadline", past));
+    assertFalse(late.get("ok").asBoolean());
+    assertEquals("DEADLINE_EXCEEDED", late.path("error").path("message").asText());
+    // Sin efecto: el mismo messageId se procesa normalmente con un plazo vigente
+    JsonNode retry = call(Map.of("type", "Deposit", "messageId", "dl-1", "accountId", "CU001", "amount", "10.00",
+        "deadline", System.currentTimeMillis() + 60_000));
+    assertTrue(retry.get("ok").asBoolean(), retry.toPrettyString());
+    assertFalse(retry.path("data").path("duplicate").asBoolean(false));
+  }
+
+  @Test
+  void login_uses_hashed_passwords_sessions_and_a_bounded_verifier() throws Exception {
+    JsonNode ok = call(Map.of("type", "Login", "dni", "45678912", "password", "secret1"));
+    assertTrue(ok.get("ok").asBoolean(), ok.toPrettyString());
+    assertEquals("CL001", ok.path("data").path("clientId").asText());
+    String token = ok.path("data").path("sessionToken").asText();
+    assertFalse(token.isEmpty());
+    assertEquals("INVALID_CREDENTIALS", call(Map.of("type", "Login", "dni", "45678912", "password", "nope"))
+        .path("error").path("message").asText());
+    assertEquals("INVALID_CREDENTIALS", call(Map.of("type", "Login", "dni", "00000000", "password", "secret1"))
+        .path("error").path("message").asText());
+    JsonNode again = call(Map.of("type", "Login", "sessionToken", token));
+    assertEquals("CU001", again.path("data").path("accountId").asText());
+    assertEquals("INVALID_SESSION", call(Map.of("type", "Login", "sessionToken", "x"))
+        .path("error").path("message").asText());
+
+    // Ráfaga de contraseñas erradas con un solo cupo: el exceso se rechaza sin esperar
+    var verifier = new CredentialVerifier(1, 1, 5_000);
+    bank.setCredentials(verifier, new Sessions(60_000, 100));
+    var start = new CountDownLatch(1);
+    var pool = Executors.newFixedThreadPool(8);
+    var results = new ArrayList<Future<JsonNode>>();
+    for (int i = 0; i < 8; i++) {
+      String pw = "wrong" + i;
+      results.add(pool.submit(() -> {
+        awaitQuietly(start);
+        return call(Map.of("type", "Login", "dni", "45678912", "password", pw));
+      }));
+    }
+    start.countDown();
+    int overloaded = 0;
+    for (var f : results) {
+      String msg = f.get(10, TimeUnit.SECONDS).path("error").path("message").asText();
+      if ("OVERLOADED".equals(msg)) overloaded++;
+      else assertEquals("INVALID_CREDENTIALS", msg);
+    }
+    pool.shutdown();
+    assertTrue(overloaded > 0);
+    assertEquals(overloaded, verifier.rejectedCount());
+    verifier.close();
+  }
+
+  @Test
+  void account_locks_order_opposite_transfers_and_bound_the_wait() throws Exception {
+    // Cuenta ocupada por otro hilo: la escritura espera lo acotado y no toca la base
+    var shortWait = new AccountLocks(64, 200);
+    assertNotEquals(shortWait.stripeOf("CU001"), shortWait.stripeOf("CU002"));
+    bank.setAccountLocks(shortWait);
+    var holder = Executors.newSingleThreadExecutor();
+    var held = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    holder.submit(() -> {
+      try (var h = shortWait.acquire("CU001")) {
+        held.countDown();
+        awaitQuietly(release);
+      }
+    });
+    held.await();
+    JsonNode blocked = call(Map.of("type", "Deposit", "messageId", "lk-1", "accountId", "CU001", "amount", 10));
+    assertEquals("LOCK_TIMEOUT", blocked.path("error").path("message").asText());
+    assertTrue(call(Map.of("type", "Deposit", "messageId", "lk-2", "accountId", "CU002", "amount", 10))
+        .get("ok").asBoolean());
+    release.countDown();
+    holder.shutdown();
+    assertTrue(call(Map.of("type", "Deposit", "messageId", "lk-1", "accountId", "CU001", "amount", 10))
+        .get("ok").asBoolean());
+    assertEquals(1L, shortWait.stats(5).get("timeouts"));
+
+    // A→B y B→A a la vez: sin trabarse, sin perder saldo y con la franja caliente reportada
+    var locks = new AccountLocks(64, 10_000);
+    bank.setAccountLocks(locks);
+    var start = new CountDownLatch(1);
+    var pool = Executors.newFixedThreadPool(8);
+    var results = new ArrayList<Future<JsonNode>>();
+    for (int t = 0; t < 8; t++) {
+      for (int i = 0; i < 25; i++) {
+        boolean forward = (t + i) % 2 == 0;
+        String msgId = "lk-t" + t + "-" + i;
+        results.add(pool.submit(() -> {
+          awaitQuietly(start);
+          return call(Map.of("type", "Transfer", "messageId", msgId, "fromAccountId", forward ? "CU001" : "CU002",
+              "toAccountId", forward ? "CU002" : "CU001", "amount", 1));
+        }));
+      }
+    }
+    start.countDown();
+    for (var f : results) {
+      JsonNode res = f.get(30, TimeUnit.SECONDS);
+      assertTrue(res.get("ok").asBoolean(), res.toPrettyString());
+    }
+    pool.shutdown();
+    assertEquals(4020.0, call(Map.of("type", "GetBalance", "accountId", "CU001")).path("data").path("balance").asDouble()
+        + call(Map.of("type", "GetBalance", "accountId", "CU002")).path("data").path("balance").asDouble(), 1e-9);
+
+    JsonNode stats = call(Map.of("type", "GetServerStats", "hot", 2)).path("data").path("accountLocks");
+    assertEquals(200, stats.path("acquisitions").asLong());
+    assertEquals(0, stats.path("timeouts").asLong());
+    assertTrue(stats.path("contended").asLong() > 0, stats.toPrettyString());
+    String hot = stats.path("hotStripes").get(0).path("lastAccount").asText();
+    assertTrue(hot.equals("CU001") || hot.equals("CU002"), hot);
+  }
+
+  @Test
+  void loan_payments_compare_and_set_the_version_and_retry_lost_races() throws Exception {
+    Prestamo stale;
+    try (Connection c = sqlite.get()) {
+      stale = loanRepo.findById(c, "PR001");
+      c.commit();
+    }
+    assertEquals(0, stale.version());
+
+    // Un pago se lee fuera del escritor y espera la cuenta; otro pago del mismo préstamo gana
+    var locks = new AccountLocks(64, 10_000);
+    var retry = new OptimisticRetry(4, 1);
+    bank.setAccountLocks(locks);
+    bank.setOptimisticRetry(retry);
+    var pool = Executors.newSingleThreadExecutor();
+    Future<JsonNode> slow;
+    try (var h = locks.acquire("CU001")) {
+      slow = pool.submit(() -> call(Map.of("type", "PayLoan", "messageId", "cas-1", "loanId", "PR001",
+          "accountId", "CU001", "amount", 100)));
+      while ((long) locks.stats(0).get("contended") == 0 && !slow.isDone()) Thread.onSpinWait();
+      JsonNode fast = call(Map.of("type", "PayLoan", "messageId", "cas-2", "loanId", "PR001",
+          "accountId", "CU002", "amount", 200));
+      assertEquals(7800.0, fast.path("data").path("newPending").asDouble(), 1e-9);
+    }
+    JsonNode res = slow.get(10, TimeUnit.SECONDS);
+    pool.shutdown();
+    assertTrue(res.get("ok").asBoolean(), res.toPrettyString());
+    assertEquals(7700.0, res.path("data").path("newPending").asDouble(), 1e-9);
+    assertEquals(2400.0, res.path("data").path("newBalance").asDouble(), 1e-9);
+    assertEquals(1, retry.retries("PayLoan"));
+
+    // La lectura vieja ya no puede escribir; las cuentas también llevan versión
+    try (Connection c = sqlite.get()) {
+      assertEquals(2, loanRepo.findById(c, "PR001").version());
+      SQLException e = assertThrows(SQLException.class, () -> loanRepo.applyPayment(c, stale, BigDecimal.ONE));
+      assertEquals(OptimisticRetry.CONFLICT, e.getMessage());
+      try (var ps = c.prepareStatement("SELECT version FROM CUENTAS WHERE id_cuenta='CU001'");
+           var rs = ps.executeQuery()) {
+        assertTrue(rs.next());
+        assertEquals(1, rs.getLong(1));
+      }
+      c.rollback();
+    }
+
+    // Conflicto persistente: se agota y llega al cliente; otros errores no se reintentan
+    var calls = new AtomicInteger();
+    SQLException exhausted = assertThrows(SQLException.class, () -> retry.run("X", () -> {
+      calls.incrementAndGet();
+      throw new SQLException(OptimisticRetry.CONFLICT);
+    }));
+    assertEquals(OptimisticRetry.CONFLICT, exhausted.getMessage());
+    assertEquals(4, calls.get());
+    assertEquals(1, retry.exhausted("X"));
+    calls.set(0);
+    assertThrows(SQLException.class, () -> retry.run("Y", () -> {
+      calls.incrementAndGet();
+      throw new SQLException("INSUFFICIENT_FUNDS");
+    }));
+    assertEquals(1, calls.get());
+    assertEquals(1, call(Map.of("type", "GetServerStats")).path("data").path("optimisticRetry")
+        .path("operations").path("PayLoan").path("retries").asLong());
+  }
+
+  @Test
+  void write_transactions_retry_busy_database_until_the_deadline() throws Exception {
+    // Otro escritor retiene la base (BEGIN IMMEDIATE) hasta que el Deposit choca con él: el
+    // Deposit reintenta y entra cuando la suelta
+    var pool = Executors.newFixedThreadPool(8);
+    var holding = new CountDownLatch(1);
+    var letGo = new CountDownLatch(1);
+    var holder = pool.submit(() -> sqlite.write(c -> {
+      holding.countDown();
+      letGo.await();
+      return null;
+    }));
+    holding.await();
+    var pending = pool.submit(() -> call(Map.of("type", "Deposit", "messageId", "busy-1", "accountId", "CU001",
+        "amount", 10)));
+    while ((long) sqlite.writeStats().get("busy") == 0 && !pending.isDone()) Thread.onSpinWait();
+    letGo.countDown();
+    JsonNode dep = pending.get(10, TimeUnit.SECONDS);
+    assertTrue(dep.get("ok").asBoolean(), dep.toPrettyString());
+    holder.get();
+    Map<String, Object> stats = sqlite.writeStats();
+    assertTrue((long) stats.get("busy") > 0, stats.toString());
+
+    // Plazo corto: DB_BUSY sin efectos, y el mismo messageId se puede reintentar
+    sqlite.setBusyPolicy(new SQLite.BusyPolicy(30, 1, 5));
+    var held = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    holder = pool.submit(() -> sqlite.write(c -> {
+      held.countDown();
+      release.await();
+      return null;
+    }));
+    held.await();
+    JsonNode timedOut = call(Map.of("type", "Deposit", "messageId", "busy-2", "accountId", "CU001", "amount", 10));
+    release.countDown();
+    holder.get();
+    assertEquals("DB_BUSY", timedOut.path("error").path("message").asText());
+    assertEquals(1L, sqlite.writeStats().get("exhausted"));
+    assertEquals(2520.0, call(Map.of("type", "Deposit", "messageId", "busy-2", "accountId", "CU001", "amount", 10))
+        .path("data").path("newBalance").asDouble(), 1e-9);
+
+    // Errores de negocio: se deshacen sin reintentar
+    long firstTry = (long) ((Map<?, ?>) sqlite.writeStats().get("retriesHistogram")).get("0");
+    assertEquals("INSUFFICIENT_FUNDS", call(Map.of("type", "Withdraw", "messageId", "busy-3", "accountId", "CU002",
+        "amount", 1_000_000)).path("error").path("message").asText());
+    assertEquals(firstTry + 1, (long) ((Map<?, ?>) sqlite.writeStats().get("retriesHistogram")).get("0"));
+
+    // Escritores en paralelo sobre cuentas distintas: sin SQLITE_BUSY hacia el cliente
+    sqlite.setBusyPolicy(new SQLite.BusyPolicy(10_000, 1, 20));
+    var start = new CountDownLatch(1);
+    var results = new ArrayList<Future<JsonNode>>();
+    for (int i = 0; i < 80; i++) {
+      String account = i % 2 == 0 ? "CU001" : "CU002";
+      String msgId = "busy-p" + i;
+      results.add(pool.submit(() -> {
+        awaitQuietly(start);
+        return call(Map.of("type", "Deposit", "messageId", msgId, "accountId", account, "amount", 1));
+      }));
+    }
+    start.countDown();
+    for (var f : results) {
+      JsonNode res = f.get(30, TimeUnit.SECONDS);
+      assertTrue(res.get("ok").asBoolean(), res.toPrettyString());
+    }
+    pool.shutdown();
+    assertEquals(1540.0, call(Map.of("type", "GetBalance", "accountId", "CU002")).path("data").path("balance")
+        .asDouble(), 1e-9);
+    JsonNode writes = call(Map.of("type", "GetServerStats")).path("data").path("writes").get(0);
+    assertEquals(0, writes.path("shard").asInt());
+    assertTrue(writes.path("retriesHistogram").has("9+"));
+  }
+
+  @Test
+  void queries_read_without_transactions_while_a_writer_holds_the_database() throws Exception {
+    // Un escritor retiene BEGIN IMMEDIATE con un cambio sin confirmar: las consultas no esperan
+    // (con plazo corto, una espera terminaría en error) y ven el último estado confirmado
+    sqlite.setBusyPolicy(new SQLite.BusyPolicy(30, 1, 5));
+    var pool = Executors.newSingleThreadExecutor();
+    var held = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var holder = pool.submit(() -> sqlite.write(c -> {
+      try (var ps = c.prepareStatement("UPDATE CUENTAS SET saldo = saldo + 100 WHERE id_cuenta='CU001'")) {
+        ps.executeUpdate();
+      }
+      held.countDown();
+      release.await();
+      return null;
+    }));
+    held.await();
+    try {
+      assertEquals(2500.0, call(Map.of("type", "GetBalance", "accountId", "CU001")).path("data").path("balance")
+          .asDouble(), 1e-9);
+      assertTrue(call(Map.of("type", "ListTransactions", "accountId", "CU001")).get("ok").asBoolean());
+      assertTrue(call(Map.of("type", "GetClientInfo", "clientId", "CL001")).get("ok").asBoolean());
+      assertTrue(call(Map.of("type", "ListClientLoans", "clientId", "CL001")).get("ok").asBoolean());
+    } finally {
+      release.countDown();
+      holder.get();
+      pool.shutdown();
+    }
+    assertEquals(2600.0, call(Map.of("type", "GetBalance", "accountId", "CU001")).path("data").path("balance")
+        .asDouble(), 1e-9);
+
+    // La conexión de lectura es query_only: no puede escribir ni abrir una transacción
+    try (Connection c = sqlite.read(); var s = c.createStatement()) {
+      assertTrue(c.getAutoCommit());
+      assertThrows(SQLException.class, () -> s.executeUpdate("UPDATE CUENTAS SET saldo = 0 WHERE id_cuenta='CU001'"));
+    }
+    assertEquals(0L, sqlite.writeStats().get("exhausted"));
+  }
+
+  @Test
+  void operations_are_registered_with_schema_class_and_resource_keys() throws Exception {
+    // Operación nueva sin tocar handle: se valida su esquema antes de llamar al handler
+    bank.register(Operations.Operation.query("Echo", (b, r, corrId) -> b.ok(Map.of("text", r.get("text").asText()), corrId))
+        .requires("text").keys("accountId"));
+    assertEquals("hola", call(Map.of("type", "Echo", "text", "hola")).path("data").path("text").asText());
+    assertEquals("MISSING_text", call(Map.of("type", "Echo")).path("error").path("message").asText());
+    assertTrue(bank.operations().isQuery("Echo"));
+    assertFalse(BankService.isQuery("Echo")); // el catálogo estándar no cambia
+    assertThrows(IllegalArgumentException.class,
+        () -> bank.register(Operations.Operation.command("Echo2", (b, r, corrId) -> null).aliases("login")));
+
+    // Alias y clase de las estándar; los comandos exigen messageId antes de tocar la base
+    Operations.Operation login = bank.operations().find("login");
+    assertEquals("Login", login.name());
+    assertTrue(login.query());
+    assertEquals("MISSING_messageId", call(Map.of("type", "Deposit", "accountId", "CU001", "amount", 5))
+        .path("error").path("message").asText());
+    assertEquals("MISSING_amount", call(Map.of("type", "Withdraw", "messageId", "op-1", "accountId", "CU001"))
+        .path("error").path("message").asText());
+    assertEquals("UNKNOWN_TYPE: Nope", call(Map.of("type", "Nope")).path("error").path("message").asText());
+
+    // Claves de recurso: en payload (cliente web) y en cada pata de un lote
+    ObjectMapper om = new ObjectMapper();
+    assertEquals("12345678", login.partitionKey(om.readTree("{\"type\":\"login\",\"payload\":{\"dni\":\"12345678\"}}")));
+    assertEquals(List.of("CU001", "CU002", "CU003"), bank.operations().find("BatchTransfer").resourceKeys(om.readTree(
+        "{\"legs\":[{\"fromAccountId\":\"CU001\",\"toAccountId\":\"CU002\"},{\"fromAccountId\":\"CU002\",\"toAccountId\":\"CU003\"}]}")));
+    assertFalse(bank.operations().find("CreditTransfer").idempotent());
+
+    // Internas: solo por el canal de pares; un cliente no puede acreditar dinero de la nada
+    assertTrue(bank.operations().find("CreditTransfer").internal());
+    byte[] credit = om.writeValueAsBytes(Map.of("type", "CreditTransfer", "transferId", "TF-forged",
+        "fromAccountId", "CU002", "toAccountId", "CU001", "amount", "1000"));
+    JsonNode forged = om.readTree(bank.handle(credit, WireFormat.JSON, "c-1"));
+    assertEquals("INTERNAL_OPERATION: CreditTransfer", forged.path("error").path("message").asText());
+    assertEquals(2500.0, balance("CU001"), 1e-9);
+  }
+
+  private double balance(String accountId) throws Exception {
+    return call(Map.of("type", "GetBalance", "accountId", accountId)).path("data").path("balance").asDouble();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private long accountVersion(String accountId) throws SQLException {
+    try (Connection c = sqlite.get(); var ps = c.prepareStatement("SELECT version FROM CUENTAS WHERE id_cuenta = ?")) {
+      ps.setString(1, accountId);
+      try (var rs = ps.executeQuery()) {
+        assertTrue(rs.next());
+        long v = rs.getLong(1);
+        c.commit();
+        return v;
+      }
+    }
+  }
+
+  private double balanceAt(String accountId, String at) throws Exception {
+    JsonNode res = call(Map.of("type", "GetBalanceAt", "accountId", accountId, "at", at));
+    assertTrue(res.get("ok").asBoolean(), res.toPrettyString());
+    return res.path("data").path("balance").asDouble();
+  }
 }
@@ -0,0 +1,91 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.repo.TransferLogRepo;
+import cc4p1.bank.tools.ShardSplitter;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrossShardTransfersTest {
+
+  @Test
+  void routes_by_account_and_settles_in_two_phases() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      Shards shards = ShardSplitter.split(t.db.toString(), 2);
+      // Cada cuenta (y su préstamo) queda solo en su shard; el dinero total no cambia
+      assertEquals(4000.0, totalBalance(shards), 1e-9);
+      for (String acct : List.of("CU001", "CU002")) {
+        for (int k = 0; k < 2; k++) {
+          try (Connection c = shards.get(k).get()) {
+            assertEquals(k == shards.indexOf(acct), t.accountRepo.findById(c, acct) != null);
+            c.commit();
+          }
+        }
+      }
+      BankService bank = new BankService(shards, t.clientRepo, t.accountRepo, t.loanRepo, t.txRepo, t.messageRepo,
+          new MockReniecClient(true, 0));
+      assertEquals(1, t.call(bank, Map.of("type", "ListClientLoans", "clientId", "CL001")).path("data").path("totalLoans").asInt());
+
+      // Un cliente nuevo por shard: cliente y cuenta caen en el shard de su DNI
+      String[] accts = new String[2];
+      for (int dni = 70000000; accts[0] == null || accts[1] == null; dni++) {
+        int k = shards.indexOf(String.valueOf(dni));
+        if (accts[k] != null) continue;
+        JsonNode reg = t.call(bank, Map.of("type", "Register", "messageId", "reg-" + dni, "dni", String.valueOf(dni),
+            "password", "clave", "saldo", "1000"));
+        assertTrue(reg.get("ok").asBoolean(), reg.toPrettyString());
+        accts[k] = reg.path("data").path("accountId").asText();
+        assertEquals(k, shards.indexOf(accts[k]));
+        assertEquals(k, shards.indexOf(reg.path("data").path("clientId").asText()));
+      }
+
+      Map<String, Object> tf = Map.of("type", "Transfer", "messageId", "x-1", "fromAccountId", accts[0],
+          "toAccountId", accts[1], "amount", "100");
+      JsonNode res = t.call(bank, tf);
+      assertEquals("settled", res.path("data").path("settlement").asText(), res.toPrettyString());
+      assertEquals(900.0, res.path("data").path("fromAccountNewBalance").asDouble(), 1e-9);
+      assertEquals(1100.0, res.path("data").path("toAccountNewBalance").asDouble(), 1e-9);
+      assertTrue(t.call(bank, tf).path("data").path("duplicate").asBoolean());
+      assertEquals("ACCOUNT_NOT_FOUND", t.call(bank, Map.of("type", "Transfer", "messageId", "x-2", "fromAccountId", accts[0],
+          "toAccountId", "CU-nope", "amount", "5")).path("error").path("message").asText());
+      assertEquals("CROSS_SHARD_NOT_SUPPORTED", t.call(bank, Map.of("type", "BatchTransfer", "messageId", "x-3",
+          "legs", List.of(Map.of("fromAccountId", accts[0], "toAccountId", accts[1], "amount", "1"))))
+          .path("error").path("message").asText());
+
+      // Caída después de preparar: el débito es durable y recover termina la transferencia una sola vez
+      var log = new TransferLogRepo();
+      try (Connection c = shards.get(0).get()) {
+        t.txRepo.transferOut(c, t.accountRepo, "TF-crash", "TX-crash", accts[0], accts[1], new BigDecimal("50"), null);
+        log.prepare(c, "TF-crash", accts[0], accts[1], new BigDecimal("50"), null);
+        assertEquals(0, new BigDecimal("50").compareTo(log.inFlight(c)));
+        c.commit();
+      }
+      assertEquals(4000.0 + 2000.0 - 50.0, totalBalance(shards), 1e-9);
+      assertEquals(1, bank.recoverCrossShardTransfers(true));
+      assertEquals(0, bank.recoverCrossShardTransfers(true));
+      assertEquals(1150.0, t.balance(bank, accts[1]), 1e-9);
+      assertEquals(6000.0, totalBalance(shards), 1e-9);
+    }
+  }
+
+  private static double totalBalance(Shards shards) throws Exception {
+    double total = 0;
+    for (SQLite db : shards.all()) {
+      try (Connection c = db.get(); var st = c.createStatement();
+           var rs = st.executeQuery("SELECT COALESCE(SUM(saldo), 0) FROM CUENTAS")) {
+        rs.next();
+        total += rs.getDouble(1);
+        c.commit();
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,94 @@
+package cc4p1.bank.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DailyLimitsTest {
+
+  private final AtomicLong now = new AtomicLong(Instant.parse("2025-10-03T23:59:59Z").toEpochMilli());
+
+  @Test
+  void reserves_up_to_the_limit_and_starts_over_at_utc_midnight() {
+    var limits = new DailyLimits(new BigDecimal("300.00"), now::get);
+    assertTrue(limits.tryReserve("CU001", new BigDecimal("200.00")));
+    assertFalse(limits.tryReserve("CU001", new BigDecimal("100.01")));
+    assertTrue(limits.tryReserve("CU002", new BigDecimal("300.00")));
+    limits.release("CU001", new BigDecimal("50.00"));
+    assertEquals(new BigDecimal("150.00"), limits.used("CU001"));
+    assertTrue(limits.tryReserve("CU001", new BigDecimal("150.00")));
+    assertEquals(new BigDecimal("300.00"), limits.used("CU001"));
+
+    now.addAndGet(TimeUnit.SECONDS.toMillis(1));
+    assertEquals(new BigDecimal("0.00"), limits.used("CU001"));
+    assertTrue(limits.tryReserve("CU001", new BigDecimal("300.00")));
+    assertFalse(limits.tryReserve("CU001", new BigDecimal("0.01")));
+  }
+
+  @Test
+  void unlimited_never_rejects_nor_counts() {
+    var limits = DailyLimits.unlimited();
+    assertFalse(limits.enabled());
+    assertTrue(limits.tryReserve("CU001", new BigDecimal("1000000000.00")));
+    assertEquals(new BigDecimal("0.00"), limits.used("CU001"));
+    assertFalse(DailyLimits.fromEnv(Map.of("BANK_DAILY_OUTFLOW_LIMIT", "0")).enabled());
+    assertEquals(new BigDecimal("20000.00"), DailyLimits.fromEnv(Map.of()).limit());
+  }
+
+  @Test
+  void rehydrate_sums_the_withdrawals_of_the_clock_day() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      // La semilla tiene un retiro de 300.00 en CU001 el 2025-10-03
+      var limits = new DailyLimits(new BigDecimal("500.00"), now::get);
+      var nextDay = new DailyLimits(new BigDecimal("500.00"), () -> now.get() + 1_000);
+      try (Connection c = t.sqlite.get()) {
+        assertEquals(1, limits.rehydrate(c));
+        assertEquals(0, nextDay.rehydrate(c));
+        c.commit();
+      }
+      assertEquals(new BigDecimal("300.00"), limits.used("CU001"));
+      assertFalse(limits.tryReserve("CU001", new BigDecimal("200.01")));
+      assertEquals(new BigDecimal("0.00"), nextDay.used("CU001"));
+    }
+  }
+
+  @Test
+  void service_rejects_in_memory_and_rehydrates_after_a_restart() throws Exception {
+    // Reloj fijo al inicio: el retiro cuenta aunque la prueba cruce la medianoche
+    long start = System.currentTimeMillis();
+    try (TestBank t = TestBank.open()) {
+      t.bank.setDailyLimits(new DailyLimits(new BigDecimal("300.00"), () -> start));
+      assertTrue(t.call(Map.of("type", "Withdraw", "messageId", "dlim-1", "accountId", "CU001", "amount", "100.00"))
+          .get("ok").asBoolean());
+      // Repetido y fallido no consumen tope
+      assertTrue(t.call(Map.of("type", "Withdraw", "messageId", "dlim-1", "accountId", "CU001", "amount", "100.00"))
+          .path("data").path("duplicate").asBoolean());
+      assertFalse(t.call(Map.of("type", "Transfer", "messageId", "dlim-2", "fromAccountId", "CU001",
+          "toAccountId", "NOPE", "amount", "50.00")).get("ok").asBoolean());
+      assertEquals(new BigDecimal("100.00"), t.bank.dailyLimits().used("CU001"));
+
+      // Reinicio: el tope se reconstruye desde TRANSACCIONES
+      var restarted = new DailyLimits(new BigDecimal("300.00"), () -> start);
+      try (Connection c = t.sqlite.get()) {
+        assertEquals(1, restarted.rehydrate(c));
+        c.commit();
+      }
+      t.bank.setDailyLimits(restarted);
+      JsonNode over = t.call(Map.of("type", "Transfer", "messageId", "dlim-3", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "250.00"));
+      assertEquals("DAILY_LIMIT_EXCEEDED", over.path("error").path("message").asText());
+      assertEquals(100.0, over.path("error").path("used").asDouble());
+      assertTrue(t.call(Map.of("type", "Transfer", "messageId", "dlim-4", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "200.00")).get("ok").asBoolean());
+      assertEquals(new BigDecimal("300.00"), restarted.used("CU001"));
+    }
+  }
+}
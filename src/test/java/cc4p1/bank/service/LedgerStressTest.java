@@ -0,0 +1,301 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.repo.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.*;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Estrés concurrente sobre un conjunto pequeño de cuentas "calientes": transferencias,
+ * retiros y pagos de préstamo aleatorios desde varios hilos, con reenvíos duplicados
+ * del mismo messageId. Al final verifica los invariantes del libro mayor.
+ *
+ * Solo corre con el perfil stress: {@code mvn -P stress test -Dstress.durationSeconds=60 -Dstress.threads=16}
+ */
+class LedgerStressTest {
+
+  private static final int HOT_ACCOUNTS = 8;
+  private static final int LOANS = 4;
+  private static final long INITIAL_BALANCE = 10_000;
+  private static final long INITIAL_LOAN = 1_000_000;
+
+  private final int durationSeconds = Integer.getInteger("stress.durationSeconds", 15);
+  private final int threads = Integer.getInteger("stress.threads", 8);
+
+  private Path tempDb;
+  private SQLite sqlite;
+  private BankService bank;
+  private final ObjectMapper om = new ObjectMapper();
+
+  /** Una petición enviada (quizá varias veces) y cuántas veces se aplicó realmente. */
+  private record Sent(String kind, String body, String from, String to, String loanId, long amount) {
+  }
+
+  private final Map<String, Sent> sent = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> applied = new ConcurrentHashMap<>();
+  private final Map<String, String> transferIds = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> errorCounts = new ConcurrentSkipListMap<>();
+  private final List<String> unexpected = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicLong duplicatesSent = new AtomicLong();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    tempDb = Files.createTempFile("bank-stress-", ".db");
+    sqlite = new SQLite(tempDb.toString());
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    try (Connection c = sqlite.get();
+         PreparedStatement cl = c.prepareStatement(
+             "INSERT INTO CLIENTES(id_cliente,dni,nombres,apellido_pat,apellido_mat,password) VALUES(?,?,?,?,?,?)");
+         PreparedStatement cu = c.prepareStatement(
+             "INSERT INTO CUENTAS(id_cuenta,id_cliente,saldo) VALUES(?,?,?)");
+         PreparedStatement pr = c.prepareStatement(
+             "INSERT INTO PRESTAMOS(id_prestamo,id_cliente,id_cuenta,monto_inicial,monto_pendiente,estado) VALUES(?,?,?,?,?,'activo')")) {
+      for (int i = 0; i < HOT_ACCOUNTS; i++) {
+        cl.setString(1, "CL-S" + i);
+        cl.setString(2, "7000000" + i);
+        cl.setString(3, "STRESS");
+        cl.setString(4, "PAT");
+        cl.setString(5, "MAT");
+        cl.setString(6, "x");
+        cl.executeUpdate();
+        cu.setString(1, account(i));
+        cu.setString(2, "CL-S" + i);
+        cu.setLong(3, INITIAL_BALANCE);
+        cu.executeUpdate();
+      }
+      for (int i = 0; i < LOANS; i++) {
+        pr.setString(1, loan(i));
+        pr.setString(2, "CL-S" + i);
+        pr.setString(3, account(i));
+        pr.setLong(4, INITIAL_LOAN);
+        pr.setLong(5, INITIAL_LOAN);
+        pr.executeUpdate();
+      }
+      c.commit();
+    }
+    bank = new BankService(sqlite, new ClientRepo(), new AccountRepo(), new LoanRepo(), new TxRepo(),
+        new MessageRepo(), new MockReniecClient(true, 0));
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    Files.deleteIfExists(tempDb);
+    Files.deleteIfExists(Path.of(tempDb + "-wal"));
+    Files.deleteIfExists(Path.of(tempDb + "-shm"));
+    Files.deleteIfExists(Path.of(tempDb + "-journal"));
+  }
+
+  private static String account(int i) {
+    return "CU-S" + i;
+  }
+
+  private static String loan(int i) {
+    return "PR-S" + i;
+  }
+
+  @Test
+  void concurrent_transfers_withdrawals_and_loan_payments_preserve_ledger_invariants() throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    List<String> ids = new CopyOnWriteArrayList<>();
+    AtomicLong seq = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      workers.add(pool.submit(() -> {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+          // ~10% reenvía un mensaje ya enviado (redelivery), posiblemente en paralelo con el original
+          if (!ids.isEmpty() && rnd.nextInt(10) == 0) {
+            String msgId = ids.get(rnd.nextInt(ids.size()));
+            duplicatesSent.incrementAndGet();
+            send(msgId, sent.get(msgId));
+            continue;
+          }
+          String msgId = "stress-" + seq.incrementAndGet();
+          Sent s = randomRequest(msgId, rnd);
+          sent.put(msgId, s);
+          applied.put(msgId, new AtomicLong());
+          ids.add(msgId);
+          send(msgId, s);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> f : workers) f.get();
+    pool.shutdown();
+
+    System.out.printf("[stress] threads=%d duration=%ds requests=%d duplicatesSent=%d errors=%s%n",
+        threads, durationSeconds, sent.size(), duplicatesSent.get(), errorCounts);
+    assertTrue(unexpected.isEmpty(), "Errores inesperados: " + unexpected.subList(0, Math.min(10, unexpected.size())));
+    assertTrue(applied.values().stream().anyMatch(n -> n.get() > 0), "ninguna operación se aplicó");
+    verifyInvariants();
+  }
+
+  private Sent randomRequest(String msgId, ThreadLocalRandom rnd) throws Exception {
+    long amount = 1 + rnd.nextInt(200);
+    int roll = rnd.nextInt(10);
+    Map<String, Object> r = new LinkedHashMap<>();
+    r.put("messageId", msgId);
+    r.put("amount", String.valueOf(amount));
+    if (roll < 6) {
+      int a = rnd.nextInt(HOT_ACCOUNTS);
+      int b = (a + 1 + rnd.nextInt(HOT_ACCOUNTS - 1)) % HOT_ACCOUNTS;
+      r.put("type", "Transfer");
+      r.put("fromAccountId", account(a));
+      r.put("toAccountId", account(b));
+      return new Sent("Transfer", om.writeValueAsString(r), account(a), account(b), null, amount);
+    } else if (roll < 8) {
+      int a = rnd.nextInt(HOT_ACCOUNTS);
+      r.put("type", "Withdraw");
+      r.put("accountId", account(a));
+      return new Sent("Withdraw", om.writeValueAsString(r), account(a), null, null, amount);
+    } else {
+      int l = rnd.nextInt(LOANS);
+      r.put("type", "PayLoan");
+      r.put("loanId", loan(l));
+      r.put("accountId", account(l));
+      return new Sent("PayLoan", om.writeValueAsString(r), account(l), null, loan(l), amount);
+    }
+  }
+
+  private void send(String msgId, Sent s) throws Exception {
+    JsonNode res = om.readTree(bank.handle(s.body(), msgId));
+    if (res.path("ok").asBoolean()) {
+      if (!res.path("data").path("duplicate").asBoolean(false)) {
+        applied.get(msgId).incrementAndGet();
+        if ("Transfer".equals(s.kind())) transferIds.put(msgId, res.path("data").path("transferId").asText());
+      }
+      return;
+    }
+    String msg = res.path("error").path("message").asText();
+    String key = msg.contains("INSUFFICIENT_FUNDS") ? "INSUFFICIENT_FUNDS"
+        : (msg.contains("SQLITE_BUSY") || msg.contains("locked")) ? "BUSY" : null;
+    if (key == null) {
+      unexpected.add(s.kind() + ": " + msg);
+      key = "OTHER";
+    }
+    errorCounts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+  }
+
+  private void verifyInvariants() throws Exception {
+    // Efecto esperado según las respuestas exitosas (cada messageId como máximo una vez)
+    Map<String, Long> expectedBalance = new HashMap<>();
+    Map<String, Long> expectedPending = new HashMap<>();
+    for (int i = 0; i < HOT_ACCOUNTS; i++) expectedBalance.put(account(i), INITIAL_BALANCE);
+    for (int i = 0; i < LOANS; i++) expectedPending.put(loan(i), INITIAL_LOAN);
+    long expectedRows = 0;
+    long moneyOut = 0;
+    for (var e : applied.entrySet()) {
+      long n = e.getValue().get();
+      assertTrue(n <= 1, "messageId aplicado " + n + " veces: " + e.getKey());
+      if (n == 0) continue;
+      Sent s = sent.get(e.getKey());
+      expectedBalance.merge(s.from(), -s.amount(), Long::sum);
+      switch (s.kind()) {
+        case "Transfer" -> {
+          expectedBalance.merge(s.to(), s.amount(), Long::sum);
+          expectedRows += 2;
+        }
+        case "Withdraw" -> {
+          moneyOut += s.amount();
+          expectedRows += 1;
+        }
+        case "PayLoan" -> {
+          moneyOut += s.amount();
+          expectedPending.merge(s.loanId(), -s.amount(), Long::sum);
+          expectedRows += 1;
+        }
+        default -> fail(s.kind());
+      }
+    }
+
+    try (Connection c = sqlite.get()) {
+      // 1) Saldos: ninguno negativo, coinciden con lo confirmado y se conserva el dinero
+      long total = 0;
+      for (int i = 0; i < HOT_ACCOUNTS; i++) {
+        BigDecimal saldo = scalar(c, "SELECT saldo FROM CUENTAS WHERE id_cuenta=?", account(i));
+        assertTrue(saldo.signum() >= 0, "saldo negativo en " + account(i));
+        assertEquals(0, saldo.compareTo(BigDecimal.valueOf(expectedBalance.get(account(i)))),
+            "saldo de " + account(i));
+        total += saldo.longValueExact();
+      }
+      assertEquals(HOT_ACCOUNTS * INITIAL_BALANCE - moneyOut, total, "conservación del dinero");
+
+      // 2) Cada cuenta cuadra con su historial en TRANSACCIONES
+      for (int i = 0; i < HOT_ACCOUNTS; i++) {
+        BigDecimal net = scalar(c, """
+            SELECT COALESCE(SUM(CASE tipo WHEN 'deposito' THEN monto ELSE -monto END), 0)
+              FROM TRANSACCIONES WHERE id_cuenta=?""", account(i));
+        assertEquals(expectedBalance.get(account(i)) - INITIAL_BALANCE, net.longValueExact(),
+            "historial de " + account(i));
+      }
+
+      // 2b) saldo_posterior del último movimiento = saldo actual, secuencias 1..n sin huecos
+      for (int i = 0; i < HOT_ACCOUNTS; i++) {
+        BigDecimal last = scalar(c, """
+            SELECT COALESCE((SELECT saldo_posterior FROM TRANSACCIONES WHERE id_cuenta=?1 ORDER BY secuencia DESC LIMIT 1),
+                            (SELECT saldo FROM CUENTAS WHERE id_cuenta=?1))""", account(i));
+        assertEquals(expectedBalance.get(account(i)), last.longValueExact(), "saldo_posterior de " + account(i));
+        assertEquals(0, scalar(c, "SELECT COUNT(*) - COALESCE(MAX(secuencia), 0) FROM TRANSACCIONES WHERE id_cuenta=?",
+            account(i)).intValue(), "secuencia de " + account(i));
+      }
+
+      // 3) Exactamente un retiro + un depósito por transferencia confirmada, y ninguna fila huérfana
+      for (String transferId : transferIds.values()) {
+        assertEquals(1, scalar(c, "SELECT COUNT(*) FROM TRANSACCIONES WHERE id_transferencia=? AND tipo='retiro'", transferId).intValue());
+        assertEquals(1, scalar(c, "SELECT COUNT(*) FROM TRANSACCIONES WHERE id_transferencia=? AND tipo='deposito'", transferId).intValue());
+      }
+      long rows = scalar(c, "SELECT COUNT(*) FROM TRANSACCIONES WHERE id_cuenta LIKE 'CU-S%'", null).longValue();
+      assertEquals(expectedRows, rows, "filas en TRANSACCIONES");
+
+      // 4) Préstamos
+      for (int i = 0; i < LOANS; i++) {
+        BigDecimal pending = scalar(c, "SELECT monto_pendiente FROM PRESTAMOS WHERE id_prestamo=?", loan(i));
+        assertEquals(0, pending.compareTo(BigDecimal.valueOf(expectedPending.get(loan(i)))), "pendiente de " + loan(i));
+      }
+      c.commit();
+    }
+
+    // 5) El motor de conciliación no debe encontrar nada sobre el estado final
+    List<cc4p1.bank.jobs.Reconciler.Discrepancy> found = Collections.synchronizedList(new ArrayList<>());
+    new cc4p1.bank.jobs.Reconciler(sqlite, threads).run(false, found::add);
+    assertTrue(found.isEmpty(), "conciliación: " + found.subList(0, Math.min(10, found.size())));
+
+    // 5b) Cada fila nueva de TRANSACCIONES dejó exactamente un TransactionPosted en el outbox
+    try (Connection c = sqlite.get()) {
+      assertEquals(0, scalar(c, """
+          SELECT (SELECT COUNT(*) FROM TRANSACCIONES WHERE hash IS NOT NULL)
+               - (SELECT COUNT(*) FROM EVENTOS_SALIDA WHERE tipo = 'TransactionPosted')
+          """, null).intValue(), "eventos TransactionPosted vs filas");
+      c.commit();
+    }
+
+    // 6) Las cadenas de hash deben seguir enlazadas pese a reintentos y escritores concurrentes
+    List<cc4p1.bank.jobs.ChainVerifier.Finding> broken = Collections.synchronizedList(new ArrayList<>());
+    new cc4p1.bank.jobs.ChainVerifier(sqlite, threads, null).run(false, broken::add);
+    assertTrue(broken.isEmpty(), "cadenas de hash: " + broken.subList(0, Math.min(10, broken.size())));
+  }
+
+  private static BigDecimal scalar(Connection c, String sql, String arg) throws Exception {
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      if (arg != null) ps.setString(1, arg);
+      try (ResultSet rs = ps.executeQuery()) {
+        assertTrue(rs.next());
+        return new BigDecimal(rs.getString(1));
+      }
+    }
+  }
+}
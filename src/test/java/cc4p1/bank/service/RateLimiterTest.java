@@ -0,0 +1,82 @@
+package cc4p1.bank.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final ObjectMapper om = new ObjectMapper();
+  private final AtomicLong now = new AtomicLong(42 * SECOND);
+
+  private JsonNode req(Map<String, Object> body) {
+    return om.valueToTree(body);
+  }
+
+  @Test
+  void burst_is_accepted_then_refills_at_the_sustained_rate() {
+    var limiter = new RateLimiter(List.of(new RateLimiter.Policy("Withdraw", List.of("accountId"), 2, 1)), now::get);
+    JsonNode cu001 = req(Map.of("accountId", "CU001"));
+    assertEquals(0, limiter.acquire("Withdraw", cu001));
+    assertEquals(0, limiter.acquire("Withdraw", cu001));
+    assertEquals(1000, limiter.acquire("Withdraw", cu001));
+    now.addAndGet(SECOND / 2);
+    assertEquals(500, limiter.acquire("Withdraw", cu001));
+    // Un intervalo después entra exactamente una más
+    now.addAndGet(SECOND / 2);
+    assertEquals(0, limiter.acquire("Withdraw", cu001));
+    assertEquals(1000, limiter.acquire("Withdraw", cu001));
+    // Rechazar no consume: tras una pausa larga vuelve la ráfaga completa, no más
+    now.addAndGet(10 * SECOND);
+    assertEquals(0, limiter.acquire("Withdraw", cu001));
+    assertEquals(0, limiter.acquire("Withdraw", cu001));
+    assertTrue(limiter.acquire("Withdraw", cu001) > 0);
+  }
+
+  @Test
+  void keys_have_their_own_buckets_and_fall_back_to_the_payload() {
+    var limiter = new RateLimiter(List.of(new RateLimiter.Policy("Login", List.of("dni", "usuario"), 1, 0.5)), now::get);
+    assertEquals(0, limiter.acquire("Login", req(Map.of("dni", "11111111"))));
+    assertEquals(2000, limiter.acquire("Login", req(Map.of("payload", Map.of("dni", "11111111")))));
+    assertEquals(0, limiter.acquire("Login", req(Map.of("usuario", "22222222"))));
+    assertEquals(2, limiter.size());
+    // Sin política o sin clave no se limita ni se crea cubeta
+    assertEquals(0, limiter.acquire("GetBalance", req(Map.of("accountId", "CU001"))));
+    assertEquals(0, limiter.acquire("Login", req(Map.of())));
+    assertEquals(2, limiter.size());
+  }
+
+  @Test
+  void env_overrides_named_policies_or_turns_everything_off() {
+    var limiter = RateLimiter.fromEnv(Map.of("BANK_RATE_LIMITS", "GetBalance:accountId:1:0.001"));
+    JsonNode cu001 = req(Map.of("accountId", "CU001"));
+    assertEquals(0, limiter.acquire("GetBalance", cu001));
+    assertTrue(limiter.acquire("GetBalance", cu001) > 0);
+    var off = RateLimiter.fromEnv(Map.of("BANK_RATE_LIMITS", "off"));
+    for (int i = 0; i < 100; i++) assertEquals(0, off.acquire("Register", req(Map.of("dni", "11111111"))));
+    assertThrows(IllegalArgumentException.class, () -> RateLimiter.fromEnv(Map.of("BANK_RATE_LIMITS", "Login:dni:3")));
+  }
+
+  @Test
+  void limited_requests_are_rejected_with_a_retry_hint() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      t.bank.setRateLimiter(new RateLimiter(List.of(
+          new RateLimiter.Policy("GetBalance", List.of("accountId"), 2, 0.001)), now::get));
+      assertTrue(t.call(Map.of("type", "GetBalance", "accountId", "CU001")).get("ok").asBoolean());
+      assertTrue(t.call(Map.of("type", "GetBalance", "accountId", "CU001")).get("ok").asBoolean());
+      JsonNode limited = t.call(Map.of("type", "GetBalance", "accountId", "CU001"));
+      assertEquals("RATE_LIMITED", limited.path("error").path("message").asText());
+      assertEquals(1_000_000, limited.path("error").path("retryAfterMs").asLong());
+      assertTrue(t.call(Map.of("type", "GetBalance", "accountId", "CU002")).get("ok").asBoolean());
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.repo.ScheduleRepo;
+import cc4p1.bank.tools.ShardSplitter;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScheduledTransfersTest {
+
+  /** Reloj de las pruebas: el planificador solo avanza con tick(instante). */
+  private static final long NOW = Instant.parse("2030-01-01T08:00:00Z").toEpochMilli();
+
+  @Test
+  void scheduled_transfers_fire_from_a_timing_wheel_once_per_occurrence() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      long at = NOW + 10_000;
+      JsonNode standing = t.call(Map.of("type", "ScheduleTransfer", "messageId", "sch-1", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "10.00", "at", String.valueOf(at), "everySeconds", 60, "occurrences", 3));
+      assertTrue(standing.get("ok").asBoolean(), standing.toString());
+      String orderId = standing.path("data").path("orderId").asText();
+      assertTrue(t.call(Map.of("type", "ScheduleTransfer", "messageId", "sch-1", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "10.00")).path("data").path("duplicate").asBoolean());
+      assertTrue(t.call(Map.of("type", "ScheduleTransfer", "messageId", "sch-2", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "5000", "at", Instant.ofEpochMilli(at + 5_000).toString()))
+          .get("ok").asBoolean());
+      assertTrue(t.call(Map.of("type", "ScheduleTransfer", "messageId", "sch-3", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "1", "at", String.valueOf(NOW + 86_400_000L))).get("ok").asBoolean());
+      assertEquals("ACCOUNT_NOT_FOUND", t.call(Map.of("type", "ScheduleTransfer", "messageId", "sch-4",
+          "fromAccountId", "CU001", "toAccountId", "CU999", "amount", "1")).path("error").path("message").asText());
+
+      var scheduler = t.bank.scheduledTransfers();
+      scheduler.setConfig(new ScheduledTransfers.Config(100, 120_000, 50));
+      // Solo la ventana próxima en memoria: la orden de mañana queda en la base
+      assertEquals(0, scheduler.tick(NOW));
+      assertEquals(2, scheduler.inMemory());
+
+      assertEquals(1, scheduler.tick(at));
+      assertEquals(2490.0, t.balance("CU001"), 1e-9);
+      assertEquals(1, scheduler.tick(at + 5_000)); // sin fondos: se anota y la orden termina
+      assertEquals(1, scheduler.failed());
+      assertEquals(0, scheduler.tick(at + 5_000));
+      assertEquals(1, scheduler.tick(at + 60_000)); // segunda ocurrencia
+      assertEquals(2480.0, t.balance("CU001"), 1e-9);
+      try (Connection c = t.sqlite.get()) {
+        assertTrue(t.messageRepo.alreadyProcessed(c, "SCH:" + orderId + ":0"));
+        assertTrue(t.messageRepo.alreadyProcessed(c, "SCH:" + orderId + ":1"));
+        c.commit();
+      }
+
+      JsonNode list = t.call(Map.of("type", "ListScheduledTransfers", "accountId", "CU001"));
+      assertEquals(3, list.path("data").path("count").asInt());
+      JsonNode first = list.path("data").path("orders").get(0);
+      assertEquals(orderId, first.path("orderId").asText());
+      assertEquals(2, first.path("occurrence").asInt());
+      assertEquals(1, first.path("remaining").asInt());
+      JsonNode failed = list.path("data").path("orders").get(2);
+      assertEquals("terminada", failed.path("status").asText());
+      assertEquals("INSUFFICIENT_FUNDS", failed.path("lastError").asText());
+
+      // Cancelada: la entrada que quedaba en la rueda ya no ejecuta nada
+      assertTrue(t.call(Map.of("type", "CancelScheduledTransfer", "messageId", "sch-5", "orderId", orderId,
+          "fromAccountId", "CU001")).get("ok").asBoolean());
+      assertEquals(0, scheduler.tick(at + 120_000));
+      assertEquals(2480.0, t.balance("CU001"), 1e-9);
+      assertEquals(2, scheduler.fired());
+    }
+  }
+
+  @Test
+  void standing_order_occurrences_reserve_the_daily_outflow_limit() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      t.bank.setDailyLimits(new DailyLimits(new BigDecimal("25.00"), () -> NOW));
+      long at = NOW + 1_000;
+      JsonNode standing = t.call(Map.of("type", "ScheduleTransfer", "messageId", "dsch-1", "fromAccountId", "CU001",
+          "toAccountId", "CU002", "amount", "10.00", "at", String.valueOf(at), "everySeconds", 60, "occurrences", 4));
+      String orderId = standing.path("data").path("orderId").asText();
+      var scheduler = t.bank.scheduledTransfers();
+      scheduler.setConfig(new ScheduledTransfers.Config(100, 600_000, 50));
+      assertEquals(0, scheduler.tick(NOW));
+      for (int i = 0; i < 4; i++) assertEquals(1, scheduler.tick(at + i * 60_000L));
+      // Dos ocurrencias entran en el tope; las otras dos fallan sin reintento y la orden termina
+      assertEquals(0, scheduler.tick(at + 4 * 60_000L));
+      assertEquals(2, scheduler.fired());
+      assertEquals(2, scheduler.failed());
+      assertEquals(new BigDecimal("20.00"), t.bank.dailyLimits().used("CU001"));
+      assertEquals(2480.0, t.balance("CU001"), 1e-9);
+      JsonNode order = t.call(Map.of("type", "ListScheduledTransfers", "accountId", "CU001"))
+          .path("data").path("orders").get(0);
+      assertEquals(orderId, order.path("orderId").asText());
+      assertEquals("terminada", order.path("status").asText());
+      assertEquals(2, order.path("failures").asInt());
+      assertEquals("DAILY_LIMIT_EXCEEDED", order.path("lastError").asText());
+    }
+  }
+
+  @Test
+  void a_cross_shard_occurrence_is_retried_when_the_shard_write_lock_times_out() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      Shards shards = ShardSplitter.split(t.db.toString(), 2);
+      BankService bank = new BankService(shards, t.clientRepo, t.accountRepo, t.loanRepo, t.txRepo, t.messageRepo,
+          new MockReniecClient(true, 0));
+      // Dos cuentas del shard 0; la orden se guarda en el shard 1, así el planificador la manda
+      // por CrossShardTransfers y solo el débito (no el avance de la orden) pide el cerrojo del shard 0
+      List<String> accts = new ArrayList<>();
+      for (int dni = 70000000; accts.size() < 2; dni++) {
+        if (shards.indexOf(String.valueOf(dni)) != 0) continue;
+        accts.add(t.call(bank, Map.of("type", "Register", "messageId", "reg-" + dni, "dni", String.valueOf(dni),
+            "password", "clave", "saldo", "1000")).path("data").path("accountId").asText());
+      }
+      long at = NOW + 1_000;
+      var order = new ScheduleRepo.Order("OR-x", accts.get(0), accts.get(1), new BigDecimal("10.00"), null, at,
+          null, null, 0, "activa", 0, null);
+      try (Connection c = shards.get(1).get()) {
+        new ScheduleRepo().insert(c, order);
+        c.commit();
+      }
+      var scheduler = bank.scheduledTransfers();
+      scheduler.setConfig(new ScheduledTransfers.Config(100, 600_000, 50));
+      assertEquals(0, scheduler.tick(NOW));
+
+      // Otro escritor retiene el cerrojo del shard 0: la espera se agota con DB_BUSY (sin causa)
+      shards.get(0).setBusyPolicy(new SQLite.BusyPolicy(50, 1, 10));
+      var holder = Executors.newSingleThreadExecutor();
+      var held = new CountDownLatch(1);
+      var release = new CountDownLatch(1);
+      try {
+        holder.submit(() -> {
+          try (var lock = shards.lockWrite(0)) {
+            held.countDown();
+            release.await();
+          }
+          return null;
+        });
+        assertTrue(held.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.tick(at));
+      } finally {
+        release.countDown();
+        holder.shutdown();
+      }
+      // Transitorio: ni se anota ni se pasa a la ocurrencia siguiente
+      assertEquals(0, scheduler.failed());
+      try (Connection c = shards.get(1).read()) {
+        var pending = new ScheduleRepo().find(c, "OR-x");
+        assertEquals(0, pending.occurrence());
+        assertTrue(pending.active());
+        assertNull(pending.lastError());
+      }
+      assertEquals(1000.0, t.balance(bank, accts.get(0)), 1e-9);
+
+      // La ocurrencia vuelve a la rueda y se aplica en el reintento
+      assertTrue(holder.awaitTermination(5, TimeUnit.SECONDS));
+      assertEquals(1, scheduler.tick(at + 1_000));
+      assertEquals(1, scheduler.fired());
+      assertEquals(990.0, t.balance(bank, accts.get(0)), 1e-9);
+      assertEquals(1010.0, t.balance(bank, accts.get(1)), 1e-9);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.db.SQLite;
+import cc4p1.bank.db.Shards;
+import cc4p1.bank.repo.AccountRepo;
+import cc4p1.bank.repo.ClientRepo;
+import cc4p1.bank.repo.LoanRepo;
+import cc4p1.bank.repo.MessageRepo;
+import cc4p1.bank.repo.TxRepo;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Base temporal con la semilla de init_db.sql y un BankService sobre ella, para las pruebas
+ * de otros paquetes (jobs, mq, db). Al cerrar borra el archivo, su WAL y los shards que
+ * se hayan partido de él.
+ */
+public final class TestBank implements AutoCloseable {
+
+  public final Path db;
+  public final SQLite sqlite;
+  public final ClientRepo clientRepo = new ClientRepo();
+  public final AccountRepo accountRepo = new AccountRepo();
+  public final LoanRepo loanRepo = new LoanRepo();
+  public final TxRepo txRepo = new TxRepo();
+  public final MessageRepo messageRepo = new MessageRepo();
+  public final BankService bank;
+  public final ObjectMapper om = new ObjectMapper();
+
+  private TestBank() throws Exception {
+    db = Files.createTempFile("bank-test-", ".db");
+    sqlite = new SQLite(db.toString());
+    sqlite.initializeIfNeeded("/db/init_db.sql");
+    bank = new BankService(sqlite, clientRepo, accountRepo, loanRepo, txRepo, messageRepo,
+        new MockReniecClient(true, 0));
+  }
+
+  public static TestBank open() throws Exception {
+    return new TestBank();
+  }
+
+  public JsonNode call(Map<String, Object> req) throws Exception {
+    return call(bank, req);
+  }
+
+  public JsonNode call(BankService service, Map<String, Object> req) throws Exception {
+    return om.readTree(service.handle(om.writeValueAsString(req), "corr-1"));
+  }
+
+  public double balance(String accountId) throws Exception {
+    return balance(bank, accountId);
+  }
+
+  public double balance(BankService service, String accountId) throws Exception {
+    return call(service, Map.of("type", "GetBalance", "accountId", accountId)).path("data").path("balance").asDouble();
+  }
+
+  public double balanceAt(String accountId, String at) throws Exception {
+    JsonNode res = call(Map.of("type", "GetBalanceAt", "accountId", accountId, "at", at));
+    assertTrue(res.get("ok").asBoolean(), res.toPrettyString());
+    return res.path("data").path("balance").asDouble();
+  }
+
+  /** Comprueba saldo_posterior y secuencia fila por fila; devuelve cuántas filas tiene la cuenta. */
+  public static int runningBalanceHistoryOk(Connection c, String accountId) throws Exception {
+    try (var ps = c.prepareStatement(
+        "SELECT tipo, monto, saldo_posterior, secuencia FROM TRANSACCIONES WHERE id_cuenta=? ORDER BY secuencia")) {
+      ps.setString(1, accountId);
+      try (var rs = ps.executeQuery()) {
+        BigDecimal prev = null;
+        Long prevSeq = null;
+        int n = 0;
+        while (rs.next()) {
+          BigDecimal monto = rs.getBigDecimal("monto");
+          BigDecimal after = rs.getBigDecimal("saldo_posterior");
+          long seq = rs.getLong("secuencia");
+          if (prev != null) {
+            assertEquals(prevSeq + 1, seq);
+            BigDecimal expected = "deposito".equals(rs.getString("tipo")) ? prev.add(monto) : prev.subtract(monto);
+            assertEquals(0, expected.compareTo(after), accountId + " secuencia " + seq);
+          }
+          prev = after;
+          prevSeq = seq;
+          n++;
+        }
+        return n;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (int n = 1; n <= 4; n++) {
+      for (int k = 0; k < n; k++) {
+        String f = Shards.path(db.toString(), k, n);
+        for (String suffix : List.of("", "-wal", "-shm")) Files.deleteIfExists(Path.of(f + suffix));
+      }
+    }
+  }
+}
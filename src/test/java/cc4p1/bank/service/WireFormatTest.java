@@ -0,0 +1,64 @@
+package cc4p1.bank.service;
+
+import cc4p1.bank.mq.InMemoryBroker;
+import cc4p1.bank.mq.Rabbit;
+import cc4p1.bank.mq.Transport;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireFormatTest {
+
+  @Test
+  void binary_wire_formats_are_negotiated_by_content_type() throws Exception {
+    try (TestBank t = TestBank.open()) {
+      for (int i = 0; i < 30; i++) {
+        t.call(Map.of("type", "Deposit", "messageId", "wire-" + i, "accountId", "CU001", "amount", "1.25"));
+      }
+      try (var broker = new InMemoryBroker(); var server = new Rabbit(broker)) {
+        server.setVerbose(false);
+        server.serve(t.bank);
+        String replyQueue = broker.declareTempQueue();
+        var replies = new LinkedBlockingQueue<Transport.Message>();
+        broker.consume(replyQueue, 10, d -> {
+          replies.add(d.message());
+          d.ack();
+        });
+        Map<String, Object> page = Map.of("type", "ListTransactions", "accountId", "CU001", "from", "2000-01-01",
+            "to", "2100-12-31", "limit", 100);
+        Map<WireFormat, Integer> sizes = new EnumMap<>(WireFormat.class);
+        for (WireFormat f : WireFormat.values()) {
+          broker.publish(Rabbit.exchange(), Rabbit.routingKeyFor("ListTransactions"),
+              new Transport.Message("wire-" + f, replyQueue, f.contentType(), null,
+                  f.mapper().writeValueAsBytes(page)));
+          var reply = replies.poll(5, TimeUnit.SECONDS);
+          assertNotNull(reply);
+          // Mismo formato de ida y vuelta, mismo sobre
+          assertEquals(f.contentType(), reply.contentType());
+          JsonNode res = f.mapper().readTree(reply.body());
+          assertTrue(res.get("ok").asBoolean(), res.toString());
+          assertEquals("wire-" + f, res.path("correlationId").asText());
+          assertEquals(33, res.path("data").path("count").asInt()); // 3 de la semilla + 30
+          sizes.put(f, reply.body().length);
+        }
+        assertTrue(sizes.get(WireFormat.CBOR) < sizes.get(WireFormat.JSON), sizes.toString());
+        assertTrue(sizes.get(WireFormat.SMILE) < sizes.get(WireFormat.JSON), sizes.toString());
+
+        // Errores también en binario; contentType desconocido o ausente: JSON
+        broker.publish(Rabbit.exchange(), Rabbit.routingKeyFor("Deposit"),
+            new Transport.Message("wire-err", replyQueue, "application/cbor", null,
+                WireFormat.CBOR.mapper().writeValueAsBytes(Map.of("type", "Deposit", "accountId", "CU001"))));
+        var err = replies.poll(5, TimeUnit.SECONDS);
+        assertEquals("MISSING_messageId", WireFormat.CBOR.mapper().readTree(err.body()).path("error").path("message").asText());
+        assertEquals(WireFormat.JSON, WireFormat.of("text/plain"));
+        assertEquals(WireFormat.SMILE, WireFormat.of("application/x-jackson-smile; charset=binary"));
+      }
+    }
+  }
+}
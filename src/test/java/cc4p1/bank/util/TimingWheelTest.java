@@ -0,0 +1,64 @@
+package cc4p1.bank.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+  @Test
+  void returns_items_in_due_order_and_rejects_out_of_range() {
+    var wheel = new TimingWheel<String>(10, 4, 3, 0);
+    assertEquals(480, wheel.horizonMillis());
+    assertTrue(wheel.add(250, "c"));
+    assertTrue(wheel.add(15, "a"));
+    assertTrue(wheel.add(70, "b"));
+    assertFalse(wheel.add(5000, "lejos"));
+    assertEquals(3, wheel.size());
+    assertEquals(List.of(), wheel.advance(9));
+    assertEquals(List.of("a"), wheel.advance(20));
+    assertEquals(List.of("b", "c"), wheel.advance(300));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  void overdue_items_leave_on_the_next_advance() {
+    var wheel = new TimingWheel<String>(10, 4, 2, 1_000);
+    assertTrue(wheel.add(500, "vencido"));
+    assertTrue(wheel.add(1_005, "mismo tick"));
+    assertEquals(2, wheel.size());
+    assertEquals(List.of("vencido", "mismo tick"), wheel.advance(1_000));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  void cascades_every_item_down_to_its_own_tick() {
+    // 3 niveles de 4 cubetas: los vencimientos cruzan los dígitos de todos los niveles
+    var wheel = new TimingWheel<Long>(1, 4, 3, 0);
+    List<Long> expected = new ArrayList<>();
+    for (long due = 1; due < wheel.horizonMillis(); due += 7) {
+      assertTrue(wheel.add(due, due));
+      expected.add(due);
+    }
+    List<Long> out = new ArrayList<>();
+    for (long now = 0; now <= wheel.horizonMillis(); now++) {
+      for (long due : wheel.advance(now)) {
+        assertEquals(now, due);
+        out.add(due);
+      }
+    }
+    assertEquals(expected, out);
+  }
+
+  @Test
+  void an_empty_wheel_jumps_ahead_without_losing_later_items() {
+    var wheel = new TimingWheel<String>(10, 4, 2, 0);
+    assertEquals(List.of(), wheel.advance(1_000_000));
+    assertTrue(wheel.add(1_000_050, "x"));
+    assertEquals(List.of(), wheel.advance(1_000_040));
+    assertEquals(List.of("x"), wheel.advance(1_000_050));
+  }
+}